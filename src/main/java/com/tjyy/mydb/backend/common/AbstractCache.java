@@ -1,33 +1,107 @@
 package com.tjyy.mydb.backend.common;
 
-import com.sun.org.apache.xpath.internal.operations.Bool;
 import com.tjyy.mydb.common.Error;
 
-import java.util.HashMap;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntFunction;
+import java.util.function.LongPredicate;
+import java.util.function.Predicate;
 
 /**
  * @author: Tjyy
  * @date: 2024-02-26 14:54
  * @description: AbstractCache 实现了一个引用计数策略的缓存
+ * 缓存按 key 被划分为若干个段(Segment)，每个段拥有独立的锁和簿记结构，
+ * 不同段上的 get/release 互不阻塞；maxResource 平均分给各个段。
+ *
+ * 没有驱逐策略时，资源的引用数降为 0 就被立即写回并移出缓存，缓存满时抛出 CacheFullException；
+ * 配置了驱逐策略时，引用数为 0 的资源继续驻留，缓存满时由策略选出牺牲者写回并驱逐，
+ * 段内资源都被引用时调用者最多等待 FULL_WAIT_MILLIS，仍没有资源被释放时抛出 CacheFullException。
+ * 写回在段锁之外进行，写回期间资源的槽位保持为加载状态，同一资源的请求等待写回结束后再从磁盘读取。
+ * 关闭时仍在加载或写回的资源被移出缓存，等待它们的请求收到 CacheClosedException；
+ * 之后结束的加载不再放入缓存，加载出的资源直接写回。
  */
 public abstract class AbstractCache<T>{
-    private HashMap<Long, T> cache;  // 保存缓存数据
-    private HashMap<Long, Integer> references; // 元素的引用个数
-    private HashMap<Long, Boolean> getting; // 正在被获取的资源
+    // 有容量上限时，每个段至少分到的资源数，避免段过多导致单段容量过小
+    private static final int MIN_SEGMENT_CAPACITY = 32;
+    // 段内资源都被引用时等待释放的最长时间，毫秒
+    private static final long FULL_WAIT_MILLIS = 1000;
 
-    private int maxResource;  // 缓存的最大缓存资源数
-    private int count = 0; // 缓存中当前的元素个数
-    private Lock lock;
+    private final Segment[] segments;
+    private final int segmentShift;  // 用 key 哈希的高位选择段
 
     public AbstractCache(int maxResource){
-        this.maxResource = maxResource;
-        cache = new HashMap<>();
-        references = new HashMap<>();
-        getting = new HashMap<>();
-        lock = new ReentrantLock();
+        this(maxResource, 1);
+    }
+
+    /**
+     * @param maxResource 缓存的最大缓存资源数，0 表示不限制
+     * @param concurrencyLevel 期望的并发段数，会被向上取整为 2 的幂
+     */
+    public AbstractCache(int maxResource, int concurrencyLevel){
+        this(maxResource, concurrencyLevel, null);
+    }
+
+    /**
+     * @param maxResource 缓存的最大缓存资源数，配置驱逐策略时必须大于 0
+     * @param concurrencyLevel 期望的并发段数，会被向上取整为 2 的幂
+     * @param policyFactory 根据段容量创建驱逐策略，为 null 时不保留未被引用的资源
+     */
+    public AbstractCache(int maxResource, int concurrencyLevel, IntFunction<EvictionPolicy> policyFactory){
+        int segmentBits = 0;
+        while ((1 << segmentBits) < concurrencyLevel
+                && (maxResource <= 0 || maxResource >> (segmentBits + 1) >= MIN_SEGMENT_CAPACITY)){
+            segmentBits++;
+        }
+        int segmentCount = 1 << segmentBits;
+        this.segmentShift = 64 - segmentBits;
+        this.segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            // 将 maxResource 尽量平均地分配给各个段
+            int capacity = maxResource <= 0 ? 0 : maxResource / segmentCount + (i < maxResource % segmentCount ? 1 : 0);
+            EvictionPolicy policy = policyFactory == null ? null : policyFactory.apply(capacity);
+            segments[i] = new Segment(capacity, policy);
+        }
+    }
+
+    /**
+     * 一个缓存段：保存落在该段上的缓存数据、引用计数与正在加载的资源
+     */
+    private static class Segment {
+        // 缓存数据、元素的引用个数以及正在被获取的资源(等待者阻塞在对应的 future 上)保存在同一个槽位中
+        private CacheTable table;
+        private Lock lock = new ReentrantLock();
+        private Condition released = lock.newCondition();  // 有资源的引用数降为 0
+
+        private int capacity;  // 段的最大资源数，0 表示不限制
+        private int count = 0;  // 段中当前的元素个数，包括正在加载的资源
+        private EvictionPolicy policy;
+
+        Segment(int capacity, EvictionPolicy policy) {
+            this.capacity = capacity;
+            this.policy = policy;
+            this.table = new CacheTable(capacity);
+        }
+    }
+
+    /**
+     * 根据 key 选择所在的段，先混合高低 32 位，避免 uid(pgno << 32 | offset) 只在高位变化
+     * @param key
+     * @return
+     */
+    private Segment segmentFor(long key){
+        if (segments.length == 1){
+            return segments[0];
+        }
+        long h = (key ^ (key >>> 32)) * 0x9E3779B97F4A7C15L;
+        return segments[(int) (h >>> segmentShift)];
     }
 
     /**
@@ -36,39 +110,73 @@ public abstract class AbstractCache<T>{
      * @return
      * @throws Exception
      */
+    @SuppressWarnings("unchecked")
     protected T get(long key) throws Exception{
+        Segment segment = segmentFor(key);
+        CompletableFuture<T> loading;
+        long deadline = 0;
         while (true){
-            lock.lock();
-            if (getting.containsKey(key)){
-                // 请求的资源正在被其他线程获取
-                lock.unlock();
-                try {
-                    Thread.sleep(1);
-                }catch (InterruptedException e){
-                    e.printStackTrace();
-                    continue;
-                }
+            segment.lock.lock();
+            int slot = segment.table.find(key);
+            if (slot >= 0 && segment.table.state(slot) == CacheTable.LOADING){
+                // 请求的资源正在被其他线程获取，等待该次加载结束后再重新检查缓存
+                CompletableFuture<T> inFlight = (CompletableFuture<T>) segment.table.value(slot);
+                segment.lock.unlock();
+                awaitLoading(inFlight);
                 continue;
             }
 
-            if (cache.containsKey(key)){
+            if (slot >= 0){
                 // 资源在缓存中，可以直接返回
-                T obj = cache.get(key);
-                references.put(key, references.get(key) + 1);
-                lock.unlock();
+                T obj = (T) segment.table.value(slot);
+                int ref = segment.table.references(slot);
+                segment.table.setReferences(slot, ref + 1);
+                if (segment.policy != null){
+                    if (ref == 0){
+                        segment.policy.pinned(key);
+                    }
+                    segment.policy.access(key);
+                }
+                segment.lock.unlock();
                 return obj;
             }
 
             // 如果不再缓存中，尝试获取资源
-            if(maxResource > 0 && count == maxResource){
-                lock.unlock();
-                throw Error.CacheFullException;
+            if(segment.capacity > 0 && segment.count == segment.capacity){
+                if (segment.policy == null){
+                    segment.lock.unlock();
+                    throw Error.CacheFullException;
+                }
+                long victim = segment.policy.evict();
+                if (victim != EvictionPolicy.NO_VICTIM){
+                    // 释放段锁后写回牺牲者，写回结束后重新检查
+                    writeBack(segment, victim);
+                    continue;
+                }
+                // 段内资源都在被引用，等待其他线程释放后重新检查，超时后放弃
+                if (deadline == 0){
+                    deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(FULL_WAIT_MILLIS);
+                }
+                try {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0){
+                        throw Error.CacheFullException;
+                    }
+                    segment.released.awaitNanos(remaining);
+                }catch (InterruptedException e){
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }finally {
+                    segment.lock.unlock();
+                }
+                continue;
             }
 
             // 打破循环 不重复在缓存中获取
-            count++;
-            getting.put(key, true);
-            lock.unlock();
+            segment.count++;
+            loading = new CompletableFuture<>();
+            segment.table.insert(key, CacheTable.LOADING, loading);
+            segment.lock.unlock();
             break;
         }
 
@@ -77,59 +185,266 @@ public abstract class AbstractCache<T>{
         try {
             obj = getForCache(key);
         }catch (Exception e){
-            lock.lock();
-            count--;
-            getting.remove(key);
-            lock.unlock();
+            segment.lock.lock();
+            int slot = pendingSlot(segment, key, loading);
+            if (slot >= 0){
+                segment.count--;
+                segment.table.remove(slot);
+                segment.released.signal();
+            }
+            segment.lock.unlock();
+            // 唤醒所有等待该资源的线程，并将失败原因交给它们
+            loading.completeExceptionally(e);
             throw e;
         }
 
-        lock.lock();
-        getting.remove(key);
-        cache.put(key, obj);
-        references.put(key, 1);
-        lock.unlock();
+        segment.lock.lock();
+        int slot = pendingSlot(segment, key, loading);
+        if (slot < 0){
+            // 加载期间缓存被关闭
+            segment.lock.unlock();
+            releaseForCache(obj);
+            throw Error.CacheClosedException;
+        }
+        segment.table.setResident(slot, obj);
+        segment.table.setReferences(slot, 1);
+        if (segment.policy != null){
+            segment.policy.admit(key);
+        }
+        segment.lock.unlock();
+        loading.complete(obj);
         return obj;
     }
 
+    /**
+     * 将一个未被引用的资源写回并移出缓存，调用时需持有段锁，返回时已释放段锁
+     * 写回期间槽位替换为加载状态，同一资源的请求等待写回结束，不会读到磁盘上的旧数据
+     * @param segment
+     * @param key
+     */
+    @SuppressWarnings("unchecked")
+    private void writeBack(Segment segment, long key){
+        int slot = segment.table.find(key);
+        T obj = (T) segment.table.value(slot);
+        CompletableFuture<T> writing = new CompletableFuture<>();
+        segment.table.remove(slot);
+        segment.table.insert(key, CacheTable.LOADING, writing);
+        segment.lock.unlock();
+        try {
+            releaseForCache(obj);
+        }finally {
+            segment.lock.lock();
+            int current = pendingSlot(segment, key, writing);
+            if (current >= 0){
+                segment.table.remove(current);
+                segment.count--;
+                segment.released.signal();
+            }
+            segment.lock.unlock();
+            writing.complete(null);
+        }
+    }
+
+    /**
+     * key 仍处于 pending 对应的加载或写回状态时返回它的槽位，需持有段锁
+     * @param segment
+     * @param key
+     * @param pending
+     * @return 槽位已在关闭时被移除时返回 -1
+     */
+    private int pendingSlot(Segment segment, long key, CompletableFuture<T> pending){
+        int slot = segment.table.find(key);
+        if (slot < 0 || segment.table.value(slot) != pending){
+            return -1;
+        }
+        return slot;
+    }
+
+    /**
+     * 等待其他线程对同一资源的加载结束
+     * 加载失败时，将加载线程抛出的异常原样抛给等待者；等待时被中断则恢复中断标记并抛出 InterruptedException
+     * @param loading
+     * @throws Exception
+     */
+    private void awaitLoading(CompletableFuture<T> loading) throws Exception{
+        try {
+            loading.get();
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw e;
+        }catch (ExecutionException e){
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception){
+                throw (Exception) cause;
+            }
+            throw e;
+        }
+    }
+
     /**
      * 强行释放一个缓存
      * @param key
      */
+    @SuppressWarnings("unchecked")
     protected void release(long key){
-        lock.lock();
+        Segment segment = segmentFor(key);
+        segment.lock.lock();
+        int slot = segment.table.find(key);
+        if (slot < 0 || segment.table.references(slot) == 0){
+            segment.lock.unlock();
+            throw new IllegalStateException("Release of unreferenced resource " + key);
+        }
+        int ref = segment.table.references(slot) - 1;
+        segment.table.setReferences(slot, ref);
+        if (ref > 0){
+            segment.lock.unlock();
+            return;
+        }
+
+        if (segment.policy != null){
+            // 没有其他引用时，资源继续驻留，成为可驱逐的候选者
+            segment.policy.unpinned(key);
+            segment.released.signal();
+            segment.lock.unlock();
+        }else{
+            // 没有驱逐策略时，立即释放该资源
+            writeBack(segment, key);
+        }
+    }
+
+    /**
+     * 资源是否在缓存中，包括正在加载和正在写回的资源
+     * @param key
+     * @return
+     */
+    protected boolean contains(long key){
+        Segment segment = segmentFor(key);
+        segment.lock.lock();
         try {
-            int ref = references.get(key) - 1;
-            // 没有其他引用时，可以释放该资源
-            if (ref == 0){
-                T obj = cache.get(key);
-                releaseForCache(obj);
-                references.remove(key);
-                cache.remove(key);
-                count--;
-            }else{
-                references.put(key, ref);
+            return segment.table.find(key) >= 0;
+        }finally {
+            segment.lock.unlock();
+        }
+    }
+
+    /**
+     * 将 key 满足条件的驻留资源移出缓存并返回，不写回，用于资源在底层已经失效的情况(例如文件被截断)
+     * 满足条件的资源仍被引用时抛出 IllegalStateException，此时缓存不做任何修改
+     * @param filter
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    protected List<T> invalidate(LongPredicate filter){
+        for (Segment segment : segments) {
+            segment.lock.lock();
+        }
+        try {
+            for (Segment segment : segments) {
+                CacheTable table = segment.table;
+                for (int slot = 0; slot < table.capacity(); slot++) {
+                    if (table.state(slot) == CacheTable.EMPTY || !filter.test(table.key(slot))){
+                        continue;
+                    }
+                    if (table.state(slot) != CacheTable.RESIDENT || table.references(slot) > 0){
+                        throw new IllegalStateException("Invalidate of referenced resource " + table.key(slot));
+                    }
+                }
             }
+            List<T> invalidated = new ArrayList<>();
+            for (Segment segment : segments) {
+                CacheTable table = segment.table;
+                for (int slot = 0; slot < table.capacity(); slot++) {
+                    if (table.state(slot) != CacheTable.RESIDENT || !filter.test(table.key(slot))){
+                        continue;
+                    }
+                    long key = table.key(slot);
+                    invalidated.add((T) table.value(slot));
+                    if (segment.policy != null){
+                        segment.policy.remove(key);
+                    }
+                    table.remove(slot);
+                    segment.count--;
+                    segment.released.signal();
+                    // 删除后其他元素可能移动到当前槽位，重新检查
+                    slot--;
+                }
+            }
+            return invalidated;
         }finally {
-            lock.unlock();
+            for (Segment segment : segments) {
+                segment.lock.unlock();
+            }
         }
     }
 
     /**
-     * 关闭缓存 写回所有资源
+     * 引用所有满足条件的驻留资源并返回，引用期间它们不会被驱逐，调用者处理完后需要逐个 release
+     * @param filter
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    protected List<T> pinResident(Predicate<T> filter){
+        List<T> pinned = new ArrayList<>();
+        for (Segment segment : segments) {
+            segment.lock.lock();
+            try {
+                CacheTable table = segment.table;
+                for (int slot = 0; slot < table.capacity(); slot++) {
+                    if (table.state(slot) != CacheTable.RESIDENT || !filter.test((T) table.value(slot))){
+                        continue;
+                    }
+                    int ref = table.references(slot);
+                    table.setReferences(slot, ref + 1);
+                    if (ref == 0 && segment.policy != null){
+                        segment.policy.pinned(table.key(slot));
+                    }
+                    pinned.add((T) table.value(slot));
+                }
+            }finally {
+                segment.lock.unlock();
+            }
+        }
+        return pinned;
+    }
+
+    /**
+     * 关闭缓存 写回所有资源，正在加载或写回的资源交给对应的线程处理
      */
+    @SuppressWarnings("unchecked")
     protected void close(){
-        lock.lock();
-        try{
-            Set<Long> keys = cache.keySet();
-            for (Long key : keys) {
-                T obj = cache.get(key);
+        for (Segment segment : segments) {
+            List<T> residents = new ArrayList<>();
+            List<CompletableFuture<T>> pending = new ArrayList<>();
+            segment.lock.lock();
+            try{
+                CacheTable table = segment.table;
+                for (int slot = 0; slot < table.capacity(); slot++) {
+                    if (table.state(slot) == CacheTable.LOADING){
+                        pending.add((CompletableFuture<T>) table.value(slot));
+                        continue;
+                    }
+                    if (table.state(slot) != CacheTable.RESIDENT){
+                        continue;
+                    }
+                    residents.add((T) table.value(slot));
+                    if (segment.policy != null){
+                        segment.policy.remove(table.key(slot));
+                    }
+                }
+                table.clear();
+                segment.count = 0;
+                segment.released.signalAll();
+            }finally {
+                segment.lock.unlock();
+            }
+            // 等待正在加载或写回的资源的请求不再等待
+            for (CompletableFuture<T> future : pending) {
+                future.completeExceptionally(Error.CacheClosedException);
+            }
+            // 在段锁之外写回
+            for (T obj : residents) {
                 releaseForCache(obj);
-                references.remove(key);
-                cache.remove(key);
             }
-        }finally {
-            lock.unlock();
         }
     }
 
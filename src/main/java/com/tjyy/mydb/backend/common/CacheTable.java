@@ -0,0 +1,186 @@
+package com.tjyy.mydb.backend.common;
+
+import java.util.Arrays;
+
+/**
+ * @author: Tjyy
+ * @date: 2024-03-07 09:40
+ * @description: 缓存簿记表
+ * 以 long 为 key 的开放寻址(线性探测)哈希表，一个槽位同时保存资源、引用计数和加载状态，
+ * 查找与修改引用计数都不需要装箱，也不会产生任何对象分配。
+ * 槽位下标在 insert 扩容或 remove 回移后会失效，调用者只能在两次修改之间使用它。
+ * 非线程安全，由 AbstractCache 的段锁保护。
+ */
+public class CacheTable {
+    public static final byte EMPTY = 0;
+    public static final byte LOADING = 1;  // 正在加载，value 中保存加载的 future
+    public static final byte RESIDENT = 2;  // 已在缓存中，value 中保存资源
+
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] keys;
+    private Object[] values;
+    private int[] references;
+    private byte[] states;
+
+    private int mask;
+    private int size = 0;
+
+    public CacheTable(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new Object[capacity];
+        references = new int[capacity];
+        states = new byte[capacity];
+        mask = capacity - 1;
+    }
+
+    private int indexOf(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    /**
+     * 查找 key 所在的槽位
+     * @param key
+     * @return 槽位下标，不存在时返回 -1
+     */
+    public int find(long key) {
+        int i = indexOf(key);
+        while (states[i] != EMPTY) {
+            if (keys[i] == key) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * 插入一个当前不存在的 key
+     * @param key
+     * @param state
+     * @param value
+     * @return 新槽位的下标
+     */
+    public int insert(long key, byte state, Object value) {
+        if ((size + 1) * 2 > keys.length) {
+            resize(keys.length << 1);
+        }
+        int i = indexOf(key);
+        while (states[i] != EMPTY) {
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        references[i] = 0;
+        states[i] = state;
+        size++;
+        return i;
+    }
+
+    /**
+     * 删除一个槽位，并把后续探测链上的元素回移填补空洞，避免使用墓碑
+     * @param slot
+     */
+    public void remove(int slot) {
+        int gap = slot;
+        int i = slot;
+        while (true) {
+            i = (i + 1) & mask;
+            if (states[i] == EMPTY) {
+                break;
+            }
+            // i 处元素的理想位置不在 (gap, i] 区间内时，可以前移到 gap
+            int ideal = indexOf(keys[i]);
+            if (((i - ideal) & mask) >= ((i - gap) & mask)) {
+                keys[gap] = keys[i];
+                values[gap] = values[i];
+                references[gap] = references[i];
+                states[gap] = states[i];
+                gap = i;
+            }
+        }
+        values[gap] = null;
+        references[gap] = 0;
+        states[gap] = EMPTY;
+        size--;
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        int[] oldReferences = references;
+        byte[] oldStates = states;
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldStates[i] == EMPTY) {
+                continue;
+            }
+            int j = indexOf(oldKeys[i]);
+            while (states[j] != EMPTY) {
+                j = (j + 1) & mask;
+            }
+            keys[j] = oldKeys[i];
+            values[j] = oldValues[i];
+            references[j] = oldReferences[i];
+            states[j] = oldStates[i];
+        }
+    }
+
+    public void clear() {
+        Arrays.fill(values, null);
+        Arrays.fill(references, 0);
+        Arrays.fill(states, EMPTY);
+        size = 0;
+    }
+
+    /**
+     * 槽位总数，配合 state(slot) 用于遍历
+     * @return
+     */
+    public int capacity() {
+        return keys.length;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long key(int slot) {
+        return keys[slot];
+    }
+
+    public byte state(int slot) {
+        return states[slot];
+    }
+
+    public Object value(int slot) {
+        return values[slot];
+    }
+
+    public int references(int slot) {
+        return references[slot];
+    }
+
+    public void setReferences(int slot, int references) {
+        this.references[slot] = references;
+    }
+
+    /**
+     * 加载完成，槽位转为驻留状态
+     * @param slot
+     * @param value
+     */
+    public void setResident(int slot, Object value) {
+        values[slot] = value;
+        states[slot] = RESIDENT;
+    }
+}
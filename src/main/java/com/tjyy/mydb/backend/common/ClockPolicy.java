@@ -0,0 +1,89 @@
+package com.tjyy.mydb.backend.common;
+
+/**
+ * @author: Tjyy
+ * @date: 2024-03-06 10:20
+ * @description: CLOCK 驱逐策略
+ * 所有驻留资源排成一个环，每个槽位有一个访问位。时钟指针扫过时，
+ * 被引用的资源跳过，访问位为 1 的资源清零后获得第二次机会，访问位为 0 的资源被驱逐。
+ */
+public class ClockPolicy implements EvictionPolicy {
+    private long[] keys;  // 环上每个槽位保存的 key
+    private boolean[] referenced;  // 访问位
+    private boolean[] evictable;  // 引用数为 0 时可以被驱逐
+    private boolean[] used;  // 槽位是否被占用
+    private LongIntHashMap slots;  // key -> 槽位
+
+    private int[] freeSlots;  // 空闲槽位栈
+    private int freeTop;
+    private int hand = 0;  // 时钟指针
+
+    public ClockPolicy(int capacity) {
+        keys = new long[capacity];
+        referenced = new boolean[capacity];
+        evictable = new boolean[capacity];
+        used = new boolean[capacity];
+        slots = new LongIntHashMap(capacity);
+        freeSlots = new int[capacity];
+        for (int i = 0; i < capacity; i++) {
+            freeSlots[i] = capacity - 1 - i;
+        }
+        freeTop = capacity;
+    }
+
+    @Override
+    public void admit(long key) {
+        int slot = freeSlots[--freeTop];
+        keys[slot] = key;
+        referenced[slot] = true;
+        evictable[slot] = false;
+        used[slot] = true;
+        slots.put(key, slot);
+    }
+
+    @Override
+    public void access(long key) {
+        referenced[slots.get(key)] = true;
+    }
+
+    @Override
+    public void unpinned(long key) {
+        evictable[slots.get(key)] = true;
+    }
+
+    @Override
+    public void pinned(long key) {
+        evictable[slots.get(key)] = false;
+    }
+
+    @Override
+    public long evict() {
+        // 最多扫两圈：第一圈清除访问位，第二圈一定能找到可驱逐的资源
+        for (int i = 0; i < 2 * keys.length; i++) {
+            int slot = hand;
+            hand = (hand + 1) % keys.length;
+            if (!used[slot] || !evictable[slot]) {
+                continue;
+            }
+            if (referenced[slot]) {
+                referenced[slot] = false;
+                continue;
+            }
+            long key = keys[slot];
+            remove(key);
+            return key;
+        }
+        return NO_VICTIM;
+    }
+
+    @Override
+    public void remove(long key) {
+        int slot = slots.remove(key);
+        if (slot == LongIntHashMap.MISSING) {
+            return;
+        }
+        used[slot] = false;
+        evictable[slot] = false;
+        freeSlots[freeTop++] = slot;
+    }
+}
@@ -0,0 +1,48 @@
+package com.tjyy.mydb.backend.common;
+
+/**
+ * @author: Tjyy
+ * @date: 2024-03-06 10:05
+ * @description: 缓存驱逐策略
+ * 策略只负责在引用数为 0 的资源中选出牺牲者，写回和移除由 AbstractCache 完成。
+ * 每个缓存段持有一个独立的策略实例，所有方法都在段锁内被调用，不需要自行同步。
+ */
+public interface EvictionPolicy {
+    long NO_VICTIM = -1;
+
+    /**
+     * 资源被加载进缓存，此时它已被引用
+     * @param key
+     */
+    void admit(long key);
+
+    /**
+     * 资源在缓存中被命中
+     * @param key
+     */
+    void access(long key);
+
+    /**
+     * 资源的引用数降为 0，成为可驱逐的候选者
+     * @param key
+     */
+    void unpinned(long key);
+
+    /**
+     * 资源的引用数从 0 变为 1，不再可以被驱逐
+     * @param key
+     */
+    void pinned(long key);
+
+    /**
+     * 选出一个牺牲者并将其从策略中移除
+     * @return 被驱逐的 key，没有可驱逐的资源时返回 NO_VICTIM
+     */
+    long evict();
+
+    /**
+     * 资源被直接移出缓存
+     * @param key
+     */
+    void remove(long key);
+}
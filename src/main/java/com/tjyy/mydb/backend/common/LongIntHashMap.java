@@ -0,0 +1,116 @@
+package com.tjyy.mydb.backend.common;
+
+import java.util.Arrays;
+
+/**
+ * @author: Tjyy
+ * @date: 2024-03-07 10:30
+ * @description: long -> int 的开放寻址哈希表，不装箱，供驱逐策略记录 key 所在的槽位
+ * 值必须为非负数，get 在 key 不存在时返回 -1。非线程安全。
+ */
+public class LongIntHashMap {
+    public static final int MISSING = -1;
+
+    private long[] keys;
+    private int[] values;  // MISSING 表示空槽
+    private int mask;
+    private int size = 0;
+
+    public LongIntHashMap(int expectedSize) {
+        int capacity = 16;
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        keys = new long[capacity];
+        values = new int[capacity];
+        Arrays.fill(values, MISSING);
+        mask = capacity - 1;
+    }
+
+    private int indexOf(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    public int get(long key) {
+        int i = indexOf(key);
+        while (values[i] != MISSING) {
+            if (keys[i] == key) {
+                return values[i];
+            }
+            i = (i + 1) & mask;
+        }
+        return MISSING;
+    }
+
+    public void put(long key, int value) {
+        int i = indexOf(key);
+        while (values[i] != MISSING) {
+            if (keys[i] == key) {
+                values[i] = value;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        if ((size + 1) * 2 > keys.length) {
+            resize();
+            put(key, value);
+            return;
+        }
+        keys[i] = key;
+        values[i] = value;
+        size++;
+    }
+
+    /**
+     * 删除 key，并回移后续探测链上的元素
+     * @param key
+     * @return 被删除的值，不存在时返回 MISSING
+     */
+    public int remove(long key) {
+        int gap = indexOf(key);
+        while (values[gap] != MISSING && keys[gap] != key) {
+            gap = (gap + 1) & mask;
+        }
+        int removed = values[gap];
+        if (removed == MISSING) {
+            return MISSING;
+        }
+
+        int i = gap;
+        while (true) {
+            i = (i + 1) & mask;
+            if (values[i] == MISSING) {
+                break;
+            }
+            int ideal = indexOf(keys[i]);
+            if (((i - ideal) & mask) >= ((i - gap) & mask)) {
+                keys[gap] = keys[i];
+                values[gap] = values[i];
+                gap = i;
+            }
+        }
+        values[gap] = MISSING;
+        size--;
+        return removed;
+    }
+
+    private void resize() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new long[oldKeys.length << 1];
+        values = new int[oldKeys.length << 1];
+        Arrays.fill(values, MISSING);
+        mask = keys.length - 1;
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != MISSING) {
+                put(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+}
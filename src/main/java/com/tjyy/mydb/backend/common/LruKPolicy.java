@@ -0,0 +1,178 @@
+package com.tjyy.mydb.backend.common;
+
+import java.util.Arrays;
+
+/**
+ * @author: Tjyy
+ * @date: 2024-03-06 11:02
+ * @description: LRU-K 驱逐策略
+ * 记录每个资源最近 K 次访问的逻辑时间，驱逐"倒数第 K 次访问"最早的候选者。
+ * 访问次数不足 K 次的资源视为距离无穷大，优先被驱逐，它们之间按最近一次访问做 LRU。
+ * 这样只被顺序扫描访问过一次的页面不会把反复访问的热点页挤出缓存。
+ * 候选者放在按(倒数第 K 次访问, 最近一次访问)排序的二叉堆中，不足 K 次的资源倒数第 K 次访问为 0，
+ * 自然排在最前面，驱逐、加入和移出候选者都是 O(log n)。
+ */
+public class LruKPolicy implements EvictionPolicy {
+    private static final int DEFAULT_K = 2;
+
+    private int k;
+    private long clock = 0;  // 逻辑时间
+
+    private long[] keys;  // 槽位上的 key
+    private long[] history;  // 每个槽位连续 K 个元素，保存最近 K 次访问时间，首个为最近一次
+    private int[] heap;  // 引用数为 0 的候选者的槽位组成的最小堆
+    private int heapSize;
+    private int[] heapIndex;  // 槽位在堆中的位置，不是候选者时为 -1
+    private LongIntHashMap slots;  // key -> 槽位
+
+    private int[] freeSlots;  // 空闲槽位栈
+    private int freeTop;
+
+    public LruKPolicy(int capacity) {
+        this(capacity, DEFAULT_K);
+    }
+
+    public LruKPolicy(int capacity, int k) {
+        this.k = k;
+        keys = new long[capacity];
+        history = new long[capacity * k];
+        heap = new int[capacity];
+        heapIndex = new int[capacity];
+        Arrays.fill(heapIndex, -1);
+        slots = new LongIntHashMap(capacity);
+        freeSlots = new int[capacity];
+        for (int i = 0; i < capacity; i++) {
+            freeSlots[i] = capacity - 1 - i;
+        }
+        freeTop = capacity;
+    }
+
+    @Override
+    public void admit(long key) {
+        int slot = freeSlots[--freeTop];
+        keys[slot] = key;
+        for (int i = 0; i < k; i++) {
+            history[slot * k + i] = 0;
+        }
+        slots.put(key, slot);
+        access(key);
+    }
+
+    @Override
+    public void access(long key) {
+        int slot = slots.get(key);
+        int base = slot * k;
+        System.arraycopy(history, base, history, base + 1, k - 1);
+        history[base] = ++clock;
+        if (heapIndex[slot] >= 0) {
+            // 访问时间只会变大，候选者在堆中下沉
+            siftDown(heapIndex[slot]);
+        }
+    }
+
+    @Override
+    public void unpinned(long key) {
+        int slot = slots.get(key);
+        if (heapIndex[slot] < 0) {
+            heap[heapSize] = slot;
+            heapIndex[slot] = heapSize;
+            siftUp(heapSize++);
+        }
+    }
+
+    @Override
+    public void pinned(long key) {
+        removeCandidate(slots.get(key));
+    }
+
+    @Override
+    public long evict() {
+        if (heapSize == 0) {
+            return NO_VICTIM;
+        }
+        long key = keys[heap[0]];
+        remove(key);
+        return key;
+    }
+
+    @Override
+    public void remove(long key) {
+        int slot = slots.remove(key);
+        if (slot == LongIntHashMap.MISSING) {
+            return;
+        }
+        removeCandidate(slot);
+        freeSlots[freeTop++] = slot;
+    }
+
+    /**
+     * 将槽位从候选者堆中移出，不是候选者时什么也不做
+     * @param slot
+     */
+    private void removeCandidate(int slot) {
+        int i = heapIndex[slot];
+        if (i < 0) {
+            return;
+        }
+        heapIndex[slot] = -1;
+        int last = heap[--heapSize];
+        if (i == heapSize) {
+            return;
+        }
+        heap[i] = last;
+        heapIndex[last] = i;
+        siftUp(i);
+        siftDown(heapIndex[last]);
+    }
+
+    /**
+     * 槽位 a 是否应先于槽位 b 被驱逐：倒数第 K 次访问更早，相同时最近一次访问更早
+     * @param a
+     * @param b
+     * @return
+     */
+    private boolean before(int a, int b) {
+        long kthA = history[a * k + k - 1];
+        long kthB = history[b * k + k - 1];
+        if (kthA != kthB) {
+            return kthA < kthB;
+        }
+        return history[a * k] < history[b * k];
+    }
+
+    private void siftUp(int i) {
+        int slot = heap[i];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!before(slot, heap[parent])) {
+                break;
+            }
+            heap[i] = heap[parent];
+            heapIndex[heap[i]] = i;
+            i = parent;
+        }
+        heap[i] = slot;
+        heapIndex[slot] = i;
+    }
+
+    private void siftDown(int i) {
+        int slot = heap[i];
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= heapSize) {
+                break;
+            }
+            if (child + 1 < heapSize && before(heap[child + 1], heap[child])) {
+                child++;
+            }
+            if (!before(heap[child], slot)) {
+                break;
+            }
+            heap[i] = heap[child];
+            heapIndex[heap[i]] = i;
+            i = child;
+        }
+        heap[i] = slot;
+        heapIndex[slot] = i;
+    }
+}
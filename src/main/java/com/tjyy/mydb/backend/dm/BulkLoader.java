@@ -0,0 +1,186 @@
+package com.tjyy.mydb.backend.dm;
+
+import com.tjyy.mydb.backend.dm.dataitem.DataItem;
+import com.tjyy.mydb.backend.dm.logger.Logger;
+import com.tjyy.mydb.backend.dm.page.CommonPage;
+import com.tjyy.mydb.backend.dm.page.FirstPage;
+import com.tjyy.mydb.backend.dm.pageCache.PageCache;
+import com.tjyy.mydb.backend.dm.pageCache.PageCacheImpl;
+import com.tjyy.mydb.backend.dm.pageIndex.FreeSpaceMap;
+import com.tjyy.mydb.backend.dm.pageIndex.PageIndex;
+import com.tjyy.mydb.backend.tm.TransactionManager;
+import com.tjyy.mydb.backend.util.Panic;
+import com.tjyy.mydb.backend.util.Types;
+import com.tjyy.mydb.common.Error;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * @author: Tjyy
+ * @date: 2024-03-21 10:00
+ * @description: 离线批量导入
+ * 首次导入大量数据时不经过缓冲池和日志：按 CommonPage 格式依次排列 DataItem，
+ * 攒满 WRITE_PAGES 页后以一次顺序写写入 DB 文件，不写任何 insert 日志。
+ * 所有数据属于同一个事务 xid()，上层需要 XID 的数据(如 Entry)可以在导入前取得它。
+ *
+ * 导入过程中第一页只有验证字符，没有终止字符，中途失败时数据库被视为未正常关闭，需要删除所有文件后重新导入。
+ * close 时依次：刷盘 DB 文件，写入只含检查点的日志，提交事务，写入空闲空间旁路文件，
+ * 最后写入第一页的终止字符并刷盘，之后数据库就是一个正常关闭的状态，DataManager.open 不需要恢复和扫描。
+ * 不能与打开同一数据库的 DataManager 同时使用。
+ */
+public class BulkLoader {
+    private static final int WRITE_PAGES = 128;  // 每次顺序写的页数，1MB
+    private static final byte[] EMPTY_PAGE = CommonPage.initCommonPage();
+
+    private String path;
+    private TransactionManager transactionManager;
+    private Logger logger;
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private long xid;
+
+    private ByteBuffer firstPage;
+    private ByteBuffer page;  // 正在填充的页
+    private int pgno;  // 正在填充的页的页号
+    private ByteBuffer writeBuffer;  // 待写入的完整页面
+    private long writePosition;  // writeBuffer 中第一页在文件中的位置
+    private short[] freeSpace;  // 各页的剩余空间，按页号下标
+
+    private BulkLoader(String path) {
+        this.path = path;
+    }
+
+    /**
+     * 创建新的数据库文件并开始导入，任何文件已存在时 panic
+     * @param path
+     * @return
+     */
+    public static BulkLoader create(String path){
+        BulkLoader loader = new BulkLoader(path);
+        File db = new File(path + PageCacheImpl.DB_SUFFIX);
+        try {
+            if (!db.createNewFile()){
+                Panic.panic(Error.FileExistsException);
+            }
+            loader.file = new RandomAccessFile(db, "rw");
+        }catch (IOException e){
+            Panic.panic(e);
+        }
+        loader.channel = loader.file.getChannel();
+        loader.transactionManager = TransactionManager.create(path);
+        loader.logger = Logger.create(path);
+        loader.xid = loader.transactionManager.begin();
+
+        loader.firstPage = ByteBuffer.wrap(FirstPage.initFirstPage());
+        loader.page = ByteBuffer.wrap(CommonPage.initCommonPage());
+        loader.writeBuffer = ByteBuffer.allocateDirect(WRITE_PAGES * PageCache.PAGE_SIZE);
+        loader.freeSpace = new short[1024];
+        loader.writeBuffer.put(loader.firstPage.duplicate());
+        loader.pgno = 2;
+        return loader;
+    }
+
+    /**
+     * 导入数据所属的事务
+     * @return
+     */
+    public long xid(){
+        return xid;
+    }
+
+    /**
+     * 将数据包装成 DataItem 追加到当前页，放不下时开始新的一页
+     * @param data
+     * @return 数据的 uid
+     * @throws Exception
+     */
+    public long add(byte[] data) throws Exception {
+        int size = DataItem.dataItemRawLength(data);
+        if (size > CommonPage.MAX_PAGE_DATA_SIZE){
+            throw Error.DataTooLargeException;
+        }
+        if (CommonPage.getFreeSpace(page) < size){
+            nextPage();
+        }
+        page.position(CommonPage.getOffset(page));
+        DataItem.putDataItemRaw(page, data);
+        short slot = CommonPage.appendRecord(page, size);
+        return Types.addressToUid(pgno, slot);
+    }
+
+    /**
+     * 当前页放入写缓冲，重置为空页
+     */
+    private void nextPage(){
+        if (pgno >= freeSpace.length){
+            freeSpace = Arrays.copyOf(freeSpace, freeSpace.length * 2);
+        }
+        freeSpace[pgno] = (short) CommonPage.getFreeSpace(page);
+        page.clear();
+        writeBuffer.put(page);
+        if (!writeBuffer.hasRemaining()){
+            flushWriteBuffer();
+        }
+        System.arraycopy(EMPTY_PAGE, 0, page.array(), 0, PageCache.PAGE_SIZE);
+        page.clear();
+        pgno++;
+    }
+
+    private void flushWriteBuffer(){
+        writeBuffer.flip();
+        try {
+            while (writeBuffer.hasRemaining()){
+                writePosition += channel.write(writeBuffer, writePosition);
+            }
+        }catch (IOException e){
+            Panic.panic(e);
+        }
+        writeBuffer.clear();
+    }
+
+    /**
+     * 结束导入，之后数据库处于正常关闭的状态
+     */
+    public void close(){
+        nextPage();
+        flushWriteBuffer();
+        int pageNumber = pgno - 1;
+        try {
+            channel.force(false);
+        }catch (IOException e){
+            Panic.panic(e);
+        }
+
+        long end = logger.end();
+        long lsn = logger.log(Recover.checkpointLog(end, pageNumber, end));
+        logger.setCheckpoint(lsn);
+        logger.close();
+
+        transactionManager.commit(xid);
+        transactionManager.close();
+
+        PageIndex pageIndex = new PageIndex();
+        for (int i = 2; i <= pageNumber; i++) {
+            pageIndex.add(i, freeSpace[i]);
+        }
+        FreeSpaceMap.write(path, FirstPage.getValidString(firstPage), pageNumber, pageIndex);
+
+        FirstPage.setCloseString(firstPage);
+        try {
+            firstPage.clear();
+            while (firstPage.hasRemaining()){
+                channel.write(firstPage, firstPage.position());
+            }
+            channel.force(false);
+            channel.close();
+            file.close();
+        }catch (IOException e){
+            Panic.panic(e);
+        }
+    }
+}
@@ -6,6 +6,9 @@ import com.tjyy.mydb.backend.dm.page.FirstPage;
 import com.tjyy.mydb.backend.dm.pageCache.PageCache;
 import com.tjyy.mydb.backend.tm.TransactionManager;
 
+import java.io.InputStream;
+import java.util.List;
+
 public interface DataManager {
     /**
      * 从 DataManager 中读取数据抽象
@@ -16,7 +19,7 @@ public interface DataManager {
     DataItem read(long uid) throws Exception;
 
     /**
-     * 将数据抽象写入到文件中
+     * 将数据抽象写入到文件中，数据超过一页时抛出 DataTooLargeException，应使用 insertStream
      * @param xid
      * @param data
      * @return
@@ -24,6 +27,67 @@ public interface DataManager {
      */
     long insert(long xid, byte[] data) throws Exception;
 
+    /**
+     * 批量将数据抽象写入到文件中，每一页中尽量多地放入数据，每页只写一条日志
+     * @param xid
+     * @param data
+     * @return 与 data 一一对应的 uid
+     * @throws Exception
+     */
+    long[] insertBatch(long xid, List<byte[]> data) throws Exception;
+
+    /**
+     * 删除数据，uid 保持有效，之后读取返回 null；删除的事务结束后空间被回收
+     * @param xid
+     * @param uid
+     * @return 数据已经无效时返回 false
+     * @throws Exception
+     */
+    boolean delete(long xid, long uid) throws Exception;
+
+    /**
+     * 将数据替换为长度可以不同的新数据，uid 保持不变
+     * @param xid
+     * @param uid
+     * @param data
+     * @return 数据已经无效时返回 false
+     * @throws Exception 所在页面放不下新数据时抛出 PageFullException
+     */
+    boolean update(long xid, long uid, byte[] data) throws Exception;
+
+    /**
+     * 将任意长度的数据按页切分写入一条溢出页链，每页写一条日志，不需要将整个数据读入内存
+     * 返回的 uid 指向记录总长度和第一个溢出页的头部数据项
+     * @param xid
+     * @param data 由调用者关闭
+     * @return
+     * @throws Exception
+     */
+    long insertStream(long xid, InputStream data) throws Exception;
+
+    /**
+     * 以流的形式读取 insertStream 写入的数据
+     * @param uid insertStream 返回的 uid
+     * @return 头部数据项无效时返回 null
+     * @throws Exception
+     */
+    InputStream readStream(long uid) throws Exception;
+
+    /**
+     * 删除 insertStream 写入的数据，删除的事务结束后溢出页链上的页面被回收；
+     * 插入数据的事务回滚时，溢出页链在事务结束后同样被回收
+     * @param xid
+     * @param uid insertStream 返回的 uid
+     * @return 头部数据项已经无效时返回 false
+     * @throws Exception
+     */
+    boolean deleteStream(long xid, long uid) throws Exception;
+
+    /**
+     * 建立检查点：将所有脏页写回磁盘并写入检查点日志，恢复时只需从检查点开始重放日志
+     */
+    void checkpoint();
+
     /**
      * 关闭数据管理器
      */
@@ -41,8 +105,10 @@ public interface DataManager {
         PageCache pageCache = PageCache.create(path, memory);
         Logger logger = Logger.create(path);
 
-        DataManagerImpl dataManager = new DataManagerImpl(pageCache, logger, transactionManager);
+        DataManagerImpl dataManager = new DataManagerImpl(path, pageCache, logger, transactionManager);
         dataManager.initFirstPage();
+        dataManager.startCheckpointer();
+        dataManager.startVacuum();
         return dataManager;
     }
 
@@ -57,14 +123,20 @@ public interface DataManager {
     public static DataManager open(String path, long memory, TransactionManager transactionManager){
         PageCache pageCache = PageCache.open(path, memory);
         Logger logger = Logger.open(path);
-        DataManagerImpl dataManager = new DataManagerImpl(pageCache, logger, transactionManager);
-        if (!dataManager.loadCheckFirstPage()){
+        DataManagerImpl dataManager = new DataManagerImpl(path, pageCache, logger, transactionManager);
+        boolean clean = dataManager.loadCheckFirstPage();
+        if (!clean){
             Recover.recover(transactionManager, logger, pageCache);
         }
 
-        dataManager.fillPageIndex();
+        // 上次正常关闭时写入的空闲空间旁路文件有效时不必逐页扫描，需在重新设置验证字符之前读取
+        if (!clean || !dataManager.loadFreeSpaceMap()){
+            dataManager.fillPageIndex();
+        }
         FirstPage.setInitString(dataManager.firstPage);
         dataManager.pageCache.flushPage(dataManager.firstPage);
+        dataManager.startCheckpointer();
+        dataManager.startVacuum();
         return dataManager;
     }
 
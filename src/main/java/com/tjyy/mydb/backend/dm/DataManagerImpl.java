@@ -1,38 +1,162 @@
 package com.tjyy.mydb.backend.dm;
 
 import com.tjyy.mydb.backend.common.AbstractCache;
+import com.tjyy.mydb.backend.common.SubArray;
 import com.tjyy.mydb.backend.dm.dataitem.DataItem;
 import com.tjyy.mydb.backend.dm.dataitem.DataItemImpl;
 import com.tjyy.mydb.backend.dm.logger.Logger;
 import com.tjyy.mydb.backend.dm.page.CommonPage;
 import com.tjyy.mydb.backend.dm.page.FirstPage;
+import com.tjyy.mydb.backend.dm.page.OverflowPage;
 import com.tjyy.mydb.backend.dm.page.Page;
 import com.tjyy.mydb.backend.dm.pageCache.PageCache;
+import com.tjyy.mydb.backend.dm.pageIndex.FreeSpaceMap;
 import com.tjyy.mydb.backend.dm.pageIndex.PageIndex;
 import com.tjyy.mydb.backend.dm.pageIndex.PageInfo;
 import com.tjyy.mydb.backend.tm.TransactionManager;
+import com.tjyy.mydb.backend.tm.TransactionManagerImpl;
 import com.tjyy.mydb.backend.util.Panic;
 import com.tjyy.mydb.backend.util.Types;
 import com.tjyy.mydb.common.Error;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntPredicate;
+
 /**
  * @author: Tjyy
  * @date: 2024-03-03 14:25
  * @description: data manager
+ * 页面的修改总是在对应日志写入之后进行(先写日志再改页面)，记录日志和修改页面在 checkpointLock 的读锁下完成；
+ * 检查点在写锁下取得日志末尾位置，此前的日志对应的修改都已落在缓存页面上，写回所有脏页后这些日志就不必再重放。
  */
 public class DataManagerImpl extends AbstractCache<DataItem> implements DataManager{
+    private static final int CACHE_SEGMENTS = 16;  // DataItem 缓存的分段数
+    private static final long CHECKPOINT_POLL_INTERVAL = 1000;  // 检查是否需要建立检查点的间隔，毫秒
+    private static final long CHECKPOINT_INTERVAL = 60 * 1000;  // 有新日志时至少每隔这么久建立一次检查点
+    private static final long CHECKPOINT_LOG_SIZE = 64L << 20;  // 上次检查点之后日志增长超过该大小时建立检查点
+    private static final int RECLAIM_BATCH = 16;  // 每次最多整理的有可回收空间的页面数
+    private static final long VACUUM_INTERVAL = 100;  // 后台回收线程每批扫描的间隔，毫秒
+    private static final int VACUUM_BUDGET = 256;  // 后台回收线程默认每秒的 I/O 预算(页数)
+    private static final Queue<Pending> EMPTY_PENDING = new ConcurrentLinkedQueue<>();
+    private static final int OVERFLOW_HEAD_SIZE = 12;  // 溢出数据的头部数据项: [TotalLength 8] [FirstPgno 4]
+    private static final int INSERT_STRIPES = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);  // 默认的插入分段数
+
+    /**
+     * 插入分段：持有一个从 pageIndex 中取出的目标页，由 lock 保护
+     */
+    private static class InsertStripe {
+        final Lock lock = new ReentrantLock();
+        PageInfo pageInfo;  // 当前的目标页，freeSpace 在每次插入后更新
+    }
+
+    /**
+     * 仍可能被撤销的删除或变短：所属事务结束前，删除的记录不能回收，变短空出的空间不能分配
+     * 事务回滚时在回滚状态持久化之前就已撤销，宕机后恢复会撤销所有未结束的事务，因此只需记录在内存中
+     */
+    private static class Pending {
+        final long xid;
+        final int slot;  // 删除的槽号，变短时为 -1
+        final int reserved;  // 变短时为撤销预留的字节数
+
+        Pending(long xid, int slot, int reserved) {
+            this.xid = xid;
+            this.slot = slot;
+            this.reserved = reserved;
+        }
+    }
+
+    /**
+     * 回滚时需要撤销的修改：DataManager 删除或修改数据项之前的记录
+     */
+    private static class Undo {
+        final long uid;
+        final byte[] oldRaw;
+
+        Undo(long uid, byte[] oldRaw) {
+            this.uid = uid;
+            this.oldRaw = oldRaw;
+        }
+    }
+
+    /**
+     * 结局尚未处理的溢出页链：插入它的事务可能回滚，或者删除它的事务尚未结束
+     * 事务结束后，被删除或插入被回滚的链上的页面整理为空页面，放回 pageIndex
+     */
+    private static class StreamChain {
+        final long xid;
+        final long uid;  // 头部数据项
+        final int first;  // 第一个溢出页
+        final boolean deleted;  // 由 deleteStream 删除，否则是 insertStream 插入
+
+        StreamChain(long xid, long uid, int first, boolean deleted) {
+            this.xid = xid;
+            this.uid = uid;
+            this.first = first;
+            this.deleted = deleted;
+        }
+    }
+
+    String path;
     TransactionManager transactionManager;
     PageCache pageCache;
     Logger logger;
     PageIndex pageIndex;
     Page firstPage;
+    private volatile InsertStripe[] insertStripes;  // 为 null 时不使用插入缓冲
+    private Map<Integer, Queue<Pending>> pending;  // 页号 -> 仍可能被撤销的删除和变短
+    private Map<Long, Deque<Undo>> undo;  // 事务 -> 按修改顺序排列的 Undo，检查点时清理已结束的事务
+    private Set<Integer> garbagePages;  // 有可回收空间、等待整理的页面
+    private Queue<Integer> garbageQueue;  // garbagePages 中的页面，按加入顺序整理
+    private Queue<StreamChain> streamChains;  // 结局尚未处理的溢出页链
+    private Vacuum vacuum;
+    private volatile boolean truncateOnClose;  // 关闭时是否截断末尾的空页面
+
+    private ReadWriteLock checkpointLock;
+    private Map<Long, Long> firstLsn;  // 事务的第一条日志位置，检查点时清理已结束的事务
+    private volatile long lastCheckpointEnd;  // 上一次检查点建立时的日志末尾
+    private volatile long lastCheckpointTime;
+    private Thread checkpointer;
+    private Lock checkpointerLock;
+    private Condition checkpointerStop;
+    private boolean closed;
 
-    public DataManagerImpl(PageCache pageCache, Logger logger, TransactionManager transactionManager){
-        super(0);
+    public DataManagerImpl(String path, PageCache pageCache, Logger logger, TransactionManager transactionManager){
+        super(0, CACHE_SEGMENTS);
+        this.path = path;
         this.pageCache = pageCache;
         this.logger = logger;
         this.transactionManager = transactionManager;
         this.pageIndex = new PageIndex();
+        this.checkpointLock = new ReentrantReadWriteLock();
+        this.firstLsn = new ConcurrentHashMap<>();
+        this.pending = new ConcurrentHashMap<>();
+        this.undo = new ConcurrentHashMap<>();
+        this.garbagePages = ConcurrentHashMap.newKeySet();
+        this.garbageQueue = new ConcurrentLinkedQueue<>();
+        this.streamChains = new ConcurrentLinkedQueue<>();
+        this.vacuum = new Vacuum(this, VACUUM_INTERVAL, VACUUM_BUDGET);
+        this.checkpointerLock = new ReentrantLock();
+        this.checkpointerStop = checkpointerLock.newCondition();
+        setInsertStripes(INSERT_STRIPES);
+        transactionManager.setAbortHandler(this::undo);
     }
 
     /**
@@ -54,6 +178,9 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
 
     /**
      * 将数据抽象写入到文件中
+     * 开启插入缓冲时，线程按 id 映射到一个插入分段，在分段当前的目标页中追加，直到放不下才换页；
+     * 分段正被其他线程使用时依次尝试后面的分段，都在使用中时不等待，退回从 pageIndex 中选页。
+     * pageIndex 中的剩余空间只是提示，页面实际放不下时按实际剩余空间放回，再换一页
      * @param xid
      * @param data
      * @return
@@ -66,13 +193,417 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
             throw Error.DataTooLargeException;
         }
 
+        InsertStripe[] stripes = this.insertStripes;
+        if (stripes != null){
+            int home = (int) (Thread.currentThread().getId() % stripes.length);
+            for (int i = 0; i < stripes.length; i++) {
+                InsertStripe stripe = stripes[(home + i) % stripes.length];
+                if (stripe.lock.tryLock()){
+                    try {
+                        return insertToStripe(stripe, xid, raw);
+                    }finally {
+                        stripe.lock.unlock();
+                    }
+                }
+            }
+        }
+
+        while (true){
+            PageInfo pageInfo = selectPage(raw.length);
+            Page page = null;
+            int freeSpace = 0;
+            long uid = -1;
+            try {
+                page = pageCache.getPage(pageInfo.pgno);
+                uid = insertToPage(xid, page, raw);
+                if (uid >= 0){
+                    return uid;
+                }
+            }finally {
+                // 将取出的 page 重新插入到 pageIndex 中
+                if (page != null){
+                    freeSpace = uid >= 0 ? CommonPage.getFreeSpace(page) : availableSpace(page);
+                    page.release();
+                }
+                pageIndex.add(pageInfo.pgno, freeSpace);
+            }
+        }
+    }
+
+    /**
+     * 批量将数据抽象写入到文件中
+     * 每次取出一个至少能放下剩余数据(最多半页)的页面，按顺序放入尽量多的数据，整页只写一条 multi insert 日志
+     * 所有数据先检查长度，任何一条过长时不写入任何数据
+     * @param xid
+     * @param data
+     * @return
+     * @throws Exception
+     */
+    @Override
+    public long[] insertBatch(long xid, List<byte[]> data) throws Exception {
+        int count = data.size();
+        int[] sizes = new int[count];
+        long remaining = 0;
+        for (int i = 0; i < count; i++) {
+            sizes[i] = DataItem.dataItemRawLength(data.get(i));
+            if (sizes[i] > CommonPage.MAX_PAGE_DATA_SIZE){
+                throw Error.DataTooLargeException;
+            }
+            remaining += sizes[i] + CommonPage.SLOT_SIZE;
+        }
+
+        long[] uids = new long[count];
+        int next = 0;
+        while (next < count){
+            int want = (int) Math.max(sizes[next], Math.min(remaining, CommonPage.MAX_PAGE_DATA_SIZE / 2));
+            PageInfo pageInfo = selectPage(want);
+            Page page = null;
+            int freeSpace = 0;
+            try {
+                page = pageCache.getPage(pageInfo.pgno);
+                int end = insertBatchToPage(xid, page, data, sizes, next, uids);
+                for (int i = next; i < end; i++) {
+                    remaining -= sizes[i] + CommonPage.SLOT_SIZE;
+                }
+                next = end;
+            }finally {
+                if (page != null){
+                    freeSpace = availableSpace(page);
+                    page.release();
+                }
+                pageIndex.add(pageInfo.pgno, freeSpace);
+            }
+        }
+        return uids;
+    }
+
+    /**
+     * 从第 next 条数据开始，将页面放得下的数据连续写入页面，先写 multi insert 日志再修改页面
+     * @param xid
+     * @param page
+     * @param data
+     * @param sizes 每条数据包装成 DataItem 后的长度
+     * @param next
+     * @param uids 写入的数据的 uid 填在这里
+     * @return 第一条没有写入的数据
+     */
+    private int insertBatchToPage(long xid, Page page, List<byte[]> data, int[] sizes, int next, long[] uids){
+        checkpointLock.readLock().lock();
+        page.lock();
+        try {
+            // getFreeSpace 已扣除一个新槽
+            int free = CommonPage.getFreeSpace(page) + CommonPage.SLOT_SIZE - reserved(activePending(page.getPageNumber()));
+            int end = next;
+            int total = 0;
+            while (end < data.size() && total + sizes[end] + CommonPage.SLOT_SIZE <= free){
+                total += sizes[end++] + CommonPage.SLOT_SIZE;
+            }
+            if (end == next){
+                return end;
+            }
+
+            ByteBuffer raws = ByteBuffer.allocate(total - (end - next) * CommonPage.SLOT_SIZE);
+            for (int i = next; i < end; i++) {
+                DataItem.putDataItemRaw(raws, data.get(i));
+            }
+            raws.flip();
+            byte[] log = Recover.multiInsertLog(xid, page, raws);
+            trackFirstLsn(xid, logger.log(log));
+            short slot = CommonPage.insertData(page, raws);
+            for (int i = next; i < end; i++) {
+                uids[i] = Types.addressToUid(page.getPageNumber(), slot++);
+            }
+            return end;
+        }finally {
+            page.unlock();
+            checkpointLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 将数据写入溢出页链，再插入指向链头的头部数据项 [TotalLength] [FirstPgno]
+     * 预读下一块数据，确定还有后续数据时才取下一页(优先复用空页面)，当前页写入时就知道下一页的页号；
+     * 同一时刻只持有两块数据。溢出页的剩余空间为 0，放入 pageIndex 后不会被选中，只是让空闲空间旁路文件覆盖所有页面
+     * @param xid
+     * @param data
+     * @return
+     * @throws Exception
+     */
+    @Override
+    public long insertStream(long xid, InputStream data) throws Exception {
+        byte[] chunk = new byte[OverflowPage.MAX_DATA_SIZE];
+        byte[] ahead = new byte[OverflowPage.MAX_DATA_SIZE];
+        int length = readChunk(data, chunk);
+        long total = length;
+        int first = length == 0 ? 0 : allocateOverflowPage(xid);
+        int pgno = first;
+        while (length > 0){
+            int aheadLength = readChunk(data, ahead);
+            int next = aheadLength == 0 ? 0 : allocateOverflowPage(xid);
+            writeOverflowPage(xid, pgno, OverflowPage.image(next, chunk, length));
+            pageIndex.add(pgno, 0);
+
+            byte[] tmp = chunk;
+            chunk = ahead;
+            ahead = tmp;
+            length = aheadLength;
+            total += aheadLength;
+            pgno = next;
+        }
+
+        ByteBuffer head = ByteBuffer.allocate(OVERFLOW_HEAD_SIZE);
+        head.putLong(total);
+        head.putInt(first);
+        long uid = insert(xid, head.array());
+        if (first != 0){
+            streamChains.add(new StreamChain(xid, uid, first, false));
+        }
+        return uid;
+    }
+
+    /**
+     * 删除 insertStream 写入的数据：与 delete 相同地删除头部数据项，删除的事务结束后溢出页链被回收
+     * @param xid
+     * @param uid
+     * @return 头部数据项已经无效时返回 false
+     * @throws Exception
+     */
+    @Override
+    public boolean deleteStream(long xid, long uid) throws Exception {
+        int first;
+        DataItem head = read(uid);
+        if (head == null){
+            return false;
+        }
+        try {
+            first = overflowHead(head).getInt(8);
+        }finally {
+            head.release();
+        }
+        if (!delete(xid, uid)){
+            return false;
+        }
+        if (first != 0){
+            streamChains.add(new StreamChain(xid, uid, first, true));
+        }
+        return true;
+    }
+
+    /**
+     * 为溢出页链取一个页面：优先复用 pageIndex 中完全空的普通页，没有时先回收已结束的溢出页链，仍没有时新建一页
+     * @param xid
+     * @return
+     * @throws Exception
+     */
+    private int allocateOverflowPage(long xid) throws Exception {
+        for (int i = 0; i < 2; i++) {
+            PageInfo pageInfo = pageIndex.select(CommonPage.MAX_PAGE_DATA_SIZE);
+            if (pageInfo != null){
+                if (claimEmptyPage(xid, pageInfo.pgno)){
+                    return pageInfo.pgno;
+                }
+                pageIndex.add(pageInfo.pgno, pageInfo.freeSpace);
+                break;
+            }
+            if (reclaimStreamChains() == 0){
+                break;
+            }
+        }
+        return pageCache.newPage(CommonPage.initCommonPage());
+    }
+
+    /**
+     * 页面是没有任何槽的普通页时，在页面锁内把它写成一个空的溢出页，之后插入不会再使用它
+     * 写入记录为 xid 的 page image 日志，事务被撤销时页面还原为空的普通页
+     * @param xid
+     * @param pgno
+     * @return 页面不是空页面时返回 false
+     * @throws Exception
+     */
+    private boolean claimEmptyPage(long xid, int pgno) throws Exception {
+        Page page = pageCache.getPage(pgno);
+        checkpointLock.readLock().lock();
+        page.lock();
+        try {
+            if (OverflowPage.isOverflowPage(page) || CommonPage.getSlotCount(page.getBuffer()) != 0
+                    || !activePending(pgno).isEmpty()){
+                return false;
+            }
+            byte[] image = OverflowPage.image(0, new byte[0], 0);
+            trackFirstLsn(xid, logger.log(Recover.pageImageLog(xid, pgno, image)));
+            OverflowPage.write(page, image);
+            return true;
+        }finally {
+            page.unlock();
+            checkpointLock.readLock().unlock();
+            page.release();
+        }
+    }
+
+    /**
+     * 处理所属事务已经结束的溢出页链：删除已提交的链、插入被回滚的链上的页面整理为空页面放回 pageIndex，
+     * 插入被回滚时先将头部数据项设置为无效。每个页面写一条超级事务的 page image 日志，与整理页面相同
+     * @return 回收的页面数
+     * @throws Exception
+     */
+    int reclaimStreamChains() throws Exception {
+        int reclaimed = 0;
+        Iterator<StreamChain> iterator = streamChains.iterator();
+        while (iterator.hasNext()){
+            StreamChain chain = iterator.next();
+            if (transactionManager.isActive(chain.xid)){
+                continue;
+            }
+            iterator.remove();
+            if (chain.deleted){
+                if (!transactionManager.isCommitted(chain.xid)){
+                    // 删除被回滚，头部数据项已经恢复，链仍在使用
+                    continue;
+                }
+            }else{
+                if (!transactionManager.isAborted(chain.xid)){
+                    continue;
+                }
+                DataItemImpl head = (DataItemImpl) super.get(chain.uid);
+                try {
+                    head.before();
+                    if (!head.isValid()){
+                        // 头部数据项已被删除，链由删除它的事务回收
+                        head.unBefore();
+                        continue;
+                    }
+                    head.invalidate();
+                    head.after(TransactionManagerImpl.SUPER_XID);
+                }finally {
+                    head.release();
+                }
+                addGarbagePage((int) (chain.uid >>> 32));
+            }
+            for (int pgno = chain.first; pgno != 0; reclaimed++) {
+                pgno = freeOverflowPage(pgno);
+            }
+        }
+        return reclaimed;
+    }
+
+    /**
+     * 将一个溢出页整理为空的普通页并放回 pageIndex，先写超级事务的 page image 日志再覆盖页面
+     * @param pgno
+     * @return 链上的下一页，0 表示最后一页
+     * @throws Exception
+     */
+    private int freeOverflowPage(int pgno) throws Exception {
+        Page page = pageCache.getPage(pgno);
+        int next;
+        checkpointLock.readLock().lock();
+        page.lock();
+        try {
+            next = OverflowPage.getNext(page);
+            byte[] image = CommonPage.emptyPageImage();
+            logger.log(Recover.pageImageLog(TransactionManagerImpl.SUPER_XID, pgno, image));
+            CommonPage.writeImage(page, image);
+        }finally {
+            page.unlock();
+            checkpointLock.readLock().unlock();
+            page.release();
+        }
+        pageIndex.add(pgno, CommonPage.MAX_PAGE_DATA_SIZE);
+        return next;
+    }
+
+    /**
+     * 从输入流中读满 chunk，除非流已经结束
+     * @param data
+     * @param chunk
+     * @return 读到的字节数
+     * @throws IOException
+     */
+    private static int readChunk(InputStream data, byte[] chunk) throws IOException {
+        int length = 0;
+        while (length < chunk.length){
+            int n = data.read(chunk, length, chunk.length - length);
+            if (n < 0){
+                break;
+            }
+            length += n;
+        }
+        return length;
+    }
+
+    /**
+     * 先写 overflow 日志再将内容写入溢出页
+     * @param xid
+     * @param pgno 新建的页，尚未被其他人引用
+     * @param image
+     * @throws Exception
+     */
+    private void writeOverflowPage(long xid, int pgno, byte[] image) throws Exception {
+        byte[] log = Recover.pageImageLog(xid, pgno, image);
+        Page page = pageCache.getPage(pgno);
+        checkpointLock.readLock().lock();
+        try {
+            trackFirstLsn(xid, logger.log(log));
+            OverflowPage.write(page, image);
+        }finally {
+            checkpointLock.readLock().unlock();
+            page.release();
+        }
+    }
+
+    /**
+     * 读取头部数据项，返回沿溢出页链读取的输入流
+     * @param uid
+     * @return
+     * @throws Exception
+     */
+    @Override
+    public InputStream readStream(long uid) throws Exception {
+        DataItem head = read(uid);
+        if (head == null){
+            return null;
+        }
+        long total;
+        int first;
+        try {
+            ByteBuffer buf = overflowHead(head);
+            total = buf.getLong();
+            first = buf.getInt();
+        }finally {
+            head.release();
+        }
+        if (total < 0 || (total == 0) != (first == 0)){
+            throw Error.BadOverflowValueException;
+        }
+        return new OverflowInputStream(pageCache, first, total);
+    }
+
+    /**
+     * 头部数据项的内容: [TotalLength 8] [FirstPgno 4]
+     * @param head
+     * @return
+     */
+    private static ByteBuffer overflowHead(DataItem head) throws Exception {
+        SubArray data = head.data();
+        if (data.end - data.start != OVERFLOW_HEAD_SIZE){
+            throw Error.BadOverflowValueException;
+        }
+        return ByteBuffer.wrap(Arrays.copyOfRange(data.raw, data.start, data.end));
+    }
+
+    /**
+     * 从 pageIndex 中取出一个能放下 size 字节的页，第一次没有时先回收有可回收空间的页面，仍没有时新建一页
+     * @param size
+     * @return 取出的页由调用者使用，用完后需要放回 pageIndex
+     * @throws Exception
+     */
+    private PageInfo selectPage(int size) throws Exception {
         PageInfo pageInfo = null;
         for (int i = 0; i < 5; i++) {
-            pageInfo = pageIndex.select(raw.length);
+            pageInfo = pageIndex.select(size);
 
             if (pageInfo != null){
                 break;
-            }else{
+            }else if (i > 0 || reclaimGarbagePages() == 0){
                 // 新建一页并添加到pageIndex索引中
                 int newPgno = pageCache.newPage(CommonPage.initCommonPage());
                 pageIndex.add(newPgno, CommonPage.MAX_PAGE_DATA_SIZE);
@@ -82,26 +613,536 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         if (pageInfo == null){
             throw Error.DatabaseBusyException;
         }
+        return pageInfo;
+    }
 
-        // 成功找到可以存放 raw 的页，那么就需要分析该页的页号以及剩余存储空间
-        // 根据 PageIndex{ pgno, space } 可以从 pageCache 中获取对应的页
-        Page page = null;
-        int freeSpace = 0;
+    /**
+     * 在插入分段的目标页中追加 raw，需持有分段的锁
+     * 目标页放不下时放回 pageIndex，再取出一个能放下的页作为新的目标页
+     * @param stripe
+     * @param xid
+     * @param raw
+     * @return
+     * @throws Exception
+     */
+    private long insertToStripe(InsertStripe stripe, long xid, byte[] raw) throws Exception {
+        while (true){
+            PageInfo pageInfo = stripe.pageInfo;
+            if (pageInfo != null && pageInfo.freeSpace < raw.length){
+                pageIndex.add(pageInfo.pgno, pageInfo.freeSpace);
+                stripe.pageInfo = null;
+            }
+            if (stripe.pageInfo == null){
+                stripe.pageInfo = selectPage(raw.length);
+            }
+
+            pageInfo = stripe.pageInfo;
+            Page page = pageCache.getPage(pageInfo.pgno);
+            long uid = -1;
+            try {
+                uid = insertToPage(xid, page, raw);
+                if (uid >= 0){
+                    return uid;
+                }
+            }finally {
+                pageInfo.freeSpace = uid >= 0 ? CommonPage.getFreeSpace(page) : availableSpace(page);
+                page.release();
+            }
+        }
+    }
+
+    /**
+     * 先写 insert 日志再将 raw 写入页面
+     * 连续的空闲空间不够而整理后够用时先整理页面，为仍可能被撤销的操作预留的空间不能使用
+     * @param xid
+     * @param page
+     * @param raw
+     * @return 页面放不下时返回 -1
+     */
+    private long insertToPage(long xid, Page page, byte[] raw){
+        short slot;
+        checkpointLock.readLock().lock();
+        page.lock();
         try {
-            page = pageCache.getPage(pageInfo.pgno);
+            if (OverflowPage.isOverflowPage(page)){
+                // pageIndex 中残留的项指向的页面已被用作溢出页
+                return -1;
+            }
+            int reserved = reserved(activePending(page.getPageNumber()));
+            if (CommonPage.getFreeSpace(page) - reserved < raw.length){
+                if (CommonPage.getCompactedFreeSpace(page, reclaimable(page)) - reserved < raw.length){
+                    return -1;
+                }
+                compact(page);
+            }
             // 根据 xid, page, raw 生成对应的 insertLog 记录
             byte[] log = Recover.insertLog(xid, page, raw);
-            logger.log(log);
+            trackFirstLsn(xid, logger.log(log));
+            slot = CommonPage.insertData(page, raw);
+        }finally {
+            page.unlock();
+            checkpointLock.readLock().unlock();
+        }
+        return Types.addressToUid(page.getPageNumber(), slot);
+    }
+
+    /**
+     * 删除一条数据：将它设置为无效并记录 update 日志，uid 保持有效，之后读取返回 null
+     * 删除的事务结束后，记录的空间在整理页面时回收，回收后槽号可能分配给新插入的数据
+     * @param xid
+     * @param uid
+     * @return 数据已经无效时返回 false
+     * @throws Exception
+     */
+    @Override
+    public boolean delete(long xid, long uid) throws Exception {
+        DataItemImpl dataItem = (DataItemImpl) super.get(uid);
+        try {
+            dataItem.before();
+            if (!dataItem.isValid()){
+                dataItem.unBefore();
+                return false;
+            }
+            addPending(dataItem.page(), xid, dataItem.getSlot(), 0);
+            addUndo(xid, uid, dataItem.getOldRaw().clone());
+            dataItem.invalidate();
+            dataItem.after(xid);
+        }finally {
+            dataItem.release();
+        }
+        addGarbagePage(dataItem.page().getPageNumber());
+        return true;
+    }
 
-            short offset = CommonPage.insertData(page, raw);
+    /**
+     * 将一条数据替换为长度可以不同的新数据，uid 保持不变
+     * 长度相同时与 DataItem 的修改相同，记录 update 日志；否则记录 resize 日志，新数据不比原来长时原地写入，
+     * 紧挨着空闲位置时原地扩展，否则写到页面的空闲位置，放不下时先整理页面并把它排在最后。
+     * 变短时为撤销预留变短的字节数，直到事务结束
+     * @param xid
+     * @param uid
+     * @param data
+     * @return 数据已经无效时返回 false
+     * @throws Exception 整理后所在页面仍放不下新数据时抛出 PageFullException
+     */
+    @Override
+    public boolean update(long xid, long uid, byte[] data) throws Exception {
+        byte[] raw = DataItem.warpDataItemRaw(data);
+        if (raw.length > CommonPage.MAX_PAGE_DATA_SIZE){
+            throw Error.DataTooLargeException;
+        }
+        DataItemImpl dataItem = (DataItemImpl) super.get(uid);
+        try {
+            dataItem.before();
+            SubArray old = dataItem.getRaw();
+            if (!dataItem.isValid()){
+                dataItem.unBefore();
+                return false;
+            }
+            if (old.end - old.start == raw.length){
+                addUndo(xid, uid, dataItem.getOldRaw().clone());
+                System.arraycopy(raw, 0, old.raw, old.start, raw.length);
+                dataItem.after(xid);
+                return true;
+            }
+            try {
+                byte[] oldRaw = Arrays.copyOfRange(old.raw, old.start, old.end);
+                resize(xid, dataItem, oldRaw, raw, false);
+                addUndo(xid, uid, oldRaw);
+            }finally {
+                dataItem.unlock();
+            }
+        }finally {
+            dataItem.release();
+        }
+        addGarbagePage((int) (uid >>> 32));
+        return true;
+    }
+
+    /**
+     * 先写 resize 日志再将新记录写入页面，需持有 dataItem 的写锁
+     * @param xid
+     * @param dataItem
+     * @param oldRaw
+     * @param newRaw
+     * @param undo 是否在撤销 xid 的变短，此时可以使用 xid 自己预留的空间
+     */
+    private void resize(long xid, DataItemImpl dataItem, byte[] oldRaw, byte[] newRaw, boolean undo) throws Exception {
+        Page page = dataItem.page();
+        short slot = dataItem.getSlot();
+        long owner = undo ? xid : -1;
+        checkpointLock.readLock().lock();
+        page.lock();
+        try {
+            short offset = placeRecord(page, slot, newRaw, owner);
+            if (offset < 0 && compact(page, slot)){
+                offset = placeRecord(page, slot, newRaw, owner);
+            }
+            if (offset < 0){
+                throw Error.PageFullException;
+            }
+            if (oldRaw.length > newRaw.length){
+                addPending(page, xid, -1, oldRaw.length - newRaw.length);
+            }
+            byte[] log = Recover.resizeLog(xid, dataItem.getUid(), offset, oldRaw, newRaw);
+            trackFirstLsn(xid, logger.log(log));
+            CommonPage.putRecord(page, slot, newRaw, offset);
+            dataItem.resize(newRaw);
+        }finally {
+            page.unlock();
+            checkpointLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 为第 slot 个槽的新记录找位置，占用空闲空间时不能占用为撤销预留的空间，需持有页面锁
+     * @param page
+     * @param slot
+     * @param raw
+     * @param owner 可以使用其预留空间的事务，没有时为 -1
+     * @return 放不下时返回 -1
+     */
+    private short placeRecord(Page page, short slot, byte[] raw, long owner){
+        short offset = CommonPage.placeRecord(page, slot, raw);
+        int used = offset + raw.length - CommonPage.getOffset(page);
+        if (offset >= 0 && used > 0
+                && CommonPage.getFreeSpace(page) + CommonPage.SLOT_SIZE - reserved(activePending(page.getPageNumber()), owner) < used){
+            return -1;
+        }
+        return offset;
+    }
+
+    /**
+     * 整理页面：回收可回收的记录和空隙，整理后的页面内容先作为超级事务的 page image 日志写入，再覆盖页面
+     * 需持有 checkpointLock 的读锁和页面锁
+     * @param page
+     * @return 页面没有可回收的空间时返回 false
+     */
+    private boolean compact(Page page){
+        return compact(page, -1);
+    }
+
+    /**
+     * 整理页面，第 last 个槽的记录排在最后，变长时可以原地扩展：撤销变短只需要变短时预留的字节数
+     * @param page
+     * @param last 排在最后的槽号，-1 表示按槽号顺序排列
+     * @return 整理后页面不变时返回 false
+     */
+    private boolean compact(Page page, int last){
+        if (OverflowPage.isOverflowPage(page)){
+            return false;
+        }
+        byte[] image = CommonPage.compactImage(page, reclaimable(page), last);
+        if (image == null){
+            return false;
+        }
+        logger.log(Recover.pageImageLog(TransactionManagerImpl.SUPER_XID, page.getPageNumber(), image));
+        CommonPage.writeImage(page, image);
+        return true;
+    }
+
+    /**
+     * 页面中可以回收的槽：无效、没有仍可能被撤销的删除，且没有被缓存中的 DataItem 引用，需持有页面锁
+     * 被引用的 DataItem 仍持有旧记录，槽被回收并分配给新数据后，同一 uid 会读到旧的副本，因此等引用释放后再回收
+     * 回滚的插入在恢复时被设置为无效，也在这里回收
+     * @param page
+     * @return
+     */
+    private IntPredicate reclaimable(Page page){
+        ByteBuffer buf = page.getBuffer();
+        int pgno = page.getPageNumber();
+        Queue<Pending> pending = activePending(pgno);
+        return slot -> {
+            if (DataItem.isDataItemValid(buf, CommonPage.getSlot(buf, slot))){
+                return false;
+            }
+            for (Pending p : pending) {
+                if (p.slot == slot){
+                    return false;
+                }
+            }
+            return !contains(Types.addressToUid(pgno, (short) slot));
+        };
+    }
+
+    /**
+     * 页面实际能插入的最长记录(整理后)，已扣除为撤销预留的空间，溢出页为 0
+     * @param page
+     * @return
+     */
+    private int availableSpace(Page page){
+        page.lock();
+        try {
+            if (OverflowPage.isOverflowPage(page)){
+                return 0;
+            }
+            int reserved = reserved(activePending(page.getPageNumber()));
+            return Math.max(0, CommonPage.getCompactedFreeSpace(page, reclaimable(page)) - reserved);
+        }finally {
+            page.unlock();
+        }
+    }
+
+    /**
+     * 记录一个仍可能被撤销的删除或变短
+     * @param page
+     * @param xid
+     * @param slot 删除的槽号，变短时为 -1
+     * @param reserved 变短时为撤销预留的字节数
+     */
+    private void addPending(Page page, long xid, int slot, int reserved){
+        pending.computeIfAbsent(page.getPageNumber(), k -> new ConcurrentLinkedQueue<>())
+                .add(new Pending(xid, slot, reserved));
+    }
+
+    /**
+     * 记录事务删除或修改数据项之前的记录，超级事务的修改不会回滚
+     * @param xid
+     * @param uid
+     * @param oldRaw
+     */
+    private void addUndo(long xid, long uid, byte[] oldRaw){
+        if (xid == TransactionManagerImpl.SUPER_XID){
+            return;
+        }
+        undo.computeIfAbsent(xid, k -> new ConcurrentLinkedDeque<>()).add(new Undo(uid, oldRaw));
+    }
+
+    /**
+     * 回滚事务：按修改的相反顺序将数据项写回修改前的记录，由 TM 在回滚状态持久化之前调用。
+     * 与恢复时的 undo 相同，先以 xid 的名义记录日志(长度相同时为 update 日志，否则为 resize 日志)再写回页面，
+     * 回滚状态持久化之前宕机时恢复会将它们与原来的修改一起撤销，之后宕机时则一起重放。
+     * 撤销完成后事务的删除和变短才随回滚状态一起结束，其间删除的槽不会被回收，变短预留的空间不会被分配
+     * @param xid
+     */
+    private void undo(long xid){
+        Deque<Undo> undos = undo.remove(xid);
+        if (undos == null){
+            return;
+        }
+        try {
+            Undo u;
+            while ((u = undos.pollLast()) != null){
+                restore(xid, u);
+            }
+        }catch (Exception e){
+            Panic.panic(e);
+        }
+    }
+
+    /**
+     * 将数据项写回修改前的记录
+     * @param xid
+     * @param u
+     * @throws Exception
+     */
+    private void restore(long xid, Undo u) throws Exception {
+        DataItemImpl dataItem = (DataItemImpl) super.get(u.uid);
+        try {
+            dataItem.before();
+            SubArray raw = dataItem.getRaw();
+            if (raw.end - raw.start == u.oldRaw.length){
+                System.arraycopy(u.oldRaw, 0, raw.raw, raw.start, u.oldRaw.length);
+                dataItem.after(xid);
+                return;
+            }
+            try {
+                resize(xid, dataItem, Arrays.copyOfRange(raw.raw, raw.start, raw.end), u.oldRaw, true);
+            }finally {
+                dataItem.unlock();
+            }
+        }finally {
+            dataItem.release();
+        }
+        addGarbagePage((int) (u.uid >>> 32));
+    }
+
+    /**
+     * 页面上所属事务仍活跃的删除和变短，顺便清除事务已结束的记录
+     * @param pgno
+     * @return
+     */
+    private Queue<Pending> activePending(int pgno){
+        Queue<Pending> queue = pending.get(pgno);
+        if (queue == null){
+            return EMPTY_PENDING;
+        }
+        queue.removeIf(p -> !transactionManager.isActive(p.xid));
+        return queue;
+    }
+
+    private static int reserved(Queue<Pending> pending){
+        return reserved(pending, -1);
+    }
+
+    /**
+     * 除 owner 之外的事务预留的字节数
+     * @param pending
+     * @param owner
+     * @return
+     */
+    private static int reserved(Queue<Pending> pending, long owner){
+        int reserved = 0;
+        for (Pending p : pending) {
+            if (p.xid != owner){
+                reserved += p.reserved;
+            }
+        }
+        return reserved;
+    }
+
+    private void addGarbagePage(int pgno){
+        if (garbagePages.add(pgno)){
+            garbageQueue.add(pgno);
+        }
+        vacuum.garbage();
+    }
+
+    /**
+     * 整理最多 RECLAIM_BATCH 个有可回收空间的页面，回收出的空间放回 pageIndex，之前先回收已结束的溢出页链
+     * 页面上仍有活跃事务的删除或变短时保留在队列末尾，之后再次整理
+     * @return 回收出空间的页面数
+     * @throws Exception
+     */
+    private int reclaimGarbagePages() throws Exception {
+        int reclaimed = reclaimStreamChains() > 0 ? 1 : 0;
+        for (int i = 0; i < RECLAIM_BATCH; i++) {
+            Integer pgno = garbageQueue.poll();
+            if (pgno == null){
+                break;
+            }
+            if (reclaimPage(pgno)){
+                reclaimed++;
+            }
+            if (activePending(pgno).isEmpty()){
+                garbagePages.remove(pgno);
+            }else {
+                garbageQueue.add(pgno);
+            }
+        }
+        return reclaimed;
+    }
+
+    /**
+     * 整理一个页面，回收出的空间放回 pageIndex，也由后台回收线程调用
+     * @param pgno
+     * @return 是否回收出了空间
+     * @throws Exception
+     */
+    boolean reclaimPage(int pgno) throws Exception {
+        Page page = pageCache.getPage(pgno);
+        boolean compacted;
+        int freeSpace;
+        checkpointLock.readLock().lock();
+        page.lock();
+        try {
+            compacted = compact(page);
+            freeSpace = Math.max(0, CommonPage.getFreeSpace(page) - reserved(activePending(pgno)));
+        }finally {
+            page.unlock();
+            checkpointLock.readLock().unlock();
             page.release();
-            return Types.addressToUid(pageInfo.pgno, offset);
+        }
+        if (compacted){
+            // 页面仍在 pageIndex 中时替换原来的项；正被使用时先放回，使用者放回时再按实际空间替换
+            pageIndex.add(pgno, freeSpace);
+        }
+        return compacted;
+    }
+
+    /**
+     * 截断末尾的空页面：从最后一页向前整理，遇到第一个仍有记录的页面或溢出页时停止
+     * 只在关闭时调用，此时没有进行中的插入，被截断的页面先写回，之后缓存中不会再写回它们
+     * 截断后建立检查点，之前涉及这些页面的日志在恢复时不再重放
+     * @throws Exception
+     */
+    private void truncateEmptyTail() throws Exception {
+        int pageNumber = pageCache.getPageNumber();
+        int last = pageNumber;
+        while (last > 1 && isEmptyPage(last)){
+            last--;
+        }
+        if (last == pageNumber){
+            return;
+        }
+        pageCache.flushAll();
+        pageCache.truncateByPgno(last);
+        checkpoint();
+    }
+
+    /**
+     * 整理后页面中是否没有任何记录，溢出页不算空页面
+     * @param pgno
+     * @return
+     * @throws Exception
+     */
+    private boolean isEmptyPage(int pgno) throws Exception {
+        reclaimPage(pgno);
+        Page page = pageCache.getPage(pgno);
+        page.lock();
+        try {
+            return !OverflowPage.isOverflowPage(page) && CommonPage.getSlotCount(page.getBuffer()) == 0;
         }finally {
-            // 将取出的 page 重新插入到 pageIndex 中
-            if (page != null){
-                pageIndex.add(pageInfo.pgno, CommonPage.getFreeSpace(page));
-            }else{
-                pageIndex.add(pageInfo.pgno, freeSpace);
+            page.unlock();
+            page.release();
+        }
+    }
+
+    int pageNumber(){
+        return pageCache.getPageNumber();
+    }
+
+    /**
+     * 设置后台回收线程每秒的 I/O 预算(页数)，读入一个页面计 1，整理后写回再计 1，0 表示暂停
+     * @param pagesPerSecond
+     */
+    public void setVacuumBudget(int pagesPerSecond){
+        vacuum.setBudget(pagesPerSecond);
+    }
+
+    /**
+     * 设置正常关闭时是否截断数据库文件末尾的空页面
+     * @param truncate
+     */
+    public void setVacuumTruncate(boolean truncate){
+        this.truncateOnClose = truncate;
+    }
+
+    /**
+     * 设置插入缓冲的分段数，0 表示关闭插入缓冲，每次插入都从 pageIndex 中选页
+     * 各分段的目标页先放回 pageIndex，不能与插入并发调用
+     * @param stripes
+     */
+    public void setInsertStripes(int stripes){
+        returnInsertPages();
+        if (stripes <= 0){
+            this.insertStripes = null;
+            return;
+        }
+        InsertStripe[] insertStripes = new InsertStripe[stripes];
+        for (int i = 0; i < stripes; i++) {
+            insertStripes[i] = new InsertStripe();
+        }
+        this.insertStripes = insertStripes;
+    }
+
+    /**
+     * 将各插入分段的目标页放回 pageIndex
+     */
+    private void returnInsertPages(){
+        InsertStripe[] stripes = this.insertStripes;
+        if (stripes == null){
+            return;
+        }
+        for (InsertStripe stripe : stripes) {
+            stripe.lock.lock();
+            try {
+                if (stripe.pageInfo != null){
+                    pageIndex.add(stripe.pageInfo.pgno, stripe.pageInfo.freeSpace);
+                    stripe.pageInfo = null;
+                }
+            }finally {
+                stripe.lock.unlock();
             }
         }
     }
@@ -112,9 +1153,29 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
      */
     @Override
     public void close() {
+        transactionManager.setAbortHandler(null);
+        vacuum.close();
+        stopCheckpointer();
+        try {
+            reclaimStreamChains();
+        }catch (Exception e){
+            Panic.panic(e);
+        }
         super.close();
+        returnInsertPages();
+        // 整理等待回收的页面，回收的空间记入空闲空间旁路文件
+        try {
+            while (!garbageQueue.isEmpty() && reclaimGarbagePages() > 0);
+            if (truncateOnClose){
+                truncateEmptyTail();
+            }
+        }catch (Exception e){
+            Panic.panic(e);
+        }
         logger.close();
 
+        // 先写空闲空间旁路文件，再标记正常关闭，在两者之间宕机时下次打开会恢复并逐页扫描
+        FreeSpaceMap.write(path, FirstPage.getValidString(firstPage), pageCache.getPageNumber(), pageIndex);
         FirstPage.setCloseString(firstPage);
         firstPage.release();
         pageCache.close();
@@ -122,13 +1183,152 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
 
 
     /**
-     * 根据 xid 和 dataItem 实体对象生成为 update 日志
+     * 停止后台回收、检查点和脏页写回线程，不写回脏页也不关闭文件，之后不能再使用，用于模拟宕机：
+     * 返回后文件不再被修改，可以在原路径上重新打开或复制出崩溃现场
+     */
+    public void halt() {
+        transactionManager.setAbortHandler(null);
+        vacuum.close();
+        stopCheckpointer();
+        pageCache.halt();
+    }
+
+    /**
+     * 根据 xid 和 dataItem 实体对象生成为 update 日志，日志写入后再将修改写回页面
      * @param xid
      * @param dataItem
      */
     public void logDataItem(long xid, DataItem dataItem){
         byte[] log = Recover.updateLog(xid, dataItem);
-        logger.log(log);
+        checkpointLock.readLock().lock();
+        try {
+            trackFirstLsn(xid, logger.log(log));
+            ((DataItemImpl) dataItem).writeBack();
+        }finally {
+            checkpointLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 记录事务的第一条日志位置，事务仍活跃时检查点不能越过它，否则恢复时无法 undo
+     * @param xid
+     * @param lsn
+     */
+    private void trackFirstLsn(long xid, long lsn){
+        if (!firstLsn.containsKey(xid)){
+            firstLsn.putIfAbsent(xid, lsn);
+        }
+    }
+
+    /**
+     * 建立检查点
+     * 1. 在写锁下取得日志末尾位置 end，此时 end 之前的日志对应的修改都已写入缓存页面
+     * 2. RedoLSN 取 end 与仍活跃事务的第一条日志位置中的最小值
+     * 3. 将所有脏页写回磁盘，写入检查点日志(end 作为 FlushedLSN，恢复时不再 redo 它之前的日志)，并让日志控制文件指向它
+     * 4. 删除 RedoLSN 之前的日志段
+     */
+    @Override
+    public synchronized void checkpoint() {
+        long end;
+        int pageNumber;
+        checkpointLock.writeLock().lock();
+        try {
+            end = logger.end();
+            pageNumber = pageCache.getPageNumber();
+        }finally {
+            checkpointLock.writeLock().unlock();
+        }
+
+        long redoLsn = end;
+        Iterator<Map.Entry<Long, Long>> iterator = firstLsn.entrySet().iterator();
+        while (iterator.hasNext()){
+            Map.Entry<Long, Long> entry = iterator.next();
+            if (entry.getValue() >= end){
+                continue;
+            }
+            if (transactionManager.isActive(entry.getKey())){
+                redoLsn = Math.min(redoLsn, entry.getValue());
+            }else{
+                iterator.remove();
+            }
+        }
+        // 已提交事务的 Undo 不再需要，回滚的事务在回滚时已经取走
+        undo.keySet().removeIf(xid -> !transactionManager.isActive(xid));
+
+        pageCache.flushAll();
+        long lsn = logger.log(Recover.checkpointLog(redoLsn, pageNumber, end));
+        logger.setCheckpoint(lsn);
+        // RedoLSN 之前的日志段恢复时不再需要
+        logger.purge(redoLsn);
+
+        lastCheckpointEnd = logger.end();
+        lastCheckpointTime = System.currentTimeMillis();
+    }
+
+    /**
+     * 启动后台空间回收线程
+     */
+    void startVacuum(){
+        vacuum.start();
+    }
+
+    /**
+     * 启动后台检查点线程：日志增长超过 CHECKPOINT_LOG_SIZE，或距上次检查点超过 CHECKPOINT_INTERVAL 且有新日志时建立检查点
+     */
+    void startCheckpointer(){
+        lastCheckpointEnd = logger.end();
+        lastCheckpointTime = System.currentTimeMillis();
+        checkpointer = new Thread(() -> {
+            while (awaitCheckpointPoll()){
+                long end = logger.end();
+                long elapsed = System.currentTimeMillis() - lastCheckpointTime;
+                if (end - lastCheckpointEnd >= CHECKPOINT_LOG_SIZE
+                        || (end > lastCheckpointEnd && elapsed >= CHECKPOINT_INTERVAL)){
+                    checkpoint();
+                }
+            }
+        }, "checkpointer");
+        checkpointer.setDaemon(true);
+        checkpointer.start();
+    }
+
+    /**
+     * 等待下一次检查
+     * @return 数据管理器已关闭时返回 false
+     */
+    private boolean awaitCheckpointPoll(){
+        checkpointerLock.lock();
+        try {
+            if (!closed){
+                checkpointerStop.await(CHECKPOINT_POLL_INTERVAL, TimeUnit.MILLISECONDS);
+            }
+            return !closed;
+        }catch (InterruptedException e){
+            return false;
+        }finally {
+            checkpointerLock.unlock();
+        }
+    }
+
+    /**
+     * 停止后台检查点线程，并等待正在进行的检查点结束
+     */
+    private void stopCheckpointer(){
+        if (checkpointer == null){
+            return;
+        }
+        checkpointerLock.lock();
+        try {
+            closed = true;
+            checkpointerStop.signal();
+        }finally {
+            checkpointerLock.unlock();
+        }
+        try {
+            checkpointer.join();
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
     }
 
     /**
@@ -148,14 +1348,14 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
      */
     @Override
     protected DataItem getForCache(long uid) throws Exception {
-        // 可以根据 uid 的生成工作获取 offset 和 pgno
-        // uid = pgno << 32 | offset;
-        short offset = (short) (uid & ((1L << 16) -1));
+        // 可以根据 uid 的生成工作获取 slot 和 pgno
+        // uid = pgno << 32 | slot;
+        short slot = (short) (uid & ((1L << 16) -1));
         uid >>>= 32;
         int pgno = (int)(uid & ((1L << 32) - 1));
 
         Page page = pageCache.getPage(pgno);
-        return DataItem.parseDataItem(page, offset, this);
+        return DataItem.parseDataItem(page, slot, this);
     }
 
     /**
@@ -164,6 +1364,10 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
      */
     @Override
     protected void releaseForCache(DataItem dataItem) {
+        if (!((DataItemImpl) dataItem).isValid()){
+            // 整理页面时跳过了被引用的无效记录，引用释放后重新整理
+            addGarbagePage(dataItem.page().getPageNumber());
+        }
         dataItem.page().release();
     }
 
@@ -172,7 +1376,7 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
      * 在创建文件时初始化 firstPage
      */
     void initFirstPage(){
-        int pgno = pageCache.newPage(CommonPage.initCommonPage());
+        int pgno = pageCache.newPage(FirstPage.initFirstPage());
         assert pgno == 1;
         try {
             firstPage = pageCache.getPage(pgno);
@@ -191,11 +1395,16 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         }catch (Exception e){
             Panic.panic(e);
         }
+        if (!FirstPage.checkLayout(firstPage)){
+            // 旧布局的页面不能按槽目录解析，也不能重放按偏移记录的日志，在修改任何页面之前拒绝打开
+            Panic.panic(Error.UnsupportedPageLayoutException);
+        }
         return FirstPage.checkFirstPage(firstPage);
     }
 
     /**
      * 根据各个页面的页号以及空闲空间，初始化 pageIndex
+     * 此时没有活跃的事务，无效的记录都可以回收，按整理后的空间加入，有可回收空间的页面在需要时整理
      */
     void fillPageIndex(){
         int pageNumber = pageCache.getPageNumber();
@@ -207,8 +1416,24 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
                 Panic.panic(e);
             }
 
-            pageIndex.add(page.getPageNumber(), CommonPage.getFreeSpace(page));
+            if (CommonPage.getOffset(page) == 0){
+                // 关闭时被截断的空页面在恢复时可能按旧检查点的页数重新扩展出来，内容全为 0，重新初始化为空页面
+                CommonPage.writeImage(page, CommonPage.initCommonPage());
+            }
+            int freeSpace = availableSpace(page);
+            if (freeSpace > CommonPage.getFreeSpace(page)){
+                addGarbagePage(i);
+            }
+            pageIndex.add(page.getPageNumber(), freeSpace);
             page.release();
         }
     }
+
+    /**
+     * 从上次正常关闭时写入的旁路文件初始化 pageIndex
+     * @return 文件不存在或与第一页的验证字符不符时返回 false
+     */
+    boolean loadFreeSpaceMap(){
+        return FreeSpaceMap.load(path, FirstPage.getValidString(firstPage), pageCache.getPageNumber(), pageIndex);
+    }
 }
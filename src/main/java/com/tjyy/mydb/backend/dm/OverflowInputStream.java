@@ -0,0 +1,97 @@
+package com.tjyy.mydb.backend.dm;
+
+import com.tjyy.mydb.backend.dm.page.OverflowPage;
+import com.tjyy.mydb.backend.dm.page.Page;
+import com.tjyy.mydb.backend.dm.pageCache.PageCache;
+import com.tjyy.mydb.common.Error;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * @author: Tjyy
+ * @date: 2024-03-22 11:00
+ * @description: 沿溢出页链读取大数据的输入流
+ * 同一时刻只引用链上的一页，读完一页后释放再取下一页，不需要把整个数据读入堆中；
+ * 读满头部记录的总长度即结束，链在此之前断开时抛出 IOException
+ */
+class OverflowInputStream extends InputStream {
+    private final PageCache pageCache;
+    private Page page;  // 当前页，读完或关闭时释放
+    private int next;  // 下一页的页号
+    private long remaining;  // 尚未读取的字节数
+    private int position;  // 当前页中已读的字节数
+    private int length;  // 当前页中的数据长度
+
+    OverflowInputStream(PageCache pageCache, int first, long length) {
+        this.pageCache = pageCache;
+        this.next = first;
+        this.remaining = length;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (remaining == 0){
+            close();
+            return -1;
+        }
+        if (len == 0){
+            return 0;
+        }
+        while (page == null || position == length){
+            if (!nextPage()){
+                throw new IOException(Error.BadOverflowValueException);
+            }
+        }
+        int n = (int) Math.min(Math.min(len, length - position), remaining);
+        OverflowPage.getData(page, position, b, off, n);
+        position += n;
+        remaining -= n;
+        return n;
+    }
+
+    /**
+     * 释放当前页，取得链上的下一页
+     * @return 已经是最后一页时返回 false
+     */
+    private boolean nextPage() throws IOException {
+        releasePage();
+        if (next == 0){
+            return false;
+        }
+        try {
+            page = pageCache.getPage(next);
+        }catch (Exception e){
+            throw new IOException(e);
+        }
+        next = OverflowPage.getNext(page);
+        length = OverflowPage.getDataLength(page);
+        position = 0;
+        return true;
+    }
+
+    private void releasePage(){
+        if (page != null){
+            page.release();
+            page = null;
+        }
+    }
+
+    @Override
+    public int available() {
+        return page == null ? 0 : (int) Math.min(length - position, remaining);
+    }
+
+    @Override
+    public void close() {
+        releasePage();
+        next = 0;
+        remaining = 0;
+    }
+}
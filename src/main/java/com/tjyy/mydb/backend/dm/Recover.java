@@ -3,15 +3,21 @@ package com.tjyy.mydb.backend.dm;
 import com.google.common.primitives.Bytes;
 import com.tjyy.mydb.backend.common.SubArray;
 import com.tjyy.mydb.backend.dm.dataitem.DataItem;
+import com.tjyy.mydb.backend.dm.logger.LogReader;
 import com.tjyy.mydb.backend.dm.logger.Logger;
 import com.tjyy.mydb.backend.dm.page.CommonPage;
 import com.tjyy.mydb.backend.dm.page.Page;
 import com.tjyy.mydb.backend.dm.pageCache.PageCache;
 import com.tjyy.mydb.backend.tm.TransactionManager;
+import com.tjyy.mydb.backend.util.BufferUtil;
 import com.tjyy.mydb.backend.util.Panic;
 import com.tjyy.mydb.backend.util.Parser;
+import com.tjyy.mydb.common.Error;
 
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 /**
  * @author: Tjyy
@@ -20,171 +26,421 @@ import java.util.*;
  */
 public class Recover {
     private static final byte LOG_TYPE_INSERT = 0;
-    // insertLog: [LogType] [XID] [Pgno] [Offset] [Raw]
+    // insertLog: [LogType] [XID] [Pgno] [Offset] [Slot] [Raw]
+    // 重做时按 Offset 写入并设置槽，撤销时按槽号定位记录设置为无效，记录可能已因整理页面而移动
 
     private static final byte LOG_TYPE_UPDATE = 1;
     // updateLog: [LogType] [XID] [UID] [OldRaw] [NewRaw]
+    // UID 中是槽号，重做和撤销都按槽号定位记录
+
+    private static final byte LOG_TYPE_CHECKPOINT = 2;
+    // checkpointLog: [LogType] [RedoLSN] [PageNumber] [FlushedLSN]
+    // FlushedLSN 之前的日志对应的修改都已写回磁盘，检查点时仍活跃的事务的日志都在 RedoLSN 之后，RedoLSN <= FlushedLSN
+
+    private static final byte LOG_TYPE_MULTI_INSERT = 3;
+    // multiInsertLog: [LogType] [XID] [Pgno] [Offset] [Slot] [Raw1] [Raw2] ...
+    // 同一页面中从 Offset 开始连续插入的多个 DataItem，依次使用从 Slot 开始的槽，格式与 insertLog 相同，撤销时需要将每个 DataItem 都设置为无效
+
+    private static final byte LOG_TYPE_PAGE_IMAGE = 4;
+    // pageImageLog: [LogType] [XID] [Pgno] [Offset = 0] [Slot = 0] [PageImage]
+    // 从页首开始的页面内容，格式与 insertLog 相同，重做时直接覆盖页面。用于新写入的溢出页和整理后的普通页，
+    // 撤销时将页面还原为空的普通页(只有写溢出页的事务会被撤销，整理页面的日志属于超级事务)
+
+    private static final byte LOG_TYPE_RESIZE = 5;
+    // resizeLog: [LogType] [XID] [UID] [Offset] [OldLength] [OldRaw] [NewRaw]
+    // 记录换成长度不同的新记录，重做时将 NewRaw 写到 Offset 并让槽指向它；撤销时按槽号放回 OldRaw，放不下时先整理页面
 
     private static final int REDO = 0;
     private static final int UNDO = 1;
 
+    public static final int DEFAULT_REDO_THREADS = Runtime.getRuntime().availableProcessors();
+    private static final int REDO_BATCH = 256;  // 分发给 redo 线程的每批日志条数
+    private static final int REDO_QUEUE = 16;  // 每个 redo 线程最多积压的批数
+
     static class InsertLogInfo{
         long xid;
         int pgno;
         short offset;
+        short slot;
         byte[] raw;
     }
 
     static class UpdateLogInfo{
         long xid;
         int pgno;
-        short offset;
+        short slot;
+        short offset;  // 只有 resize log 使用
         byte[] oldRaw;
         byte[] newRaw;
     }
 
+    static class CheckpointLogInfo{
+        long redoLsn;
+        int pageNumber;
+        long flushedLsn;
+    }
+
+    /**
+     * 分析阶段的结果
+     */
+    static class RecoverState{
+        int maxPgno;  // 日志涉及的最大页号
+        Map<Long, Boolean> active = new HashMap<>();  // 事务表：XID -> 是否活跃，每个 XID 只查询一次 TM
+        Map<Integer, Long> dirtyPages = new HashMap<>();  // 脏页表：页号 -> 第一条需要 redo 的日志位置(RecLSN)
+        List<ByteBuffer> undoLogs = new ArrayList<>();  // 活跃事务的日志，按日志顺序排列
+        long redoStart = -1;  // 脏页表中最小的 RecLSN，-1 表示没有需要 redo 的日志
+    }
+
     /**
-     * 对logger中为成功执行的事务进行恢复
+     * 对logger中为成功执行的事务进行恢复，类似 ARIES 分为三个阶段：
+     * 1. 分析：从检查点的 RedoLSN 开始扫描一遍日志，建立事务表和脏页表，并保存活跃事务的日志
+     * 2. 重做：从脏页表中最小的 RecLSN 开始扫描，只重放已结束事务在 FlushedLSN 之后的日志
+     * 3. 撤销：按日志逆序撤销活跃事务的日志，不再读取日志文件
+     * 没有检查点时从第一条日志开始分析，FlushedLSN 视为 0
      * @param transactionManager
      * @param logger
      * @param pageCache
      */
     public static void recover(TransactionManager transactionManager, Logger logger, PageCache pageCache){
+        recover(transactionManager, logger, pageCache, DEFAULT_REDO_THREADS);
+    }
+
+    /**
+     * 对logger中为成功执行的事务进行恢复，redo 阶段由 redoThreads 个线程按页号分区并行重放
+     * @param transactionManager
+     * @param logger
+     * @param pageCache
+     * @param redoThreads 为 1 时在当前线程中串行 redo
+     */
+    public static void recover(TransactionManager transactionManager, Logger logger, PageCache pageCache, int redoThreads){
         System.out.println("Recovering...");
 
-        logger.rewind();  // 重置 position 到数据区域开始的地方
+        CheckpointLogInfo checkpoint = readCheckpoint(logger);
+        RecoverState state = analyze(transactionManager, logger, checkpoint);
+
+        pageCache.truncateByPgno(state.maxPgno);
+        System.out.println("Truncate to " + state.maxPgno + " pages.");
 
-        int maxPgno = 0;
+        redoTransactions(logger, pageCache, state, redoThreads);
+        System.out.println("Redo Transaction Over.");
+
+        undoTransactions(transactionManager, pageCache, state);
+        System.out.println("Undo Transaction Over.");
+
+        System.out.println("Recovery Over.");
+    }
+
+    /**
+     * 分析阶段：一次扫描得到最大页号、事务表、脏页表和需要撤销的日志
+     * @param transactionManager
+     * @param logger
+     * @param checkpoint
+     * @return
+     */
+    private static RecoverState analyze(TransactionManager transactionManager, Logger logger, CheckpointLogInfo checkpoint){
+        RecoverState state = new RecoverState();
+        long start = checkpoint == null ? 0 : checkpoint.redoLsn;
+        long flushedLsn = checkpoint == null ? 0 : checkpoint.flushedLsn;
+
+        // 检查点之前创建的页面可能不再出现在之后的日志中
+        state.maxPgno = checkpoint == null ? 0 : checkpoint.pageNumber;
+        LogReader reader = logger.reader(start);
         while (true){
-            // 遍历每一个 log 日志， 其中 next() 取出的是数据部分
-            byte[] log = logger.next();
+            ByteBuffer log = reader.next();
             if (log == null) break;
 
-            int pgno;
-            if (isInsertLog(log)){
-                InsertLogInfo logInfo = parseInertLog(log);
-                pgno = logInfo.pgno;
-            }else{
-                UpdateLogInfo logInfo = parseUpdateLog(log);
-                pgno = logInfo.pgno;
+            if (isCheckpointLog(log)){
+                continue;
+            }
+            int pgno = logPgno(log);
+            if (pgno > state.maxPgno) {
+                state.maxPgno = pgno;
             }
 
-            if (pgno > maxPgno) {
-                maxPgno = pgno;
+            long xid = logXid(log);
+            if (isActive(transactionManager, state, xid)){
+                // 活跃事务需要撤销，读取器返回的切片会被复用，需要拷贝后保存
+                state.undoLogs.add(ByteBuffer.wrap(BufferUtil.copyOfRange(log, 0, log.limit())));
+            }else if (reader.lsn() >= flushedLsn && !state.dirtyPages.containsKey(pgno)){
+                state.dirtyPages.put(pgno, reader.lsn());
+                if (state.redoStart < 0){
+                    state.redoStart = reader.lsn();
+                }
             }
         }
 
-        if (maxPgno == 0){
-            maxPgno = 1;
+        if (state.maxPgno == 0){
+            state.maxPgno = 1;
         }
-
-        pageCache.truncateByPgno(maxPgno);
-        System.out.println("Truncate to " + maxPgno + " pages.");
-
-        redoTransactions(transactionManager, logger, pageCache);
-        System.out.println("Redo Transaction Over.");
-
-        undoTransactions(transactionManager, logger, pageCache);
-        System.out.println("Undo Transaction Over.");
-
-        System.out.println("Recovery Over.");
+        return state;
     }
 
     /**
-     * 执行 redo 操作
+     * 查询事务是否活跃，结果缓存在事务表中
      * @param transactionManager
+     * @param state
+     * @param xid
+     * @return
+     */
+    private static boolean isActive(TransactionManager transactionManager, RecoverState state, long xid){
+        Boolean active = state.active.get(xid);
+        if (active == null){
+            active = transactionManager.isActive(xid);
+            state.active.put(xid, active);
+        }
+        return active;
+    }
+
+    /**
+     * 执行 redo 操作：从最小的 RecLSN 开始，重放已结束事务的日志
+     * 并行时当前线程只负责扫描和过滤，日志按页号哈希分发给 redo 线程，同一页面的日志由同一个线程按日志顺序重放
      * @param logger
      * @param pageCache
+     * @param state
+     * @param redoThreads
      */
-    private static void redoTransactions(TransactionManager transactionManager, Logger logger, PageCache pageCache){
-        logger.rewind();
+    private static void redoTransactions(Logger logger, PageCache pageCache, RecoverState state, int redoThreads){
+        if (state.redoStart < 0){
+            return;
+        }
+        RedoWorker[] workers = new RedoWorker[redoThreads > 1 ? redoThreads : 0];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new RedoWorker(pageCache, i);
+        }
+
+        LogReader reader = logger.reader(state.redoStart);
         while (true){
-            byte[] log = logger.next();
+            ByteBuffer log = reader.next();
             if (log == null)
                 break;
 
-            if (isInsertLog(log)){
-                InsertLogInfo insertLogInfo = parseInertLog(log);
-                long xid = insertLogInfo.xid;
-                if (!transactionManager.isActive(xid)){
-                    // 当前事务为非活跃状态 Redo
-                    doInsertLog(pageCache, log, REDO);
-                }
+            if (isCheckpointLog(log)){
+                continue;
+            }
+            // 分析阶段已经确定了事务状态，只读取 XID 和页号判断，需要重放时才拷贝出数据
+            if (state.active.get(logXid(log))){
+                continue;
+            }
+            int pgno = logPgno(log);
+            Long recLsn = state.dirtyPages.get(pgno);
+            if (recLsn == null || reader.lsn() < recLsn){
+                continue;
+            }
+            // 当前事务为非活跃状态 Redo
+            if (workers.length > 0){
+                // 读取器返回的切片会被复用，拷贝后交给负责该页面的线程
+                workers[(pgno & Integer.MAX_VALUE) % workers.length].add(ByteBuffer.wrap(BufferUtil.copyOfRange(log, 0, log.limit())));
             }else {
-                UpdateLogInfo updateLogInfo = parseUpdateLog(log);
-                long xid = updateLogInfo.xid;
-                if (!transactionManager.isActive(xid)){
-                    doUpdateLog(pageCache, log, REDO);
-                }
+                doRedoLog(pageCache, log);
             }
         }
+
+        for (RedoWorker worker : workers) {
+            worker.finish();
+        }
     }
 
+    private static void doRedoLog(PageCache pageCache, ByteBuffer log){
+        if (isInsertLayout(log)){
+            doInsertLog(pageCache, log, REDO);
+        }else if (isResizeLog(log)){
+            doResizeLog(pageCache, log, REDO);
+        }else {
+            doUpdateLog(pageCache, log, REDO);
+        }
+    }
 
     /**
-     * 执行 undo 操作
-     * @param transactionManager
-     * @param logger
-     * @param pageCache
+     * redo 线程：按分发顺序重放落在自己分区内的页面的日志
      */
-    private static void undoTransactions(TransactionManager transactionManager, Logger logger, PageCache pageCache){
-        Map<Long, List<byte[]>> logCache = new HashMap<>();
+    private static class RedoWorker implements Runnable {
+        private static final List<ByteBuffer> END = Collections.emptyList();
+
+        private final PageCache pageCache;
+        private final BlockingQueue<List<ByteBuffer>> queue;
+        private final Thread thread;
+        private List<ByteBuffer> batch;
+
+        RedoWorker(PageCache pageCache, int id) {
+            this.pageCache = pageCache;
+            this.queue = new ArrayBlockingQueue<>(REDO_QUEUE);
+            this.batch = new ArrayList<>(REDO_BATCH);
+            this.thread = new Thread(this, "redo-" + id);
+            thread.start();
+        }
 
-        logger.rewind();
-        while (true){
-            byte[] log = logger.next();
-            if (log == null)
-                break;
+        /**
+         * 加入一条待重放的日志，攒满一批后交给线程
+         * @param log
+         */
+        void add(ByteBuffer log){
+            batch.add(log);
+            if (batch.size() >= REDO_BATCH){
+                put(batch);
+                batch = new ArrayList<>(REDO_BATCH);
+            }
+        }
+
+        /**
+         * 交出剩余的日志，等待线程重放完所有日志后退出
+         */
+        void finish(){
+            if (!batch.isEmpty()){
+                put(batch);
+            }
+            put(END);
+            try {
+                thread.join();
+            }catch (InterruptedException e){
+                Panic.panic(e);
+            }
+        }
+
+        private void put(List<ByteBuffer> logs){
+            try {
+                queue.put(logs);
+            }catch (InterruptedException e){
+                Panic.panic(e);
+            }
+        }
 
-            if (isInsertLog(log)){
-                InsertLogInfo insertLogInfo = parseInertLog(log);
-                long xid = insertLogInfo.xid;
-                if (transactionManager.isActive(xid)){
-                    // 当前事务为活跃状态 Undo
-                    if (!logCache.containsKey(xid)){
-                        logCache.put(xid, new ArrayList<>());
-                    }
-                    logCache.get(xid).add(log);
+        @Override
+        public void run() {
+            while (true){
+                List<ByteBuffer> logs;
+                try {
+                    logs = queue.take();
+                }catch (InterruptedException e){
+                    Panic.panic(e);
+                    return;
                 }
-            }else{
-                UpdateLogInfo updateLogInfo = parseUpdateLog(log);
-                long xid = updateLogInfo.xid;
-                if (transactionManager.isActive(xid)){
-                    // 当前事务为活跃状态 Undo
-                    if (!logCache.containsKey(xid)){
-                        logCache.put(xid, new ArrayList<>());
-                    }
-                    logCache.get(xid).add(log);
+                if (logs == END){
+                    return;
+                }
+                for (ByteBuffer log : logs) {
+                    doRedoLog(pageCache, log);
                 }
             }
         }
+    }
 
-        // 对所有 active log 进行倒叙undo
-        for (Map.Entry<Long, List<byte[]>> entry :logCache.entrySet()){
-            List<byte[]> logs = entry.getValue();
-            for (int i = logs.size() - 1; i >= 0; i--){
-                byte[] log = logs.get(i);
 
-                if (isInsertLog(log)){
-                    doInsertLog(pageCache, log, UNDO);
-                }else {
-                    doInsertLog(pageCache, log, UNDO);
-                }
+    /**
+     * 执行 undo 操作：按日志逆序撤销活跃事务的所有日志，再将这些事务标记为回滚
+     * @param transactionManager
+     * @param pageCache
+     * @param state
+     */
+    private static void undoTransactions(TransactionManager transactionManager, PageCache pageCache, RecoverState state){
+        Set<Long> losers = new LinkedHashSet<>();
+        for (int i = state.undoLogs.size() - 1; i >= 0; i--){
+            ByteBuffer log = state.undoLogs.get(i);
+            losers.add(logXid(log));
+            if (isInsertLayout(log)){
+                doInsertLog(pageCache, log, UNDO);
+            }else if (isResizeLog(log)){
+                doResizeLog(pageCache, log, UNDO);
+            }else {
+                doUpdateLog(pageCache, log, UNDO);
             }
+        }
+        for (long xid : losers) {
             // 设置回滚
-            transactionManager.abort(entry.getKey());
+            transactionManager.abort(xid);
         }
     }
 
 
+    /**
+     * 读取日志文件头指向的检查点日志
+     * @param logger
+     * @return 没有检查点时返回 null
+     */
+    private static CheckpointLogInfo readCheckpoint(Logger logger){
+        long lsn = logger.getCheckpoint();
+        if (lsn == 0){
+            return null;
+        }
+        ByteBuffer log = logger.reader(lsn).next();
+        if (log == null || !isCheckpointLog(log)){
+            return null;
+        }
+        return parseCheckpointLog(log);
+    }
+
+    /**
+     * 判断Log是否为 checkpoint log
+     * @param log
+     * @return
+     */
+    private static boolean isCheckpointLog(ByteBuffer log){
+        return log.get(OF_TYPE) == LOG_TYPE_CHECKPOINT;
+    }
 
     /**
      * 判断Log是否为 insert log
      * @param log
      * @return
      */
-    private static boolean isInsertLog(byte[] log){
-        return log[0] == LOG_TYPE_INSERT;
+    private static boolean isInsertLog(ByteBuffer log){
+        return log.get(OF_TYPE) == LOG_TYPE_INSERT;
+    }
+
+    /**
+     * 判断Log是否为 multi insert log
+     * @param log
+     * @return
+     */
+    private static boolean isMultiInsertLog(ByteBuffer log){
+        return log.get(OF_TYPE) == LOG_TYPE_MULTI_INSERT;
+    }
+
+    /**
+     * 判断Log是否为 page image log
+     * @param log
+     * @return
+     */
+    private static boolean isPageImageLog(ByteBuffer log){
+        return log.get(OF_TYPE) == LOG_TYPE_PAGE_IMAGE;
+    }
+
+    /**
+     * 判断Log是否为 resize log
+     * @param log
+     * @return
+     */
+    private static boolean isResizeLog(ByteBuffer log){
+        return log.get(OF_TYPE) == LOG_TYPE_RESIZE;
+    }
+
+    /**
+     * insert log、multi insert log 和 page image log 使用相同的格式
+     * @param log
+     * @return
+     */
+    private static boolean isInsertLayout(ByteBuffer log){
+        return isInsertLog(log) || isMultiInsertLog(log) || isPageImageLog(log);
+    }
+
+    /**
+     * 读取各类事务日志的 XID，它们的 XID 位于相同位置
+     * @param log
+     * @return
+     */
+    private static long logXid(ByteBuffer log){
+        return log.getLong(OF_XID);
+    }
+
+    /**
+     * 读取各类事务日志涉及的页号，不拷贝日志数据，update log 和 resize log 的 UID 位于相同位置
+     * @param log
+     * @return
+     */
+    private static int logPgno(ByteBuffer log){
+        if (isInsertLayout(log)){
+            return log.getInt(OF_INSERT_PGNO);
+        }
+        return (int) (log.getLong(OF_UPDATE_UID) >>> 32);
     }
 
     // update log 相关工作
@@ -216,19 +472,19 @@ public class Recover {
      * @param log
      * @return
      */
-    private static UpdateLogInfo parseUpdateLog(byte[] log){
+    private static UpdateLogInfo parseUpdateLog(ByteBuffer log){
         UpdateLogInfo updateLogInfo = new UpdateLogInfo();
-        updateLogInfo.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_UPDATE_UID));
+        updateLogInfo.xid = log.getLong(OF_XID);
 
-        long uid = Parser.parseLong(Arrays.copyOfRange(log, OF_UPDATE_UID, OF_UPDATE_RAW));
-        updateLogInfo.offset = (short) (uid & ((1L << 16) - 1));
+        long uid = log.getLong(OF_UPDATE_UID);
+        updateLogInfo.slot = (short) (uid & ((1L << 16) - 1));
 
         uid >>>= 32;
         updateLogInfo.pgno = (int)(uid & ((1L << 32) - 1));
 
-        int length = (log.length - OF_UPDATE_RAW) / 2;
-        updateLogInfo.oldRaw = Arrays.copyOfRange(log, OF_UPDATE_RAW, OF_UPDATE_RAW + length);
-        updateLogInfo.newRaw = Arrays.copyOfRange(log, OF_UPDATE_RAW + length, OF_UPDATE_RAW + length * 2);
+        int length = (log.limit() - OF_UPDATE_RAW) / 2;
+        updateLogInfo.oldRaw = BufferUtil.copyOfRange(log, OF_UPDATE_RAW, OF_UPDATE_RAW + length);
+        updateLogInfo.newRaw = BufferUtil.copyOfRange(log, OF_UPDATE_RAW + length, OF_UPDATE_RAW + length * 2);
         return updateLogInfo;
     }
 
@@ -238,20 +494,20 @@ public class Recover {
      * @param log
      * @param flag
      */
-    private static void doUpdateLog(PageCache pageCache, byte[] log, int flag){
+    private static void doUpdateLog(PageCache pageCache, ByteBuffer log, int flag){
         int pgno;
-        short offset;
+        short slot;
         byte[] raw;
 
         if (flag == REDO){
             UpdateLogInfo updateLogInfo = parseUpdateLog(log);
             pgno = updateLogInfo.pgno;
-            offset = updateLogInfo.offset;
+            slot = updateLogInfo.slot;
             raw = updateLogInfo.newRaw;
         }else{
             UpdateLogInfo updateLogInfo = parseUpdateLog(log);
             pgno = updateLogInfo.pgno;
-            offset = updateLogInfo.offset;
+            slot = updateLogInfo.slot;
             raw = updateLogInfo.oldRaw;
         }
 
@@ -263,7 +519,90 @@ public class Recover {
         }
 
         try {
-            CommonPage.recoverUpdate(page, raw, offset);
+            // 磁盘上的页面可能比日志新，槽已被整理页面时回收或分配给了其他记录，之后的 page image 日志会覆盖这里写入的内容
+            short offset = CommonPage.getSlot(page.getBuffer(), slot);
+            if (offset != 0 && offset + raw.length <= PageCache.PAGE_SIZE){
+                CommonPage.recoverUpdate(page, raw, offset);
+            }
+        }finally {
+            page.release();
+        }
+    }
+
+
+    // resize log 相关工作
+    // [LogType] [XID] [UID] [Offset] [OldLength] [OldRaw] [NewRaw]
+    private static final int OF_RESIZE_OFFSET = OF_UPDATE_UID + 8;
+    private static final int OF_RESIZE_OLD_LENGTH = OF_RESIZE_OFFSET + 2;
+    private static final int OF_RESIZE_RAW = OF_RESIZE_OLD_LENGTH + 2;
+
+    /**
+     * 生成 resizeLog 记录
+     * @param xid
+     * @param uid
+     * @param offset 新记录在页面中的偏移
+     * @param oldRaw
+     * @param newRaw
+     * @return
+     */
+    public static byte[] resizeLog(long xid, long uid, short offset, byte[] oldRaw, byte[] newRaw){
+        ByteBuffer log = ByteBuffer.allocate(OF_RESIZE_RAW + oldRaw.length + newRaw.length);
+        log.put(LOG_TYPE_RESIZE);
+        log.putLong(xid);
+        log.putLong(uid);
+        log.putShort(offset);
+        log.putShort((short) oldRaw.length);
+        log.put(oldRaw);
+        log.put(newRaw);
+        return log.array();
+    }
+
+    private static UpdateLogInfo parseResizeLog(ByteBuffer log){
+        UpdateLogInfo resizeLogInfo = new UpdateLogInfo();
+        resizeLogInfo.xid = log.getLong(OF_XID);
+        long uid = log.getLong(OF_UPDATE_UID);
+        resizeLogInfo.slot = (short) (uid & ((1L << 16) - 1));
+        resizeLogInfo.pgno = (int) (uid >>> 32);
+        resizeLogInfo.offset = log.getShort(OF_RESIZE_OFFSET);
+        int oldLength = log.getShort(OF_RESIZE_OLD_LENGTH);
+        resizeLogInfo.oldRaw = BufferUtil.copyOfRange(log, OF_RESIZE_RAW, OF_RESIZE_RAW + oldLength);
+        resizeLogInfo.newRaw = BufferUtil.copyOfRange(log, OF_RESIZE_RAW + oldLength, log.limit());
+        return resizeLogInfo;
+    }
+
+    /**
+     * 执行 resize log
+     * 重做时按日志中的偏移写入新记录；撤销时按槽号放回旧记录，运行时为撤销预留了空间，整理页面后一定放得下
+     * @param pageCache
+     * @param log
+     * @param flag
+     */
+    private static void doResizeLog(PageCache pageCache, ByteBuffer log, int flag){
+        UpdateLogInfo resizeLogInfo = parseResizeLog(log);
+        Page page = null;
+        try {
+            page = pageCache.getPage(resizeLogInfo.pgno);
+        }catch (Exception e){
+            Panic.panic(e);
+        }
+        try {
+            if (flag == REDO){
+                CommonPage.recoverInsert(page, resizeLogInfo.newRaw, resizeLogInfo.offset, resizeLogInfo.slot);
+                return;
+            }
+            short offset = CommonPage.placeRecord(page, resizeLogInfo.slot, resizeLogInfo.oldRaw);
+            if (offset < 0){
+                // 恢复期间其他事务的撤销还可能用到无效记录，整理时只回收空隙，记录排在最后以便原地扩展
+                byte[] image = CommonPage.compactImage(page, slot -> false, resizeLogInfo.slot);
+                if (image != null){
+                    CommonPage.writeImage(page, image);
+                }
+                offset = CommonPage.placeRecord(page, resizeLogInfo.slot, resizeLogInfo.oldRaw);
+            }
+            if (offset < 0){
+                Panic.panic(Error.DataTooLargeException);
+            }
+            CommonPage.putRecord(page, resizeLogInfo.slot, resizeLogInfo.oldRaw, offset);
         }finally {
             page.release();
         }
@@ -271,10 +610,11 @@ public class Recover {
 
 
     // insert log 相关工作
-    // [LogType] [XID] [Pgno] [Offset] [Raw]
+    // [LogType] [XID] [Pgno] [Offset] [Slot] [Raw]
     private static final int OF_INSERT_PGNO = OF_XID + 8;
     private static final int OF_INSERT_OFFSET = OF_INSERT_PGNO + 4;
-    private static final int OF_INSERT_RAW = OF_INSERT_OFFSET + 2;
+    private static final int OF_INSERT_SLOT = OF_INSERT_OFFSET + 2;
+    private static final int OF_INSERT_RAW = OF_INSERT_SLOT + 2;
 
     /**
      * 根据 xid, page, raw 生成对应的 insertLog 记录
@@ -288,32 +628,71 @@ public class Recover {
         byte[] xidRaw = Parser.long2Byte(xid);
         byte[] pgnoRaw = Parser.int2Byte(page.getPageNumber());
         byte[] offsetRaw = Parser.short2Byte(CommonPage.getOffset(page));
-        return Bytes.concat(logType, xidRaw, pgnoRaw, offsetRaw, raw);
+        byte[] slotRaw = Parser.short2Byte(CommonPage.nextSlot(page.getBuffer()));
+        return Bytes.concat(logType, xidRaw, pgnoRaw, offsetRaw, slotRaw, raw);
+    }
+
+    /**
+     * 根据 xid, page 和连续存放的多个 DataItem 生成一条 multiInsertLog 记录
+     * @param xid
+     * @param page
+     * @param raws
+     * @return
+     */
+    public static byte[] multiInsertLog(long xid, Page page, ByteBuffer raws){
+        ByteBuffer log = ByteBuffer.allocate(OF_INSERT_RAW + raws.remaining());
+        log.put(LOG_TYPE_MULTI_INSERT);
+        log.putLong(xid);
+        log.putInt(page.getPageNumber());
+        log.putShort(CommonPage.getOffset(page));
+        log.putShort((short) CommonPage.getSlotCount(page.getBuffer()));
+        log.put(raws.duplicate());
+        return log.array();
     }
 
 
+    /**
+     * 根据 xid, 页号和页面内容生成一条 pageImageLog 记录
+     * @param xid
+     * @param pgno
+     * @param image 从页首开始的内容
+     * @return
+     */
+    public static byte[] pageImageLog(long xid, int pgno, byte[] image){
+        ByteBuffer log = ByteBuffer.allocate(OF_INSERT_RAW + image.length);
+        log.put(LOG_TYPE_PAGE_IMAGE);
+        log.putLong(xid);
+        log.putInt(pgno);
+        log.putShort((short) 0);
+        log.putShort((short) 0);
+        log.put(image);
+        return log.array();
+    }
+
     /**
      * 根据传入的 log 记录解析出各个元素
      * @param log
      * @return
      */
-    private static InsertLogInfo parseInertLog(byte[] log){
+    private static InsertLogInfo parseInertLog(ByteBuffer log){
         InsertLogInfo insertLogInfo = new InsertLogInfo();
-        insertLogInfo.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_INSERT_PGNO));
-        insertLogInfo.pgno = Parser.parseInt(Arrays.copyOfRange(log, OF_INSERT_PGNO, OF_INSERT_OFFSET));
-        insertLogInfo.offset = Parser.parseShort(Arrays.copyOfRange(log, OF_INSERT_OFFSET, OF_INSERT_RAW));
-        insertLogInfo.raw = Arrays.copyOfRange(log, OF_INSERT_RAW, log.length);
+        insertLogInfo.xid = log.getLong(OF_XID);
+        insertLogInfo.pgno = log.getInt(OF_INSERT_PGNO);
+        insertLogInfo.offset = log.getShort(OF_INSERT_OFFSET);
+        insertLogInfo.slot = log.getShort(OF_INSERT_SLOT);
+        insertLogInfo.raw = BufferUtil.copyOfRange(log, OF_INSERT_RAW, log.limit());
         return insertLogInfo;
     }
 
 
     /**
-     * 执行插入的log语句
+     * 执行插入的log语句，insert log、multi insert log 和 page image log 共用
+     * 撤销插入时，记录仍在槽中的(之后的整理页面把它带到了新位置)直接设置为无效，否则在原位置写入无效的记录
      * @param pageCache
      * @param log
      * @param flag
      */
-    private static void doInsertLog(PageCache pageCache, byte[] log, int flag){
+    private static void doInsertLog(PageCache pageCache, ByteBuffer log, int flag){
         InsertLogInfo insertLogInfo = parseInertLog(log);
         Page page = null;
         try {
@@ -322,12 +701,76 @@ public class Recover {
             Panic.panic(e);
         }
         try {
+            if (isPageImageLog(log)){
+                if (flag == UNDO){
+                    CommonPage.recoverUpdate(page, CommonPage.initCommonPage(), (short) 0);
+                }else {
+                    CommonPage.recoverUpdate(page, insertLogInfo.raw, (short) 0);
+                }
+                return;
+            }
             if (flag == UNDO){
-                DataItem.setDataItemRawInvalid(insertLogInfo.raw);
+                undoInsert(page, insertLogInfo);
+                return;
             }
-            CommonPage.recoverInsert(page, insertLogInfo.raw, insertLogInfo.offset);
+            CommonPage.recoverInsert(page, insertLogInfo.raw, insertLogInfo.offset, insertLogInfo.slot);
         }finally {
             page.release();
         }
     }
+
+    private static void undoInsert(Page page, InsertLogInfo insertLogInfo){
+        ByteBuffer buf = page.getBuffer();
+        ByteBuffer raws = ByteBuffer.wrap(insertLogInfo.raw);
+        int pos = 0;
+        short slot = insertLogInfo.slot;
+        while (pos < insertLogInfo.raw.length){
+            int length = DataItem.getDataItemLength(raws, pos);
+            short offset = CommonPage.getSlot(buf, slot);
+            if (offset != 0){
+                DataItem.setDataItemInvalid(buf, offset);
+                page.setDirty(true);
+            }else {
+                byte[] raw = Arrays.copyOfRange(insertLogInfo.raw, pos, pos + length);
+                DataItem.setDataItemRawInvalid(raw);
+                CommonPage.recoverInsert(page, raw, (short) (insertLogInfo.offset + pos), slot);
+            }
+            pos += length;
+            slot++;
+        }
+    }
+
+
+    // checkpoint log 相关工作
+    // [LogType] [RedoLSN] [PageNumber] [FlushedLSN]
+    private static final int OF_CHECKPOINT_REDO = OF_TYPE + 1;
+    private static final int OF_CHECKPOINT_PAGES = OF_CHECKPOINT_REDO + 8;
+    private static final int OF_CHECKPOINT_FLUSHED = OF_CHECKPOINT_PAGES + 4;
+    private static final int OF_CHECKPOINT_END = OF_CHECKPOINT_FLUSHED + 8;
+
+    /**
+     * 生成检查点日志
+     * @param redoLsn 恢复时开始重放的位置
+     * @param pageNumber 检查点时数据库的页数
+     * @param flushedLsn 该位置之前的修改都已写回磁盘
+     * @return
+     */
+    public static byte[] checkpointLog(long redoLsn, int pageNumber, long flushedLsn){
+        byte[] logType = {LOG_TYPE_CHECKPOINT};
+        return Bytes.concat(logType, Parser.long2Byte(redoLsn), Parser.int2Byte(pageNumber), Parser.long2Byte(flushedLsn));
+    }
+
+    /**
+     * 根据传入的 log 记录解析出各个元素
+     * @param log
+     * @return
+     */
+    private static CheckpointLogInfo parseCheckpointLog(ByteBuffer log){
+        CheckpointLogInfo checkpointLogInfo = new CheckpointLogInfo();
+        checkpointLogInfo.redoLsn = log.getLong(OF_CHECKPOINT_REDO);
+        checkpointLogInfo.pageNumber = log.getInt(OF_CHECKPOINT_PAGES);
+        // 没有 FlushedLSN 的旧检查点日志，保守地从 RedoLSN 开始 redo
+        checkpointLogInfo.flushedLsn = log.limit() >= OF_CHECKPOINT_END ? log.getLong(OF_CHECKPOINT_FLUSHED) : checkpointLogInfo.redoLsn;
+        return checkpointLogInfo;
+    }
 }
@@ -0,0 +1,157 @@
+package com.tjyy.mydb.backend.dm;
+
+import com.tjyy.mydb.backend.util.Panic;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * @author: Tjyy
+ * @date: 2024-03-26 10:00
+ * @description: 后台空间回收线程
+ * 从第 2 页开始按页号循环扫描，整理有无效记录或空隙的页面，回收出的空间放回 pageIndex。
+ * 每隔 interval 毫秒扫描一批，按 I/O 预算限速：读入一个页面计 1，整理后需要写回的页面再计 1，
+ * 每秒最多消耗 budget，超出的部分从下一批中扣除，不会和前台争抢磁盘带宽。
+ * 一轮扫描没有回收出空间、期间也没有新的删除或变短时停止扫描，直到有新的可回收空间，
+ * 恢复时被撤销的插入在打开时逐页扫描空闲空间的过程中发现。
+ * 每批扫描前先回收所属事务已经结束的溢出页链，每回收一个页面计 2。
+ */
+class Vacuum implements Runnable {
+    private final DataManagerImpl dataManager;
+    private final long interval;
+
+    private volatile int budget;  // 每秒的 I/O 预算(页数)，0 表示暂停
+    private volatile boolean garbage;  // 上一轮扫描开始后是否有新的可回收空间
+    private int cursor;  // 下一个扫描的页号
+    private int credit;  // 本批剩余的预算，为负时表示上一批超出的部分
+    private boolean reclaimed;  // 本轮扫描是否回收出了空间
+
+    private Lock lock;
+    private Condition wakeUp;
+    private boolean closed;
+    private Thread thread;
+
+    Vacuum(DataManagerImpl dataManager, long interval, int budget) {
+        this.dataManager = dataManager;
+        this.interval = interval;
+        this.budget = budget;
+        this.cursor = 2;
+        this.lock = new ReentrantLock();
+        this.wakeUp = lock.newCondition();
+    }
+
+    /**
+     * 启动回收线程
+     */
+    void start(){
+        thread = new Thread(this, "vacuum");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * 设置每秒的 I/O 预算，0 表示暂停扫描
+     * @param budget
+     */
+    void setBudget(int budget){
+        this.budget = Math.max(0, budget);
+    }
+
+    /**
+     * 有页面出现了可回收的空间
+     */
+    void garbage(){
+        garbage = true;
+    }
+
+    @Override
+    public void run() {
+        while (true){
+            lock.lock();
+            try {
+                if (!closed){
+                    wakeUp.await(interval, TimeUnit.MILLISECONDS);
+                }
+                if (closed){
+                    return;
+                }
+            }catch (InterruptedException e){
+                return;
+            }finally {
+                lock.unlock();
+            }
+            int budget = this.budget;
+            if (budget > 0){
+                credit = Math.min(credit, 0) + (int) Math.max(1, budget * interval / 1000);
+                reclaimChains();
+                if (garbage || cursor > 2){
+                    vacuum();
+                }else {
+                    credit = Math.min(credit, 0);
+                }
+            }
+        }
+    }
+
+    /**
+     * 回收所属事务已经结束的溢出页链
+     */
+    private void reclaimChains(){
+        try {
+            credit -= dataManager.reclaimStreamChains() * 2;
+        }catch (Exception e){
+            Panic.panic(e);
+        }
+    }
+
+    /**
+     * 在本批预算内继续扫描，扫描完最后一页后从头开始下一轮
+     */
+    private void vacuum(){
+        try {
+            while (credit > 0){
+                if (cursor == 2){
+                    // 新一轮扫描开始，之后出现的可回收空间留给下一轮
+                    garbage = false;
+                    reclaimed = false;
+                }
+                int pageNumber = dataManager.pageNumber();
+                if (cursor > pageNumber){
+                    cursor = 2;
+                    if (!reclaimed && !garbage){
+                        return;
+                    }
+                    continue;
+                }
+                boolean compacted = dataManager.reclaimPage(cursor++);
+                reclaimed |= compacted;
+                credit -= compacted ? 2 : 1;
+            }
+        }catch (Exception e){
+            Panic.panic(e);
+        }
+    }
+
+    /**
+     * 停止回收线程并等待正在扫描的一批结束
+     */
+    void close(){
+        if (thread == null){
+            return;
+        }
+        lock.lock();
+        try {
+            closed = true;
+            wakeUp.signal();
+        }finally {
+            lock.unlock();
+        }
+        try {
+            thread.join();
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+    }
+}
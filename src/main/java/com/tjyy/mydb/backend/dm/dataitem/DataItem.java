@@ -4,12 +4,13 @@ import com.google.common.primitives.Bytes;
 import com.tjyy.mydb.backend.common.SubArray;
 import com.tjyy.mydb.backend.dm.DataManager;
 import com.tjyy.mydb.backend.dm.DataManagerImpl;
+import com.tjyy.mydb.backend.dm.page.CommonPage;
 import com.tjyy.mydb.backend.dm.page.Page;
+import com.tjyy.mydb.backend.util.BufferUtil;
 import com.tjyy.mydb.backend.util.Parser;
 import com.tjyy.mydb.backend.util.Types;
 
-import java.lang.reflect.Type;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
 
 /**
  * @author: Tjyy
@@ -106,20 +107,82 @@ public interface DataItem {
     }
 
     /**
-     * 从页面的 offset 处解析数据抽象 DataItem
+     * 数据 data 包装成 DataItem 后的长度
+     * @param data
+     * @return
+     */
+    public static int dataItemRawLength(byte[] data){
+        return DataItemImpl.OF_DATA + data.length;
+    }
+
+    /**
+     * 将数据 data 包装成 DataItem 写入 buf 的当前位置，格式与 warpDataItemRaw 相同
+     * @param buf
+     * @param data
+     */
+    public static void putDataItemRaw(ByteBuffer buf, byte[] data){
+        buf.put((byte) 0);
+        buf.putShort((short) data.length);
+        buf.put(data);
+    }
+
+    /**
+     * 从页面的第 slot 个槽解析数据抽象 DataItem
+     * DataItem 持有数据的一份副本，修改在 after() 记录日志后才写回页面，
+     * 页面随时可能被后台线程写回磁盘，磁盘上不会出现没有日志的修改。
+     * 空闲槽解析为一个无效的空 DataItem
      * @param page
-     * @param offset
+     * @param slot
      * @param dataManager
      * @return
      */
-    public static DataItem parseDataItem(Page page, short offset, DataManagerImpl dataManager){
-        byte[] raw = page.getData();
-        short size = Parser.parseShort(Arrays.copyOfRange(raw, offset + DataItemImpl.OF_SIZE,
-                offset + DataItemImpl.OF_DATA));
-        short length = (short) (size + DataItemImpl.OF_DATA);
-        long uid = Types.addressToUid(page.getPageNumber(), offset);
-        return new DataItemImpl(new SubArray(raw, offset, offset + length),
-                new byte[length], page, uid, dataManager);
+    public static DataItem parseDataItem(Page page, short slot, DataManagerImpl dataManager){
+        ByteBuffer buf = page.getBuffer();
+        long uid = Types.addressToUid(page.getPageNumber(), slot);
+        byte[] copy;
+        page.lock();
+        try {
+            short offset = CommonPage.getSlot(buf, slot);
+            if (offset == 0){
+                copy = new byte[DataItemImpl.OF_DATA];
+                copy[DataItemImpl.OF_VALID] = (byte) 1;
+            }else {
+                copy = BufferUtil.copyOfRange(buf, offset, offset + getDataItemLength(buf, offset));
+            }
+        }finally {
+            page.unlock();
+        }
+        SubArray raw = new SubArray(copy, 0, copy.length);
+        return new DataItemImpl(raw, new byte[copy.length], page, slot, uid, dataManager);
+    }
+
+    /**
+     * 页面中 offset 处的 DataItem 的长度
+     * @param buf
+     * @param offset
+     * @return
+     */
+    public static int getDataItemLength(ByteBuffer buf, int offset){
+        return DataItemImpl.OF_DATA + buf.getShort(offset + DataItemImpl.OF_SIZE);
+    }
+
+    /**
+     * 页面中 offset 处的 DataItem 是否有效
+     * @param buf
+     * @param offset
+     * @return
+     */
+    public static boolean isDataItemValid(ByteBuffer buf, int offset){
+        return buf.get(offset + DataItemImpl.OF_VALID) == (byte) 0;
+    }
+
+    /**
+     * 将页面中 offset 处的 DataItem 设置为无效
+     * @param buf
+     * @param offset
+     */
+    public static void setDataItemInvalid(ByteBuffer buf, int offset){
+        buf.put(offset + DataItemImpl.OF_VALID, (byte) 1);
     }
 
     /**
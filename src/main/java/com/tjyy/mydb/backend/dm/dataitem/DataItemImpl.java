@@ -2,9 +2,13 @@ package com.tjyy.mydb.backend.dm.dataitem;
 
 import com.tjyy.mydb.backend.common.SubArray;
 import com.tjyy.mydb.backend.dm.DataManagerImpl;
+import com.tjyy.mydb.backend.dm.page.CommonPage;
 import com.tjyy.mydb.backend.dm.page.Page;
+import com.tjyy.mydb.backend.util.BufferUtil;
 
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * @author: Tjyy
@@ -27,13 +31,19 @@ public class DataItemImpl implements DataItem{
     private DataManagerImpl dataManager;
     private long uid;
     private Page page;
+    private short slot;  // 在页面中的槽号，raw 是该槽记录的副本，修改记录日志后写回页面
 
-    public DataItemImpl(SubArray raw, byte[] oldRaw, Page page, long uid, DataManagerImpl dataManager) {
+    public DataItemImpl(SubArray raw, byte[] oldRaw, Page page, short slot, long uid, DataManagerImpl dataManager) {
         this.raw = raw;
         this.oldRaw = oldRaw;
         this.uid = uid;
         this.page = page;
+        this.slot = slot;
         this.dataManager = dataManager;
+
+        ReadWriteLock lock = new ReentrantReadWriteLock();
+        rLock = lock.readLock();
+        wLock = lock.writeLock();
     }
 
     public boolean isValid(){
@@ -56,7 +66,6 @@ public class DataItemImpl implements DataItem{
     @Override
     public void before() {
         wLock.lock();
-        page.setDirty(true);
         System.arraycopy(raw.raw, raw.start, oldRaw, 0, oldRaw.length);
     }
 
@@ -77,10 +86,50 @@ public class DataItemImpl implements DataItem{
      */
     @Override
     public void after(long xid) {
+        // 记录日志并将修改写回页面
         dataManager.logDataItem(xid, this);
         wLock.unlock();
     }
 
+    /**
+     * 将修改后的数据写回页面，由 DataManager 在 update 日志写入之后调用
+     * 记录在页内的位置可能因整理页面而变化，需在页面锁内按槽号重新定位
+     */
+    public void writeBack() {
+        page.lock();
+        try {
+            short offset = CommonPage.getSlot(page.getBuffer(), slot);
+            BufferUtil.put(page.getBuffer(), offset, raw.raw, raw.start, raw.end - raw.start);
+            page.setDirty(true);
+        }finally {
+            page.unlock();
+        }
+    }
+
+    /**
+     * 将副本设置为无效，需在 before() 与 after() 之间调用
+     */
+    public void invalidate() {
+        raw.raw[raw.start + OF_VALID] = (byte) 1;
+    }
+
+    /**
+     * 换成长度不同的新记录，由 DataManager 在 resize 日志写入、页面修改之后调用，需持有写锁
+     * @param newRaw
+     */
+    public void resize(byte[] newRaw) {
+        this.raw = new SubArray(newRaw, 0, newRaw.length);
+        this.oldRaw = new byte[newRaw.length];
+    }
+
+    /**
+     * 当前 DataItem 在页面中的槽号
+     * @return
+     */
+    public short getSlot() {
+        return slot;
+    }
+
     /**
      * 调用 release() 方法，释放掉 DataItem 的缓存
      */
@@ -0,0 +1,164 @@
+package com.tjyy.mydb.backend.dm.logger;
+
+import com.tjyy.mydb.backend.util.BufferUtil;
+import com.tjyy.mydb.backend.util.Panic;
+import com.tjyy.mydb.common.Error;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * @author: Tjyy
+ * @date: 2024-03-16 10:20
+ * @description: 顺序日志读取器
+ * 以大块预读的方式顺序扫描日志段：每次把段内容读入一个较大的直接缓冲区(窗口)，
+ * 日志直接在窗口上解析和校验，返回的是窗口的切片，不再为每条日志分配数组和发起两次读取。
+ * 返回的切片只在下一次调用 next() 之前有效，需要保留时由调用者自行拷贝。
+ * 读取器不持有锁，只用于恢复等没有并发写入和删除日志段的场景。
+ */
+public class LogReader {
+    static final int READ_AHEAD = 1 << 20;  // 预读窗口大小，1MB
+
+    private static final int OF_SIZE = LogSegment.OF_SIZE;
+    private static final int OF_DATA = LogSegment.OF_DATA;
+
+    private final List<LogSegment> segments;  // 按起始位置排列的日志段快照
+    private final int readAhead;
+    private int index;  // 当前读取的段
+    private long size;  // 当前段的文件长度，进入该段时读取
+
+    private ByteBuffer window;  // 预读窗口，[0, limit) 为有效内容
+    private long windowStart = -1;  // 窗口首字节在当前段内的偏移，-1 表示窗口无效
+
+    private long position;  // 下一条日志的位置
+    private long lsn;  // 上一次返回的日志的位置
+
+    LogReader(List<LogSegment> segments, long position, int readAhead) {
+        this.segments = segments;
+        this.readAhead = readAhead;
+        this.position = position;
+        this.index = segmentIndex(position);
+        this.size = segments.get(index).size();
+    }
+
+    /**
+     * 找到 lsn 所在的日志段，lsn 早于第一个段时返回第一个段
+     * @param lsn
+     * @return
+     */
+    private int segmentIndex(long lsn){
+        int index = 0;
+        for (int i = 1; i < segments.size(); i++) {
+            if (segments.get(i).start <= lsn){
+                index = i;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * 读取下一条日志的 Data 部分
+     * @return 窗口上的只读切片，日志读完时返回 null
+     */
+    public ByteBuffer next(){
+        ByteBuffer log = nextLog();
+        if (log == null){
+            return null;
+        }
+        return BufferUtil.slice(log, OF_DATA, log.limit() - OF_DATA).asReadOnlyBuffer();
+    }
+
+    /**
+     * 读取下一条完整的日志: [Size] [Checksum] [Data]，读完一个段后继续读取下一个段
+     * @return 窗口上的切片，日志读完时返回 null
+     */
+    ByteBuffer nextLog(){
+        while (index < segments.size()){
+            LogSegment segment = segments.get(index);
+            if (position < segment.first()){
+                position = segment.first();
+            }
+            ByteBuffer log = internNext(segment);
+            if (log != null){
+                lsn = position;
+                position += log.limit();
+                return log;
+            }
+            if (index < segments.size() - 1 && position < segment.start + size){
+                // 已经封闭的段中不应该存在无法解析的日志
+                Panic.panic(Error.BadLogFileException);
+            }
+            index++;
+            windowStart = -1;
+            if (index < segments.size()){
+                size = segments.get(index).size();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 在窗口上解析 position 处的日志，日志不完整或校验失败时返回 null
+     * @param segment
+     * @return
+     */
+    private ByteBuffer internNext(LogSegment segment){
+        long offset = position - segment.start;
+        if (offset + OF_DATA > size){
+            return null;
+        }
+
+        fill(segment, offset, OF_DATA);
+        int length = window.getInt((int) (offset - windowStart) + OF_SIZE);
+        // 超出长度证明当前Log不是完整的
+        if (length < 0 || offset + OF_DATA + length > size){
+            return null;
+        }
+
+        fill(segment, offset, OF_DATA + length);
+        ByteBuffer log = BufferUtil.slice(window, (int) (offset - windowStart), OF_DATA + length);
+        if (!segment.verify(log)){
+            return null;
+        }
+        return log;
+    }
+
+    /**
+     * 保证段内 [offset, offset + need) 位于窗口中，否则从 offset 处重新预读
+     * 单条日志比窗口还大时，为它分配一个足够大的窗口
+     * @param segment
+     * @param offset
+     * @param need
+     */
+    private void fill(LogSegment segment, long offset, int need){
+        if (windowStart >= 0 && offset >= windowStart && offset + need <= windowStart + window.limit()){
+            return;
+        }
+        if (window == null || window.capacity() < need){
+            window = ByteBuffer.allocateDirect(Math.max(readAhead, need));
+        }
+        window.clear();
+        if (size - offset < window.capacity()){
+            window.limit((int) (size - offset));
+        }
+        segment.read(window, offset);
+        window.flip();
+        windowStart = offset;
+    }
+
+    /**
+     * 上一次返回的日志的位置(LSN)
+     * @return
+     */
+    public long lsn(){
+        return lsn;
+    }
+
+    /**
+     * 下一条日志的位置，即已读取部分的末尾
+     * @return
+     */
+    public long position(){
+        return position;
+    }
+}
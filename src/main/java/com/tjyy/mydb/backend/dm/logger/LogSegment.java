@@ -0,0 +1,327 @@
+package com.tjyy.mydb.backend.dm.logger;
+
+import com.tjyy.mydb.backend.util.BufferUtil;
+import com.tjyy.mydb.backend.util.Panic;
+import com.tjyy.mydb.backend.util.Parser;
+import com.tjyy.mydb.common.Error;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * @author: Tjyy
+ * @date: 2024-03-14 09:30
+ * @description: 日志段文件
+ * 日志段的格式(版本 2)：
+ * [Magic] [Version] [XChecksum] [StartLSN] [Log1] [Log2] ... [LogN] [BadTail]
+ * Magic 4字节，Version 4字节；XChecksum 4字节，段内所有日志的总校验和；StartLSN 8字节，段文件偏移 0 处对应的全局日志位置
+ * 段内偏移为 offset 的日志，其全局位置(LSN)为 StartLSN + offset
+ *
+ * 日志格式：[Size] [Checksum] [Data]
+ * 版本 2 的 Checksum 是 Size 与 Data 的 CRC32(JDK 以硬件指令实现)，直接在读入的缓冲区上校验；
+ * 总校验和由各条日志的 CRC32 滚动累积，每条日志只需 O(1) 的额外计算。
+ * 版本 1 的段没有 Magic 和 Version，文件头为 [XChecksum] [StartLSN]，校验和是逐字节的多项式累积，只用于读取旧日志。
+ */
+class LogSegment {
+    static final int MAGIC = 0x4D594C47;  // "MYLG"
+    static final int VERSION_1 = 1;
+    static final int VERSION_2 = 2;
+    static final int CURRENT_VERSION = VERSION_2;
+
+    // 版本 2 的文件头
+    private static final int OF_MAGIC = 0;
+    private static final int OF_VERSION = OF_MAGIC + 4;
+    private static final int OF_XCHECKSUM = OF_VERSION + 4;
+    private static final int OF_START = OF_XCHECKSUM + 4;
+    private static final int HEADER_SIZE = OF_START + 8;
+
+    // 版本 1 的文件头
+    private static final int V1_OF_XCHECKSUM = 0;
+    private static final int V1_OF_START = V1_OF_XCHECKSUM + 4;
+    private static final int V1_HEADER_SIZE = V1_OF_START + 8;
+
+    // 日志格式
+    static final int OF_SIZE = 0;
+    static final int OF_CHECKSUM = OF_SIZE + 4;
+    static final int OF_DATA = OF_CHECKSUM + 4;
+    private static final int SEED = 13331;
+
+    final long seq;  // 段序号，决定文件名
+    final long start;  // 段的起始位置
+    final int version;
+    final File file;
+    private RandomAccessFile randomAccessFile;
+    private FileChannel channel;
+
+    int checkSum;  // 段内已分配位置的日志的总校验和，由 LoggerImpl 的锁保护
+
+    private LogSegment(long seq, long start, int version, File file, RandomAccessFile randomAccessFile, FileChannel channel, int checkSum) {
+        this.seq = seq;
+        this.start = start;
+        this.version = version;
+        this.file = file;
+        this.randomAccessFile = randomAccessFile;
+        this.channel = channel;
+        this.checkSum = checkSum;
+    }
+
+    /**
+     * 日志段的文件名: <path>.log.<seq>
+     * @param path
+     * @param seq
+     * @return
+     */
+    static File segmentFile(String path, long seq){
+        return new File(String.format("%s%s.%08d", path, Logger.LOG_SUFFIX, seq));
+    }
+
+    /**
+     * 创建一个空的日志段，文件头写入并刷盘后才返回
+     * @param path
+     * @param seq
+     * @param start
+     * @return
+     */
+    static LogSegment create(String path, long seq, long start){
+        File file = segmentFile(path, seq);
+        RandomAccessFile randomAccessFile = null;
+        try {
+            if (!file.createNewFile()){
+                Panic.panic(Error.FileExistsException);
+            }
+            randomAccessFile = new RandomAccessFile(file, "rw");
+        }catch (IOException e){
+            Panic.panic(e);
+        }
+        LogSegment segment = new LogSegment(seq, start, CURRENT_VERSION, file, randomAccessFile, randomAccessFile.getChannel(), 0);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.put(Parser.int2Byte(MAGIC));
+        header.put(Parser.int2Byte(CURRENT_VERSION));
+        header.put(Parser.int2Byte(0));
+        header.put(Parser.long2Byte(start));
+        header.flip();
+        segment.write(header, 0);
+        segment.force();
+        return segment;
+    }
+
+    /**
+     * 打开已有的日志段并读取文件头
+     * @param file
+     * @param seq
+     * @return 文件头不完整(创建段时宕机)时返回 null
+     */
+    static LogSegment open(File file, long seq){
+        RandomAccessFile randomAccessFile = null;
+        try {
+            randomAccessFile = new RandomAccessFile(file, "rw");
+        }catch (FileNotFoundException e){
+            Panic.panic(e);
+        }
+        LogSegment segment = new LogSegment(seq, 0, 0, file, randomAccessFile, randomAccessFile.getChannel(), 0);
+        long size = segment.size();
+        byte[] header = new byte[HEADER_SIZE];
+        segment.read(ByteBuffer.wrap(header), 0);
+        if (size >= HEADER_SIZE && Parser.parseInt(Arrays.copyOfRange(header, OF_MAGIC, OF_VERSION)) == MAGIC){
+            int version = Parser.parseInt(Arrays.copyOfRange(header, OF_VERSION, OF_XCHECKSUM));
+            if (version != VERSION_2){
+                Panic.panic(Error.BadLogFileException);
+            }
+            int checkSum = Parser.parseInt(Arrays.copyOfRange(header, OF_XCHECKSUM, OF_START));
+            long start = Parser.parseLong(Arrays.copyOfRange(header, OF_START, HEADER_SIZE));
+            return new LogSegment(seq, start, version, file, randomAccessFile, segment.channel, checkSum);
+        }
+        if (size >= V1_HEADER_SIZE && !Arrays.equals(Arrays.copyOfRange(header, 0, 4), Parser.int2Byte(MAGIC))){
+            int checkSum = Parser.parseInt(Arrays.copyOfRange(header, V1_OF_XCHECKSUM, V1_OF_START));
+            long start = Parser.parseLong(Arrays.copyOfRange(header, V1_OF_START, V1_HEADER_SIZE));
+            return new LogSegment(seq, start, VERSION_1, file, randomAccessFile, segment.channel, checkSum);
+        }
+        segment.close();
+        return null;
+    }
+
+    /**
+     * 文件头的长度
+     * @return
+     */
+    int headerSize(){
+        return version == VERSION_1 ? V1_HEADER_SIZE : HEADER_SIZE;
+    }
+
+    /**
+     * 段内第一条日志的位置
+     * @return
+     */
+    long first(){
+        return start + headerSize();
+    }
+
+    /**
+     * 按当前版本将数据包裹成日志: [Size] [Checksum] [Data]
+     * @param data
+     * @return
+     */
+    static byte[] wrap(byte[] data){
+        byte[] log = new byte[OF_DATA + data.length];
+        System.arraycopy(Parser.int2Byte(data.length), 0, log, OF_SIZE, 4);
+        System.arraycopy(data, 0, log, OF_DATA, data.length);
+        System.arraycopy(Parser.int2Byte(crc(ByteBuffer.wrap(log))), 0, log, OF_CHECKSUM, 4);
+        return log;
+    }
+
+    /**
+     * 版本 2 的日志校验和：Size 与 Data 的 CRC32
+     * @param log
+     * @return
+     */
+    private static int crc(ByteBuffer log){
+        CRC32 crc32 = new CRC32();
+        crc32.update(BufferUtil.slice(log, OF_SIZE, 4));
+        crc32.update(BufferUtil.slice(log, OF_DATA, log.limit() - OF_DATA));
+        return (int) crc32.getValue();
+    }
+
+    /**
+     * 在读入的缓冲区上直接校验一条日志，log 的 [0, limit) 为整条日志
+     * @param log
+     * @return
+     */
+    boolean verify(ByteBuffer log){
+        int expected = log.getInt(OF_CHECKSUM);
+        if (version == VERSION_1){
+            return polynomial(0, log, OF_DATA, log.limit()) == expected;
+        }
+        return crc(log) == expected;
+    }
+
+    /**
+     * 将一条已校验的日志累积到段的总校验和中
+     * @param xCheck
+     * @param log
+     * @return
+     */
+    int fold(int xCheck, ByteBuffer log){
+        if (version == VERSION_1){
+            return polynomial(xCheck, log, 0, log.limit());
+        }
+        return xCheck * SEED + log.getInt(OF_CHECKSUM);
+    }
+
+    int fold(int xCheck, byte[] log){
+        return fold(xCheck, ByteBuffer.wrap(log));
+    }
+
+    /**
+     * 版本 1 的逐字节多项式校验和
+     */
+    private static int polynomial(int xCheck, ByteBuffer log, int from, int to){
+        for (int i = from; i < to; i++) {
+            xCheck = xCheck * SEED + log.get(i);
+        }
+        return xCheck;
+    }
+
+    /**
+     * 段文件的长度
+     * @return
+     */
+    long size(){
+        try {
+            return channel.size();
+        }catch (IOException e){
+            Panic.panic(e);
+            return 0;
+        }
+    }
+
+    /**
+     * 段内日志的末尾位置(LSN)
+     * @return
+     */
+    long end(){
+        return start + size();
+    }
+
+    /**
+     * 从段内偏移 offset 处读满 buf，读到文件末尾时提前结束
+     * @param buf
+     * @param offset
+     */
+    void read(ByteBuffer buf, long offset){
+        int base = buf.position();
+        try {
+            while (buf.hasRemaining()){
+                if (channel.read(buf, offset + buf.position() - base) < 0){
+                    break;
+                }
+            }
+        }catch (IOException e){
+            Panic.panic(e);
+        }
+    }
+
+    /**
+     * 将 buf 写入段内偏移 offset 处
+     * @param buf
+     * @param offset
+     */
+    void write(ByteBuffer buf, long offset){
+        int base = buf.position();
+        try {
+            while (buf.hasRemaining()){
+                channel.write(buf, offset + buf.position() - base);
+            }
+        }catch (IOException e){
+            Panic.panic(e);
+        }
+    }
+
+    /**
+     * 更新文件头中的总校验和
+     * @param checkSum
+     */
+    void writeCheckSum(int checkSum){
+        write(ByteBuffer.wrap(Parser.int2Byte(checkSum)), version == VERSION_1 ? V1_OF_XCHECKSUM : OF_XCHECKSUM);
+    }
+
+    void force(){
+        try {
+            channel.force(false);
+        }catch (IOException e){
+            Panic.panic(e);
+        }
+    }
+
+    void truncate(long offset){
+        try {
+            channel.truncate(offset);
+        }catch (IOException e){
+            Panic.panic(e);
+        }
+    }
+
+    void close(){
+        try {
+            channel.close();
+            randomAccessFile.close();
+        }catch (IOException e){
+            Panic.panic(e);
+        }
+    }
+
+    /**
+     * 关闭并删除段文件
+     */
+    void delete(){
+        close();
+        if (!file.delete()){
+            Panic.panic(Error.FileCannotRWException);
+        }
+    }
+}
@@ -1,7 +1,6 @@
 package com.tjyy.mydb.backend.dm.logger;
 
 import com.tjyy.mydb.backend.util.Panic;
-import com.tjyy.mydb.backend.util.Parser;
 import com.tjyy.mydb.common.Error;
 
 import java.io.File;
@@ -22,8 +21,33 @@ public interface Logger {
     /**
      * 向日志中添加记录
      * @param data
+     * @return 该条日志的位置(LSN)
      */
-    void log(byte[] data);
+    long log(byte[] data);
+
+    /**
+     * 日志的末尾位置，即下一条日志将被写入的位置
+     * @return
+     */
+    long end();
+
+    /**
+     * 记录最近一次检查点日志的位置，并写入日志文件头
+     * @param lsn
+     */
+    void setCheckpoint(long lsn);
+
+    /**
+     * 最近一次检查点日志的位置，没有检查点时返回 0
+     * @return
+     */
+    long getCheckpoint();
+
+    /**
+     * 删除完全位于 lsn 之前、恢复时不再需要的日志段
+     * @param lsn
+     */
+    void purge(long lsn);
 
 
     /**
@@ -41,12 +65,28 @@ public interface Logger {
     byte[] next();
 
 
+    /**
+     * 创建一个从 lsn 处开始、以大块预读顺序扫描日志的读取器，用于恢复
+     * lsn 为 0 时从第一个保留的日志开始读取
+     * @param lsn
+     * @return
+     */
+    LogReader reader(long lsn);
+
+
     /**
      *  将指针重置为Log开始的位置
      */
     void rewind();
 
 
+    /**
+     * 将指针移动到 lsn 处，之后的 next() 从该条日志开始读取
+     * @param lsn
+     */
+    void seek(long lsn);
+
+
     /**
      *  关闭Log文件
      */
@@ -59,6 +99,16 @@ public interface Logger {
      * @return
      */
     public static Logger create(String path){
+        return create(path, LoggerImpl.DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * 根据路径创建Logger类，日志段写满 segmentSize 字节后滚动到新段
+     * @param path
+     * @param segmentSize
+     * @return
+     */
+    public static Logger create(String path, int segmentSize){
         File file = new File(path + LOG_SUFFIX);
         try {
             if(!file.createNewFile()){
@@ -81,7 +131,8 @@ public interface Logger {
             Panic.panic(e);
         }
 
-        ByteBuffer buf = ByteBuffer.wrap(Parser.int2Byte(0));
+        // 控制文件: [Magic] [Version] [Checkpoint]
+        ByteBuffer buf = ByteBuffer.wrap(LoggerImpl.control(0));
         try {
             channel.position(0);
             channel.write(buf);
@@ -90,7 +141,9 @@ public interface Logger {
             Panic.panic(e);
         }
 
-        return new LoggerImpl(randomAccessFile, channel, 0);
+        LoggerImpl logger = new LoggerImpl(path, randomAccessFile, channel, segmentSize);
+        logger.initSegments();
+        return logger;
     }
 
 
@@ -98,6 +151,13 @@ public interface Logger {
      * 根据路径读取Logger类
      */
     public static Logger open(String path){
+        return open(path, LoggerImpl.DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * 根据路径读取Logger类，之后的日志段写满 segmentSize 字节后滚动
+     */
+    public static Logger open(String path, int segmentSize){
         File file = new File(path + LOG_SUFFIX);
         if (!file.exists()){
             Panic.panic(Error.FileNotExistsException);
@@ -115,7 +175,7 @@ public interface Logger {
             Panic.panic(e);
         }
 
-        LoggerImpl logger = new LoggerImpl(randomAccessFile, channel);
+        LoggerImpl logger = new LoggerImpl(path, randomAccessFile, channel, segmentSize);
         logger.init();
         return logger;
     }
@@ -1,16 +1,21 @@
 package com.tjyy.mydb.backend.dm.logger;
 
-import com.google.common.primitives.Bytes;
 import com.tjyy.mydb.backend.util.Panic;
 import com.tjyy.mydb.backend.util.Parser;
 import com.tjyy.mydb.common.Error;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
-import java.nio.channels.Channel;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -18,34 +23,91 @@ import java.util.concurrent.locks.ReentrantLock;
  * @author: Tjyy
  * @date: 2024-02-28 22:24
  * @description: logger-impl
+ * 日志由一个控制文件和若干个日志段组成：
+ * 控制文件 <path>.log: [Magic] [Version] [Checkpoint]，Magic 4字节，Version 4字节，
+ * Checkpoint 8字节，最近一次检查点日志的位置，0 表示没有检查点
+ * 版本 1 的控制文件只有 [Checkpoint]，打开时原地升级为当前版本；
+ * 早期单文件格式的日志([XChecksum] [Log1] ... [LogN]，没有日志段)不做转换，打开时抛出 UnsupportedLogFileException，
+ * 该格式对应的 DB 文件也是旧的页面布局，同样无法打开。两者可以按长度区分：版本 1 的控制文件恰好 8 字节，
+ * 单文件日志只有 4 字节的文件头，或者至少还有一条 8 字节以上的日志。
+ * 日志段 <path>.log.<seq>: 每段有自己的版本、文件头和总校验和(见 LogSegment)，段写满 segmentSize 后滚动到新段
+ * 新日志总是以当前版本(CRC32)写入，最后一段是旧版本时，打开后滚动到一个新段
+ * 日志的位置(LSN)是全局的，跨段单调递增；检查点之后，完全位于 RedoLSN 之前的旧段被删除。
+ * 打开日志时只检查最后一个段的 bad tail，启动时间只取决于日志尾部而不是全部历史。
+ *
+ * 组提交：并发的 log() 调用在锁内分配位置并把日志追加到待写批次中，
+ * 第一个发现没有写盘在进行的线程成为 leader，在锁外把整批日志连同新的总校验和一次写入并只 fsync 一次，
+ * 其余线程等待，直到自己的日志被某一批持久化后被唤醒返回。
+ * 滚动到新段之前，旧段中已分配位置的日志先全部持久化，新段的文件头不会先于旧段的日志落盘，
+ * 因此只有最后一个段可能有不完整的尾部。
  */
 public class LoggerImpl implements Logger{
-    // Log基本格式如下
-    private static final int SEED = 13331;
-    private static final int OF_SIZE = 0;
-    private static final int OF_CHECKSUM = OF_SIZE + 4;
-    private static final int OF_DATA = OF_CHECKSUM + 4;
+    // 控制文件格式
+    static final int CONTROL_MAGIC = 0x4D594C43;  // "MYLC"
+    static final int CONTROL_VERSION_1 = 1;
+    static final int CONTROL_VERSION_2 = 2;
+    private static final int OF_CONTROL_MAGIC = 0;
+    private static final int OF_CONTROL_VERSION = OF_CONTROL_MAGIC + 4;
+    private static final int OF_CHECKPOINT = OF_CONTROL_VERSION + 4;
+    static final int CONTROL_SIZE = OF_CHECKPOINT + 8;
+    private static final int V1_CONTROL_SIZE = 8;
+
+    public static final int DEFAULT_SEGMENT_SIZE = 16 << 20;  // 默认日志段大小，16MB
 
     // Log文件用到的变量如下
-    private RandomAccessFile randomAccessFile;
+    private String path;
+    private RandomAccessFile randomAccessFile;  // 控制文件
     private FileChannel channel;
+    private int segmentSize;
     private Lock lock;
+    private Condition flushed;  // 有一批日志持久化完成
 
+    private List<LogSegment> segments;  // 按起始位置排列，最后一个段是正在写入的段
     private long position;  // 当前日志指针的位置
-    private long fileSize;  // 以及初始化时的记录
-    private int xCheckSum;
+    private LogReader cursor;  // next() 使用的读取器，日志或指针变化后失效，为 null 时从 position 处重新创建
+    private volatile long checkpoint;  // 最近一次检查点日志的位置
 
-    public LoggerImpl(RandomAccessFile randomAccessFile, FileChannel channel) {
-        this.randomAccessFile = randomAccessFile;
-        this.channel = channel;
-        lock = new ReentrantLock();
+    // 组提交用到的变量如下，均由 lock 保护
+    private List<PendingLog> pending;  // 已分配位置、等待写盘的日志
+    private long writeEnd;  // 已分配位置的日志末尾
+    private long durableEnd;  // 已持久化的日志末尾
+    private boolean flushing;  // 是否有 leader 正在写盘
+
+    /**
+     * 一条等待写盘的日志
+     */
+    private static class PendingLog {
+        LogSegment segment;
+        long lsn;
+        byte[] log;
+
+        PendingLog(LogSegment segment, long lsn, byte[] log) {
+            this.segment = segment;
+            this.lsn = lsn;
+            this.log = log;
+        }
     }
 
-    public LoggerImpl(RandomAccessFile randomAccessFile, FileChannel channel, int xCheckSum) {
+    public LoggerImpl(String path, RandomAccessFile randomAccessFile, FileChannel channel, int segmentSize) {
+        this.path = path;
         this.randomAccessFile = randomAccessFile;
         this.channel = channel;
-        this.xCheckSum = xCheckSum;
+        this.segmentSize = segmentSize;
         lock = new ReentrantLock();
+        flushed = lock.newCondition();
+        segments = new ArrayList<>();
+        pending = new ArrayList<>();
+    }
+
+    /**
+     * 新建日志时创建第一个日志段
+     */
+    void initSegments(){
+        LogSegment segment = LogSegment.create(path, 1, 0);
+        segments.add(segment);
+        writeEnd = segment.first();
+        durableEnd = writeEnd;
+        rewind();
     }
 
     /**
@@ -59,114 +121,322 @@ public class LoggerImpl implements Logger{
             Panic.panic(Error.BadLogFileException);
         }
 
-        if(size < 4){
-            Panic.panic(Error.BadLogFileException);
+        ByteBuffer buf = ByteBuffer.allocate(CONTROL_SIZE);
+        try {
+            channel.read(buf, 0);
+        }catch (IOException e){
+            Panic.panic(e);
+        }
+        if (size == V1_CONTROL_SIZE){
+            // 版本 1 的控制文件，升级后继续打开
+            this.checkpoint = buf.getLong(0);
+            upgradeControl();
+        }else{
+            if (size < CONTROL_SIZE || buf.getInt(OF_CONTROL_MAGIC) != CONTROL_MAGIC){
+                Panic.panic(Error.UnsupportedLogFileException);
+            }
+            if (buf.getInt(OF_CONTROL_VERSION) != CONTROL_VERSION_2){
+                Panic.panic(Error.UnsupportedLogFileException);
+            }
+            this.checkpoint = buf.getLong(OF_CHECKPOINT);
+        }
+
+        openSegments();
+        checkAndRemoveTail();
+        if (current().version != LogSegment.CURRENT_VERSION){
+            // 旧版本的段不再追加，之后的日志写入新版本的段
+            rollSegment();
+            durableEnd = writeEnd;
         }
+    }
 
-        ByteBuffer buf = ByteBuffer.allocate(4);
+    /**
+     * 当前版本的控制文件内容
+     * @param checkpoint
+     * @return
+     */
+    static byte[] control(long checkpoint){
+        ByteBuffer buf = ByteBuffer.allocate(CONTROL_SIZE);
+        buf.putInt(OF_CONTROL_MAGIC, CONTROL_MAGIC);
+        buf.putInt(OF_CONTROL_VERSION, CONTROL_VERSION_2);
+        buf.putLong(OF_CHECKPOINT, checkpoint);
+        return buf.array();
+    }
+
+    /**
+     * 将版本 1 的控制文件改写为当前版本，新内容比旧文件长，写入途中宕机留下的文件长度既不是 8 也没有完整的文件头，
+     * 因此先写到临时文件再原子替换
+     */
+    private void upgradeControl(){
+        File file = new File(path + LOG_SUFFIX);
+        File tmp = new File(path + LOG_SUFFIX + ".tmp");
+        try (RandomAccessFile upgraded = new RandomAccessFile(tmp, "rw")){
+            upgraded.setLength(0);
+            upgraded.write(control(checkpoint));
+            upgraded.getFD().sync();
+        }catch (IOException e){
+            Panic.panic(e);
+        }
         try {
-            channel.position(0);
-            channel.read(buf);
+            channel.close();
+            randomAccessFile.close();
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            randomAccessFile = new RandomAccessFile(file, "rw");
+            channel = randomAccessFile.getChannel();
         }catch (IOException e){
             Panic.panic(e);
         }
+    }
 
-        int xCheckSum = Parser.parseInt(buf.array());
-        this.fileSize = size;
-        this.xCheckSum = xCheckSum;
+    /**
+     * 按序号打开所有日志段，只读取文件头
+     * 创建新段时宕机可能留下文件头不完整的最后一段，直接删除
+     */
+    private void openSegments(){
+        File file = new File(path + LOG_SUFFIX).getAbsoluteFile();
+        String prefix = file.getName() + ".";
+        File[] files = file.getParentFile().listFiles((dir, name) -> name.startsWith(prefix)
+                && name.length() > prefix.length() && name.substring(prefix.length()).chars().allMatch(Character::isDigit));
+        if (files == null || files.length == 0){
+            Panic.panic(Error.BadLogFileException);
+        }
 
-        checkAndRemoveTail();
+        Arrays.sort(files, (a, b) -> Long.compare(seqOf(a, prefix), seqOf(b, prefix)));
+        for (int i = 0; i < files.length; i++) {
+            LogSegment segment = LogSegment.open(files[i], seqOf(files[i], prefix));
+            if (segment == null){
+                if (i != files.length - 1 || i == 0){
+                    Panic.panic(Error.BadLogFileException);
+                }
+                if (!files[i].delete()){
+                    Panic.panic(Error.FileCannotRWException);
+                }
+                continue;
+            }
+            segments.add(segment);
+        }
     }
 
+    private static long seqOf(File file, String prefix){
+        return Long.parseLong(file.getName().substring(prefix.length()));
+    }
 
     /**
-     * 检查并移除上一次宕机导致的bad tail
+     * 检查并移除上一次宕机导致的bad tail，只需要检查最后一个段
+     * 段的文件头和日志在同一次 fsync 中持久化，宕机时文件头可能比日志新或旧，
+     * 每条日志有自己的校验和，日志截断在最后一条校验通过的日志之后，文件头的总校验和按保留的日志重新计算
      */
     private void checkAndRemoveTail(){
-        rewind();
+        LogSegment segment = current();
+        LogReader reader = new LogReader(Collections.singletonList(segment), segment.first(), LogReader.READ_AHEAD);
 
         int xCheck = 0;
         while (true){
-            // 累计相加各个Log的累计和,对所有日志求出校验和，求和就能得到日志文件的校验和了。
-            byte[] log = internNext();
+            // 累计相加各个Log的累计和,对所有日志求出校验和，求和就能得到日志段的校验和了。
+            ByteBuffer log = reader.nextLog();
             if (log == null)
                 break;
-            xCheck = calChecksum(xCheck, log);
-        }
-        if (xCheck != xCheckSum){
-            Panic.panic(Error.BadLogFileException);
-        }
-
-        try {
-            truncate(position);
-        }catch (Exception e){
-            Panic.panic(e);
+            xCheck = segment.fold(xCheck, log);
         }
+        long validEnd = reader.position();
 
-        try {
-            randomAccessFile.seek(position);
-        }catch (IOException e){
-            Panic.panic(e);
+        if (validEnd - segment.start != segment.size() || xCheck != segment.checkSum){
+            segment.truncate(validEnd - segment.start);
+            segment.writeCheckSum(xCheck);
+            segment.force();
         }
+        segment.checkSum = xCheck;
+        writeEnd = validEnd;
+        durableEnd = validEnd;
         rewind();
     }
 
     /**
-     * 单条日志的校验和，其实就是通过一个指定的种子实现的
-     * @param xCheck
-     * @param log
+     * 当前正在写入的日志段
      * @return
      */
-    private int calChecksum(int xCheck, byte[] log){
-        for (byte b :log){
-            xCheck = xCheck * SEED + b;
-        }
-        return xCheck;
+    private LogSegment current(){
+        return segments.get(segments.size() - 1);
+    }
+
+    /**
+     * 在当前日志末尾开始一个新段，需持有 lock 或在初始化时调用
+     * @return
+     */
+    private LogSegment rollSegment(){
+        LogSegment segment = LogSegment.create(path, current().seq + 1, writeEnd);
+        segments.add(segment);
+        writeEnd = segment.first();
+        cursor = null;
+        return segment;
     }
 
     /**
      * 向日志中添加操作数据 data
-     * 向日志文件写入日志时，也是首先将数据包裹成日志格式，
-     * 写入文件后，再更新文件的校验和，更新校验和时，会刷新缓冲区，保证内容写入磁盘。
+     * 向日志文件写入日志时，也是首先将数据包裹成日志格式，加入待写批次，
+     * 由 leader 将整批日志和总校验和写入文件并刷盘，返回时该条日志已经持久化。
+     * 当前段放不下这条日志时滚动到新段，日志不会跨段存放。
      * @param data
+     * @return 该条日志的位置(LSN)
      */
     @Override
-    public void log(byte[] data) {
-        byte[] log = wrapLog(data);
-        ByteBuffer buf = ByteBuffer.wrap(log);
+    public long log(byte[] data) {
+        byte[] log = LogSegment.wrap(data);
         lock.lock();
-
         try {
-            channel.position(channel.size());
-            channel.write(buf);
-        }catch (IOException e){
-            Panic.panic(e);
+            LogSegment segment = current();
+            while (writeEnd - segment.start + log.length > segmentSize && writeEnd > segment.first()){
+                if (durableEnd < writeEnd){
+                    // 旧段的日志全部持久化后再创建新段，等待期间其他线程可能已经滚动，重新检查
+                    flushTo(writeEnd);
+                    segment = current();
+                    continue;
+                }
+                segment = rollSegment();
+            }
+
+            long lsn = writeEnd;
+            long end = lsn + log.length;
+            writeEnd = end;
+            pending.add(new PendingLog(segment, lsn, log));
+            cursor = null;
+            segment.checkSum = segment.fold(segment.checkSum, log);
+
+            flushTo(end);
+            return lsn;
         }finally {
             lock.unlock();
         }
-        updateXChecksum(log);
     }
 
-    private byte[] wrapLog(byte[] data){
-        byte[] checkSum = Parser.int2Byte(calChecksum(0, data));
-        byte[] size = Parser.int2Byte(data.length);
-        return Bytes.concat(size, checkSum, data);
+    /**
+     * 等待 end 之前的日志全部持久化，需持有 lock，等待期间会释放 lock
+     * 没有写盘在进行时成为 leader，带走当前批次写盘，写盘期间新到的日志进入下一批
+     * @param end
+     */
+    private void flushTo(long end){
+        while (durableEnd < end){
+            if (flushing){
+                flushed.awaitUninterruptibly();
+                continue;
+            }
+            flushing = true;
+            List<PendingLog> batch = pending;
+            pending = new ArrayList<>();
+            long batchEnd = writeEnd;
+            int[] checkSums = snapshotCheckSums(batch);
+            lock.unlock();
+            try {
+                writeBatch(batch, checkSums);
+            }finally {
+                lock.lock();
+                flushing = false;
+            }
+            durableEnd = batchEnd;
+            flushed.signalAll();
+        }
+    }
+
+    /**
+     * 记录批次中每个段当前的总校验和，需持有 lock
+     * @param batch
+     * @return 与 batch 一一对应，段的最后一条日志处为该段的总校验和
+     */
+    private int[] snapshotCheckSums(List<PendingLog> batch){
+        int[] checkSums = new int[batch.size()];
+        for (int i = 0; i < batch.size(); i++) {
+            checkSums[i] = batch.get(i).segment.checkSum;
+        }
+        return checkSums;
     }
 
-    private void updateXChecksum(byte[] log){
-        this.xCheckSum = calChecksum(this.xCheckSum, log);
+    /**
+     * 将一批日志按段顺序写入，更新各段文件头中的总校验和，每个段只刷盘一次
+     * 滚动前旧段的日志已全部持久化，批次只落在一个段中
+     * @param batch
+     * @param checkSums
+     */
+    private void writeBatch(List<PendingLog> batch, int[] checkSums){
+        int from = 0;
+        while (from < batch.size()){
+            LogSegment segment = batch.get(from).segment;
+            int to = from;
+            int length = 0;
+            while (to < batch.size() && batch.get(to).segment == segment){
+                length += batch.get(to).log.length;
+                to++;
+            }
+
+            ByteBuffer buf = ByteBuffer.allocate(length);
+            for (int i = from; i < to; i++) {
+                buf.put(batch.get(i).log);
+            }
+            buf.flip();
+            segment.write(buf, batch.get(from).lsn - segment.start);
+            segment.writeCheckSum(checkSums[to - 1]);
+            segment.force();
+            from = to;
+        }
+    }
+
+    /**
+     * 日志的末尾位置，即下一条日志将被写入的位置
+     * @return
+     */
+    @Override
+    public long end() {
+        lock.lock();
+        try {
+            return writeEnd;
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 记录最近一次检查点日志的位置，并写入控制文件
+     * @param lsn
+     */
+    @Override
+    public void setCheckpoint(long lsn) {
         try {
-            channel.position(0);
-            channel.write(ByteBuffer.wrap(Parser.int2Byte(xCheckSum)));
+            channel.write(ByteBuffer.wrap(Parser.long2Byte(lsn)), OF_CHECKPOINT);
             channel.force(false);
         }catch (IOException e){
             Panic.panic(e);
         }
+        this.checkpoint = lsn;
     }
 
+    /**
+     * 最近一次检查点日志的位置，没有检查点时返回 0
+     * @return
+     */
+    @Override
+    public long getCheckpoint() {
+        return checkpoint;
+    }
 
     /**
-     * 在x的位置对文件进行截断
+     * 删除完全位于 lsn 之前的日志段，正在写入的段不会被删除
+     * @param lsn
+     */
+    @Override
+    public void purge(long lsn) {
+        lock.lock();
+        try {
+            while (segments.size() > 1 && segments.get(1).start <= lsn){
+                segments.remove(0).delete();
+                cursor = null;
+            }
+        }finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * 在x的位置对日志进行截断，x 所在段之后的段被删除
      * @param x
      * @throws Exception
      */
@@ -174,7 +444,14 @@ public class LoggerImpl implements Logger{
     public void truncate(long x) throws Exception {
         lock.lock();
         try {
-            channel.truncate(x);
+            while (segments.size() > 1 && current().start >= x){
+                segments.remove(segments.size() - 1).delete();
+            }
+            LogSegment segment = current();
+            segment.truncate(Math.max(x - segment.start, segment.headerSize()));
+            writeEnd = Math.min(writeEnd, segment.end());
+            durableEnd = Math.min(durableEnd, writeEnd);
+            cursor = null;
         }finally {
             lock.unlock();
         }
@@ -184,69 +461,71 @@ public class LoggerImpl implements Logger{
 
     /**
      * 不断地从文件中读取下一条日志，并将其中的 Data 解析出来并返回。
+     * 读完一个段后继续读取下一个段
      * @return
      */
     @Override
     public byte[] next() {
         lock.lock();
         try {
-            byte[] log = internNext();
-            if (log == null)
+            if (cursor == null){
+                cursor = new LogReader(new ArrayList<>(segments), position, LogReader.READ_AHEAD);
+            }
+            ByteBuffer data = cursor.next();
+            position = cursor.position();
+            if (data == null){
                 return null;
-            return Arrays.copyOfRange(log, OF_DATA, log.length);
+            }
+            byte[] raw = new byte[data.remaining()];
+            data.get(raw);
+            return raw;
         }finally {
             lock.unlock();
         }
     }
 
-    private byte[] internNext(){
-        if (position + OF_DATA >= fileSize){
-            return null;
-        }
-
-        // 首先读取Log的长度
-        ByteBuffer buf = ByteBuffer.allocate(4);
+    /**
+     * 创建一个从 lsn 处开始顺序读取的读取器，lsn 早于第一个保留的段时从第一个段开始
+     * @param lsn
+     * @return
+     */
+    @Override
+    public LogReader reader(long lsn) {
+        lock.lock();
         try {
-            channel.position(position);
-            channel.read(buf);
-        }catch (IOException e){
-            Panic.panic(e);
-        }
-        int size = Parser.parseInt(buf.array());
-
-        // 超出长度证明当前Log不是完整的
-        if(position + size + OF_DATA > fileSize){
-            return null;
+            return new LogReader(new ArrayList<>(segments), lsn, LogReader.READ_AHEAD);
+        }finally {
+            lock.unlock();
         }
+    }
 
-        // 读取checksum+data
-        buf = ByteBuffer.allocate(OF_DATA + size);
+    /**
+     * 将指针重置为Log开始的位置，即第一个保留的日志段的第一条日志
+     */
+    @Override
+    public void rewind() {
+        lock.lock();
         try {
-            channel.position(position);
-            channel.read(buf);
-        }catch (IOException e){
-            Panic.panic(e);
-        }
-        byte[] log = buf.array();
-
-        // 校验 checksum
-        int checkSum1 = calChecksum(0, Arrays.copyOfRange(log, OF_DATA, log.length));
-        int checkSum2 = Parser.parseInt(Arrays.copyOfRange(log, OF_CHECKSUM, OF_DATA));
-        if (checkSum1 != checkSum2){
-            return null;
+            position = segments.get(0).first();
+            cursor = null;
+        }finally {
+            lock.unlock();
         }
-
-        position += log.length;
-        return log;
     }
 
-
     /**
-     * 将指针重置为Log开始的位置
+     * 将指针移动到 lsn 处，之后的 next() 从该条日志开始读取
+     * @param lsn
      */
     @Override
-    public void rewind() {
-        position = 4;
+    public void seek(long lsn) {
+        lock.lock();
+        try {
+            position = lsn;
+            cursor = null;
+        }finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -254,11 +533,17 @@ public class LoggerImpl implements Logger{
      */
     @Override
     public void close() {
+        lock.lock();
         try {
+            for (LogSegment segment : segments) {
+                segment.close();
+            }
             channel.close();
             randomAccessFile.close();
         } catch(IOException e) {
             Panic.panic(e);
+        }finally {
+            lock.unlock();
         }
     }
 }
@@ -0,0 +1,63 @@
+package com.tjyy.mydb.backend.dm.page;
+
+import com.tjyy.mydb.backend.dm.pageCache.PageCache;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * @author: Tjyy
+ * @date: 2024-03-09 11:05
+ * @description: 数据保存在 ByteBuffer 中的页面，例如文件映射的一段，不复制数据
+ */
+public class BufferPageImpl implements Page {
+    private int pageNumber;  // 页号 从1开始增长
+    private ByteBuffer buffer;  // 数据，容量为 PAGE_SIZE
+    private volatile boolean dirty;  // 脏页判断
+    private Lock lock;  // 页面锁
+    private PageCache pageCache; // 页面缓存
+
+    public BufferPageImpl(int pageNumber, ByteBuffer buffer, PageCache pageCache) {
+        this.pageNumber = pageNumber;
+        this.buffer = buffer;
+        this.pageCache = pageCache;
+        lock = new ReentrantLock();
+        dirty = false;
+    }
+
+    @Override
+    public void lock() {
+        lock.lock();
+    }
+
+    @Override
+    public void unlock() {
+        lock.unlock();
+    }
+
+    @Override
+    public void release() {
+        pageCache.release(this);
+    }
+
+    @Override
+    public void setDirty(boolean dirty) {
+        this.dirty = dirty;
+    }
+
+    @Override
+    public boolean isDirty() {
+        return dirty;
+    }
+
+    @Override
+    public int getPageNumber() {
+        return pageNumber;
+    }
+
+    @Override
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+}
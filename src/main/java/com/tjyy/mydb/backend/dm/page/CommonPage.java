@@ -1,20 +1,30 @@
 package com.tjyy.mydb.backend.dm.page;
+import com.tjyy.mydb.backend.dm.dataitem.DataItem;
 import com.tjyy.mydb.backend.dm.pageCache.PageCache;
+import com.tjyy.mydb.backend.util.BufferUtil;
 import com.tjyy.mydb.backend.util.Parser;
 
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.util.function.IntPredicate;
 
 /**
  * @author: Tjyy
  * @date: 2024-02-28 09:19
- * @description: 普通页结构
- *  [FreeSpaceOffset] [Data]
- *  FreeSpaceOffset: 2字节 空闲位置开始偏移
+ * @description: 普通页结构(分槽页)
+ *  [FreeSpaceOffset] [SlotCount] [Data] ... [Free] ... [SlotN-1] ... [Slot1] [Slot0]
+ *  FreeSpaceOffset: 2字节 空闲位置开始偏移，数据从页首向后增长
+ *  SlotCount: 2字节 槽目录中的槽数
+ *  Slot: 2字节 记录在页内的偏移，0 表示空闲槽，槽目录从页尾向前增长
+ * 记录通过槽号定位，uid 中保存的是槽号而不是偏移，整理页面时记录在页内移动，uid 保持不变。
+ * 被删除的记录和改变长度后留下的空隙在整理时回收，整理只移动数据，不改变任何有效记录的槽号。
  */
 public class CommonPage {
     private static final short OFFSET_FREE = 0;
-    private static final short OFFSET_DATA = 2;
-    public static final int MAX_PAGE_DATA_SIZE = PageCache.PAGE_SIZE - OFFSET_DATA;
+    private static final short OFFSET_SLOTS = 2;
+    private static final short OFFSET_DATA = 4;
+    public static final int SLOT_SIZE = 2;
+    // 一页中只放一条记录时记录的最大长度
+    public static final int MAX_PAGE_DATA_SIZE = PageCache.PAGE_SIZE - OFFSET_DATA - SLOT_SIZE;
 
     /**
      * 初始化普通页并返回数据
@@ -26,12 +36,22 @@ public class CommonPage {
         return data;
     }
 
+    /**
+     * 空普通页的页头，只覆盖页头即可把任意页面变为空页面，用于回收溢出页
+     * @return
+     */
+    public static byte[] emptyPageImage(){
+        byte[] image = new byte[OFFSET_DATA];
+        setOffset(image, OFFSET_DATA);
+        return image;
+    }
+
     /**
      * 为页面设置偏移量
      * @param page
      */
     public static void setOffset(Page page, short offset){
-        setOffset(page.getData(), offset);
+        page.getBuffer().putShort(OFFSET_FREE, offset);
     }
 
     /**
@@ -40,7 +60,7 @@ public class CommonPage {
      * @param offset
      */
     private static void setOffset(byte[] data, short offset){
-        System.arraycopy(Parser.short2Byte(offset), 0, data, OFFSET_FREE, OFFSET_DATA);
+        System.arraycopy(Parser.short2Byte(offset), 0, data, OFFSET_FREE, 2);
     }
 
 
@@ -50,52 +70,311 @@ public class CommonPage {
      * @return
      */
     public static short getOffset(Page page){
-        return getOffset(page.getData());
+        return getOffset(page.getBuffer());
     }
 
-    private static short getOffset(byte[] data){
-        return Parser.parseShort(Arrays.copyOfRange(data, OFFSET_FREE, OFFSET_DATA));
+    /**
+     * 获得页面数据的偏移量，用于不经过缓冲池直接构造的页面
+     * @param data
+     * @return
+     */
+    public static short getOffset(ByteBuffer data){
+        return data.getShort(OFFSET_FREE);
     }
 
+    /**
+     * 为页面数据设置偏移量，用于不经过缓冲池直接构造的页面
+     * @param data
+     * @param offset
+     */
+    public static void setOffset(ByteBuffer data, short offset){
+        data.putShort(OFFSET_FREE, offset);
+    }
 
     /**
-     * 向当前页面中插入数据,返回插入位置
+     * 槽目录中的槽数
+     * @param data
+     * @return
+     */
+    public static int getSlotCount(ByteBuffer data){
+        return data.getShort(OFFSET_SLOTS);
+    }
+
+    private static void setSlotCount(ByteBuffer data, int count){
+        data.putShort(OFFSET_SLOTS, (short) count);
+    }
+
+    /**
+     * 第 slot 个槽中记录的偏移
+     * @param data
+     * @param slot
+     * @return 空闲槽或超出槽目录时返回 0
+     */
+    public static short getSlot(ByteBuffer data, int slot){
+        if (slot < 0 || slot >= getSlotCount(data)){
+            return 0;
+        }
+        return data.getShort(slotPosition(slot));
+    }
+
+    /**
+     * 设置第 slot 个槽，超出槽目录时扩展槽目录，新增的中间槽为空闲槽
+     * @param data
+     * @param slot
+     * @param offset
+     */
+    private static void setSlot(ByteBuffer data, int slot, short offset){
+        int count = getSlotCount(data);
+        for (int i = count; i < slot; i++) {
+            data.putShort(slotPosition(i), (short) 0);
+        }
+        data.putShort(slotPosition(slot), offset);
+        if (slot >= count){
+            setSlotCount(data, slot + 1);
+        }
+    }
+
+    private static int slotPosition(int slot){
+        return PageCache.PAGE_SIZE - SLOT_SIZE * (slot + 1);
+    }
+
+    /**
+     * 新插入的记录使用的槽：第一个空闲槽，没有时在槽目录末尾追加
+     * @param data
+     * @return
+     */
+    public static short nextSlot(ByteBuffer data){
+        int count = getSlotCount(data);
+        for (int i = 0; i < count; i++) {
+            if (data.getShort(slotPosition(i)) == 0){
+                return (short) i;
+            }
+        }
+        return (short) count;
+    }
+
+    /**
+     * 数据区与槽目录之间连续的空闲字节数
+     * @param data
+     * @return
+     */
+    private static int contiguousSpace(ByteBuffer data){
+        return PageCache.PAGE_SIZE - SLOT_SIZE * getSlotCount(data) - getOffset(data);
+    }
+
+
+    /**
+     * 向当前页面中插入一条记录，返回记录的槽号
+     * 调用者需保证 getFreeSpace(page) >= data.length
      * @param data
      * @return
      */
     public static short insertData(Page page, byte[] data){
+        ByteBuffer buf = page.getBuffer();
+        short slot = nextSlot(buf);
+        short offset = getOffset(buf);
+        BufferUtil.put(buf, offset, data);
+        setSlot(buf, slot, offset);
+        setOffset(page, (short) (offset + data.length));
+        // 修改完成后再置脏，后台写回线程先清脏标记再写页面，不会漏掉这次修改
         page.setDirty(true);
-        short offset = getOffset(page);
-        System.arraycopy(data, 0 , page.getData(), offset, data.length);
-        setOffset(page.getData(), (short) (offset + data.length));
-        return offset;
+        return slot;
     }
 
     /**
-     * 获取空闲页面大小
+     * 为已写在空闲位置开头、长度为 length 的记录分配槽(槽目录末尾的新槽)并推进空闲位置，用于不经过缓冲池直接构造的页面
+     * @param data
+     * @param length
+     * @return 记录的槽号
+     */
+    public static short appendRecord(ByteBuffer data, int length){
+        short slot = (short) getSlotCount(data);
+        short offset = getOffset(data);
+        setSlot(data, slot, offset);
+        setOffset(data, (short) (offset + length));
+        return slot;
+    }
+
+    /**
+     * 将 data 中 position 到 limit 连续存放的多条记录插入页面，依次使用槽目录末尾的新槽，不改变 data 的 position
+     * 调用者需保证页面放得下这些记录和它们的槽
+     * @param page
+     * @param data
+     * @return 第一条记录的槽号
+     */
+    public static short insertData(Page page, ByteBuffer data){
+        ByteBuffer buf = page.getBuffer();
+        short slot = (short) getSlotCount(buf);
+        putRecords(buf, data.duplicate(), getOffset(buf), slot);
+        page.setDirty(true);
+        return slot;
+    }
+
+    /**
+     * 将连续存放的多条记录写入 offset 处，从 firstSlot 开始依次设置槽
+     * @param buf
+     * @param records
+     * @param offset
+     * @param firstSlot
+     */
+    private static void putRecords(ByteBuffer buf, ByteBuffer records, short offset, int firstSlot){
+        int length = records.remaining();
+        BufferUtil.put(buf, offset, BufferUtil.copyOfRange(records, records.position(), records.limit()));
+        int pos = 0;
+        int slot = firstSlot;
+        while (pos < length){
+            setSlot(buf, slot++, (short) (offset + pos));
+            pos += DataItem.getDataItemLength(buf, offset + pos);
+        }
+        if (getOffset(buf) < offset + length){
+            setOffset(buf, (short) (offset + length));
+        }
+    }
+
+    /**
+     * 获取空闲页面大小：不整理页面时能插入的最长记录，已扣除新记录的槽
      * @param page
      * @return
      */
     public static int getFreeSpace(Page page){
-        return PageCache.PAGE_SIZE - (int)getOffset(page.getData());
+        return getFreeSpace(page.getBuffer());
+    }
+
+    /**
+     * 获取空闲页面大小，用于不经过缓冲池直接构造的页面
+     * @param data
+     * @return
+     */
+    public static int getFreeSpace(ByteBuffer data){
+        return Math.max(0, contiguousSpace(data) - SLOT_SIZE);
+    }
+
+    /**
+     * 整理页面后能插入的最长记录
+     * @param page
+     * @param drop 槽号 -> 该槽的记录是否可以回收
+     * @return
+     */
+    public static int getCompactedFreeSpace(Page page, IntPredicate drop){
+        ByteBuffer buf = page.getBuffer();
+        int count = getSlotCount(buf);
+        int used = 0;
+        int slots = 0;
+        for (int i = 0; i < count; i++) {
+            short offset = buf.getShort(slotPosition(i));
+            if (offset != 0 && !drop.test(i)){
+                used += DataItem.getDataItemLength(buf, offset);
+                slots = i + 1;
+            }
+        }
+        return Math.max(0, PageCache.PAGE_SIZE - OFFSET_DATA - used - SLOT_SIZE * (slots + 1));
+    }
+
+    /**
+     * 生成整理后的页面内容：保留的记录按槽号顺序紧密排列，回收记录的槽置为空闲，末尾的空闲槽从槽目录中去掉
+     * 页面本身不变，调用者记录日志后用 writeImage 写入
+     * @param page
+     * @param drop 槽号 -> 该槽的记录是否可以回收
+     * @return 页面没有可回收的空间时返回 null
+     */
+    public static byte[] compactImage(Page page, IntPredicate drop){
+        return compactImage(page, drop, -1);
+    }
+
+    /**
+     * 生成整理后的页面内容，第 last 个槽的记录排在最后，之后可以原地向后扩展
+     * @param page
+     * @param drop 槽号 -> 该槽的记录是否可以回收
+     * @param last 排在最后的槽号，-1 表示按槽号顺序排列
+     * @return 整理后页面不变时返回 null
+     */
+    public static byte[] compactImage(Page page, IntPredicate drop, int last){
+        ByteBuffer buf = page.getBuffer();
+        ByteBuffer image = ByteBuffer.wrap(initCommonPage());
+        int count = getSlotCount(buf);
+        short free = OFFSET_DATA;
+        boolean moved = false;
+        for (int i = 0; i <= count; i++) {
+            int slot = i < count ? i : last;
+            if (slot < 0 || slot >= count || (i < count && slot == last)){
+                continue;
+            }
+            short offset = buf.getShort(slotPosition(slot));
+            if (offset == 0 || drop.test(slot)){
+                continue;
+            }
+            int length = DataItem.getDataItemLength(buf, offset);
+            BufferUtil.put(image, free, BufferUtil.copyOfRange(buf, offset, offset + length));
+            setSlot(image, slot, free);
+            moved |= offset != free;
+            free += length;
+        }
+        setOffset(image, free);
+        if (!moved && free == getOffset(buf) && getSlotCount(image) == count){
+            return null;
+        }
+        return image.array();
+    }
+
+    /**
+     * 用整页内容覆盖页面
+     * @param page
+     * @param image
+     */
+    public static void writeImage(Page page, byte[] image){
+        BufferUtil.put(page.getBuffer(), 0, image);
+        page.setDirty(true);
+    }
+
+    /**
+     * 用长度不同的新记录替换第 slot 个槽的记录：不比原记录长、或原记录紧挨着空闲位置且空闲空间足够时原地写入，
+     * 否则写到空闲位置的开头
+     * @param page
+     * @param slot
+     * @param data
+     * @return 新记录的偏移，连续的空闲空间不够时返回 -1，页面不变
+     */
+    public static short placeRecord(Page page, int slot, byte[] data){
+        ByteBuffer buf = page.getBuffer();
+        short offset = getSlot(buf, slot);
+        if (offset != 0){
+            int length = DataItem.getDataItemLength(buf, offset);
+            if (data.length <= length
+                    || (offset + length == getOffset(buf) && contiguousSpace(buf) >= data.length - length)){
+                return offset;
+            }
+        }
+        int needed = data.length + (slot >= getSlotCount(buf) ? SLOT_SIZE * (slot + 1 - getSlotCount(buf)) : 0);
+        if (contiguousSpace(buf) < needed){
+            return -1;
+        }
+        return getOffset(buf);
+    }
+
+    /**
+     * 将记录写入 offset 处并让第 slot 个槽指向它，offset 由 placeRecord 得到
+     * @param page
+     * @param slot
+     * @param data
+     * @param offset
+     */
+    public static void putRecord(Page page, int slot, byte[] data, short offset){
+        putRecords(page.getBuffer(), ByteBuffer.wrap(data), offset, slot);
+        page.setDirty(true);
     }
 
     /**
      * 在数据库崩溃后重新打开时，恢复例程
-     * 向当前页面中 offset 插入数据,返回插入位置
+     * 向当前页面中 offset 处写入从 firstSlot 开始的连续多条记录, 并设置它们的槽
      * @param page
      * @param data
      * @param offset
+     * @param firstSlot
      * @return
      */
-    public static short recoverInsert(Page page, byte[] data, short offset){
+    public static short recoverInsert(Page page, byte[] data, short offset, short firstSlot){
+        putRecords(page.getBuffer(), ByteBuffer.wrap(data), offset, firstSlot);
         page.setDirty(true);
-        System.arraycopy(data, 0, page.getData(), offset, data.length);
-
-        short originOffset = getOffset(page.getData());
-        if(originOffset < offset + data.length){
-            setOffset(page.getData(), (short) (offset + data.length));
-        }
         return offset;
     }
 
@@ -108,8 +387,8 @@ public class CommonPage {
      * @return
      */
     public static short recoverUpdate(Page page, byte[] data, short offset){
+        BufferUtil.put(page.getBuffer(), offset, data);
         page.setDirty(true);
-        System.arraycopy(data, 0, page.getData(), offset, data.length);
         return offset;
     }
 
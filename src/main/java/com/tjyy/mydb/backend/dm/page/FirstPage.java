@@ -1,8 +1,10 @@
 package com.tjyy.mydb.backend.dm.page;
 
 import com.tjyy.mydb.backend.dm.pageCache.PageCache;
+import com.tjyy.mydb.backend.util.BufferUtil;
 import com.tjyy.mydb.backend.util.RandomUtil;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 /**
@@ -11,8 +13,16 @@ import java.util.Arrays;
  * @description: first-page valid check,特殊管理，用于判断上一次数据库是否正常关闭
  * db启动时给100~107字节处填入一个随机字节，db关闭时将其拷贝到108~115字节
  * 用于判断上一次数据库是否正常关闭
+ * 0~3 字节是 Magic，4~7 字节是普通页的布局版本，创建时写入。早期的 DB 文件这里全为 0，
+ * 普通页按偏移存放记录、uid 中保存的是偏移，与槽目录布局不兼容，打开时抛出 UnsupportedPageLayoutException
  */
 public class FirstPage {
+    private static final int OF_MAGIC = 0;
+    private static final int OF_LAYOUT = OF_MAGIC + 4;
+    private static final int MAGIC = 0x4D594442;  // "MYDB"
+    // 普通页的布局版本：1 为槽目录布局(见 CommonPage)
+    public static final int LAYOUT_SLOTTED = 1;
+
     private static final int startOffset = 100;
     private static final int validLength = 8;
 
@@ -22,26 +32,39 @@ public class FirstPage {
      */
     public static byte[] initFirstPage(){
         byte[] data = new byte[PageCache.PAGE_SIZE];
-        setInitString(data);
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        buf.putInt(OF_MAGIC, MAGIC);
+        buf.putInt(OF_LAYOUT, LAYOUT_SLOTTED);
+        setInitString(buf);
         return data;
     }
 
+    /**
+     * 第一页记录的页面布局是否为当前的槽目录布局
+     * @param page
+     * @return
+     */
+    public static boolean checkLayout(Page page){
+        ByteBuffer data = page.getBuffer();
+        return data.getInt(OF_MAGIC) == MAGIC && data.getInt(OF_LAYOUT) == LAYOUT_SLOTTED;
+    }
+
     /**
      * 为已有第一页设置验证字符
      * @param page
      */
     public static void setInitString(Page page){
+        setInitString(page.getBuffer());
         page.setDirty(true);
-        setInitString(page.getData());
     }
 
     /**
      * 为第一页添加验证字符
      * @param data
      */
-    private static void setInitString(byte[] data){
+    private static void setInitString(ByteBuffer data){
         byte[] validString = RandomUtil.randomBytes(validLength);
-        System.arraycopy(validString, 0, data, startOffset, validLength);
+        BufferUtil.put(data, startOffset, validString);
     }
 
 
@@ -50,8 +73,8 @@ public class FirstPage {
      * 为已有第一页设置终止字符
      */
     public static void setCloseString(Page page){
+        setCloseString(page.getBuffer());
         page.setDirty(true);
-        setCloseString(page.getData());
     }
 
 
@@ -60,13 +83,26 @@ public class FirstPage {
      * 为第一页添加终止字符
      * @param data
      */
-    private static void setCloseString(byte[] data){
-        System.arraycopy(data, startOffset, data, startOffset + validLength, validLength);
+    public static void setCloseString(ByteBuffer data){
+        BufferUtil.move(data, startOffset, startOffset + validLength, validLength);
     }
 
 
+    /**
+     * 读取第一页的验证字符，每次打开数据库时都不相同
+     * @param page
+     * @return
+     */
+    public static byte[] getValidString(Page page){
+        return getValidString(page.getBuffer());
+    }
+
+    public static byte[] getValidString(ByteBuffer data){
+        return BufferUtil.copyOfRange(data, startOffset, startOffset + validLength);
+    }
+
     public static boolean checkFirstPage(Page page){
-        return checkValidString(page.getData());
+        return checkValidString(page.getBuffer());
     }
 
 
@@ -74,8 +110,8 @@ public class FirstPage {
      * 检验数组中的有效参数是否正确
      * @param data
      */
-    private static boolean checkValidString(byte[] data){
-        return Arrays.equals(Arrays.copyOfRange(data, startOffset, startOffset + validLength),
-                Arrays.copyOfRange(data, startOffset+ validLength, startOffset + 2 * validLength));
+    private static boolean checkValidString(ByteBuffer data){
+        return Arrays.equals(BufferUtil.copyOfRange(data, startOffset, startOffset + validLength),
+                BufferUtil.copyOfRange(data, startOffset+ validLength, startOffset + 2 * validLength));
     }
 }
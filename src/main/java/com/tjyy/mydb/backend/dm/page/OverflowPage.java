@@ -0,0 +1,80 @@
+package com.tjyy.mydb.backend.dm.page;
+
+import com.tjyy.mydb.backend.dm.pageCache.PageCache;
+import com.tjyy.mydb.backend.util.BufferUtil;
+
+import java.nio.ByteBuffer;
+
+/**
+ * @author: Tjyy
+ * @date: 2024-03-22 10:00
+ * @description: 溢出页结构
+ *  [FreeSpaceOffset] [SlotCount] [NextPgno] [DataLength] [Data]
+ *  FreeSpaceOffset: 2字节，固定为 PAGE_SIZE；SlotCount: 2字节，固定为 0。与普通页的格式兼容，剩余空间为 0，不会被 PageIndex 选中
+ *  NextPgno: 4字节，链上的下一页，0 表示最后一页
+ *  DataLength: 2字节，本页中数据的长度
+ * 超过一页的数据被切分后依次存放在一条溢出页链上，每页整页写入，写入后不再修改。
+ */
+public class OverflowPage {
+    private static final short OFFSET_FREE = 0;
+    private static final short OFFSET_NEXT = 4;
+    private static final short OFFSET_LENGTH = 8;
+    private static final short OFFSET_DATA = 10;
+    public static final int MAX_DATA_SIZE = PageCache.PAGE_SIZE - OFFSET_DATA;
+
+    /**
+     * 生成溢出页的内容，只包含页头和 data 的前 length 字节
+     * @param next
+     * @param data
+     * @param length
+     * @return
+     */
+    public static byte[] image(int next, byte[] data, int length){
+        ByteBuffer image = ByteBuffer.allocate(OFFSET_DATA + length);
+        image.putShort(OFFSET_FREE, (short) PageCache.PAGE_SIZE);
+        image.position(OFFSET_NEXT);
+        image.putInt(next);
+        image.putShort((short) length);
+        image.put(data, 0, length);
+        return image.array();
+    }
+
+    /**
+     * 将溢出页的内容写入页面
+     * @param page
+     * @param image
+     */
+    public static void write(Page page, byte[] image){
+        BufferUtil.put(page.getBuffer(), 0, image);
+        page.setDirty(true);
+    }
+
+    /**
+     * 页面是否为溢出页，溢出页没有槽目录，不能按普通页整理
+     * @param page
+     * @return
+     */
+    public static boolean isOverflowPage(Page page){
+        return page.getBuffer().getShort(OFFSET_FREE) == PageCache.PAGE_SIZE;
+    }
+
+    public static int getNext(Page page){
+        return page.getBuffer().getInt(OFFSET_NEXT);
+    }
+
+    public static int getDataLength(Page page){
+        return page.getBuffer().getShort(OFFSET_LENGTH);
+    }
+
+    /**
+     * 读取本页数据 [from, from + length) 到 dst 的 dstPos 处
+     * @param page
+     * @param from
+     * @param dst
+     * @param dstPos
+     * @param length
+     */
+    public static void getData(Page page, int from, byte[] dst, int dstPos, int length){
+        BufferUtil.get(page.getBuffer(), OFFSET_DATA + from, dst, dstPos, length);
+    }
+}
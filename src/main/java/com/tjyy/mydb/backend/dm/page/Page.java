@@ -1,5 +1,7 @@
 package com.tjyy.mydb.backend.dm.page;
 
+import java.nio.ByteBuffer;
+
 /**
  * @author: Tjyy
  * @date: 2024-02-26 17:38
@@ -18,5 +20,10 @@ public interface Page {
 
     int getPageNumber();
 
-    byte[] getData();
+    /**
+     * 页面数据的视图，容量为 PAGE_SIZE，多个使用者共享同一个对象，只能使用绝对位置读写，
+     * 需要修改 position/limit 时先 duplicate()
+     * @return
+     */
+    ByteBuffer getBuffer();
 }
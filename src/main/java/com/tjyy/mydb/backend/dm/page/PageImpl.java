@@ -2,6 +2,7 @@ package com.tjyy.mydb.backend.dm.page;
 
 import com.tjyy.mydb.backend.dm.pageCache.PageCache;
 
+import java.nio.ByteBuffer;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -13,7 +14,8 @@ import java.util.concurrent.locks.ReentrantLock;
 public class PageImpl implements Page{
     private int pageNumber;  // 页号 从1开始增长
     private byte[] data;  // 数据
-    private boolean dirty;  // 脏页判断
+    private ByteBuffer buffer;  // data 的视图
+    private volatile boolean dirty;  // 脏页判断
     private Lock lock;  // 页面锁
     private PageCache pageCache; // 页面缓存
 
@@ -21,6 +23,7 @@ public class PageImpl implements Page{
         this.pageNumber = pageNumber;
         this.data = new byte[PageCache.PAGE_SIZE];
         System.arraycopy(data, 0, this.data, 0, data.length);
+        this.buffer = ByteBuffer.wrap(this.data);
 
         this.pageCache = pageCache;
         lock = new ReentrantLock();
@@ -58,7 +61,7 @@ public class PageImpl implements Page{
     }
 
     @Override
-    public byte[] getData() {
-        return data;
+    public ByteBuffer getBuffer() {
+        return buffer;
     }
 }
@@ -0,0 +1,256 @@
+package com.tjyy.mydb.backend.dm.pageCache;
+
+import com.tjyy.mydb.backend.common.AbstractCache;
+import com.tjyy.mydb.backend.common.ClockPolicy;
+import com.tjyy.mydb.backend.dm.page.BufferPageImpl;
+import com.tjyy.mydb.backend.dm.page.Page;
+import com.tjyy.mydb.backend.util.BufferUtil;
+import com.tjyy.mydb.backend.util.Panic;
+import com.tjyy.mydb.common.Error;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * @author: Tjyy
+ * @date: 2024-03-09 14:20
+ * @description: 基于内存映射的 page cache
+ * DB 文件按 MAP_SEGMENT_PAGES 页一段映射为 MappedByteBuffer，getPage 返回映射区域上的视图，
+ * 不复制数据也不分配页面缓冲区，热点页面的驻留交给操作系统的 page cache。
+ * 最后一段只映射到当前文件末尾，newPage 扩展文件后再按需重新映射该段。
+ * 缓存中只保存页面视图(用于引用计数和页面锁)，驱逐视图不产生 I/O；flushPage 通过 force 映射区域保证持久化。
+ */
+public class MappedPageCacheImpl extends AbstractCache<Page> implements PageCache {
+    private static final int MEM_MIN_LIM = 10;  // 最小缓存大小
+    private static final int CACHE_SEGMENTS = 16;  // 页面缓存的分段数
+    private static final int MAP_SEGMENT_PAGES = 1024;  // 每个映射段的页数，8MB
+
+    private RandomAccessFile randomAccessFile;
+    private FileChannel channel;
+
+    // 第 i 段映射 [i * MAP_SEGMENT_PAGES + 1, (i + 1) * MAP_SEGMENT_PAGES] 号页面
+    private MappedByteBuffer[] mappings;
+    private Lock mapLock;
+
+    // 定义数据库中有多少页
+    private AtomicInteger pageNumbers;
+
+    public MappedPageCacheImpl(RandomAccessFile file, FileChannel channel, int maxResource) {
+        super(maxResource, CACHE_SEGMENTS, ClockPolicy::new);
+        if (maxResource < MEM_MIN_LIM){
+            Panic.panic(Error.MemTooSmallException);
+        }
+
+        long length = 0;
+        try{
+            length = file.length();
+        }catch (IOException e) {
+            Panic.panic(e);
+        }
+
+        this.randomAccessFile = file;
+        this.channel = channel;
+        this.mappings = new MappedByteBuffer[0];
+        this.mapLock = new ReentrantLock();
+        this.pageNumbers = new AtomicInteger((int) (length / PAGE_SIZE));
+    }
+
+    /**
+     * 返回映射区域上的页面视图
+     * @param key
+     * @return
+     * @throws Exception
+     */
+    @Override
+    protected Page getForCache(long key) throws Exception {
+        int pgno = (int) key;
+        ByteBuffer view = BufferUtil.slice(mapping(pgno), offsetInSegment(pgno), PAGE_SIZE);
+        return new BufferPageImpl(pgno, view, this);
+    }
+
+    /**
+     * 页面视图被驱逐时数据已经在映射区域中，由操作系统写回
+     * @param obj
+     */
+    @Override
+    protected void releaseForCache(Page obj) {
+        obj.setDirty(false);
+    }
+
+    /**
+     * 获取覆盖 pgno 的映射段，不存在或者尚未覆盖 pgno 时重新映射
+     * @param pgno
+     * @return
+     */
+    private MappedByteBuffer mapping(int pgno){
+        int index = (pgno - 1) / MAP_SEGMENT_PAGES;
+        long needed = offsetInSegment(pgno) + PAGE_SIZE;
+
+        mapLock.lock();
+        try {
+            if (index >= mappings.length){
+                mappings = Arrays.copyOf(mappings, Math.max(index + 1, mappings.length * 2));
+            }
+            MappedByteBuffer mapping = mappings[index];
+            if (mapping == null || mapping.capacity() < needed){
+                // 只映射到当前文件末尾，避免映射把文件撑大
+                long start = (long) index * MAP_SEGMENT_PAGES * PAGE_SIZE;
+                long size = Math.min((long) MAP_SEGMENT_PAGES * PAGE_SIZE, Math.max(needed, channel.size() - start));
+                mapping = channel.map(FileChannel.MapMode.READ_WRITE, start, size);
+                mappings[index] = mapping;
+            }
+            return mapping;
+        }catch (IOException e){
+            Panic.panic(e);
+            return null;
+        }finally {
+            mapLock.unlock();
+        }
+    }
+
+    private static int offsetInSegment(int pgno){
+        return ((pgno - 1) % MAP_SEGMENT_PAGES) * PAGE_SIZE;
+    }
+
+    /**
+     * 为数据库文件新建一页，通过文件通道写入并扩展文件
+     * @param initData
+     * @return
+     */
+    @Override
+    public int newPage(byte[] initData) {
+        int newPageNumber = pageNumbers.incrementAndGet();
+        ByteBuffer buf = ByteBuffer.allocate(PAGE_SIZE);
+        buf.put(initData);
+        buf.clear();
+        try {
+            long offset = pageOffset(newPageNumber);
+            while (buf.hasRemaining()){
+                channel.write(buf, offset + buf.position());
+            }
+            channel.force(false);
+        }catch (IOException e){
+            Panic.panic(e);
+        }
+        return newPageNumber;
+    }
+
+    @Override
+    public Page getPage(int pageNumber) throws Exception {
+        return get((long) pageNumber);
+    }
+
+    /**
+     * 关闭缓存，将所有映射区域刷入磁盘
+     */
+    @Override
+    public void close() {
+        super.close();
+        mapLock.lock();
+        try {
+            flushAll();
+            mappings = new MappedByteBuffer[0];
+        }finally {
+            mapLock.unlock();
+        }
+        try {
+            randomAccessFile.close();
+            channel.close();
+        }catch (IOException e){
+            Panic.panic(e);
+        }
+    }
+
+    @Override
+    public void halt() {
+        // 没有后台线程，对页面的修改直接落在映射上
+    }
+
+    @Override
+    public void release(Page page) {
+        super.release((long) page.getPageNumber());
+    }
+
+    /**
+     * 设置 DB 文件中的最大页数，丢弃覆盖截断区域的映射，之后按需重新映射
+     * @param maxPgno
+     */
+    @Override
+    public void truncateByPgno(int maxPgno) {
+        long length = pageOffset(maxPgno + 1);
+        mapLock.lock();
+        try {
+            // 被截掉的页面指向即将失效的映射，不能继续留在缓存中
+            invalidate(pgno -> pgno > maxPgno);
+            for (int i = 0; i < mappings.length; i++) {
+                long start = (long) i * MAP_SEGMENT_PAGES * PAGE_SIZE;
+                if (mappings[i] != null && start + mappings[i].capacity() > length){
+                    mappings[i] = null;
+                }
+            }
+            randomAccessFile.setLength(length);
+        }catch (IOException e){
+            Panic.panic(e);
+        }finally {
+            mapLock.unlock();
+        }
+        pageNumbers.set(maxPgno);
+    }
+
+    @Override
+    public int getPageNumber() {
+        return pageNumbers.intValue();
+    }
+
+    /**
+     * 将页面刷入磁盘：映射页面 force 所在的映射段，其他页面通过文件通道写入
+     * @param page
+     */
+    @Override
+    public void flushPage(Page page) {
+        int pgno = page.getPageNumber();
+        ByteBuffer data = page.getBuffer();
+        if (!data.isDirect()){
+            ByteBuffer buf = data.duplicate();
+            buf.clear();
+            try {
+                while (buf.hasRemaining()){
+                    channel.write(buf, pageOffset(pgno) + buf.position());
+                }
+                channel.force(false);
+            }catch (IOException e){
+                Panic.panic(e);
+            }
+            return;
+        }
+        mapping(pgno).force();
+    }
+
+    /**
+     * 页面的修改直接落在映射区域上，force 所有映射段即可
+     */
+    @Override
+    public void flushAll() {
+        mapLock.lock();
+        try {
+            for (MappedByteBuffer mapping : mappings) {
+                if (mapping != null){
+                    mapping.force();
+                }
+            }
+        }finally {
+            mapLock.unlock();
+        }
+    }
+
+    private static long pageOffset(int pgno){
+        return (long) (pgno - 1) * PAGE_SIZE;
+    }
+}
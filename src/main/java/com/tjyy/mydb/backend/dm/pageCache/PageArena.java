@@ -0,0 +1,60 @@
+package com.tjyy.mydb.backend.dm.pageCache;
+
+import com.tjyy.mydb.backend.util.BufferUtil;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * @author: Tjyy
+ * @date: 2024-03-11 10:15
+ * @description: 堆外页面帧池
+ * 初始化时一次性分配 frames 个 PAGE_SIZE 大小的堆外页面帧，按 CHUNK_FRAMES 个帧一块分配直接内存，
+ * 页面被驱逐后帧归还到池中供下一次未命中复用，缓冲池本身不再给 GC 增加负担。
+ */
+public class PageArena {
+    private static final int CHUNK_FRAMES = 8192;  // 每块直接内存的帧数，64MB
+
+    private ArrayDeque<ByteBuffer> free;
+    private Lock lock;
+
+    public PageArena(int frames) {
+        free = new ArrayDeque<>(frames);
+        lock = new ReentrantLock();
+        for (int allocated = 0; allocated < frames; allocated += CHUNK_FRAMES) {
+            int count = Math.min(CHUNK_FRAMES, frames - allocated);
+            ByteBuffer chunk = ByteBuffer.allocateDirect(count * PageCache.PAGE_SIZE);
+            for (int i = 0; i < count; i++) {
+                free.push(BufferUtil.slice(chunk, i * PageCache.PAGE_SIZE, PageCache.PAGE_SIZE));
+            }
+        }
+    }
+
+    /**
+     * 取出一个空闲帧，帧的内容是上一个页面留下的数据
+     * @return 没有空闲帧时返回 null
+     */
+    public ByteBuffer allocate() {
+        lock.lock();
+        try {
+            return free.poll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 归还一个帧
+     * @param frame
+     */
+    public void free(ByteBuffer frame) {
+        lock.lock();
+        try {
+            free.push(frame);
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package com.tjyy.mydb.backend.dm.pageCache;
 
+import com.tjyy.mydb.backend.common.ClockPolicy;
 import com.tjyy.mydb.backend.dm.page.Page;
 import com.tjyy.mydb.common.Error;
 import com.tjyy.mydb.backend.util.Panic;
@@ -17,13 +18,34 @@ import java.nio.channels.FileChannel;
 public interface PageCache {
     public static int PAGE_SIZE = 1 << 13;
 
+    /**
+     * 页面的存储方式
+     * HEAP: 页面读入堆上的缓冲池(PageCacheImpl)
+     * DIRECT: 页面读入预分配的堆外帧池，帧在驱逐后复用(PageCacheImpl + PageArena)
+     * MMAP: 页面是 DB 文件映射区域上的视图(MappedPageCacheImpl)
+     */
+    enum Backend {
+        HEAP, DIRECT, MMAP
+    }
+
     /**
      * 根据给定的路径和内存空间大小创建DB文件并生成一个缓冲池实例
      * @param path
      * @param memory
      * @return
      */
-    public static PageCacheImpl create(String path, long memory){
+    public static PageCache create(String path, long memory){
+        return create(path, memory, Backend.HEAP);
+    }
+
+    /**
+     * 根据给定的路径和内存空间大小创建DB文件，并生成指定存储方式的缓冲池实例
+     * @param path
+     * @param memory
+     * @param backend
+     * @return
+     */
+    public static PageCache create(String path, long memory, Backend backend){
         File file = new File(path + PageCacheImpl.DB_SUFFIX);
         try{
             if (!file.createNewFile()){
@@ -45,7 +67,7 @@ public interface PageCache {
             Panic.panic(e);
         }
 
-        return new PageCacheImpl(randomAccessFile, channel, (int)memory/PAGE_SIZE);
+        return newPageCache(randomAccessFile, channel, memory, backend);
     }
 
     /**
@@ -54,7 +76,18 @@ public interface PageCache {
      * @param memory
      * @return
      */
-    public static PageCacheImpl open(String path, long memory){
+    public static PageCache open(String path, long memory){
+        return open(path, memory, Backend.HEAP);
+    }
+
+    /**
+     * 根据给定的路径和内存空间大小打开DB文件，并生成指定存储方式的缓冲池实例
+     * @param path
+     * @param memory
+     * @param backend
+     * @return
+     */
+    public static PageCache open(String path, long memory, Backend backend){
         File file = new File(path + PageCacheImpl.DB_SUFFIX);
         try{
             if (!file.exists()){
@@ -75,7 +108,26 @@ public interface PageCache {
         }catch (FileNotFoundException e){
             Panic.panic(e);
         }
-        return new PageCacheImpl(randomAccessFile, channel, (int)memory/PAGE_SIZE);
+        return newPageCache(randomAccessFile, channel, memory, backend);
+    }
+
+    /**
+     * 根据存储方式生成缓冲池实例
+     * @param file
+     * @param channel
+     * @param memory
+     * @param backend
+     * @return
+     */
+    static PageCache newPageCache(RandomAccessFile file, FileChannel channel, long memory, Backend backend){
+        int maxResource = (int) (memory / PAGE_SIZE);
+        if (backend == Backend.MMAP){
+            return new MappedPageCacheImpl(file, channel, maxResource);
+        }
+        if (backend == Backend.DIRECT){
+            return new PageCacheImpl(file, channel, maxResource, ClockPolicy::new, true);
+        }
+        return new PageCacheImpl(file, channel, maxResource);
     }
 
 
@@ -99,6 +151,11 @@ public interface PageCache {
      */
     void close();
 
+    /**
+     * 停止后台线程，不写回脏页也不关闭文件，之后不能再使用，用于模拟宕机
+     */
+    void halt();
+
     /**
      * 从缓存中移除页的内容
      * @param page
@@ -122,4 +179,9 @@ public interface PageCache {
      * @param page
      */
     void flushPage(Page page);
+
+    /**
+     * 将缓存中所有的脏页写回并刷入磁盘，返回后此前对页面的修改都已持久化，检查点依赖这一点
+     */
+    void flushAll();
 }
@@ -1,6 +1,9 @@
 package com.tjyy.mydb.backend.dm.pageCache;
 
 import com.tjyy.mydb.backend.common.AbstractCache;
+import com.tjyy.mydb.backend.common.ClockPolicy;
+import com.tjyy.mydb.backend.common.EvictionPolicy;
+import com.tjyy.mydb.backend.dm.page.BufferPageImpl;
 import com.tjyy.mydb.backend.dm.page.Page;
 import com.tjyy.mydb.backend.dm.page.PageImpl;
 import com.tjyy.mydb.common.Error;
@@ -10,30 +13,52 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.Comparator;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntFunction;
 
 /**
  * @author: Tjyy
  * @date: 2024-02-26 18:02
  * @description: cache for page
+ * 未被引用的页面继续驻留在缓存中，缓存满时由驱逐策略(默认 CLOCK)选出牺牲页，脏页写回后再被替换
+ * 页面读写使用带偏移量的 FileChannel.read/write，不修改通道的 position，不同页面的 I/O 可以并发进行
+ * 配置了 PageArena 时页面数据保存在预分配的堆外帧中，帧在页面被驱逐后复用；否则每个页面使用一个堆数组
+ * 脏页由后台的 PageWriter 定期按页号顺序批量写回，驱逐时遇到的脏页只写不 fsync，持久化由 flushAll(检查点)保证
  */
 public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
     private static final int MEM_MIN_LIM = 10;  // 最小缓存大小
+    private static final int CACHE_SEGMENTS = 16;  // 页面缓存的分段数
+    private static final long WRITER_INTERVAL = 1000;  // 后台写回脏页的间隔，毫秒
     public static final String DB_SUFFIX = ".db";
 
     // 读取数据需要的变量
     private RandomAccessFile randomAccessFile;
     private FileChannel channel;
-    private Lock fileLock;
+    private PageArena arena;  // 堆外页面帧池，为 null 时页面保存在堆上
+    private PageWriter writer;  // 后台脏页写回线程
+    private Lock sweepLock;  // 同一时刻只进行一轮脏页写回
 
     // 定义数据库中有多少页
     private AtomicInteger pageNumbers;
 
     // 初始化 Page-Cache
     public PageCacheImpl(RandomAccessFile file, FileChannel channel, int maxResource) {
-        super(maxResource);
+        this(file, channel, maxResource, ClockPolicy::new);
+    }
+
+    // 使用指定的驱逐策略初始化 Page-Cache
+    public PageCacheImpl(RandomAccessFile file, FileChannel channel, int maxResource, IntFunction<EvictionPolicy> policyFactory) {
+        this(file, channel, maxResource, policyFactory, false);
+    }
+
+    // 初始化 Page-Cache，offHeap 为 true 时为所有缓存页面预分配堆外帧
+    public PageCacheImpl(RandomAccessFile file, FileChannel channel, int maxResource,
+                         IntFunction<EvictionPolicy> policyFactory, boolean offHeap) {
+        super(maxResource, CACHE_SEGMENTS, policyFactory);
         if (maxResource < MEM_MIN_LIM){
             Panic.panic(Error.MemTooSmallException);
         }
@@ -47,8 +72,14 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
 
         this.randomAccessFile = file;
         this.channel = channel;
-        this.fileLock = new ReentrantLock();
-        this.pageNumbers = new AtomicInteger((int) length / PAGE_SIZE);
+        if (offHeap){
+            // 缓存中的页面数不会超过 maxResource，帧总是够用
+            this.arena = new PageArena(maxResource);
+        }
+        this.pageNumbers = new AtomicInteger((int) (length / PAGE_SIZE));
+        this.sweepLock = new ReentrantLock();
+        this.writer = new PageWriter(this, WRITER_INTERVAL);
+        writer.start();
     }
 
 
@@ -63,28 +94,52 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
         int pgno = (int)key;
         long offset = pageOffset((int) key);
 
-        ByteBuffer buf = ByteBuffer.allocate(PAGE_SIZE);
-        fileLock.lock();
+        ByteBuffer buf = arena == null ? null : arena.allocate();
+        if (buf == null){
+            // 没有堆外帧(未配置或帧池已用尽)时退回到堆上
+            buf = ByteBuffer.allocate(PAGE_SIZE);
+        }
+        buf.clear();
         try {
-            channel.position(offset);
-            channel.read(buf);
+            while (buf.hasRemaining()){
+                if (channel.read(buf, offset + buf.position()) < 0){
+                    break;
+                }
+            }
+            // 读到文件末尾时剩余部分补 0，复用的帧中残留着上一个页面的数据
+            while (buf.hasRemaining()){
+                buf.put((byte) 0);
+            }
         }catch (IOException e){
             Panic.panic(e);
         }
-        fileLock.unlock();
+        if (buf.isDirect()){
+            return new BufferPageImpl(pgno, buf, this);
+        }
         return new PageImpl(pgno, buf.array(), this);
     }
 
 
     /**
-     * 当资源被驱逐时候的写回策略
+     * 当资源被驱逐时候的写回策略，脏页只写回不 fsync
      * @param obj
      */
     @Override
     protected void releaseForCache(Page obj) {
         if(obj.isDirty()){
-            flush(obj);
             obj.setDirty(false);
+            write(obj);
+        }
+        free(obj);
+    }
+
+    /**
+     * 页面使用的是堆外帧时，将帧归还给帧池
+     * @param page
+     */
+    private void free(Page page){
+        if (arena != null && page.getBuffer().isDirect()){
+            arena.free(page.getBuffer());
         }
     }
 
@@ -120,8 +175,10 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
      */
     @Override
     public void close() {
+        writer.close();
         super.close();
         try {
+            channel.force(false);
             randomAccessFile.close();
             channel.close();
         }catch (IOException e){
@@ -129,6 +186,11 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
         }
     }
 
+    @Override
+    public void halt() {
+        writer.close();
+    }
+
     /**
      * 驱逐缓存中的page页面
      * @param page
@@ -144,11 +206,19 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
      */
     @Override
     public void truncateByPgno(int maxPgno) {
-        long size = pageOffset(maxPgno);
+        long size = pageOffset(maxPgno + 1);
+        // 阻止后台写回把被截掉的页面重新写进文件
+        sweepLock.lock();
         try{
+            // 被截掉的页面不能继续留在缓存中，否则文件重新增长后会读到旧的内容
+            for (Page page : invalidate(pgno -> pgno > maxPgno)) {
+                free(page);
+            }
             randomAccessFile.setLength(size);
         }catch (IOException e){
             Panic.panic(e);
+        }finally {
+            sweepLock.unlock();
         }
         pageNumbers.set(maxPgno);
     }
@@ -168,27 +238,83 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
      */
     @Override
     public void flushPage(Page page) {
-        flush(page);
+        write(page);
+        force();
     }
 
     /**
-     * 将页面写入到磁盘中
+     * 将缓存中所有的脏页写回，并 fsync 一次，之前驱逐时写回的页面也随之持久化
+     */
+    @Override
+    public void flushAll() {
+        sweepLock.lock();
+        try {
+            sweep();
+            force();
+        }finally {
+            sweepLock.unlock();
+        }
+    }
+
+    /**
+     * 后台写回一轮脏页，有页面写回时 fsync 一次
+     */
+    void writeDirtyPages(){
+        sweepLock.lock();
+        try {
+            if (sweep() > 0){
+                force();
+            }
+        }finally {
+            sweepLock.unlock();
+        }
+    }
+
+    /**
+     * 引用当前所有的脏页，按页号排序后顺序写回，写回期间页面不会被驱逐
+     * 写回前先清除脏标记，写回过程中再次被修改的页面会保持脏状态，留给下一轮
+     * @return 写回的页面数
+     */
+    private int sweep(){
+        List<Page> pages = pinResident(Page::isDirty);
+        pages.sort(Comparator.comparingInt(Page::getPageNumber));
+        try {
+            for (Page page : pages) {
+                page.setDirty(false);
+                write(page);
+            }
+        }finally {
+            for (Page page : pages) {
+                release(page);
+            }
+        }
+        return pages.size();
+    }
+
+    /**
+     * 将页面写入到文件中，不 fsync
      * @param page
      */
-    private void flush(Page page){
+    private void write(Page page){
         int pgno = page.getPageNumber();
         long offset = pageOffset(pgno);
 
-        fileLock.lock();
         try {
-            ByteBuffer buf = ByteBuffer.wrap(page.getData());
-            channel.position(offset);
-            channel.write(buf);
+            ByteBuffer buf = page.getBuffer().duplicate();
+            buf.clear();
+            while (buf.hasRemaining()){
+                channel.write(buf, offset + buf.position());
+            }
+        }catch (IOException e){
+            Panic.panic(e);
+        }
+    }
+
+    private void force(){
+        try {
             channel.force(false);
         }catch (IOException e){
             Panic.panic(e);
-        } finally {
-            fileLock.unlock();
         }
     }
 
@@ -0,0 +1,77 @@
+package com.tjyy.mydb.backend.dm.pageCache;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * @author: Tjyy
+ * @date: 2024-03-12 09:40
+ * @description: 后台脏页写回线程
+ * 每隔 interval 毫秒将缓冲池中的脏页按页号排序后顺序写回一遍，整批只 fsync 一次，
+ * 使驱逐时遇到的大多是干净页面，事务线程不再承担写盘和 fsync 的延迟。
+ */
+class PageWriter implements Runnable {
+    private final PageCacheImpl pageCache;
+    private final long interval;
+
+    private Lock lock;
+    private Condition wakeUp;
+    private boolean closed;
+    private Thread thread;
+
+    PageWriter(PageCacheImpl pageCache, long interval) {
+        this.pageCache = pageCache;
+        this.interval = interval;
+        this.lock = new ReentrantLock();
+        this.wakeUp = lock.newCondition();
+    }
+
+    /**
+     * 启动写回线程
+     */
+    void start(){
+        thread = new Thread(this, "page-writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        while (true){
+            lock.lock();
+            try {
+                if (!closed){
+                    wakeUp.await(interval, TimeUnit.MILLISECONDS);
+                }
+                if (closed){
+                    return;
+                }
+            }catch (InterruptedException e){
+                return;
+            }finally {
+                lock.unlock();
+            }
+            pageCache.writeDirtyPages();
+        }
+    }
+
+    /**
+     * 停止写回线程并等待正在进行的一批写回结束
+     */
+    void close(){
+        lock.lock();
+        try {
+            closed = true;
+            wakeUp.signal();
+        }finally {
+            lock.unlock();
+        }
+        try {
+            thread.join();
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.tjyy.mydb.backend.dm.pageIndex;
+
+import com.tjyy.mydb.backend.util.Panic;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * @author: Tjyy
+ * @date: 2024-03-20 10:00
+ * @description: free space map
+ * 各页面剩余空间的旁路文件 <path>.fsm，正常关闭时写入，打开时读入 PageIndex，避免逐页读取整个 .db 文件。
+ * 格式：[Magic] [Version] [Stamp] [PageNumber] [Checksum] [FreeSpace2] [FreeSpace3] ...
+ * Magic、Version、PageNumber、Checksum 各 4 字节，Stamp 8 字节，每页的剩余空间 2 字节(从第 2 页开始)，
+ * Checksum 是所有 FreeSpace 的 CRC32。
+ *
+ * Stamp 是写入时第一页的验证字符：每次打开数据库都会生成新的验证字符，
+ * 因此只有上一次正常关闭时写入的文件才能与第一页对上，
+ * 宕机、恢复后或写入中途失败留下的旧文件都会被判定为无效，此时退回逐页扫描。
+ */
+public class FreeSpaceMap {
+    public static final String FSM_SUFFIX = ".fsm";
+
+    private static final int MAGIC = 0x4D594653;  // "MYFS"
+    private static final int VERSION = 1;
+
+    private static final int OF_MAGIC = 0;
+    private static final int OF_VERSION = OF_MAGIC + 4;
+    private static final int OF_STAMP = OF_VERSION + 4;
+    private static final int STAMP_LENGTH = 8;
+    private static final int OF_PAGE_NUMBER = OF_STAMP + STAMP_LENGTH;
+    private static final int OF_CHECKSUM = OF_PAGE_NUMBER + 4;
+    private static final int HEADER_SIZE = OF_CHECKSUM + 4;
+
+    /**
+     * 将 pageIndex 中所有页面的剩余空间写入旁路文件并刷盘
+     * 调用时不能有正在进行的插入，被取出未放回的页面会导致文件不完整，此时删除旧文件而不写入
+     * @param path
+     * @param stamp 第一页的验证字符
+     * @param pageNumber 页面总数
+     * @param pageIndex
+     * @return 是否写入
+     */
+    public static boolean write(String path, byte[] stamp, int pageNumber, PageIndex pageIndex){
+        File file = new File(path + FSM_SUFFIX);
+        short[] freeSpace = new short[pageNumber + 1];
+        Arrays.fill(freeSpace, (short) -1);
+        List<PageInfo> pages = pageIndex.pages();
+        for (PageInfo pageInfo : pages) {
+            if (pageInfo.pgno > 1 && pageInfo.pgno <= pageNumber){
+                freeSpace[pageInfo.pgno] = (short) pageInfo.freeSpace;
+            }
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + Math.max(pageNumber - 1, 0) * 2);
+        buf.position(HEADER_SIZE);
+        for (int pgno = 2; pgno <= pageNumber; pgno++) {
+            if (freeSpace[pgno] < 0){
+                file.delete();
+                return false;
+            }
+            buf.putShort(freeSpace[pgno]);
+        }
+        buf.putInt(OF_MAGIC, MAGIC);
+        buf.putInt(OF_VERSION, VERSION);
+        buf.position(OF_STAMP);
+        buf.put(stamp, 0, STAMP_LENGTH);
+        buf.putInt(OF_PAGE_NUMBER, pageNumber);
+        buf.putInt(OF_CHECKSUM, checksum(buf.array()));
+        buf.clear();
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            FileChannel fc = raf.getChannel();
+            fc.truncate(0);
+            while (buf.hasRemaining()){
+                fc.write(buf, buf.position());
+            }
+            fc.force(false);
+        }catch (IOException e){
+            Panic.panic(e);
+        }
+        return true;
+    }
+
+    /**
+     * 读入旁路文件并将各页面加入 pageIndex
+     * @param path
+     * @param stamp 第一页的验证字符
+     * @param pageNumber 页面总数
+     * @param pageIndex
+     * @return 文件不存在或无效时返回 false，pageIndex 不被修改
+     */
+    public static boolean load(String path, byte[] stamp, int pageNumber, PageIndex pageIndex){
+        File file = new File(path + FSM_SUFFIX);
+        if (!file.exists()){
+            return false;
+        }
+        byte[] raw;
+        try {
+            raw = Files.readAllBytes(file.toPath());
+        }catch (IOException e){
+            return false;
+        }
+        if (raw.length != HEADER_SIZE + Math.max(pageNumber - 1, 0) * 2){
+            return false;
+        }
+        ByteBuffer buf = ByteBuffer.wrap(raw);
+        if (buf.getInt(OF_MAGIC) != MAGIC || buf.getInt(OF_VERSION) != VERSION
+                || buf.getInt(OF_PAGE_NUMBER) != pageNumber
+                || !Arrays.equals(Arrays.copyOfRange(raw, OF_STAMP, OF_STAMP + STAMP_LENGTH), stamp)
+                || buf.getInt(OF_CHECKSUM) != checksum(raw)){
+            return false;
+        }
+        buf.position(HEADER_SIZE);
+        for (int pgno = 2; pgno <= pageNumber; pgno++) {
+            pageIndex.add(pgno, buf.getShort());
+        }
+        return true;
+    }
+
+    private static int checksum(byte[] raw){
+        CRC32 crc = new CRC32();
+        crc.update(raw, HEADER_SIZE, raw.length - HEADER_SIZE);
+        return (int) crc.getValue();
+    }
+}
@@ -2,46 +2,66 @@ package com.tjyy.mydb.backend.dm.pageIndex;
 
 import com.tjyy.mydb.backend.dm.pageCache.PageCache;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * @author: Tjyy
  * @date: 2024-03-03 13:49
  * @description: page index
+ * 按剩余空间将页面分到 INTERVALS_NO + 1 个区间，每个区间是一个 ArrayDeque，由各自的锁保护(分段锁)，
+ * 另用一个位图记录哪些区间非空，select 直接跳到第一个可能满足要求的非空区间，不需要逐个扫描空区间。
+ * 区间的入队、出队都是 O(1)，不同区间的操作互不阻塞；位图在区间的锁内更新，与区间是否为空保持一致，
+ * 区间的锁只保护自己的位，位图的一个 long 由多个区间共享，因此用 CAS 修改。
+ * 被 select 取出的页面由调用者独占，用完后再 add 回来；放回的页面放在队头，下一次优先被选中，
+ * 它大概率还在页面缓存中。
+ * 每个页面最多有一个有效的项：再次 add 同一个页面时新的项替换旧的项，旧的项留在原区间中，
+ * 被 select 遇到时丢弃，失效的项多于有效的项时一次清理所有区间。
  */
 public class PageIndex {
-    // 将一页划成40个区间
-    private static final int INTERVALS_NO = 40;
+    // 将一页划成256个区间，每个区间32字节
+    private static final int INTERVALS_NO = 256;
     private static final int THRESHOLD = PageCache.PAGE_SIZE / INTERVALS_NO;
 
-    private Lock lock;
-    private List<PageInfo>[] lists;
+    private List<ArrayDeque<PageInfo>> lists;  // 以自身作为锁
+    private AtomicLongArray nonEmpty;  // 第 i 位表示 lists[i] 可能非空
+    private Map<Integer, PageInfo> indexed;  // 每个页面当前有效的项，被 select 取出的页面不在其中
+    private AtomicInteger stale;  // lists 中已被替换的项数
 
-    @SuppressWarnings("unchecked")
     public PageIndex(){
-        lock = new ReentrantLock();
-        lists = new List[INTERVALS_NO + 1];
+        lists = new ArrayList<>(INTERVALS_NO + 1);
         for (int i = 0; i < INTERVALS_NO + 1; i++) {
-            lists[i] = new ArrayList<>();
+            lists.add(new ArrayDeque<>());
         }
+        nonEmpty = new AtomicLongArray((INTERVALS_NO + 1 + 63) >>> 6);
+        indexed = new ConcurrentHashMap<>();
+        stale = new AtomicInteger();
     }
 
     /**
-     * 将页面和剩余空间添加到 lists 中
+     * 将页面和剩余空间添加到 lists 中，页面已在索引中时替换原来的项
      * @param pgno
      * @param freeSpace
      */
     public void add(int pgno, int freeSpace){
-        lock.lock();
-        try {
-            int number = freeSpace / THRESHOLD;
-            lists[number].add(new PageInfo(pgno, freeSpace));
-        }finally {
-            lock.unlock();
+        PageInfo pageInfo = new PageInfo(pgno, freeSpace);
+        PageInfo old = indexed.put(pgno, pageInfo);
+        int number = freeSpace / THRESHOLD;
+        ArrayDeque<PageInfo> list = lists.get(number);
+        synchronized (list){
+            list.addFirst(pageInfo);
+            if (list.size() == 1){
+                setBit(number);
+            }
+        }
+        if (old != null && stale.incrementAndGet() > indexed.size()){
+            purge();
         }
     }
 
@@ -51,21 +71,159 @@ public class PageIndex {
      * @return
      */
     public PageInfo select(int spaceSize){
-        lock.lock();
-        try {
-            int number = spaceSize / THRESHOLD;
-            if (number < INTERVALS_NO)
-                number++;
-            while (number <= INTERVALS_NO){
-                if (lists[number].size() == 0){
-                    number++;
-                    continue;
+        // 第 number 个区间及之后的页面剩余空间都不小于 number * THRESHOLD，一定放得下
+        int number = (spaceSize + THRESHOLD - 1) / THRESHOLD;
+        while ((number = nextBit(number)) >= 0){
+            ArrayDeque<PageInfo> list = lists.get(number);
+            synchronized (list){
+                PageInfo pageInfo = list.pollFirst();
+                while (pageInfo != null && !take(pageInfo)){
+                    pageInfo = list.pollFirst();
+                }
+                if (list.isEmpty()){
+                    clearBit(number);
+                }
+                if (pageInfo != null){
+                    return pageInfo;
                 }
-                return lists[number].remove(0);
             }
+            // 读位图之后区间被其他线程取空
+            number++;
+        }
+        // 没有一定放得下的页面时，在 spaceSize 所在的区间中逐个查找，接近整页大小的数据只能放在这里
+        int partial = spaceSize / THRESHOLD;
+        if (spaceSize % THRESHOLD == 0 || partial > INTERVALS_NO){
             return null;
-        }finally {
-            lock.unlock();
+        }
+        return selectFrom(partial, spaceSize);
+    }
+
+    /**
+     * 在第 number 个区间中取出第一个剩余空间不小于 spaceSize 的页面
+     * @param number
+     * @param spaceSize
+     * @return
+     */
+    private PageInfo selectFrom(int number, int spaceSize){
+        ArrayDeque<PageInfo> list = lists.get(number);
+        synchronized (list){
+            Iterator<PageInfo> iterator = list.iterator();
+            while (iterator.hasNext()){
+                PageInfo pageInfo = iterator.next();
+                if (pageInfo.freeSpace >= spaceSize){
+                    iterator.remove();
+                    if (take(pageInfo)){
+                        if (list.isEmpty()){
+                            clearBit(number);
+                        }
+                        return pageInfo;
+                    }
+                }else if (indexed.get(pageInfo.pgno) != pageInfo){
+                    iterator.remove();
+                    stale.decrementAndGet();
+                }
+            }
+            if (list.isEmpty()){
+                clearBit(number);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 将已从区间中移出的项从索引中取出，需持有所在区间的锁
+     * @param pageInfo
+     * @return 项已被替换时返回 false
+     */
+    private boolean take(PageInfo pageInfo){
+        if (indexed.remove(pageInfo.pgno, pageInfo)){
+            return true;
+        }
+        stale.decrementAndGet();
+        return false;
+    }
+
+    /**
+     * 清理所有区间中已被替换的项
+     */
+    private void purge(){
+        for (int number = 0; number < lists.size(); number++) {
+            ArrayDeque<PageInfo> list = lists.get(number);
+            synchronized (list){
+                Iterator<PageInfo> iterator = list.iterator();
+                while (iterator.hasNext()){
+                    PageInfo pageInfo = iterator.next();
+                    if (indexed.get(pageInfo.pgno) != pageInfo){
+                        iterator.remove();
+                        stale.decrementAndGet();
+                    }
+                }
+                if (list.isEmpty()){
+                    clearBit(number);
+                }
+            }
+        }
+    }
+
+    /**
+     * 当前在索引中的所有页面，被 select 取出尚未放回的页面不在其中
+     * @return
+     */
+    public List<PageInfo> pages(){
+        List<PageInfo> pages = new ArrayList<>();
+        for (ArrayDeque<PageInfo> list : lists) {
+            synchronized (list){
+                for (PageInfo pageInfo : list) {
+                    if (indexed.get(pageInfo.pgno) == pageInfo){
+                        pages.add(pageInfo);
+                    }
+                }
+            }
+        }
+        return pages;
+    }
+
+    private void setBit(int number){
+        int word = number >>> 6;
+        long mask = 1L << number;
+        long old;
+        while (((old = nonEmpty.get(word)) & mask) == 0){
+            if (nonEmpty.compareAndSet(word, old, old | mask)){
+                return;
+            }
+        }
+    }
+
+    private void clearBit(int number){
+        int word = number >>> 6;
+        long mask = 1L << number;
+        long old;
+        while (((old = nonEmpty.get(word)) & mask) != 0){
+            if (nonEmpty.compareAndSet(word, old, old & ~mask)){
+                return;
+            }
+        }
+    }
+
+    /**
+     * 从第 from 个区间开始，第一个置位的区间
+     * @param from
+     * @return 没有时返回 -1
+     */
+    private int nextBit(int from){
+        if (from > INTERVALS_NO){
+            return -1;
+        }
+        int word = from >>> 6;
+        long bits = nonEmpty.get(word) & (-1L << from);
+        while (true){
+            if (bits != 0){
+                return (word << 6) + Long.numberOfTrailingZeros(bits);
+            }
+            if (++word == nonEmpty.length()){
+                return -1;
+            }
+            bits = nonEmpty.get(word);
         }
     }
 
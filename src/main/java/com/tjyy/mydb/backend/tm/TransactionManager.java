@@ -5,10 +5,9 @@ import com.tjyy.mydb.backend.util.Panic;
 
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.function.LongConsumer;
 
 public interface TransactionManager {
     /**
@@ -27,6 +26,12 @@ public interface TransactionManager {
      */
     void abort(long xid);
 
+    /**
+     * 设置回滚事务时的撤销操作，abort 在持久化回滚状态之前调用，由 DM 撤销事务对数据的修改
+     * @param handler 参数为回滚的事务
+     */
+    void setAbortHandler(LongConsumer handler);
+
     /**
      * 查询一个状态的事务是否为活跃状态
      * @param xid
@@ -80,14 +85,8 @@ public interface TransactionManager {
             Panic.panic(e);
         }
 
-        // 写空XID文件头
-        ByteBuffer buf = ByteBuffer.wrap(new byte[TransactionManagerImpl.LEN_XID_HEADER_LENGTH]);
-        try {
-            channel.position(0);
-            channel.write(buf);
-        } catch (IOException e) {
-            Panic.panic(e);
-        }
+        // 写空XID文件头并预留第一个段
+        XidFile.create(channel);
 
         return new TransactionManagerImpl(randomAccessFile, channel);
     }
@@ -2,26 +2,35 @@ package com.tjyy.mydb.backend.tm;
 
 import com.tjyy.mydb.common.Error;
 import com.tjyy.mydb.backend.util.Panic;
-import com.tjyy.mydb.backend.util.Parser;
 
-import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongConsumer;
 
 /**
  * @author: Tjyy
  * @date: 2024-02-25 20:11
  * @description: transaction manager
+ * XID 文件的格式见 XidFile：每个事务的状态占 2 bit，状态区映射到内存并按段扩展
+ *
+ * 所有事务的状态在打开时读入内存中的 XidStatusTable，状态查询不再访问文件。
+ * commit/abort 以组提交的方式持久化：
+ * 第一个发现没有写盘在进行的线程成为 leader，在锁外把这一批新的状态和 XidCounter 写入映射，
+ * 再 force 一次，其余线程等待，直到自己的修改被某一批持久化后返回。
+ * 新的状态在持久化之后才写入 XidStatusTable，状态查询(包括检查点计算活跃事务)看到的都是已经持久化的状态，
+ * 不会因为一个尚未落盘的提交而丢弃它仍需要的日志。
+ *
+ * begin 不加锁，从 AtomicLong 中分配 XID。文件头中的 XidCounter 记录的是已预留的 XID 上限，
+ * 每次预留 XID_BLOCK 个，只有分配的 XID 超过已持久化的上限时才随组提交写一次文件头；
+ * 新事务的状态在内存和文件中本来就是 0，即活跃，不需要写盘。
+ * 正常关闭时 XidCounter 写回实际分配的最大 XID；宕机后从预留的上限之后继续分配，最多跳过一个块。
  */
 public class TransactionManagerImpl implements TransactionManager{
-    // XID 文件头长度
-    static final int LEN_XID_HEADER_LENGTH = 8;
-    // 每个事务占用长度
-    private static final int XID_FIELD_SIZE = 1;
-
     // 事务的三种状态
     private static final byte FILE_TRAN_ACTIVE = 0;
     private static final byte FILE_TRAN_COMMITTED = 1;
@@ -33,138 +42,154 @@ public class TransactionManagerImpl implements TransactionManager{
     // XID文件后缀
     static final String XID_SUFFER = ".xid";
 
-    private RandomAccessFile file;
-    private FileChannel channel;
-    private long xidCounter = 0;
-    private Lock counterLock;
+    private XidFile xidFile;
+    private XidStatusTable statusTable;
+    private volatile LongConsumer abortHandler;  // 持久化回滚状态之前撤销事务的修改
+
+    // 每次预留的 XID 个数
+    static final long XID_BLOCK = 1 << 16;
+
+    private AtomicLong xidCounter;  // 已分配的最大 XID
+    private volatile long reserved;  // 已持久化的预留上限
+
+    // 以下变量均由 lock 保护
+    private Lock lock;
+    private Condition flushed;  // 有一批状态持久化完成
+    private long xidLimit;  // 请求预留的上限，写盘时作为 XidCounter
+    private long limitSeq = 0;  // 请求预留 xidLimit 时的修改序号
+    private long[] dirty = new long[16];  // 待写盘的事务
+    private byte[] dirtyStatus = new byte[16];  // 待写盘的事务的新状态
+    private int dirtyCount = 0;
+    private long writeSeq = 0;  // 最近一次修改的序号
+    private long durableSeq = 0;  // 已持久化的修改序号
+    private boolean flushing;  // 是否有 leader 正在写盘
 
     TransactionManagerImpl(RandomAccessFile file, FileChannel channel){
-        this.file = file;
-        this.channel = channel;
-        counterLock = new ReentrantLock();
-        checkXIDCounter();
+        this.xidFile = XidFile.open(file, channel);
+        this.statusTable = new XidStatusTable();
+        lock = new ReentrantLock();
+        flushed = lock.newCondition();
+        long counter = xidFile.counter();
+        xidFile.load(statusTable, counter);
+        this.xidCounter = new AtomicLong(counter);
+        this.reserved = counter;
+        this.xidLimit = counter;
     }
 
     /**
-     * 校验XID是否合法：与文件中的前8个字符以及文件长度进行比较
-     * 读取XID_FILE_HEADER中的xidcounter，根据它计算文件的理论长度，对比实际长度
+     * 更新xid事务的状态为status，返回时已经持久化并对状态查询可见
+     * @param xid
+     * @param status
      */
-    private void checkXIDCounter(){
-        long fileLen = 0;
-        try {
-            fileLen = file.length();
-        } catch (IOException e) {
-            Panic.panic(Error.BadXIDFileException);
-        }
-
-        if(fileLen < LEN_XID_HEADER_LENGTH){
-            Panic.panic(Error.BadXIDFileException);
-        }
-
-        ByteBuffer buf = ByteBuffer.allocate(LEN_XID_HEADER_LENGTH);
+    private void updateXidStatus(long xid, byte status){
+        lock.lock();
         try {
-            channel.position(0);
-            channel.read(buf);
-        }catch (IOException e){
-           Panic.panic(e);
-        }
-
-        // 获取事务控制长度 即当前存在的事务总数
-        this.xidCounter = Parser.parseLong(buf.array());
-        long end = getXidPosition(this.xidCounter + 1);
-        if(end != fileLen){
-            Panic.panic(Error.BadXIDFileException);
+            if(xid > xidCounter.get() || xid < 0){
+                Panic.panic(Error.BadXIDFileException);
+            }
+            awaitDurable(markDirty(xid, status));
+        }finally {
+            lock.unlock();
         }
     }
 
     /**
-     * 根据事务xid取得其在xid文件中对应的位置
+     * 预留包含 xid 的 XID 块，返回时预留的上限已经持久化
+     * 同时超出上限的多个线程只有第一个请求新的块，其余线程等待同一次写盘
      * @param xid
-     * @return
      */
-    private long getXidPosition(long xid){
-        return LEN_XID_HEADER_LENGTH + (xid - 1) * XID_FIELD_SIZE;
+    private void reserve(long xid){
+        lock.lock();
+        try {
+            if (xid > xidLimit){
+                xidLimit = xidCounter.get() + XID_BLOCK;
+                limitSeq = ++writeSeq;
+            }
+            awaitDurable(limitSeq);
+        }finally {
+            lock.unlock();
+        }
     }
 
     /**
-     * 更新xid事务的状态为status
+     * 记录 xid 的新状态需要写盘，需持有 lock
      * @param xid
      * @param status
+     * @return 本次修改的序号
      */
-    private void updateXidStatus(long xid, byte status){
-        if(xid > xidCounter || xid < 0){
-            Panic.panic(Error.BadXIDFileException);
-        }
-
-        long offset = getXidPosition(xid);
-        byte[] tmp = new byte[XID_FIELD_SIZE];
-        tmp[0] = status;
-
-        ByteBuffer buf = ByteBuffer.wrap(tmp);
-        try {
-            channel.position(offset);
-            channel.write(buf);
-        } catch (IOException e) {
-            Panic.panic(e);
-        }
-
-        try {
-            channel.force(false);
-        } catch (IOException e) {
-            e.printStackTrace();
+    private long markDirty(long xid, byte status){
+        if (dirtyCount == dirty.length){
+            dirty = Arrays.copyOf(dirty, dirtyCount * 2);
+            dirtyStatus = Arrays.copyOf(dirtyStatus, dirtyCount * 2);
         }
+        dirty[dirtyCount] = xid;
+        dirtyStatus[dirtyCount++] = status;
+        return ++writeSeq;
     }
 
     /**
-     * 将XID加一，并更新XID Header
-     * 设置状态为活跃
+     * 等待序号为 seq 的修改持久化，需持有 lock
+     * 没有写盘在进行时成为 leader，带走当前的脏状态，写盘期间新的修改进入下一批
+     * @param seq
      */
-    private void incrXidCounter(){
-        xidCounter++;
-        ByteBuffer buf = ByteBuffer.wrap(Parser.long2Byte(xidCounter));
-
-        // 更新当前事务数量
-        try {
-            channel.position(0);
-            channel.write(buf);
-        } catch (IOException e) {
-            Panic.panic(e);
-        }
-
-        // 更新初始状态
-        long pos = getXidPosition(xidCounter);
-        byte[] arr = new byte[]{FILE_TRAN_ACTIVE};
-        buf = ByteBuffer.wrap(arr);
-
-        try {
-            channel.position(pos);
-            channel.write(buf);
-        } catch (IOException e) {
-            Panic.panic(e);
+    private void awaitDurable(long seq){
+        while (durableSeq < seq){
+            if (flushing){
+                flushed.awaitUninterruptibly();
+                continue;
+            }
+            flushing = true;
+            long batchSeq = writeSeq;
+            long[] batch = Arrays.copyOf(dirty, dirtyCount);
+            byte[] statuses = Arrays.copyOf(dirtyStatus, dirtyCount);
+            long counter = xidLimit;
+            dirtyCount = 0;
+            lock.unlock();
+            try {
+                writeBatch(batch, statuses, counter);
+            }finally {
+                lock.lock();
+                flushing = false;
+            }
+            // 这一批状态已经持久化，之后才对状态查询可见
+            for (int i = 0; i < batch.length; i++) {
+                statusTable.set(batch[i], statuses[i]);
+            }
+            durableSeq = batchSeq;
+            reserved = counter;
+            flushed.signalAll();
         }
+    }
 
-        // 更新后的数据刷出到磁盘
-        try {
-            channel.force(false);
-        } catch (IOException e) {
-            e.printStackTrace();
+    /**
+     * 将一批事务的状态和 XidCounter 写入映射，只刷盘一次
+     * 宕机时文件头可能与状态不一致：缺少的状态是活跃(begin 本就是 0，commit/abort 尚未返回)，
+     * XidCounter 之后多出的状态在下次打开时被清除
+     * @param batch
+     * @param statuses
+     * @param counter
+     */
+    private void writeBatch(long[] batch, byte[] statuses, long counter){
+        xidFile.ensureCapacity(counter);
+        for (int i = 0; i < batch.length; i++) {
+            xidFile.putStatus(batch[i], statuses[i]);
         }
+        xidFile.setCounter(counter);
+        xidFile.force();
     }
 
     /**
      * 开始一个事务，并返回XID
+     * XID 在已持久化的预留范围内时直接返回，不加锁也不写盘
      * @return
      */
     @Override
     public long begin() {
-        counterLock.lock();
-        try{
-            long xid = xidCounter + 1;
-            incrXidCounter();
-            return xid;
-        }finally {
-            counterLock.unlock();
+        long xid = xidCounter.incrementAndGet();
+        if (xid > reserved){
+            reserve(xid);
         }
+        return xid;
     }
 
     @Override
@@ -174,26 +199,26 @@ public class TransactionManagerImpl implements TransactionManager{
 
     @Override
     public void abort(long xid) {
+        LongConsumer handler = abortHandler;
+        if (handler != null){
+            handler.accept(xid);
+        }
         updateXidStatus(xid, FILE_TRAN_ABORTED);
     }
 
+    @Override
+    public void setAbortHandler(LongConsumer handler) {
+        this.abortHandler = handler;
+    }
+
     /**
-     * 检测XID事务是否处于status状态
+     * 检测XID事务是否处于status状态，直接查询内存中的状态表
      * @param xid
      * @param status
      * @return
      */
     private boolean checkXidStatus(long xid, byte status){
-        long pos = getXidPosition(xid);
-        ByteBuffer buf = ByteBuffer.allocate(XID_FIELD_SIZE);
-        try{
-            channel.position(pos);
-            channel.read(buf);
-        }catch (IOException e){
-            Panic.panic(e);
-        }
-
-        return buf.array()[0] == status;
+        return statusTable.get(xid) == status;
     }
 
     @Override
@@ -214,13 +239,18 @@ public class TransactionManagerImpl implements TransactionManager{
         return checkXidStatus(xid, FILE_TRAN_ABORTED);
     }
 
+    /**
+     * 关闭时将 XidCounter 写回实际分配的最大 XID，下次打开时不跳过未使用的预留
+     */
     @Override
     public void close() {
+        lock.lock();
         try {
-            channel.close();
-            file.close();
-        }catch (IOException e){
-            Panic.panic(e);
+            xidFile.setCounter(xidCounter.get());
+            xidFile.force();
+        }finally {
+            lock.unlock();
         }
+        xidFile.close();
     }
 }
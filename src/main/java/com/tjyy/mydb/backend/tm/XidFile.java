@@ -0,0 +1,278 @@
+package com.tjyy.mydb.backend.tm;
+
+import com.tjyy.mydb.backend.util.Panic;
+import com.tjyy.mydb.common.Error;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * @author: Tjyy
+ * @date: 2024-03-19 09:40
+ * @description: XID 文件
+ * 版本 2 的格式：[Magic] [Version] [XidCounter] [Extent1] [Extent2] ...
+ * Magic 4字节，Version 4字节，XidCounter 8字节；每个事务的状态占 2 bit，一个字节保存 4 个事务，
+ * XID 为 x 的事务位于第 (x - 1) / 4 个字节的第 (x - 1) % 4 * 2 位，与 XidStatusTable 的打包方式一致。
+ * 状态区按 EXTENT_SIZE 字节一段预先扩展，新扩展的区域全为 0，即活跃状态；
+ * 文件头和状态区整体映射为一个 MappedByteBuffer，扩展时重新映射(每 4M 个事务一次)，
+ * 状态的修改只是写映射内存，批量持久化时整批只 force 一次。映射不超过 2GB，最多容纳约 85 亿个事务。
+ *
+ * 没有 Magic 的版本 1 文件(每个事务的状态占 1 字节)不再支持：早期的日志和 DB 文件同样被拒绝打开，
+ * 不会有能与之配套使用的数据库。创建时宕机留下的不完整文件在打开时补全。
+ */
+class XidFile {
+    static final int MAGIC = 0x4D595844;  // "MYXD"
+    static final int VERSION_2 = 2;
+
+    private static final int OF_MAGIC = 0;
+    private static final int OF_VERSION = OF_MAGIC + 4;
+    private static final int OF_COUNTER = OF_VERSION + 4;
+    static final int HEADER_SIZE = OF_COUNTER + 8;
+
+    static final int XIDS_PER_BYTE = 4;
+    static final int EXTENT_SIZE = 1 << 20;  // 每次扩展 1MB，容纳 4M 个事务
+    static final long XIDS_PER_EXTENT = (long) EXTENT_SIZE * XIDS_PER_BYTE;
+    private static final int MAX_EXTENTS = (Integer.MAX_VALUE - HEADER_SIZE) / EXTENT_SIZE;
+
+    private RandomAccessFile file;
+    private FileChannel channel;
+    // 以下变量只由持久化的 leader 或打开、关闭时访问
+    private MappedByteBuffer mapping;  // 文件头和所有已扩展的段
+    private int extents;  // 已扩展的段数
+
+    private XidFile(RandomAccessFile file, FileChannel channel) {
+        this.file = file;
+        this.channel = channel;
+    }
+
+    /**
+     * 在空文件中写入版本 2 的文件头并预留第一个段
+     * @param channel
+     */
+    static void create(FileChannel channel){
+        ByteBuffer buf = ByteBuffer.wrap(emptyHeader());
+        try {
+            while (buf.hasRemaining()){
+                channel.write(buf, buf.position());
+            }
+            channel.truncate(HEADER_SIZE);
+            channel.write(ByteBuffer.wrap(new byte[1]), HEADER_SIZE + EXTENT_SIZE - 1);
+            channel.force(false);
+        }catch (IOException e){
+            Panic.panic(e);
+        }
+    }
+
+    /**
+     * 打开版本 2 的 XID 文件，映射文件头和所有已扩展的段
+     * 创建时宕机可能留下只有部分文件头、或者还没有扩展第一个段的文件，此时还没有分配过任何事务，补全后再打开
+     * @param file
+     * @param channel
+     * @return
+     */
+    static XidFile open(RandomAccessFile file, FileChannel channel){
+        XidFile xidFile = new XidFile(file, channel);
+        long length = xidFile.length();
+        if (length < HEADER_SIZE){
+            if (!xidFile.isHeaderPrefix((int) length)){
+                Panic.panic(Error.UnsupportedXIDFileException);
+            }
+            create(channel);
+            length = xidFile.length();
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        xidFile.read(header);
+        if (header.getInt(OF_MAGIC) != MAGIC || header.getInt(OF_VERSION) != VERSION_2){
+            Panic.panic(Error.UnsupportedXIDFileException);
+        }
+        if (length < HEADER_SIZE + EXTENT_SIZE){
+            if (header.getLong(OF_COUNTER) != 0){
+                Panic.panic(Error.BadXIDFileException);
+            }
+            create(channel);
+            length = xidFile.length();
+        }
+        // 扩展文件时宕机可能留下不完整的最后一段，不完整的部分不会被 XidCounter 覆盖
+        xidFile.remap((int) Math.min((length - HEADER_SIZE) / EXTENT_SIZE, MAX_EXTENTS));
+        if (xidFile.counter() > xidFile.capacity()){
+            Panic.panic(Error.BadXIDFileException);
+        }
+        return xidFile;
+    }
+
+    /**
+     * 空文件的文件头，XidCounter 为 0
+     * @return
+     */
+    private static byte[] emptyHeader(){
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE);
+        buf.putInt(MAGIC);
+        buf.putInt(VERSION_2);
+        buf.putLong(0);
+        return buf.array();
+    }
+
+    /**
+     * 文件中的 length 个字节是否为空文件头的前缀，即创建文件头时宕机留下的内容
+     * @param length
+     * @return
+     */
+    private boolean isHeaderPrefix(int length){
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        read(buf);
+        byte[] expected = emptyHeader();
+        for (int i = 0; i < length; i++) {
+            if (buf.get(i) != expected[i]){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void read(ByteBuffer buf){
+        try {
+            while (buf.hasRemaining()){
+                if (channel.read(buf, buf.position()) < 0){
+                    Panic.panic(Error.BadXIDFileException);
+                }
+            }
+        }catch (IOException e){
+            Panic.panic(e);
+        }
+    }
+
+    /**
+     * 文件头中的 XidCounter，运行期间是已预留的 XID 上限，正常关闭后是实际分配的最大 XID
+     * @return
+     */
+    long counter(){
+        return mapping.getLong(OF_COUNTER);
+    }
+
+    void setCounter(long counter){
+        mapping.putLong(OF_COUNTER, counter);
+    }
+
+    /**
+     * 已扩展的段能容纳的事务数
+     * @return
+     */
+    long capacity(){
+        return extents * XIDS_PER_EXTENT;
+    }
+
+    /**
+     * 将 [1, counter] 的状态读入 table
+     * 状态按 long 整块复制，与 XidStatusTable 的打包方式一致，不需要逐个解码。
+     * 宕机时状态可能比文件头先落盘，counter 之后的事务尚未分配，残留的状态被清零并刷盘，
+     * 否则这些事务之后被分配时，文件头可能先于它们的状态落盘而读到旧状态。
+     * @param table
+     * @param counter
+     */
+    void load(XidStatusTable table, long counter){
+        boolean cleared = false;
+        ByteBuffer statuses = mapping.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        for (int j = HEADER_SIZE; j < statuses.capacity(); j += 8) {
+            long packed = statuses.getLong(j);
+            if (packed == 0){
+                continue;
+            }
+            long xid = (long) (j - HEADER_SIZE) * XIDS_PER_BYTE + 1;
+            long valid = counter - xid + 1;  // 这 32 个事务中已分配的个数
+            if (valid < 32){
+                long kept = valid <= 0 ? 0 : packed & ((1L << (valid * 2)) - 1);
+                if (kept != packed){
+                    statuses.putLong(j, kept);
+                    cleared = true;
+                }
+                packed = kept;
+            }
+            if (packed != 0){
+                table.setPacked(xid, packed);
+            }
+        }
+        if (cleared){
+            force();
+        }
+    }
+
+    /**
+     * 保证文件能容纳 XID 为 counter 的事务，不足时按段扩展并重新映射
+     * 新的段先写入文件末尾并刷盘，之后 XidCounter 才可能覆盖到它
+     * @param counter
+     */
+    void ensureCapacity(long counter){
+        if (counter <= capacity()){
+            return;
+        }
+        long needed = (counter + XIDS_PER_EXTENT - 1) / XIDS_PER_EXTENT;
+        if (needed > MAX_EXTENTS){
+            Panic.panic(Error.BadXIDFileException);
+        }
+        long end = HEADER_SIZE + needed * EXTENT_SIZE;
+        try {
+            if (length() < end){
+                channel.write(ByteBuffer.wrap(new byte[1]), end - 1);
+                channel.force(false);
+            }
+        }catch (IOException e){
+            Panic.panic(e);
+        }
+        remap((int) needed);
+    }
+
+    /**
+     * 映射文件头和前 extents 个段，旧的映射由 GC 回收
+     * @param extents
+     */
+    private void remap(int extents){
+        try {
+            this.mapping = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) extents * EXTENT_SIZE);
+        }catch (IOException e){
+            Panic.panic(e);
+        }
+        this.extents = extents;
+    }
+
+    /**
+     * 修改映射中 xid 的状态，同一字节中其他 3 个事务的状态保持不变
+     * 映射只由组提交的 leader 修改，读-改-写之间不会有并发的写入
+     * @param xid
+     * @param status
+     */
+    void putStatus(long xid, byte status){
+        int index = (int) (HEADER_SIZE + (xid - 1) / XIDS_PER_BYTE);
+        int shift = (int) ((xid - 1) % XIDS_PER_BYTE) * 2;
+        int packed = mapping.get(index) & ~(0b11 << shift) | (status & 0b11) << shift;
+        mapping.put(index, (byte) packed);
+    }
+
+    /**
+     * 将映射上的修改刷盘
+     */
+    void force(){
+        mapping.force();
+    }
+
+    private long length(){
+        try {
+            return channel.size();
+        }catch (IOException e){
+            Panic.panic(e);
+            return 0;
+        }
+    }
+
+    void close(){
+        try {
+            channel.close();
+            file.close();
+        }catch (IOException e){
+            Panic.panic(e);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.tjyy.mydb.backend.tm;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * @author: Tjyy
+ * @date: 2024-03-18 10:30
+ * @description: 内存中的事务状态表
+ * 每个事务的状态占 2 bit，每 32 个事务打包在一个 long 中；表按 CHUNK_XIDS 个事务分块，块按需分配，
+ * 10 亿个事务约占 256MB，不需要一次性分配连续的大数组。
+ * 读写都通过 AtomicLongArray 完成，状态查询不加锁，set 返回后其他线程立即可见。
+ * 从未设置过的事务状态为 0，即 FILE_TRAN_ACTIVE。
+ */
+class XidStatusTable {
+    private static final int CHUNK_SHIFT = 16;
+    static final int CHUNK_XIDS = 1 << CHUNK_SHIFT;  // 每块的事务数
+    private static final int CHUNK_MASK = CHUNK_XIDS - 1;
+    private static final int SLOT_SHIFT = 5;  // 每个 long 保存 32 个事务
+    private static final int SLOT_MASK = (1 << SLOT_SHIFT) - 1;
+    private static final long STATUS_MASK = 3;
+
+    private volatile AtomicLongArray[] chunks = new AtomicLongArray[0];
+
+    /**
+     * 查询事务 xid 的状态，xid 从 1 开始
+     * @param xid
+     * @return
+     */
+    byte get(long xid){
+        long index = xid - 1;
+        int chunk = (int) (index >>> CHUNK_SHIFT);
+        AtomicLongArray[] chunks = this.chunks;
+        if (chunk >= chunks.length){
+            return 0;
+        }
+        int offset = (int) (index & CHUNK_MASK);
+        long slot = chunks[chunk].get(offset >>> SLOT_SHIFT);
+        return (byte) ((slot >>> shift(offset)) & STATUS_MASK);
+    }
+
+    /**
+     * 设置事务 xid 的状态，所在的块不存在时先分配
+     * @param xid
+     * @param status
+     */
+    void set(long xid, byte status){
+        long index = xid - 1;
+        AtomicLongArray chunk = chunk((int) (index >>> CHUNK_SHIFT));
+        int offset = (int) (index & CHUNK_MASK);
+        int slot = offset >>> SLOT_SHIFT;
+        int shift = shift(offset);
+        while (true){
+            long old = chunk.get(slot);
+            long updated = (old & ~(STATUS_MASK << shift)) | ((long) status << shift);
+            if (chunk.compareAndSet(slot, old, updated)){
+                return;
+            }
+        }
+    }
+
+    /**
+     * 一次设置从 xid 开始的 32 个事务的状态，xid - 1 必须是 32 的倍数
+     * @param xid
+     * @param packed 与表中相同的打包格式
+     */
+    void setPacked(long xid, long packed){
+        long index = xid - 1;
+        AtomicLongArray chunk = chunk((int) (index >>> CHUNK_SHIFT));
+        chunk.set((int) (index & CHUNK_MASK) >>> SLOT_SHIFT, packed);
+    }
+
+    private static int shift(int offset){
+        return (offset & SLOT_MASK) << 1;
+    }
+
+    /**
+     * 取得第 index 块，不存在时扩展块数组
+     * @param index
+     * @return
+     */
+    private AtomicLongArray chunk(int index){
+        AtomicLongArray[] chunks = this.chunks;
+        if (index < chunks.length){
+            return chunks[index];
+        }
+        synchronized (this){
+            chunks = this.chunks;
+            if (index >= chunks.length){
+                // 每 CHUNK_XIDS 个事务才扩展一次，只复制块的引用
+                AtomicLongArray[] grown = Arrays.copyOf(chunks, index + 1);
+                for (int i = chunks.length; i <= index; i++) {
+                    grown[i] = new AtomicLongArray(CHUNK_XIDS >>> SLOT_SHIFT);
+                }
+                this.chunks = grown;
+                chunks = grown;
+            }
+            return chunks[index];
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.tjyy.mydb.backend.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * @author: Tjyy
+ * @date: 2024-03-09 10:12
+ * @description: ByteBuffer 的绝对位置批量读写
+ * 不修改 buffer 的 position/limit，堆上的 buffer 直接使用 System.arraycopy
+ */
+public class BufferUtil {
+    /**
+     * 将 src[srcPos, srcPos + length) 写入 buf 的 index 处
+     */
+    public static void put(ByteBuffer buf, int index, byte[] src, int srcPos, int length){
+        if (buf.hasArray()){
+            System.arraycopy(src, srcPos, buf.array(), buf.arrayOffset() + index, length);
+            return;
+        }
+        ByteBuffer dup = buf.duplicate();
+        dup.position(index);
+        dup.put(src, srcPos, length);
+    }
+
+    public static void put(ByteBuffer buf, int index, byte[] src){
+        put(buf, index, src, 0, src.length);
+    }
+
+    /**
+     * 将 buf[index, index + length) 读入 dst 的 dstPos 处
+     */
+    public static void get(ByteBuffer buf, int index, byte[] dst, int dstPos, int length){
+        if (buf.hasArray()){
+            System.arraycopy(buf.array(), buf.arrayOffset() + index, dst, dstPos, length);
+            return;
+        }
+        ByteBuffer dup = buf.duplicate();
+        dup.position(index);
+        dup.get(dst, dstPos, length);
+    }
+
+    /**
+     * 读取 buf[from, to) 为一个新数组
+     */
+    public static byte[] copyOfRange(ByteBuffer buf, int from, int to){
+        byte[] dst = new byte[to - from];
+        get(buf, from, dst, 0, dst.length);
+        return dst;
+    }
+
+    /**
+     * 在同一个 buffer 内移动 [from, from + length) 到 to，区间可以重叠
+     */
+    public static void move(ByteBuffer buf, int from, int to, int length){
+        if (buf.hasArray()){
+            System.arraycopy(buf.array(), buf.arrayOffset() + from, buf.array(), buf.arrayOffset() + to, length);
+            return;
+        }
+        put(buf, to, copyOfRange(buf, from, from + length));
+    }
+
+    /**
+     * 截取 buf[index, index + length) 的视图，与原 buffer 共享内容
+     */
+    public static ByteBuffer slice(ByteBuffer buf, int index, int length){
+        ByteBuffer dup = buf.duplicate();
+        dup.position(index);
+        dup.limit(index + length);
+        return dup.slice();
+    }
+}
@@ -8,18 +8,24 @@ package com.tjyy.mydb.common;
 public class Error {
     // common
     public static final Exception CacheFullException = new RuntimeException("Cache is full!");
+    public static final Exception CacheClosedException = new RuntimeException("Cache is closed!");
     public static final Exception FileExistsException = new RuntimeException("File already exists!");
     public static final Exception FileNotExistsException = new RuntimeException("File does not exists!");
     public static final Exception FileCannotRWException = new RuntimeException("File cannot read or write!");
 
     // dm
     public static final Exception BadLogFileException = new RuntimeException("Bad log file!");
+    public static final Exception UnsupportedLogFileException = new RuntimeException("Log file of an unsupported format!");
     public static final Exception MemTooSmallException = new RuntimeException("Memory too small!");
     public static final Exception DataTooLargeException = new RuntimeException("Data too large!");
     public static final Exception DatabaseBusyException = new RuntimeException("Database is busy!");
+    public static final Exception BadOverflowValueException = new RuntimeException("Bad overflow value!");
+    public static final Exception PageFullException = new RuntimeException("No room for the record in its page!");
+    public static final Exception UnsupportedPageLayoutException = new RuntimeException("DB file of an unsupported page layout!");
 
     // tm
     public static final Exception BadXIDFileException = new RuntimeException("Bad XID file!");
+    public static final Exception UnsupportedXIDFileException = new RuntimeException("XID file of an unsupported format!");
 
     // vm
     public static final Exception DeadlockException = new RuntimeException("Deadlock!");
@@ -0,0 +1,35 @@
+package com.tjyy.mydb;
+
+import java.io.File;
+
+/**
+ * @author: Tjyy
+ * @date: 2024-03-27 10:00
+ * @description: 测试和基准测试使用的临时文件
+ * 临时路径位于系统临时目录下，各模块在路径后加上自己的后缀(.db/.log/.xid/.fsm 等)创建文件。
+ */
+public class TempFiles {
+
+    /**
+     * 以 prefix 开头、不与其他测试重复的临时路径
+     * @param prefix
+     * @return
+     */
+    public static String path(String prefix) {
+        return new File(System.getProperty("java.io.tmpdir"), prefix + System.nanoTime()).getPath();
+    }
+
+    /**
+     * 删除以 path 为前缀创建的所有文件
+     * @param path
+     */
+    public static void delete(String path) {
+        File file = new File(path);
+        File[] files = file.getParentFile().listFiles((dir, name) -> name.startsWith(file.getName() + "."));
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.tjyy.mydb.common;
+
+import com.tjyy.mydb.backend.common.AbstractCache;
+import com.tjyy.mydb.backend.common.ClockPolicy;
+import org.junit.Test;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * @author: Tjyy
+ * @date: 2024-03-07 14:20
+ * @description: AbstractCache 簿记结构的分配与 GC 压力基准测试
+ * 对比 CacheTable 与原先 HashMap<Long, T> / HashMap<Long, Integer> 簿记方式，
+ * 统计每次 get+release 在当前线程上分配的字节数以及期间发生的 GC 次数。
+ * 运行方式: mvn test -Dtest=CacheAllocationBenchmark
+ */
+public class CacheAllocationBenchmark {
+    private static final int KEYS = 4096;  // 超出 Long.valueOf 的缓存区间，旧实现每次都需要装箱
+    private static final int OPS = 5_000_000;
+
+    static class PageLikeCache extends AbstractCache<Object> {
+        PageLikeCache() {
+            super(KEYS, 1, ClockPolicy::new);
+        }
+
+        Object pin(long key) throws Exception {
+            return get(key);
+        }
+
+        void unpin(long key) {
+            release(key);
+        }
+
+        @Override
+        protected Object getForCache(long key) {
+            return new Object();
+        }
+
+        @Override
+        protected void releaseForCache(Object obj) {
+        }
+    }
+
+    /**
+     * 原先 AbstractCache 命中路径上的簿记操作
+     */
+    static class BoxedBookkeeping {
+        HashMap<Long, Object> cache = new HashMap<>();
+        HashMap<Long, Integer> references = new HashMap<>();
+        Lock lock = new ReentrantLock();
+
+        Object pin(long key) {
+            lock.lock();
+            try {
+                references.put(key, references.get(key) + 1);
+                return cache.get(key);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void unpin(long key) {
+            lock.lock();
+            try {
+                references.put(key, references.get(key) - 1);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    @Test
+    public void benchmarkAllocation() throws Exception {
+        PageLikeCache cache = new PageLikeCache();
+        BoxedBookkeeping boxed = new BoxedBookkeeping();
+        for (long key = KEYS; key < 2 * KEYS; key++) {
+            cache.pin(key);
+            cache.unpin(key);
+            boxed.cache.put(key, new Object());
+            boxed.references.put(key, 0);
+        }
+
+        // 预热，让 JIT 编译热点路径
+        for (int round = 0; round < 3; round++) {
+            measure("warm-up CacheTable", () -> runCache(cache), false);
+            measure("warm-up HashMap", () -> runBoxed(boxed), false);
+        }
+        measure("CacheTable", () -> runCache(cache), true);
+        measure("HashMap<Long, ...>", () -> runBoxed(boxed), true);
+    }
+
+    private void runCache(PageLikeCache cache) throws Exception {
+        for (int i = 0; i < OPS; i++) {
+            long key = KEYS + (i * 31 & (KEYS - 1));
+            cache.pin(key);
+            cache.unpin(key);
+        }
+    }
+
+    private void runBoxed(BoxedBookkeeping boxed) {
+        for (int i = 0; i < OPS; i++) {
+            long key = KEYS + (i * 31 & (KEYS - 1));
+            boxed.pin(key);
+            boxed.unpin(key);
+        }
+    }
+
+    interface Body {
+        void run() throws Exception;
+    }
+
+    private void measure(String name, Body body, boolean print) throws Exception {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long gcBefore = gcCount();
+        long bytesBefore = threads.getThreadAllocatedBytes(threadId);
+        long begin = System.nanoTime();
+        body.run();
+        long elapsed = System.nanoTime() - begin;
+        long bytes = threads.getThreadAllocatedBytes(threadId) - bytesBefore;
+        long gcs = gcCount() - gcBefore;
+        if (print) {
+            System.out.printf("%-20s %10d ops/s  %8.2f bytes/op  %d GCs%n",
+                    name, OPS * 1_000_000_000L / elapsed, (double) bytes / OPS, gcs);
+        }
+    }
+
+    private long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+}
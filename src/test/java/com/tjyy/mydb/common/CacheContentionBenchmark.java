@@ -0,0 +1,92 @@
+package com.tjyy.mydb.common;
+
+import com.tjyy.mydb.backend.common.AbstractCache;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * @author: Tjyy
+ * @date: 2024-03-05 15:40
+ * @description: AbstractCache 锁竞争基准测试
+ * 比较单段(全局锁)与分段缓存在 1 ~ 32 个线程下 get/release 的吞吐量
+ * 运行方式: mvn test -Dtest=CacheContentionBenchmark
+ */
+public class CacheContentionBenchmark {
+    private static final int KEYS = 4096;
+    private static final int OPS_PER_THREAD = 200_000;
+    private static final int[] THREADS = {1, 2, 4, 8, 16, 32};
+
+    static class BenchCache extends AbstractCache<Long> {
+        BenchCache(int concurrencyLevel) {
+            super(0, concurrencyLevel);
+        }
+
+        Long pin(long key) throws Exception {
+            return get(key);
+        }
+
+        void unpin(long key) {
+            release(key);
+        }
+
+        @Override
+        protected Long getForCache(long key) {
+            return key;
+        }
+
+        @Override
+        protected void releaseForCache(Long obj) {
+        }
+    }
+
+    @Test
+    public void benchmarkContention() throws Exception {
+        System.out.println("threads\tsegments=1 (ops/s)\tsegments=16 (ops/s)");
+        for (int threads : THREADS) {
+            long global = run(1, threads);
+            long sharded = run(16, threads);
+            System.out.println(threads + "\t" + global + "\t" + sharded);
+        }
+    }
+
+    /**
+     * 预先固定所有 key，使其常驻缓存，之后各线程随机 get/release
+     * @param concurrencyLevel
+     * @param threads
+     * @return 每秒完成的 get+release 次数
+     */
+    private long run(int concurrencyLevel, int threads) throws Exception {
+        BenchCache cache = new BenchCache(concurrencyLevel);
+        for (long key = 0; key < KEYS; key++) {
+            cache.pin(key);
+        }
+
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                try {
+                    start.await();
+                    for (int op = 0; op < OPS_PER_THREAD; op++) {
+                        long key = random.nextInt(KEYS);
+                        cache.pin(key);
+                        cache.unpin(key);
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - begin;
+        return (long) threads * OPS_PER_THREAD * 1_000_000_000L / elapsed;
+    }
+}
@@ -0,0 +1,277 @@
+package com.tjyy.mydb.common;
+
+import com.tjyy.mydb.backend.common.AbstractCache;
+import com.tjyy.mydb.backend.common.ClockPolicy;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author: Tjyy
+ * @date: 2024-03-05 10:12
+ * @description: test abstract cache
+ */
+public class TestAbstractCache {
+    private static final int threadCount = 16;
+
+    /**
+     * 加载时间较长的缓存，用于观察同一个 key 的并发请求
+     */
+    static class SlowCache extends AbstractCache<Long> {
+        AtomicInteger loads = new AtomicInteger(0);
+        volatile boolean fail = false;
+
+        SlowCache() {
+            super(0);
+        }
+
+        Long load(long key) throws Exception {
+            return get(key);
+        }
+
+        @Override
+        protected Long getForCache(long key) throws Exception {
+            loads.incrementAndGet();
+            Thread.sleep(50);
+            if (fail) {
+                throw new RuntimeException("load failed");
+            }
+            return key * 10;
+        }
+
+        @Override
+        protected void releaseForCache(Long obj) {
+        }
+    }
+
+    /**
+     * 多个线程同时请求同一个资源，只会触发一次加载
+     */
+    @Test
+    public void testConcurrentGetLoadsOnce() throws Exception {
+        SlowCache cache = new SlowCache();
+        CountDownLatch latch = new CountDownLatch(threadCount);
+        AtomicInteger hits = new AtomicInteger(0);
+
+        for (int i = 0; i < threadCount; i++) {
+            new Thread(() -> {
+                try {
+                    if (cache.load(7) == 70L) {
+                        hits.incrementAndGet();
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    latch.countDown();
+                }
+            }).start();
+        }
+        latch.await();
+
+        System.out.println("加载次数: " + cache.loads.get() + ", 成功获取: " + hits.get());
+        assertEquals(1, cache.loads.get());
+        assertEquals(threadCount, hits.get());
+    }
+
+    /**
+     * 加载失败时，等待同一资源的线程也会被唤醒并收到异常
+     */
+    @Test
+    public void testFailedLoadWakesWaiters() throws Exception {
+        SlowCache cache = new SlowCache();
+        cache.fail = true;
+        CountDownLatch latch = new CountDownLatch(threadCount);
+        AtomicInteger failures = new AtomicInteger(0);
+
+        for (int i = 0; i < threadCount; i++) {
+            new Thread(() -> {
+                try {
+                    cache.load(9);
+                } catch (Exception e) {
+                    failures.incrementAndGet();
+                } finally {
+                    latch.countDown();
+                }
+            }).start();
+        }
+        latch.await();
+
+        System.out.println("加载次数: " + cache.loads.get() + ", 失败: " + failures.get());
+        assertEquals(threadCount, failures.get());
+    }
+
+    /**
+     * 等待同一资源加载的线程被中断时抛出 InterruptedException，并保留中断标记
+     */
+    @Test
+    public void testInterruptedWaiter() throws Exception {
+        SlowCache cache = new SlowCache();
+        Thread loader = new Thread(() -> {
+            try {
+                cache.load(3);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        loader.start();
+        while (cache.loads.get() == 0) {
+            Thread.sleep(1);
+        }
+
+        AtomicInteger result = new AtomicInteger(0);
+        Thread waiter = new Thread(() -> {
+            try {
+                cache.load(3);
+                result.set(1);
+            } catch (InterruptedException e) {
+                result.set(Thread.currentThread().isInterrupted() ? 2 : 3);
+            } catch (Exception e) {
+                result.set(4);
+            }
+        });
+        waiter.start();
+        Thread.sleep(10);
+        waiter.interrupt();
+        waiter.join();
+        loader.join();
+        assertEquals(2, result.get());
+    }
+
+    /**
+     * 有容量上限、带驱逐策略的缓存，写回时可以被阻塞住，用于观察写回期间其他请求的行为
+     */
+    static class BoundedCache extends AbstractCache<Long> {
+        volatile CountDownLatch writing = null;
+        CountDownLatch written = new CountDownLatch(1);
+        volatile CountDownLatch loading = null;
+        CountDownLatch loadStarted = new CountDownLatch(1);
+
+        BoundedCache(int maxResource) {
+            super(maxResource, 1, ClockPolicy::new);
+        }
+
+        Long load(long key) throws Exception {
+            return get(key);
+        }
+
+        void unpin(long key) {
+            release(key);
+        }
+
+        void shutdown() {
+            close();
+        }
+
+        @Override
+        protected Long getForCache(long key) throws Exception {
+            CountDownLatch latch = loading;
+            if (latch != null) {
+                loadStarted.countDown();
+                latch.await();
+            }
+            return key * 10;
+        }
+
+        @Override
+        protected void releaseForCache(Long obj) {
+            CountDownLatch latch = writing;
+            if (latch != null) {
+                written.countDown();
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * 同一个线程引用的资源超过段容量时，等待有限时间后抛出 CacheFullException，而不是永远阻塞
+     */
+    @Test(timeout = 10000)
+    public void testFullSegmentFails() throws Exception {
+        BoundedCache cache = new BoundedCache(4);
+        for (long key = 0; key < 4; key++) {
+            cache.load(key);
+        }
+        try {
+            cache.load(4);
+            fail();
+        } catch (Exception e) {
+            assertSame(Error.CacheFullException, e);
+        }
+        cache.unpin(0);
+        assertEquals(40L, (long) cache.load(4));
+    }
+
+    /**
+     * 牺牲者在段锁之外写回：写回期间其他资源仍可命中
+     */
+    @Test(timeout = 10000)
+    public void testWriteBackOutsideLock() throws Exception {
+        BoundedCache cache = new BoundedCache(2);
+        cache.load(1);
+        cache.unpin(1);
+        cache.load(2);
+        cache.writing = new CountDownLatch(1);
+
+        Thread evictor = new Thread(() -> {
+            try {
+                cache.load(3);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        evictor.start();
+        assertTrue(cache.written.await(5, TimeUnit.SECONDS));
+        // 牺牲者正在写回，同一段上的命中不被阻塞
+        assertEquals(20L, (long) cache.load(2));
+        cache.writing.countDown();
+        evictor.join();
+        assertEquals(30L, (long) cache.load(3));
+    }
+
+    /**
+     * 关闭时正在加载的资源被移出缓存，加载线程之后结束时收到 CacheClosedException，段内计数不受影响
+     */
+    @Test(timeout = 10000)
+    public void testCloseDuringLoad() throws Exception {
+        BoundedCache cache = new BoundedCache(2);
+        CountDownLatch latch = new CountDownLatch(1);
+        cache.loading = latch;
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        Thread loader = new Thread(() -> {
+            try {
+                cache.load(1);
+            } catch (Exception e) {
+                failure.set(e);
+            }
+        });
+        loader.start();
+        assertTrue(cache.loadStarted.await(5, TimeUnit.SECONDS));
+        cache.shutdown();
+        cache.loading = null;
+        latch.countDown();
+        loader.join();
+        assertSame(Error.CacheClosedException, failure.get());
+
+        // 段内计数归零，正好能再放下两个被引用的资源
+        assertEquals(50L, (long) cache.load(5));
+        assertEquals(60L, (long) cache.load(6));
+        try {
+            cache.load(7);
+            fail();
+        } catch (Exception e) {
+            assertSame(Error.CacheFullException, e);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.tjyy.mydb.common;
+
+import com.tjyy.mydb.backend.common.CacheTable;
+import com.tjyy.mydb.backend.common.LongIntHashMap;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author: Tjyy
+ * @date: 2024-03-07 11:15
+ * @description: test primitive tables
+ */
+public class TestCacheTable {
+
+    /**
+     * 随机插入、删除，与 HashMap 的结果对比，覆盖回移删除与扩容
+     */
+    @Test
+    public void testAgainstHashMap() {
+        Random random = new Random(1223);
+        CacheTable table = new CacheTable(4);
+        LongIntHashMap ints = new LongIntHashMap(4);
+        Map<Long, Integer> expected = new HashMap<>();
+
+        for (int i = 0; i < 200_000; i++) {
+            long key = random.nextInt(2048) * (1L << 32) + random.nextInt(64);
+            int slot = table.find(key);
+            if (expected.containsKey(key)) {
+                assertEquals(expected.get(key).intValue(), table.references(slot));
+                assertEquals(expected.get(key).intValue(), ints.get(key));
+                if (random.nextBoolean()) {
+                    table.remove(slot);
+                    assertEquals(expected.remove(key).intValue(), ints.remove(key));
+                }
+            } else {
+                assertEquals(-1, slot);
+                assertEquals(LongIntHashMap.MISSING, ints.get(key));
+                int value = random.nextInt(1000);
+                slot = table.insert(key, CacheTable.RESIDENT, key);
+                table.setReferences(slot, value);
+                ints.put(key, value);
+                expected.put(key, value);
+            }
+        }
+
+        assertEquals(expected.size(), table.size());
+        assertEquals(expected.size(), ints.size());
+        for (Map.Entry<Long, Integer> entry : expected.entrySet()) {
+            int slot = table.find(entry.getKey());
+            assertEquals(entry.getKey(), table.value(slot));
+            assertEquals(entry.getValue().intValue(), table.references(slot));
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.tjyy.mydb.common;
+
+import com.tjyy.mydb.backend.common.ClockPolicy;
+import com.tjyy.mydb.backend.common.EvictionPolicy;
+import com.tjyy.mydb.backend.common.LruKPolicy;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author: Tjyy
+ * @date: 2024-03-06 14:30
+ * @description: test eviction policy
+ */
+public class TestEvictionPolicy {
+
+    /**
+     * 被引用的资源不会被驱逐，访问位给予第二次机会
+     */
+    @Test
+    public void testClock() {
+        EvictionPolicy policy = new ClockPolicy(3);
+        for (long key = 1; key <= 3; key++) {
+            policy.admit(key);
+        }
+        assertEquals(EvictionPolicy.NO_VICTIM, policy.evict());
+
+        for (long key = 1; key <= 3; key++) {
+            policy.unpinned(key);
+        }
+        // 第一圈清除所有访问位，第二圈驱逐 1
+        assertEquals(1, policy.evict());
+
+        // 2 再次被访问获得第二次机会，指针越过 2 驱逐 3
+        policy.access(2);
+        assertEquals(3, policy.evict());
+        assertEquals(2, policy.evict());
+    }
+
+    /**
+     * 只被访问过一次的资源先于热点资源被驱逐
+     */
+    @Test
+    public void testLruK() {
+        EvictionPolicy policy = new LruKPolicy(3);
+        policy.admit(1);
+        policy.access(1);
+        policy.admit(2);
+        policy.admit(3);
+        policy.access(3);
+        for (long key = 1; key <= 3; key++) {
+            policy.unpinned(key);
+        }
+
+        assertEquals(2, policy.evict());
+        assertEquals(1, policy.evict());
+        assertEquals(3, policy.evict());
+        assertEquals(EvictionPolicy.NO_VICTIM, policy.evict());
+    }
+
+    /**
+     * 随机的加入、访问、引用、释放和移出之后，堆选出的牺牲者与逐个比较候选者选出的一致
+     */
+    @Test
+    public void testLruKMatchesScan() {
+        int capacity = 64;
+        int k = 2;
+        EvictionPolicy policy = new LruKPolicy(capacity, k);
+        Map<Long, long[]> history = new HashMap<>();  // 最近 k 次访问时间，首个为最近一次
+        Set<Long> candidates = new HashSet<>();
+        long clock = 0;
+        long nextKey = 1;
+        Random random = new Random(42);
+        for (int i = 0; i < 100_000; i++) {
+            int op = random.nextInt(6);
+            List<Long> keys = new ArrayList<>(history.keySet());
+            if (op == 0 && history.size() < capacity) {
+                long key = nextKey++;
+                policy.admit(key);
+                long[] times = new long[k];
+                times[0] = ++clock;
+                history.put(key, times);
+            } else if (keys.isEmpty()) {
+                continue;
+            } else if (op == 1) {
+                long key = keys.get(random.nextInt(keys.size()));
+                policy.access(key);
+                long[] times = history.get(key);
+                System.arraycopy(times, 0, times, 1, k - 1);
+                times[0] = ++clock;
+            } else if (op == 2) {
+                long key = keys.get(random.nextInt(keys.size()));
+                policy.unpinned(key);
+                candidates.add(key);
+            } else if (op == 3) {
+                long key = keys.get(random.nextInt(keys.size()));
+                policy.pinned(key);
+                candidates.remove(key);
+            } else if (op == 4) {
+                long key = keys.get(random.nextInt(keys.size()));
+                policy.remove(key);
+                history.remove(key);
+                candidates.remove(key);
+            } else {
+                long expected = EvictionPolicy.NO_VICTIM;
+                for (long key : candidates) {
+                    long[] times = history.get(key);
+                    if (expected == EvictionPolicy.NO_VICTIM) {
+                        expected = key;
+                        continue;
+                    }
+                    long[] best = history.get(expected);
+                    if (times[k - 1] < best[k - 1] || (times[k - 1] == best[k - 1] && times[0] < best[0])) {
+                        expected = key;
+                    }
+                }
+                assertEquals(expected, policy.evict());
+                history.remove(expected);
+                candidates.remove(expected);
+            }
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.tjyy.mydb.dm;
+
+import com.tjyy.mydb.TempFiles;
+import com.tjyy.mydb.backend.dm.BulkLoader;
+import com.tjyy.mydb.backend.dm.DataManager;
+import com.tjyy.mydb.backend.tm.TransactionManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author: Tjyy
+ * @date: 2024-03-21 14:00
+ * @description: 批量导入基准测试
+ * 导入 ROWS 行 100 字节的数据，比较离线 BulkLoader 与 DataManager.insertBatch 的吞吐量，并按 DB 文件大小折算 MB/s
+ * 运行方式: mvn test -Dtest=BulkLoadBenchmark
+ */
+public class BulkLoadBenchmark {
+    private static final long memory = 1 << 13 << 10;
+    private static final int ROWS = 2_000_000;
+    private static final int ROW = 100;
+    private static final int BATCH = 1000;
+
+    private String path;
+
+    @Before
+    public void setUp() {
+        path = TempFiles.path("bulk_bench_");
+    }
+
+    @After
+    public void tearDown() {
+        TempFiles.delete(path);
+    }
+
+    @Test
+    public void benchmarkLoad() throws Exception {
+        byte[] row = new byte[ROW];
+        System.out.println("method\trows/s\tMB/s");
+
+        long begin = System.nanoTime();
+        BulkLoader loader = BulkLoader.create(path);
+        for (int i = 0; i < ROWS; i++) {
+            loader.add(row);
+        }
+        loader.close();
+        report("BulkLoader", System.nanoTime() - begin);
+        TempFiles.delete(path);
+
+        List<byte[]> rows = new ArrayList<>();
+        for (int i = 0; i < BATCH; i++) {
+            rows.add(row);
+        }
+        begin = System.nanoTime();
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, memory, tm);
+        long xid = tm.begin();
+        for (int i = 0; i < ROWS; i += BATCH) {
+            dm.insertBatch(xid, rows);
+        }
+        tm.commit(xid);
+        dm.close();
+        tm.close();
+        report("insertBatch", System.nanoTime() - begin);
+    }
+
+    private void report(String method, long elapsed) {
+        long bytes = new File(path + ".db").length();
+        System.out.println(method + "\t" + ROWS * 1_000_000_000L / elapsed + "\t" + bytes * 1000L / elapsed);
+    }
+}
@@ -0,0 +1,133 @@
+package com.tjyy.mydb.dm;
+
+import com.tjyy.mydb.TempFiles;
+import com.tjyy.mydb.backend.dm.DataManager;
+import com.tjyy.mydb.backend.dm.DataManagerImpl;
+import com.tjyy.mydb.backend.tm.TransactionManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * @author: Tjyy
+ * @date: 2024-03-20 15:00
+ * @description: 并发插入基准测试
+ * 64 个线程各自在一个事务中插入 100 字节的行，比较关闭插入缓冲(每次插入都从 PageIndex 选页)
+ * 与按线程分段追加时的吞吐量和使用的页数，每种配置先运行一轮预热；
+ * 另外比较单线程逐行插入与每批 BATCH 行批量插入的吞吐量
+ * 运行方式: mvn test -Dtest=InsertBenchmark
+ */
+public class InsertBenchmark {
+    private static final long memory = 1 << 13 << 10;
+    private static final int WRITERS = 64;
+    private static final int ROWS_PER_WRITER = 5_000;
+    private static final int ROW = 100;
+    private static final int[] STRIPES = {0, 16, 64};
+    private static final int BATCH = 1000;
+    private static final int BATCH_ROWS = 200_000;
+
+    private String path;
+
+    @Before
+    public void setUp() {
+        path = TempFiles.path("insert_bench_");
+    }
+
+    @After
+    public void tearDown() {
+        TempFiles.delete(path);
+    }
+
+    @Test
+    public void benchmarkInsert() throws Exception {
+        for (int stripes : STRIPES) {
+            run(stripes);
+        }
+        System.out.println("stripes\tinserts/s\tpages");
+        for (int stripes : STRIPES) {
+            System.out.println(stripes + "\t" + run(stripes));
+        }
+    }
+
+    @Test
+    public void benchmarkInsertBatch() throws Exception {
+        for (int round = 0; round < 2; round++) {
+            long single = runSingleThread(false);
+            long batch = runSingleThread(true);
+            if (round > 0) {
+                System.out.println("insert rows/s\t" + single);
+                System.out.println("insertBatch rows/s\t" + batch);
+            }
+        }
+    }
+
+    private long runSingleThread(boolean batch) throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, memory, tm);
+        byte[] row = new byte[ROW];
+        List<byte[]> rows = new ArrayList<>();
+        for (int i = 0; i < BATCH; i++) {
+            rows.add(row);
+        }
+
+        long begin = System.nanoTime();
+        long xid = tm.begin();
+        for (int i = 0; i < BATCH_ROWS; i += BATCH) {
+            if (batch) {
+                dm.insertBatch(xid, rows);
+            } else {
+                for (int j = 0; j < BATCH; j++) {
+                    dm.insert(xid, row);
+                }
+            }
+        }
+        tm.commit(xid);
+        long elapsed = System.nanoTime() - begin;
+        dm.close();
+        tm.close();
+        TempFiles.delete(path);
+        return BATCH_ROWS * 1_000_000_000L / elapsed;
+    }
+
+    private String run(int stripes) throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, memory, tm);
+        ((DataManagerImpl) dm).setInsertStripes(stripes);
+
+        Set<Integer> pages = ConcurrentHashMap.newKeySet();
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(WRITERS);
+        for (int w = 0; w < WRITERS; w++) {
+            new Thread(() -> {
+                try {
+                    start.await();
+                    byte[] row = new byte[ROW];
+                    long xid = tm.begin();
+                    for (int i = 0; i < ROWS_PER_WRITER; i++) {
+                        pages.add((int) (dm.insert(xid, row) >>> 32));
+                    }
+                    tm.commit(xid);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - begin;
+        dm.close();
+        tm.close();
+        TempFiles.delete(path);
+        return (long) WRITERS * ROWS_PER_WRITER * 1_000_000_000L / elapsed + "\t" + pages.size();
+    }
+}
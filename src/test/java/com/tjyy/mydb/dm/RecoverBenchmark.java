@@ -0,0 +1,95 @@
+package com.tjyy.mydb.dm;
+
+import com.tjyy.mydb.TempFiles;
+import com.tjyy.mydb.backend.dm.DataManager;
+import com.tjyy.mydb.backend.dm.DataManagerImpl;
+import com.tjyy.mydb.backend.dm.Recover;
+import com.tjyy.mydb.backend.dm.logger.Logger;
+import com.tjyy.mydb.backend.dm.pageCache.PageCache;
+import com.tjyy.mydb.backend.tm.TransactionManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * @author: Tjyy
+ * @date: 2024-03-17 16:00
+ * @description: 恢复耗时基准测试
+ * 写入约 20MB 日志后模拟崩溃，对同一份崩溃现场分别用 1、2、4、8 个 redo 线程恢复并统计耗时，第一轮用于预热不计入结果
+ * 运行方式: mvn test -Dtest=RecoverBenchmark
+ */
+public class RecoverBenchmark {
+    private static final long memory = 1 << 13 << 8;
+    private static final int RECORDS = 100_000;
+    private static final int RECORD = 200;
+    private static final int[] THREADS = {1, 2, 4, 8};
+
+    private String path;
+
+    @Before
+    public void setUp() {
+        path = TempFiles.path("recover_bench_");
+    }
+
+    @After
+    public void tearDown() {
+        TempFiles.delete(path);
+        for (int round = 0; round < 2; round++) {
+            for (int threads : THREADS) {
+                TempFiles.delete(path + "_" + round + "_" + threads);
+            }
+        }
+    }
+
+    @Test
+    public void benchmarkRedo() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, memory, tm);
+        byte[] data = new byte[RECORD];
+        for (int i = 0; i < RECORDS; i += 100) {
+            long xid = tm.begin();
+            for (int j = 0; j < 100; j++) {
+                dm.insert(xid, data);
+            }
+            tm.commit(xid);
+        }
+        // 停止 dm 的后台线程但不关闭，模拟崩溃，之后复制出的现场都相同
+        ((DataManagerImpl) dm).halt();
+
+        System.out.println("threads\trecover ms");
+        for (int round = 0; round < 2; round++) {
+            for (int threads : THREADS) {
+                recover(path + "_" + round + "_" + threads, threads, round > 0);
+            }
+        }
+    }
+
+    private void recover(String copy, int threads, boolean report) throws Exception {
+        copyFiles(path, copy);
+        TransactionManager recoveredTm = TransactionManager.open(copy);
+        PageCache pageCache = PageCache.open(copy, memory);
+        Logger logger = Logger.open(copy);
+        long begin = System.nanoTime();
+        Recover.recover(recoveredTm, logger, pageCache, threads);
+        pageCache.flushAll();
+        long elapsed = System.nanoTime() - begin;
+        pageCache.close();
+        logger.close();
+        recoveredTm.close();
+        if (report) {
+            System.out.println(threads + "\t" + elapsed / 1_000_000);
+        }
+    }
+
+    private static void copyFiles(String from, String to) throws Exception {
+        File file = new File(from);
+        File[] files = file.getParentFile().listFiles((dir, name) -> name.startsWith(file.getName() + "."));
+        for (File f : files) {
+            Files.copy(f.toPath(), Paths.get(to + f.getName().substring(file.getName().length())));
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.tjyy.mydb.dm;
+
+import com.tjyy.mydb.TempFiles;
+import com.tjyy.mydb.backend.common.SubArray;
+import com.tjyy.mydb.backend.dm.BulkLoader;
+import com.tjyy.mydb.backend.dm.DataManager;
+import com.tjyy.mydb.backend.dm.dataitem.DataItem;
+import com.tjyy.mydb.backend.dm.logger.Logger;
+import com.tjyy.mydb.backend.tm.TransactionManager;
+import com.tjyy.mydb.backend.util.Parser;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author: Tjyy
+ * @date: 2024-03-21 11:00
+ * @description: test bulk loader
+ */
+public class TestBulkLoader {
+    private static final long memory = 1 << 13 << 6;
+
+    private String path;
+
+    @Before
+    public void setUp() {
+        path = TempFiles.path("bulk_");
+    }
+
+    @After
+    public void tearDown() {
+        TempFiles.delete(path);
+    }
+
+    /**
+     * 导入后的数据库是正常关闭的状态：事务已提交，检查点已写入，DataManager 打开后能读到所有数据并继续插入
+     */
+    @Test
+    public void testLoadThenOpen() throws Exception {
+        BulkLoader loader = BulkLoader.create(path);
+        long[] uids = new long[20_000];
+        for (int i = 0; i < uids.length; i++) {
+            uids[i] = loader.add(row(i));
+        }
+        long xid = loader.xid();
+        loader.close();
+        assertTrue(new File(path + ".db").length() > 20_000L * 100);
+
+        Logger logger = Logger.open(path);
+        assertTrue(logger.getCheckpoint() > 0);
+        logger.close();
+
+        TransactionManager tm = TransactionManager.open(path);
+        assertTrue(tm.isCommitted(xid));
+        DataManager dm = DataManager.open(path, memory, tm);
+        for (int i = 0; i < uids.length; i++) {
+            assertArrayEquals(row(i), read(dm, uids[i]));
+        }
+        long xid2 = tm.begin();
+        assertEquals(xid + 1, xid2);
+        long uid = dm.insert(xid2, row(-1));
+        tm.commit(xid2);
+        dm.close();
+        tm.close();
+
+        tm = TransactionManager.open(path);
+        dm = DataManager.open(path, memory, tm);
+        assertArrayEquals(row(-1), read(dm, uid));
+        assertArrayEquals(row(uids.length - 1), read(dm, uids[uids.length - 1]));
+        dm.close();
+        tm.close();
+    }
+
+    private static byte[] row(int i) {
+        byte[] row = new byte[100];
+        System.arraycopy(Parser.int2Byte(i), 0, row, 0, 4);
+        return row;
+    }
+
+    private static byte[] read(DataManager dm, long uid) throws Exception {
+        DataItem item = dm.read(uid);
+        SubArray data = item.data();
+        byte[] bytes = Arrays.copyOfRange(data.raw, data.start, data.end);
+        item.release();
+        return bytes;
+    }
+}
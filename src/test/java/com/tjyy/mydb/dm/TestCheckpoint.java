@@ -0,0 +1,129 @@
+package com.tjyy.mydb.dm;
+
+import com.tjyy.mydb.TempFiles;
+import com.tjyy.mydb.backend.common.SubArray;
+import com.tjyy.mydb.backend.dm.DataManager;
+import com.tjyy.mydb.backend.dm.dataitem.DataItem;
+import com.tjyy.mydb.backend.dm.logger.Logger;
+import com.tjyy.mydb.backend.dm.page.CommonPage;
+import com.tjyy.mydb.backend.dm.page.Page;
+import com.tjyy.mydb.backend.dm.pageCache.PageCache;
+import com.tjyy.mydb.backend.tm.TransactionManager;
+import com.tjyy.mydb.backend.util.BufferUtil;
+import com.tjyy.mydb.backend.util.Parser;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author: Tjyy
+ * @date: 2024-03-12 15:20
+ * @description: test checkpoint and recovery from checkpoint
+ */
+public class TestCheckpoint {
+    private static final long memory = 1 << 13 << 6;
+
+    private String path;
+
+    @Before
+    public void setUp() {
+        path = TempFiles.path("checkpoint_");
+    }
+
+    @After
+    public void tearDown() {
+        TempFiles.delete(path);
+    }
+
+    /**
+     * 检查点前后插入的数据在崩溃(不关闭直接重新打开)后都能恢复，未提交事务的插入被撤销
+     */
+    @Test
+    public void testRecoverFromCheckpoint() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, memory, tm);
+
+        long xid1 = tm.begin();
+        long uid1 = dm.insert(xid1, Parser.long2Byte(1));
+        tm.commit(xid1);
+
+        // 跨越检查点的活跃事务，检查点之前的插入已被写回磁盘，恢复时同样需要 undo
+        long xid3 = tm.begin();
+        long uid3 = dm.insert(xid3, Parser.long2Byte(3));
+        dm.checkpoint();
+
+        long xid2 = tm.begin();
+        long uid2 = dm.insert(xid2, Parser.long2Byte(2));
+        tm.commit(xid2);
+        long uid4 = dm.insert(xid3, Parser.long2Byte(4));
+
+        Logger logger = Logger.open(path);
+        long checkpoint = logger.getCheckpoint();
+        logger.close();
+        assertTrue(checkpoint > 0);
+        System.out.println("checkpoint at " + checkpoint);
+
+        // 模拟崩溃：不关闭 dm，直接重新打开
+        TransactionManager recoveredTm = TransactionManager.open(path);
+        DataManager recovered = DataManager.open(path, memory, recoveredTm);
+        assertArrayEquals(Parser.long2Byte(1), read(recovered, uid1));
+        assertArrayEquals(Parser.long2Byte(2), read(recovered, uid2));
+        assertNull(recovered.read(uid3));
+        assertNull(recovered.read(uid4));
+        recovered.close();
+        recoveredTm.close();
+    }
+
+    /**
+     * 检查点返回后，此前的插入和更新已经写回 DB 文件，另开一个缓冲池直接读文件可以看到
+     */
+    @Test
+    public void testCheckpointFlushesPages() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, memory, tm);
+
+        long xid = tm.begin();
+        long[] uids = new long[100];
+        for (int i = 0; i < uids.length; i++) {
+            uids[i] = dm.insert(xid, Parser.long2Byte(i));
+        }
+        DataItem item = dm.read(uids[7]);
+        item.before();
+        SubArray data = item.data();
+        System.arraycopy(Parser.long2Byte(-7), 0, data.raw, data.start, 8);
+        item.after(xid);
+        item.release();
+        tm.commit(xid);
+        dm.checkpoint();
+
+        PageCache pageCache = PageCache.open(path, memory);
+        for (int i = 0; i < uids.length; i++) {
+            int pgno = (int) (uids[i] >>> 32);
+            int slot = (int) (uids[i] & ((1L << 16) - 1));
+            Page page = pageCache.getPage(pgno);
+            int offset = CommonPage.getSlot(page.getBuffer(), slot);
+            // DataItem: [ValidFlag 1] [DataSize 2] [Data]
+            byte[] raw = BufferUtil.copyOfRange(page.getBuffer(), offset + 3, offset + 11);
+            page.release();
+            assertArrayEquals(Parser.long2Byte(i == 7 ? -7 : i), raw);
+        }
+        pageCache.close();
+
+        dm.close();
+        tm.close();
+    }
+
+    private static byte[] read(DataManager dm, long uid) throws Exception {
+        DataItem item = dm.read(uid);
+        SubArray data = item.data();
+        byte[] bytes = Arrays.copyOfRange(data.raw, data.start, data.end);
+        item.release();
+        return bytes;
+    }
+}
@@ -0,0 +1,187 @@
+package com.tjyy.mydb.dm;
+
+import com.tjyy.mydb.TempFiles;
+import com.tjyy.mydb.backend.common.SubArray;
+import com.tjyy.mydb.backend.dm.DataManager;
+import com.tjyy.mydb.backend.dm.dataitem.DataItem;
+import com.tjyy.mydb.backend.dm.page.CommonPage;
+import com.tjyy.mydb.backend.dm.page.FirstPage;
+import com.tjyy.mydb.backend.dm.page.Page;
+import com.tjyy.mydb.backend.dm.pageCache.PageCache;
+import com.tjyy.mydb.backend.dm.pageIndex.FreeSpaceMap;
+import com.tjyy.mydb.backend.dm.pageIndex.PageIndex;
+import com.tjyy.mydb.backend.dm.pageIndex.PageInfo;
+import com.tjyy.mydb.backend.tm.TransactionManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author: Tjyy
+ * @date: 2024-03-20 11:00
+ * @description: test free space map side file
+ */
+public class TestFreeSpaceMap {
+    private static final long memory = 1 << 13 << 6;
+
+    private String path;
+
+    @Before
+    public void setUp() {
+        path = TempFiles.path("fsm_");
+    }
+
+    @After
+    public void tearDown() {
+        TempFiles.delete(path);
+    }
+
+    /**
+     * 正常关闭后旁路文件记录的剩余空间与逐页扫描的结果一致，重新打开后插入继续使用已有页面
+     */
+    @Test
+    public void testLoadAfterClose() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, memory, tm);
+        insert(tm, dm, 1000, 500);
+        dm.close();
+        tm.close();
+
+        int pageNumber = verifyFreeSpaceMap(true);
+        assertEquals(20 + 4 + (pageNumber - 1) * 2, new File(path + FreeSpaceMap.FSM_SUFFIX).length());
+
+        tm = TransactionManager.open(path);
+        dm = DataManager.open(path, memory, tm);
+        long xid = tm.begin();
+        long uid = dm.insert(xid, new byte[16]);
+        tm.commit(xid);
+        assertTrue((int) (uid >>> 32) <= pageNumber);
+        dm.close();
+        tm.close();
+        assertEquals(pageNumber, verifyFreeSpaceMap(true));
+    }
+
+    /**
+     * 宕机后上一次正常关闭时写入的旁路文件与第一页的验证字符不符，打开时退回逐页扫描
+     */
+    @Test
+    public void testStaleAfterCrash() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, memory, tm);
+        insert(tm, dm, 200, 500);
+        dm.close();
+        tm.close();
+        verifyFreeSpaceMap(true);
+
+        tm = TransactionManager.open(path);
+        dm = DataManager.open(path, memory, tm);
+        insert(tm, dm, 200, 500);
+        // 模拟崩溃：不关闭 dm
+        verifyFreeSpaceMap(false);
+
+        TransactionManager recoveredTm = TransactionManager.open(path);
+        DataManager recovered = DataManager.open(path, memory, recoveredTm);
+        long xid = recoveredTm.begin();
+        assertNotNull(recovered.read(recovered.insert(xid, new byte[16])));
+        recoveredTm.commit(xid);
+        recovered.close();
+        recoveredTm.close();
+        verifyFreeSpaceMap(true);
+    }
+
+    /**
+     * 多线程并发插入后每一行都能读到，关闭时各插入分段的目标页都已放回，旁路文件覆盖所有页面
+     */
+    @Test
+    public void testConcurrentInsert() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, memory, tm);
+        int threads = 16;
+        int rows = 500;
+        Map<Long, Byte> inserted = new ConcurrentHashMap<>();
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            byte value = (byte) t;
+            new Thread(() -> {
+                try {
+                    long xid = tm.begin();
+                    for (int i = 0; i < rows; i++) {
+                        byte[] row = new byte[100];
+                        Arrays.fill(row, value);
+                        inserted.put(dm.insert(xid, row), value);
+                    }
+                    tm.commit(xid);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        assertEquals(threads * rows, inserted.size());
+        for (Map.Entry<Long, Byte> entry : inserted.entrySet()) {
+            DataItem item = dm.read(entry.getKey());
+            SubArray data = item.data();
+            assertEquals(100, data.end - data.start);
+            for (int i = data.start; i < data.end; i++) {
+                assertEquals((byte) entry.getValue(), data.raw[i]);
+            }
+            item.release();
+        }
+        dm.close();
+        tm.close();
+        verifyFreeSpaceMap(true);
+    }
+
+    private static void insert(TransactionManager tm, DataManager dm, int count, int size) throws Exception {
+        long xid = tm.begin();
+        for (int i = 0; i < count; i++) {
+            dm.insert(xid, new byte[size]);
+        }
+        tm.commit(xid);
+    }
+
+    /**
+     * 用第一页当前的验证字符读取旁路文件，有效时与逐页扫描的剩余空间比较
+     * @param valid 旁路文件是否应当有效
+     * @return 页面总数
+     */
+    private int verifyFreeSpaceMap(boolean valid) throws Exception {
+        PageCache pageCache = PageCache.open(path, memory);
+        int pageNumber = pageCache.getPageNumber();
+        Page first = pageCache.getPage(1);
+        byte[] stamp = FirstPage.getValidString(first);
+        first.release();
+
+        PageIndex pageIndex = new PageIndex();
+        assertEquals(valid, FreeSpaceMap.load(path, stamp, pageNumber, pageIndex));
+        if (valid) {
+            Map<Integer, Integer> loaded = new HashMap<>();
+            for (PageInfo pageInfo : pageIndex.pages()) {
+                assertFalse(loaded.containsKey(pageInfo.pgno));
+                loaded.put(pageInfo.pgno, pageInfo.freeSpace);
+            }
+            assertEquals(pageNumber - 1, loaded.size());
+            for (int pgno = 2; pgno <= pageNumber; pgno++) {
+                Page page = pageCache.getPage(pgno);
+                assertEquals(CommonPage.getFreeSpace(page), (int) loaded.get(pgno));
+                page.release();
+            }
+        }
+        pageCache.close();
+        return pageNumber;
+    }
+}
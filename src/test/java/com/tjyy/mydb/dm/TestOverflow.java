@@ -0,0 +1,257 @@
+package com.tjyy.mydb.dm;
+
+import com.tjyy.mydb.TempFiles;
+import com.tjyy.mydb.backend.dm.DataManager;
+import com.tjyy.mydb.backend.dm.page.CommonPage;
+import com.tjyy.mydb.backend.dm.page.OverflowPage;
+import com.tjyy.mydb.backend.dm.page.Page;
+import com.tjyy.mydb.backend.dm.pageCache.PageCache;
+import com.tjyy.mydb.backend.tm.TransactionManager;
+import com.tjyy.mydb.common.Error;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author: Tjyy
+ * @date: 2024-03-22 14:00
+ * @description: test overflow page chains
+ */
+public class TestOverflow {
+    private static final long memory = 1 << 13 << 6;
+
+    private String path;
+
+    @Before
+    public void setUp() {
+        path = TempFiles.path("overflow_");
+    }
+
+    @After
+    public void tearDown() {
+        TempFiles.delete(path);
+    }
+
+    /**
+     * 不同长度的数据写入后按流读出的内容一致，正常关闭重新打开后仍然一致
+     */
+    @Test
+    public void testRoundTrip() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, memory, tm);
+        byte[][] values = {
+                random(100_000, 1),
+                random(OverflowPage.MAX_DATA_SIZE * 3, 2),
+                random(1, 3),
+                new byte[0],
+        };
+        long[] uids = new long[values.length];
+        long xid = tm.begin();
+        for (int i = 0; i < values.length; i++) {
+            uids[i] = dm.insertStream(xid, new ByteArrayInputStream(values[i]));
+        }
+        tm.commit(xid);
+        for (int i = 0; i < values.length; i++) {
+            assertArrayEquals(values[i], readStream(dm, uids[i]));
+        }
+        dm.close();
+        tm.close();
+
+        tm = TransactionManager.open(path);
+        dm = DataManager.open(path, memory, tm);
+        for (int i = 0; i < values.length; i++) {
+            assertArrayEquals(values[i], readStream(dm, uids[i]));
+        }
+        dm.close();
+        tm.close();
+    }
+
+    /**
+     * 崩溃后已提交的数据可以完整读出；未提交事务的头部数据项无效，它的溢出页被还原为空页
+     */
+    @Test
+    public void testRecover() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, memory, tm);
+        byte[] committed = random(50_000, 4);
+        byte[] active = random(OverflowPage.MAX_DATA_SIZE * 3, 5);
+        long xid1 = tm.begin();
+        long committedUid = dm.insertStream(xid1, new ByteArrayInputStream(committed));
+        tm.commit(xid1);
+        long xid2 = tm.begin();
+        long activeUid = dm.insertStream(xid2, new ByteArrayInputStream(active));
+        assertArrayEquals(active, readStream(dm, activeUid));
+
+        // 模拟崩溃：不关闭 dm，直接重新打开
+        TransactionManager recoveredTm = TransactionManager.open(path);
+        DataManager recovered = DataManager.open(path, memory, recoveredTm);
+        assertArrayEquals(committed, readStream(recovered, committedUid));
+        assertNull(recovered.readStream(activeUid));
+        assertTrue(recoveredTm.isAborted(xid2));
+        recovered.close();
+        recoveredTm.close();
+
+        PageCache pageCache = PageCache.open(path, memory);
+        int empty = 0;
+        for (int i = 2; i <= pageCache.getPageNumber(); i++) {
+            Page page = pageCache.getPage(i);
+            if (CommonPage.getFreeSpace(page) == CommonPage.MAX_PAGE_DATA_SIZE) {
+                empty++;
+            }
+            page.release();
+        }
+        pageCache.close();
+        assertEquals(3, empty);
+    }
+
+    /**
+     * 被删除或插入被回滚的溢出页链在事务结束后被回收，之后写入的同样大小的数据复用这些页面，文件不增长
+     */
+    @Test
+    public void testReclaimChain() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, memory, tm);
+        byte[] first = random(OverflowPage.MAX_DATA_SIZE * 5, 6);
+        long xid = tm.begin();
+        long uid = dm.insertStream(xid, new ByteArrayInputStream(first));
+        tm.commit(xid);
+        int pages = pageNumber(path);
+
+        xid = tm.begin();
+        assertTrue(dm.deleteStream(xid, uid));
+        assertFalse(dm.deleteStream(xid, uid));
+        tm.commit(xid);
+        assertNull(dm.readStream(uid));
+
+        byte[] second = random(OverflowPage.MAX_DATA_SIZE * 5, 7);
+        xid = tm.begin();
+        long secondUid = dm.insertStream(xid, new ByteArrayInputStream(second));
+        tm.commit(xid);
+        assertEquals(pages, pageNumber(path));
+
+        long aborted = tm.begin();
+        long abortedUid = dm.insertStream(aborted, new ByteArrayInputStream(random(OverflowPage.MAX_DATA_SIZE * 5, 8)));
+        tm.abort(aborted);
+        pages = pageNumber(path);
+
+        byte[] third = random(OverflowPage.MAX_DATA_SIZE * 5, 9);
+        xid = tm.begin();
+        long thirdUid = dm.insertStream(xid, new ByteArrayInputStream(third));
+        tm.commit(xid);
+        assertEquals(pages, pageNumber(path));
+        assertNull(dm.readStream(abortedUid));
+        assertArrayEquals(second, readStream(dm, secondUid));
+        assertArrayEquals(third, readStream(dm, thirdUid));
+        dm.close();
+        tm.close();
+
+        tm = TransactionManager.open(path);
+        dm = DataManager.open(path, memory, tm);
+        assertArrayEquals(second, readStream(dm, secondUid));
+        assertArrayEquals(third, readStream(dm, thirdUid));
+        assertNull(dm.readStream(abortedUid));
+        dm.close();
+        tm.close();
+    }
+
+    /**
+     * 删除被回滚的溢出页链不被回收，之后写入的数据不会占用它的页面
+     */
+    @Test
+    public void testDeleteAbort() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, memory, tm);
+        byte[] first = random(OverflowPage.MAX_DATA_SIZE * 5, 10);
+        long xid = tm.begin();
+        long uid = dm.insertStream(xid, new ByteArrayInputStream(first));
+        tm.commit(xid);
+
+        xid = tm.begin();
+        assertTrue(dm.deleteStream(xid, uid));
+        assertNull(dm.readStream(uid));
+        tm.abort(xid);
+        assertArrayEquals(first, readStream(dm, uid));
+
+        byte[] second = random(OverflowPage.MAX_DATA_SIZE * 5, 11);
+        xid = tm.begin();
+        long secondUid = dm.insertStream(xid, new ByteArrayInputStream(second));
+        tm.commit(xid);
+        assertArrayEquals(first, readStream(dm, uid));
+        assertArrayEquals(second, readStream(dm, secondUid));
+
+        // 回滚后的链仍可以被删除并回收
+        xid = tm.begin();
+        assertTrue(dm.deleteStream(xid, uid));
+        tm.commit(xid);
+        int pages = pageNumber(path);
+        xid = tm.begin();
+        long thirdUid = dm.insertStream(xid, new ByteArrayInputStream(first));
+        tm.commit(xid);
+        assertEquals(pages, pageNumber(path));
+        dm.close();
+        tm.close();
+
+        tm = TransactionManager.open(path);
+        dm = DataManager.open(path, memory, tm);
+        assertNull(dm.readStream(uid));
+        assertArrayEquals(second, readStream(dm, secondUid));
+        assertArrayEquals(first, readStream(dm, thirdUid));
+        dm.close();
+        tm.close();
+    }
+
+    /**
+     * 超过一页的数据仍不能通过 insert 写入
+     */
+    @Test
+    public void testInsertTooLarge() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, memory, tm);
+        long xid = tm.begin();
+        try {
+            dm.insert(xid, new byte[PageCache.PAGE_SIZE]);
+            fail();
+        } catch (Exception e) {
+            assertSame(Error.DataTooLargeException, e);
+        }
+        tm.commit(xid);
+        dm.close();
+        tm.close();
+    }
+
+    private static int pageNumber(String path) {
+        return (int) (new File(path + ".db").length() / PageCache.PAGE_SIZE);
+    }
+
+    private static byte[] random(int length, long seed) {
+        byte[] value = new byte[length];
+        new Random(seed).nextBytes(value);
+        return value;
+    }
+
+    private static byte[] readStream(DataManager dm, long uid) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = dm.readStream(uid)) {
+            byte[] buf = new byte[1000];
+            int n;
+            while ((n = in.read(buf)) >= 0) {
+                out.write(buf, 0, n);
+            }
+        }
+        return out.toByteArray();
+    }
+}
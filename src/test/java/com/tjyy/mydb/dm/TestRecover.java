@@ -0,0 +1,397 @@
+package com.tjyy.mydb.dm;
+
+import com.tjyy.mydb.TempFiles;
+import com.tjyy.mydb.backend.common.SubArray;
+import com.tjyy.mydb.backend.dm.DataManager;
+import com.tjyy.mydb.backend.dm.DataManagerImpl;
+import com.tjyy.mydb.backend.dm.Recover;
+import com.tjyy.mydb.backend.dm.dataitem.DataItem;
+import com.tjyy.mydb.backend.dm.logger.Logger;
+import com.tjyy.mydb.backend.dm.page.OverflowPage;
+import com.tjyy.mydb.backend.dm.pageCache.PageCache;
+import com.tjyy.mydb.backend.tm.TransactionManager;
+import com.tjyy.mydb.backend.util.Parser;
+import com.tjyy.mydb.common.Error;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.LongConsumer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author: Tjyy
+ * @date: 2024-03-17 10:30
+ * @description: test recovery after crash
+ */
+public class TestRecover {
+    private static final long memory = 1 << 13 << 6;
+
+    private String path;
+
+    @Before
+    public void setUp() {
+        path = TempFiles.path("recover_");
+    }
+
+    @After
+    public void tearDown() {
+        TempFiles.delete(path);
+        TempFiles.delete(path + "_serial");
+        TempFiles.delete(path + "_parallel");
+    }
+
+    /**
+     * 崩溃时仍活跃的事务的更新被撤销为旧值，已提交事务的更新被重做
+     */
+    @Test
+    public void testUndoUpdate() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, memory, tm);
+
+        long xid1 = tm.begin();
+        long uid1 = dm.insert(xid1, Parser.long2Byte(1));
+        long uid2 = dm.insert(xid1, Parser.long2Byte(2));
+        tm.commit(xid1);
+
+        long xid2 = tm.begin();
+        update(dm, xid2, uid1, 10);
+        tm.commit(xid2);
+
+        long xid3 = tm.begin();
+        update(dm, xid3, uid2, 20);
+        update(dm, xid3, uid2, 30);
+
+        // 模拟崩溃：停止 dm 的后台线程，不关闭直接重新打开
+        halt(dm);
+        TransactionManager recoveredTm = TransactionManager.open(path);
+        DataManager recovered = DataManager.open(path, memory, recoveredTm);
+        assertArrayEquals(Parser.long2Byte(10), read(recovered, uid1));
+        assertArrayEquals(Parser.long2Byte(2), read(recovered, uid2));
+        assertTrue(recoveredTm.isAborted(xid3));
+        recovered.close();
+        recoveredTm.close();
+    }
+
+    /**
+     * 批量插入跨越多页，崩溃后已提交事务的每一行都被重做，未提交事务的每一行都被撤销
+     */
+    @Test
+    public void testBatchInsertRecover() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, memory, tm);
+
+        List<byte[]> rows = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            rows.add(Parser.long2Byte(i));
+        }
+        long xid1 = tm.begin();
+        long[] committed = dm.insertBatch(xid1, rows);
+        tm.commit(xid1);
+        long xid2 = tm.begin();
+        long[] active = dm.insertBatch(xid2, rows);
+
+        assertEquals(rows.size(), committed.length);
+        assertTrue((committed[rows.size() - 1] >>> 32) > (committed[0] >>> 32));
+        for (int i = 0; i < rows.size(); i++) {
+            assertArrayEquals(rows.get(i), read(dm, active[i]));
+        }
+
+        // 模拟崩溃：停止 dm 的后台线程，不关闭直接重新打开
+        halt(dm);
+        TransactionManager recoveredTm = TransactionManager.open(path);
+        DataManager recovered = DataManager.open(path, memory, recoveredTm);
+        for (int i = 0; i < rows.size(); i++) {
+            assertArrayEquals(rows.get(i), read(recovered, committed[i]));
+            assertNull(recovered.read(active[i]));
+        }
+        assertTrue(recoveredTm.isAborted(xid2));
+        recovered.close();
+        recoveredTm.close();
+    }
+
+    /**
+     * 恢复时每个事务的状态只查询一次，检查点之后的日志在崩溃后都能重做
+     */
+    @Test
+    public void testXidStatusCached() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, memory, tm);
+
+        long xid1 = tm.begin();
+        long[] uids = new long[200];
+        for (int i = 0; i < 100; i++) {
+            uids[i] = dm.insert(xid1, Parser.long2Byte(i));
+        }
+        tm.commit(xid1);
+        dm.checkpoint();
+
+        long xid2 = tm.begin();
+        for (int i = 100; i < uids.length; i++) {
+            uids[i] = dm.insert(xid2, Parser.long2Byte(i));
+        }
+        tm.commit(xid2);
+        long xid3 = tm.begin();
+        long uid3 = dm.insert(xid3, Parser.long2Byte(-1));
+        halt(dm);
+
+        CountingTransactionManager recoveredTm = new CountingTransactionManager(TransactionManager.open(path));
+        DataManager recovered = DataManager.open(path, memory, recoveredTm);
+        System.out.println("isActive calls: " + recoveredTm.calls);
+        for (Map.Entry<Long, Integer> entry : recoveredTm.calls.entrySet()) {
+            assertEquals(1, (int) entry.getValue());
+        }
+        for (int i = 0; i < uids.length; i++) {
+            assertArrayEquals(Parser.long2Byte(i), read(recovered, uids[i]));
+        }
+        assertNull(recovered.read(uid3));
+        recovered.close();
+        recoveredTm.close();
+    }
+
+    /**
+     * 随机生成包含插入、批量插入、更新、删除、改变长度、溢出数据、提交、回滚、检查点、后台回收和未结束事务的日志后模拟崩溃，
+     * 对同一份崩溃现场分别串行和并行恢复，得到的 DB 文件和 XID 文件完全相同
+     */
+    @Test
+    public void testParallelRedoMatchesSerial() throws Exception {
+        for (long seed = 1; seed <= 3; seed++) {
+            tearDown();
+            crash(seed);
+            copyFiles(path, path + "_serial");
+            copyFiles(path, path + "_parallel");
+            recover(path + "_serial", 1);
+            recover(path + "_parallel", 4);
+            assertArrayEquals(Files.readAllBytes(Paths.get(path + "_serial.db")), Files.readAllBytes(Paths.get(path + "_parallel.db")));
+            assertArrayEquals(Files.readAllBytes(Paths.get(path + "_serial.xid")), Files.readAllBytes(Paths.get(path + "_parallel.xid")));
+            System.out.println("seed " + seed + ": " + new File(path + "_serial.db").length() + " bytes recovered");
+        }
+    }
+
+    /**
+     * 在 path 上执行一段随机负载后停止后台线程，不关闭直接返回
+     * 同一时刻一条数据只由一个活跃事务修改，与 VM 对数据加锁的效果相同；删除提交、插入回滚后不再使用对应的 uid，它的槽可能被复用
+     * @param seed
+     */
+    private void crash(long seed) throws Exception {
+        Random random = new Random(seed);
+        TransactionManager tm = TransactionManager.create(path);
+        DataManagerImpl dm = (DataManagerImpl) DataManager.create(path, memory, tm);
+        dm.setVacuumBudget(100_000);
+        List<Long> active = new ArrayList<>();
+        List<Long> uids = new ArrayList<>();
+        List<Long> streams = new ArrayList<>();
+        Map<Long, Long> owners = new HashMap<>();  // 数据 -> 修改过它的活跃事务
+        Map<Long, List<Long>> inserted = new HashMap<>();  // 活跃事务 -> 它插入的数据
+        Map<Long, List<Long>> deleted = new HashMap<>();  // 活跃事务 -> 它删除的数据
+        for (int op = 0; op < 3000; op++) {
+            int dice = random.nextInt(100);
+            if (active.isEmpty() || dice < 5) {
+                active.add(tm.begin());
+                continue;
+            }
+            long xid = active.get(random.nextInt(active.size()));
+            if (dice < 9) {
+                List<byte[]> rows = new ArrayList<>();
+                for (int i = random.nextInt(40); i >= 0; i--) {
+                    rows.add(random(random, 8 + random.nextInt(200)));
+                }
+                for (long uid : dm.insertBatch(xid, rows)) {
+                    uids.add(uid);
+                    add(inserted, xid, uid);
+                    owners.put(uid, xid);
+                }
+            } else if (dice < 35 || uids.isEmpty()) {
+                long uid = dm.insert(xid, random(random, 8 + random.nextInt(200)));
+                uids.add(uid);
+                add(inserted, xid, uid);
+                owners.put(uid, xid);
+            } else if (dice < 72) {
+                long uid = uids.get(random.nextInt(uids.size()));
+                Long owner = owners.putIfAbsent(uid, xid);
+                if (owner != null && owner != xid) {
+                    continue;
+                }
+                if (dice < 55) {
+                    DataItem item = dm.read(uid);
+                    if (item != null) {
+                        item.before();
+                        SubArray data = item.data();
+                        data.raw[data.start + random.nextInt(data.end - data.start)] = (byte) random.nextInt();
+                        item.after(xid);
+                        item.release();
+                    }
+                } else if (dice < 66) {
+                    try {
+                        dm.update(xid, uid, random(random, 8 + random.nextInt(400)));
+                    } catch (Exception e) {
+                        assertSame(Error.PageFullException, e);
+                    }
+                } else if (dm.delete(xid, uid)) {
+                    add(deleted, xid, uid);
+                }
+            } else if (dice < 74 || (dice < 75 && streams.isEmpty())) {
+                long uid = dm.insertStream(xid, new ByteArrayInputStream(random(random, random.nextInt(OverflowPage.MAX_DATA_SIZE * 3))));
+                streams.add(uid);
+                add(inserted, xid, uid);
+                owners.put(uid, xid);
+            } else if (dice < 75) {
+                long uid = streams.get(random.nextInt(streams.size()));
+                Long owner = owners.putIfAbsent(uid, xid);
+                if ((owner == null || owner == xid) && dm.deleteStream(xid, uid)) {
+                    add(deleted, xid, uid);
+                }
+            } else if (dice < 95) {
+                boolean commit = dice < 87;
+                if (commit) {
+                    tm.commit(xid);
+                } else {
+                    tm.abort(xid);
+                }
+                List<Long> dropped = (commit ? deleted : inserted).get(xid);
+                if (dropped != null) {
+                    uids.removeAll(dropped);
+                    streams.removeAll(dropped);
+                }
+                inserted.remove(xid);
+                deleted.remove(xid);
+                active.remove(xid);
+                owners.values().removeIf(owner -> owner == xid);
+            } else if (dice < 98) {
+                dm.checkpoint();
+            } else {
+                // 等后台回收线程整理一批页面
+                Thread.sleep(20);
+            }
+        }
+        dm.halt();
+    }
+
+    private static void add(Map<Long, List<Long>> map, long xid, long uid) {
+        map.computeIfAbsent(xid, k -> new ArrayList<>()).add(uid);
+    }
+
+    private static byte[] random(Random random, int length) {
+        byte[] data = new byte[length];
+        random.nextBytes(data);
+        return data;
+    }
+
+    private static void recover(String path, int redoThreads) {
+        TransactionManager tm = TransactionManager.open(path);
+        PageCache pageCache = PageCache.open(path, memory);
+        Logger logger = Logger.open(path);
+        Recover.recover(tm, logger, pageCache, redoThreads);
+        pageCache.close();
+        logger.close();
+        tm.close();
+    }
+
+    private static void update(DataManager dm, long xid, long uid, long value) throws Exception {
+        DataItem item = dm.read(uid);
+        item.before();
+        SubArray data = item.data();
+        System.arraycopy(Parser.long2Byte(value), 0, data.raw, data.start, 8);
+        item.after(xid);
+        item.release();
+    }
+
+    /**
+     * 模拟崩溃：停止 dm 的后台线程，不写回脏页，之后文件不再被修改
+     * @param dm
+     */
+    private static void halt(DataManager dm) {
+        ((DataManagerImpl) dm).halt();
+    }
+
+    private static byte[] read(DataManager dm, long uid) throws Exception {
+        DataItem item = dm.read(uid);
+        SubArray data = item.data();
+        byte[] bytes = Arrays.copyOfRange(data.raw, data.start, data.end);
+        item.release();
+        return bytes;
+    }
+
+    /**
+     * 统计每个 XID 的 isActive 调用次数
+     */
+    private static class CountingTransactionManager implements TransactionManager {
+        private final TransactionManager tm;
+        private final Map<Long, Integer> calls = new HashMap<>();
+
+        CountingTransactionManager(TransactionManager tm) {
+            this.tm = tm;
+        }
+
+        @Override
+        public long begin() {
+            return tm.begin();
+        }
+
+        @Override
+        public void commit(long xid) {
+            tm.commit(xid);
+        }
+
+        @Override
+        public void abort(long xid) {
+            tm.abort(xid);
+        }
+
+        @Override
+        public void setAbortHandler(LongConsumer handler) {
+            tm.setAbortHandler(handler);
+        }
+
+        @Override
+        public synchronized boolean isActive(long xid) {
+            calls.merge(xid, 1, Integer::sum);
+            return tm.isActive(xid);
+        }
+
+        @Override
+        public boolean isCommitted(long xid) {
+            return tm.isCommitted(xid);
+        }
+
+        @Override
+        public boolean isAborted(long xid) {
+            return tm.isAborted(xid);
+        }
+
+        @Override
+        public void close() {
+            tm.close();
+        }
+    }
+
+    /**
+     * 复制 from 的 DB 文件、XID 文件、日志控制文件和所有日志段到 to
+     * @param from
+     * @param to
+     */
+    private static void copyFiles(String from, String to) throws IOException {
+        File file = new File(from);
+        File[] files = file.getParentFile().listFiles((dir, name) -> name.startsWith(file.getName() + "."));
+        for (File f : files) {
+            String suffix = f.getName().substring(file.getName().length());
+            Files.copy(f.toPath(), Paths.get(to + suffix));
+        }
+    }
+}
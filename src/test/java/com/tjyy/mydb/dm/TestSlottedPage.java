@@ -0,0 +1,402 @@
+package com.tjyy.mydb.dm;
+
+import com.tjyy.mydb.TempFiles;
+import com.tjyy.mydb.backend.common.SubArray;
+import com.tjyy.mydb.backend.dm.DataManager;
+import com.tjyy.mydb.backend.dm.dataitem.DataItem;
+import com.tjyy.mydb.backend.dm.page.FirstPage;
+import com.tjyy.mydb.backend.dm.page.Page;
+import com.tjyy.mydb.backend.dm.pageCache.PageCache;
+import com.tjyy.mydb.backend.tm.TransactionManager;
+import com.tjyy.mydb.common.Error;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author: Tjyy
+ * @date: 2024-03-25 10:30
+ * @description: test slotted pages: delete, resize and compaction
+ */
+public class TestSlottedPage {
+    private static final long memory = 1 << 13 << 6;
+
+    private String path;
+
+    @Before
+    public void setUp() {
+        path = TempFiles.path("slotted_");
+    }
+
+    @After
+    public void tearDown() {
+        TempFiles.delete(path);
+    }
+
+    /**
+     * 删除并提交后，再次插入同样多的数据时复用整理后的页面，文件不增长
+     */
+    @Test
+    public void testDeleteReclaim() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, memory, tm);
+        int count = 300;
+        long[] uids = new long[count];
+        long xid = tm.begin();
+        for (int i = 0; i < count; i++) {
+            uids[i] = dm.insert(xid, value(i, 100));
+        }
+        tm.commit(xid);
+        int pages = pageNumber(path);
+
+        xid = tm.begin();
+        for (long uid : uids) {
+            assertTrue(dm.delete(xid, uid));
+        }
+        assertFalse(dm.delete(xid, uids[0]));
+        tm.commit(xid);
+        for (long uid : uids) {
+            assertNull(dm.read(uid));
+        }
+
+        xid = tm.begin();
+        long[] reused = new long[count];
+        for (int i = 0; i < count; i++) {
+            reused[i] = dm.insert(xid, value(count + i, 100));
+        }
+        tm.commit(xid);
+        assertEquals(pages, pageNumber(path));
+        for (int i = 0; i < count; i++) {
+            assertArrayEquals(value(count + i, 100), read(dm, reused[i]));
+        }
+        dm.close();
+        tm.close();
+
+        tm = TransactionManager.open(path);
+        dm = DataManager.open(path, memory, tm);
+        for (int i = 0; i < count; i++) {
+            assertArrayEquals(value(count + i, 100), read(dm, reused[i]));
+        }
+        dm.close();
+        tm.close();
+    }
+
+    /**
+     * 改变长度后 uid 不变，同页的其他数据不受影响；整理后仍放不下时抛出 PageFullException
+     */
+    @Test
+    public void testResize() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, memory, tm);
+        long xid = tm.begin();
+        long a = dm.insert(xid, value(1, 10));
+        long b = dm.insert(xid, value(2, 10));
+        long c = dm.insert(xid, value(3, 10));
+        assertEquals(a >>> 32, c >>> 32);
+
+        assertTrue(dm.update(xid, b, value(4, 1000)));
+        assertArrayEquals(value(4, 1000), read(dm, b));
+        assertTrue(dm.update(xid, b, value(5, 3)));
+        assertArrayEquals(value(5, 3), read(dm, b));
+        assertTrue(dm.update(xid, a, value(6, 4000)));
+        assertTrue(dm.update(xid, c, value(7, 3000)));
+        assertArrayEquals(value(6, 4000), read(dm, a));
+        assertArrayEquals(value(5, 3), read(dm, b));
+        assertArrayEquals(value(7, 3000), read(dm, c));
+        try {
+            dm.update(xid, b, value(8, 2000));
+            fail();
+        } catch (Exception e) {
+            assertSame(Error.PageFullException, e);
+        }
+        assertArrayEquals(value(5, 3), read(dm, b));
+        tm.commit(xid);
+        dm.close();
+        tm.close();
+
+        tm = TransactionManager.open(path);
+        dm = DataManager.open(path, memory, tm);
+        assertArrayEquals(value(6, 4000), read(dm, a));
+        assertArrayEquals(value(5, 3), read(dm, b));
+        assertArrayEquals(value(7, 3000), read(dm, c));
+        dm.close();
+        tm.close();
+    }
+
+    /**
+     * 崩溃后未提交事务的删除和改变长度被撤销，其间其他事务插入的数据不受影响
+     */
+    @Test
+    public void testRecover() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, memory, tm);
+        long xid1 = tm.begin();
+        long a = dm.insert(xid1, value(1, 2000));
+        long b = dm.insert(xid1, value(2, 2000));
+        long c = dm.insert(xid1, value(3, 100));
+        long d = dm.insert(xid1, value(4, 100));
+        tm.commit(xid1);
+
+        long xid2 = tm.begin();
+        dm.delete(xid2, d);
+        tm.commit(xid2);
+
+        long xid3 = tm.begin();
+        assertTrue(dm.delete(xid3, a));
+        assertTrue(dm.update(xid3, b, value(5, 10)));
+        assertTrue(dm.update(xid3, c, value(6, 1500)));
+
+        // 另一个事务插入数据，不能占用为撤销预留的空间
+        long xid4 = tm.begin();
+        long[] uids = new long[40];
+        for (int i = 0; i < uids.length; i++) {
+            uids[i] = dm.insert(xid4, value(10 + i, 500));
+        }
+        tm.commit(xid4);
+
+        // 模拟崩溃：不关闭 dm，直接重新打开
+        TransactionManager recoveredTm = TransactionManager.open(path);
+        DataManager recovered = DataManager.open(path, memory, recoveredTm);
+        assertTrue(recoveredTm.isAborted(xid3));
+        assertArrayEquals(value(1, 2000), read(recovered, a));
+        assertArrayEquals(value(2, 2000), read(recovered, b));
+        assertArrayEquals(value(3, 100), read(recovered, c));
+        // 已提交的删除留下的槽可能已分配给 xid4 插入的数据
+        boolean reused = false;
+        for (int i = 0; i < uids.length; i++) {
+            assertArrayEquals(value(10 + i, 500), read(recovered, uids[i]));
+            reused |= uids[i] == d;
+        }
+        if (!reused) {
+            assertNull(recovered.read(d));
+        }
+
+        long xid5 = recoveredTm.begin();
+        assertTrue(recovered.update(xid5, c, value(7, 1500)));
+        recoveredTm.commit(xid5);
+        recovered.close();
+        recoveredTm.close();
+
+        tm = TransactionManager.open(path);
+        dm = DataManager.open(path, memory, tm);
+        assertArrayEquals(value(7, 1500), read(dm, c));
+        dm.close();
+        tm.close();
+    }
+
+    /**
+     * 运行时回滚撤销删除、变短、变长和长度不变的修改，其间其他事务插入的数据不受影响，撤销的结果在重新打开后仍然有效
+     */
+    @Test
+    public void testAbort() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, memory, tm);
+        long xid = tm.begin();
+        long a = dm.insert(xid, value(1, 2000));
+        long b = dm.insert(xid, value(2, 2000));
+        long c = dm.insert(xid, value(3, 100));
+        long d = dm.insert(xid, value(4, 100));
+        tm.commit(xid);
+
+        long xid1 = tm.begin();
+        assertTrue(dm.delete(xid1, a));
+        assertTrue(dm.update(xid1, b, value(5, 10)));
+        assertTrue(dm.update(xid1, c, value(6, 1500)));
+        assertTrue(dm.update(xid1, c, value(7, 1500)));
+        assertTrue(dm.update(xid1, d, value(8, 100)));
+        assertNull(dm.read(a));
+
+        // 另一个事务插入数据，不能占用为撤销预留的空间
+        long xid2 = tm.begin();
+        long[] uids = new long[40];
+        for (int i = 0; i < uids.length; i++) {
+            uids[i] = dm.insert(xid2, value(10 + i, 500));
+        }
+        tm.commit(xid2);
+
+        tm.abort(xid1);
+        assertArrayEquals(value(1, 2000), read(dm, a));
+        assertArrayEquals(value(2, 2000), read(dm, b));
+        assertArrayEquals(value(3, 100), read(dm, c));
+        assertArrayEquals(value(4, 100), read(dm, d));
+
+        // 回滚后整理页面不能回收恢复的记录
+        xid = tm.begin();
+        for (int i = 0; i < 20; i++) {
+            dm.insert(xid, value(60 + i, 500));
+        }
+        tm.commit(xid);
+        dm.close();
+        tm.close();
+
+        tm = TransactionManager.open(path);
+        dm = DataManager.open(path, memory, tm);
+        assertArrayEquals(value(1, 2000), read(dm, a));
+        assertArrayEquals(value(2, 2000), read(dm, b));
+        assertArrayEquals(value(3, 100), read(dm, c));
+        assertArrayEquals(value(4, 100), read(dm, d));
+        for (int i = 0; i < uids.length; i++) {
+            assertArrayEquals(value(10 + i, 500), read(dm, uids[i]));
+        }
+        dm.close();
+        tm.close();
+    }
+
+    /**
+     * 几乎写满的页面上变短后回滚或崩溃：空闲空间只有变短时预留的字节数，原记录整理到最后原地扩展
+     */
+    @Test
+    public void testUndoShrinkOnFullPage() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, memory, tm);
+        long xid = tm.begin();
+        long a = dm.insert(xid, value(1, 3000));
+        long b = dm.insert(xid, value(2, 3000));
+        long c = dm.insert(xid, value(3, 2000));
+        tm.commit(xid);
+        assertEquals(a >>> 32, c >>> 32);
+
+        xid = tm.begin();
+        assertTrue(dm.update(xid, a, value(4, 2000)));
+        tm.abort(xid);
+        assertArrayEquals(value(1, 3000), read(dm, a));
+
+        xid = tm.begin();
+        assertTrue(dm.update(xid, a, value(5, 2000)));
+        assertTrue(dm.update(xid, b, value(6, 1000)));
+
+        // 模拟崩溃：不关闭 dm，直接重新打开
+        TransactionManager recoveredTm = TransactionManager.open(path);
+        DataManager recovered = DataManager.open(path, memory, recoveredTm);
+        assertArrayEquals(value(1, 3000), read(recovered, a));
+        assertArrayEquals(value(2, 3000), read(recovered, b));
+        assertArrayEquals(value(3, 2000), read(recovered, c));
+        recovered.close();
+        recoveredTm.close();
+    }
+
+    /**
+     * 回滚后崩溃，恢复时重放原来的修改和撤销时写入的日志，结果与回滚后相同
+     */
+    @Test
+    public void testAbortRecover() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, memory, tm);
+        long xid = tm.begin();
+        long a = dm.insert(xid, value(1, 2000));
+        long b = dm.insert(xid, value(2, 2000));
+        long c = dm.insert(xid, value(3, 100));
+        tm.commit(xid);
+
+        long xid1 = tm.begin();
+        assertTrue(dm.delete(xid1, a));
+        assertTrue(dm.update(xid1, b, value(4, 10)));
+        assertTrue(dm.update(xid1, c, value(5, 1500)));
+        tm.abort(xid1);
+
+        // 模拟崩溃：不关闭 dm，直接重新打开
+        TransactionManager recoveredTm = TransactionManager.open(path);
+        DataManager recovered = DataManager.open(path, memory, recoveredTm);
+        assertTrue(recoveredTm.isAborted(xid1));
+        assertArrayEquals(value(1, 2000), read(recovered, a));
+        assertArrayEquals(value(2, 2000), read(recovered, b));
+        assertArrayEquals(value(3, 100), read(recovered, c));
+        recovered.close();
+        recoveredTm.close();
+    }
+
+    /**
+     * 被引用的 DataItem 删除后，整理页面时它的槽不被回收，uid 不会分配给新数据；引用释放后槽可以复用
+     */
+    @Test
+    public void testPinnedSlotNotReclaimed() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, memory, tm);
+        int count = 60;
+        long[] uids = new long[count];
+        long xid = tm.begin();
+        for (int i = 0; i < count; i++) {
+            uids[i] = dm.insert(xid, value(i, 100));
+        }
+        tm.commit(xid);
+
+        DataItem pinned = dm.read(uids[0]);
+        xid = tm.begin();
+        for (long uid : uids) {
+            assertTrue(dm.delete(xid, uid));
+        }
+        tm.commit(xid);
+
+        xid = tm.begin();
+        boolean reused = false;
+        for (int i = 0; i < count * 2; i++) {
+            long uid = dm.insert(xid, value(count + i, 100));
+            assertTrue(uid != uids[0]);
+            reused |= uid == uids[1];
+        }
+        tm.commit(xid);
+        assertTrue(reused);
+        assertArrayEquals(value(0, 100), Arrays.copyOfRange(pinned.data().raw, pinned.data().start, pinned.data().end));
+        pinned.release();
+        assertNull(dm.read(uids[0]));
+
+        // 引用释放后，被删除的槽在下一次整理时回收
+        xid = tm.begin();
+        reused = false;
+        for (int i = 0; i < count * 2 && !reused; i++) {
+            reused = dm.insert(xid, value(i, 100)) == uids[0];
+        }
+        tm.commit(xid);
+        assertTrue(reused);
+        dm.close();
+        tm.close();
+    }
+
+    /**
+     * 新建的 DB 文件在第一页记录槽目录布局，早期没有记录布局的文件不会被当作槽目录布局打开
+     */
+    @Test
+    public void testLayoutMarker() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, memory, tm);
+        dm.close();
+        tm.close();
+
+        PageCache pageCache = PageCache.open(path, memory);
+        Page first = pageCache.getPage(1);
+        assertTrue(FirstPage.checkLayout(first));
+        first.getBuffer().putLong(0, 0);
+        assertFalse(FirstPage.checkLayout(first));
+        first.release();
+        pageCache.close();
+    }
+
+    private static int pageNumber(String path) {
+        return (int) (new File(path + ".db").length() / PageCache.PAGE_SIZE);
+    }
+
+    private static byte[] value(int seed, int length) {
+        byte[] value = new byte[length];
+        Arrays.fill(value, (byte) seed);
+        return value;
+    }
+
+    private static byte[] read(DataManager dm, long uid) throws Exception {
+        DataItem dataItem = dm.read(uid);
+        SubArray data = dataItem.data();
+        byte[] value = Arrays.copyOfRange(data.raw, data.start, data.end);
+        dataItem.release();
+        return value;
+    }
+}
@@ -0,0 +1,169 @@
+package com.tjyy.mydb.dm;
+
+import com.tjyy.mydb.TempFiles;
+import com.tjyy.mydb.backend.common.SubArray;
+import com.tjyy.mydb.backend.dm.DataManager;
+import com.tjyy.mydb.backend.dm.DataManagerImpl;
+import com.tjyy.mydb.backend.dm.dataitem.DataItem;
+import com.tjyy.mydb.backend.dm.page.CommonPage;
+import com.tjyy.mydb.backend.dm.page.Page;
+import com.tjyy.mydb.backend.dm.pageCache.PageCache;
+import com.tjyy.mydb.backend.tm.TransactionManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author: Tjyy
+ * @date: 2024-03-26 15:00
+ * @description: test the background vacuum
+ */
+public class TestVacuum {
+    private static final long memory = 1 << 13 << 6;
+
+    private String path;
+
+    @Before
+    public void setUp() {
+        path = TempFiles.path("vacuum_");
+    }
+
+    @After
+    public void tearDown() {
+        TempFiles.delete(path);
+    }
+
+    /**
+     * 恢复时被撤销的插入留下的页面由后台回收线程按预算逐步整理为空页面
+     */
+    @Test
+    public void testVacuumAfterRecover() throws Exception {
+        long[] committed = crashWithLoser();
+        int pages = pageNumber();
+
+        TransactionManager tm = TransactionManager.open(path);
+        DataManagerImpl dm = (DataManagerImpl) DataManager.open(path, memory, tm);
+        // 每 100 毫秒 1 页的预算，整理一页需要两批
+        dm.setVacuumBudget(10);
+        Thread.sleep(300);
+        dm.checkpoint();
+        assertTrue(emptyPages() < pages - 2);
+
+        dm.setVacuumBudget(100_000);
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (emptyPages() < pages - 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+            dm.checkpoint();
+        }
+        assertEquals(pages - 2, emptyPages());
+        for (int i = 0; i < committed.length; i++) {
+            assertArrayEquals(value(i, 100), read(dm, committed[i]));
+        }
+        dm.close();
+        tm.close();
+    }
+
+    /**
+     * 正常关闭时截断末尾的空页面，之后新建的页面复用被截断的页号，崩溃后可以正确恢复
+     */
+    @Test
+    public void testTruncateOnClose() throws Exception {
+        long[] committed = crashWithLoser();
+        assertTrue(pageNumber() > 2);
+
+        TransactionManager tm = TransactionManager.open(path);
+        DataManagerImpl dm = (DataManagerImpl) DataManager.open(path, memory, tm);
+        dm.setVacuumTruncate(true);
+        dm.close();
+        tm.close();
+        assertEquals(2, pageNumber());
+
+        tm = TransactionManager.open(path);
+        DataManager reopened = DataManager.open(path, memory, tm);
+        for (int i = 0; i < committed.length; i++) {
+            assertArrayEquals(value(i, 100), read(reopened, committed[i]));
+        }
+        long xid = tm.begin();
+        long[] uids = new long[100];
+        for (int i = 0; i < uids.length; i++) {
+            uids[i] = reopened.insert(xid, value(50 + i, 500));
+        }
+        tm.commit(xid);
+        assertTrue(pageNumber() > 2);
+
+        // 模拟崩溃：不关闭 dm，直接重新打开
+        TransactionManager recoveredTm = TransactionManager.open(path);
+        DataManager recovered = DataManager.open(path, memory, recoveredTm);
+        for (int i = 0; i < committed.length; i++) {
+            assertArrayEquals(value(i, 100), read(recovered, committed[i]));
+        }
+        for (int i = 0; i < uids.length; i++) {
+            assertArrayEquals(value(50 + i, 500), read(recovered, uids[i]));
+        }
+        recovered.close();
+        recoveredTm.close();
+    }
+
+    /**
+     * 一个事务在第 2 页提交少量数据，另一个事务写满之后的若干页面后崩溃
+     * @return 已提交数据的 uid
+     */
+    private long[] crashWithLoser() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, memory, tm);
+        long xid1 = tm.begin();
+        long[] committed = new long[10];
+        for (int i = 0; i < committed.length; i++) {
+            committed[i] = dm.insert(xid1, value(i, 100));
+        }
+        tm.commit(xid1);
+        long xid2 = tm.begin();
+        for (int i = 0; i < 200; i++) {
+            dm.insert(xid2, value(i, 500));
+        }
+        // 模拟崩溃：不关闭 dm，xid2 仍活跃
+        return committed;
+    }
+
+    /**
+     * 第 3 页起的空页面数
+     */
+    private int emptyPages() throws Exception {
+        PageCache pageCache = PageCache.open(path, memory);
+        int empty = 0;
+        for (int i = 3; i <= pageCache.getPageNumber(); i++) {
+            Page page = pageCache.getPage(i);
+            if (CommonPage.getFreeSpace(page) == CommonPage.MAX_PAGE_DATA_SIZE) {
+                empty++;
+            }
+            page.release();
+        }
+        pageCache.close();
+        return empty;
+    }
+
+    private int pageNumber() {
+        return (int) (new File(path + ".db").length() / PageCache.PAGE_SIZE);
+    }
+
+    private static byte[] value(int seed, int length) {
+        byte[] value = new byte[length];
+        Arrays.fill(value, (byte) seed);
+        return value;
+    }
+
+    private static byte[] read(DataManager dm, long uid) throws Exception {
+        DataItem dataItem = dm.read(uid);
+        SubArray data = dataItem.data();
+        byte[] value = Arrays.copyOfRange(data.raw, data.start, data.end);
+        dataItem.release();
+        return value;
+    }
+}
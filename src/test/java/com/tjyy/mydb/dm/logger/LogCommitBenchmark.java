@@ -0,0 +1,75 @@
+package com.tjyy.mydb.dm.logger;
+
+import com.tjyy.mydb.TempFiles;
+import com.tjyy.mydb.backend.dm.logger.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author: Tjyy
+ * @date: 2024-03-13 11:05
+ * @description: 组提交基准测试
+ * 每个线程不断写入 100 字节的日志，log() 返回即表示持久化，统计不同并发数下每秒提交的日志数
+ * 运行方式: mvn test -Dtest=LogCommitBenchmark
+ */
+public class LogCommitBenchmark {
+    private static final int[] THREADS = {1, 8, 64};
+    private static final long DURATION = 3000;  // 每轮持续时间，毫秒
+    private static final byte[] RECORD = new byte[100];
+
+    private String path;
+
+    @Before
+    public void setUp() {
+        path = TempFiles.path("log_commit_");
+    }
+
+    @After
+    public void tearDown() {
+        TempFiles.delete(path);
+    }
+
+    @Test
+    public void benchmarkCommits() throws Exception {
+        System.out.println("writers\tcommits/s");
+        for (int threads : THREADS) {
+            System.out.println(threads + "\t" + run(threads));
+            TempFiles.delete(path);
+        }
+    }
+
+    private long run(int threads) throws Exception {
+        Logger logger = Logger.create(path);
+        AtomicLong commits = new AtomicLong();
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        long[] deadline = new long[1];
+        for (int t = 0; t < threads; t++) {
+            new Thread(() -> {
+                try {
+                    start.await();
+                    while (System.nanoTime() < deadline[0]) {
+                        logger.log(RECORD);
+                        commits.incrementAndGet();
+                    }
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+
+        long begin = System.nanoTime();
+        deadline[0] = begin + DURATION * 1_000_000L;
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - begin;
+        logger.close();
+        return commits.get() * 1_000_000_000L / elapsed;
+    }
+}
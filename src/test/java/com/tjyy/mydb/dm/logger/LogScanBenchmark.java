@@ -0,0 +1,124 @@
+package com.tjyy.mydb.dm.logger;
+
+import com.tjyy.mydb.TempFiles;
+import com.tjyy.mydb.backend.dm.logger.LogReader;
+import com.tjyy.mydb.backend.dm.logger.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.zip.CRC32;
+
+/**
+ * @author: Tjyy
+ * @date: 2024-03-15 14:10
+ * @description: 日志校验和与扫描吞吐基准测试
+ * 1. 对比旧的逐字节多项式校验和与 CRC32 在不同记录大小下的吞吐
+ * 2. 64 个线程写入约 64MB 日志，统计写入吞吐，再统计重新打开(检查尾部)与顺序读出全部日志的吞吐，
+ *    顺序读出分别使用 next() 和 LogReader 的切片
+ * 运行方式: mvn test -Dtest=LogScanBenchmark
+ */
+public class LogScanBenchmark {
+    private static final int[] RECORD_SIZES = {64, 512, 4096};
+    private static final long CHECKSUM_BYTES = 256L << 20;
+    private static final int RECORD = 1024;
+    private static final int RECORDS = 64 * 1024;
+    private static final int WRITERS = 64;
+
+    private String path;
+
+    @Before
+    public void setUp() {
+        path = TempFiles.path("log_scan_");
+    }
+
+    @After
+    public void tearDown() {
+        TempFiles.delete(path);
+    }
+
+    @Test
+    public void benchmarkChecksum() {
+        System.out.println("record\tpolynomial MB/s\tcrc32 MB/s");
+        for (int size : RECORD_SIZES) {
+            byte[] record = new byte[size];
+            for (int i = 0; i < size; i++) {
+                record[i] = (byte) i;
+            }
+            long rounds = CHECKSUM_BYTES / size;
+            int sink = 0;
+
+            long begin = System.nanoTime();
+            for (long r = 0; r < rounds; r++) {
+                int xCheck = 0;
+                for (byte b : record) {
+                    xCheck = xCheck * 13331 + b;
+                }
+                sink += xCheck;
+            }
+            long polynomial = System.nanoTime() - begin;
+
+            begin = System.nanoTime();
+            CRC32 crc = new CRC32();
+            for (long r = 0; r < rounds; r++) {
+                crc.reset();
+                crc.update(record, 0, size);
+                sink += (int) crc.getValue();
+            }
+            long crc32 = System.nanoTime() - begin;
+            System.out.println(size + "\t" + mbPerSecond(CHECKSUM_BYTES, polynomial) + "\t" + mbPerSecond(CHECKSUM_BYTES, crc32) + "\t(" + sink + ")");
+        }
+    }
+
+    @Test
+    public void benchmarkAppendAndScan() throws Exception {
+        Logger logger = Logger.create(path);
+        byte[] data = new byte[RECORD];
+        CountDownLatch done = new CountDownLatch(WRITERS);
+        long begin = System.nanoTime();
+        for (int t = 0; t < WRITERS; t++) {
+            new Thread(() -> {
+                for (int i = 0; i < RECORDS / WRITERS; i++) {
+                    logger.log(data);
+                }
+                done.countDown();
+            }).start();
+        }
+        done.await();
+        long append = System.nanoTime() - begin;
+        logger.close();
+
+        long bytes = (long) RECORDS * RECORD;
+        begin = System.nanoTime();
+        Logger reopened = Logger.open(path);
+        long open = System.nanoTime() - begin;
+        begin = System.nanoTime();
+        int count = 0;
+        while (reopened.next() != null) {
+            count++;
+        }
+        long scan = System.nanoTime() - begin;
+
+        begin = System.nanoTime();
+        LogReader reader = reopened.reader(0);
+        long checksum = 0;
+        ByteBuffer slice;
+        while ((slice = reader.next()) != null) {
+            checksum += slice.remaining();
+        }
+        long readerScan = System.nanoTime() - begin;
+        reopened.close();
+
+        System.out.println("records: " + count);
+        System.out.println("append MB/s: " + mbPerSecond(bytes, append));
+        System.out.println("open ms: " + open / 1_000_000);
+        System.out.println("scan MB/s: " + mbPerSecond(bytes, scan));
+        System.out.println("reader scan MB/s: " + mbPerSecond(bytes, readerScan) + " (" + checksum + ")");
+    }
+
+    private static long mbPerSecond(long bytes, long nanos) {
+        return bytes * 1_000_000_000L / nanos / (1 << 20);
+    }
+}
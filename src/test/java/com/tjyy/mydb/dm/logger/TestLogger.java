@@ -0,0 +1,270 @@
+package com.tjyy.mydb.dm.logger;
+
+import com.tjyy.mydb.TempFiles;
+import com.google.common.primitives.Bytes;
+import com.tjyy.mydb.backend.dm.logger.LogReader;
+import com.tjyy.mydb.backend.dm.logger.Logger;
+import com.tjyy.mydb.backend.util.Parser;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author: Tjyy
+ * @date: 2024-03-13 10:20
+ * @description: test logger group commit
+ */
+public class TestLogger {
+    private String path;
+
+    @Before
+    public void setUp() {
+        path = TempFiles.path("logger_");
+    }
+
+    @After
+    public void tearDown() {
+        TempFiles.delete(path);
+    }
+
+    /**
+     * 多线程并发写入的日志被分批持久化，重新打开后总校验和正确，每条日志恰好出现一次
+     */
+    @Test
+    public void testConcurrentLog() throws Exception {
+        int threads = 8;
+        int perThread = 500;
+        Logger logger = Logger.create(path);
+        CountDownLatch done = new CountDownLatch(threads);
+        Set<Long> lsns = new HashSet<>();
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            new Thread(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    long lsn = logger.log(Parser.long2Byte((long) thread * perThread + i));
+                    synchronized (lsns) {
+                        lsns.add(lsn);
+                    }
+                }
+                done.countDown();
+            }).start();
+        }
+        done.await();
+        logger.close();
+
+        // 打开时会校验总校验和并检查 bad tail
+        Logger reopened = Logger.open(path);
+        Set<Long> values = new HashSet<>();
+        byte[] log;
+        while ((log = reopened.next()) != null) {
+            values.add(Parser.parseLong(log));
+        }
+        reopened.close();
+        assertEquals(threads * perThread, values.size());
+        assertEquals(threads * perThread, lsns.size());
+    }
+
+    /**
+     * 日志写满后滚动到新段，跨段顺序读取；purge 删除完全位于给定位置之前的段，之后从保留的段开始读取
+     */
+    @Test
+    public void testSegmentRollAndPurge() throws Exception {
+        Logger logger = Logger.create(path, 1024);
+        long[] lsns = new long[200];
+        for (int i = 0; i < lsns.length; i++) {
+            lsns[i] = logger.log(Parser.long2Byte(i));
+            if (i > 0) {
+                assertTrue(lsns[i] > lsns[i - 1]);
+            }
+        }
+        int segments = segmentFiles().length;
+        System.out.println("segments: " + segments);
+        assertTrue(segments > 1);
+        logger.close();
+
+        logger = Logger.open(path, 1024);
+        assertEquals(lsns.length, readAll(logger));
+        logger.purge(lsns[150]);
+        assertTrue(segmentFiles().length < segments);
+        logger.seek(lsns[150]);
+        assertEquals(150, Parser.parseLong(logger.next()));
+        logger.close();
+
+        // 重新打开后从第一个保留的段开始读取，第 150 条日志所在的段被保留
+        logger = Logger.open(path, 1024);
+        long firstRetained = Parser.parseLong(logger.next());
+        assertTrue(firstRetained > 0 && firstRetained <= 150);
+        assertEquals(lsns.length - firstRetained - 1, readAll(logger));
+        assertTrue(logger.log(Parser.long2Byte(lsns.length)) > lsns[lsns.length - 1]);
+        logger.close();
+    }
+
+    /**
+     * 最后一个段中校验和正确的日志都被保留，即使文件头的总校验和还没有覆盖它们；不完整的日志在打开时被截掉
+     */
+    @Test
+    public void testRemoveBadTail() throws Exception {
+        Logger logger = Logger.create(path);
+        for (int i = 0; i < 10; i++) {
+            logger.log(Parser.long2Byte(i));
+        }
+        logger.close();
+
+        // 追加一条完整但文件头校验和没有覆盖的日志，以及半条日志
+        File segment = segmentFiles()[0];
+        long length = segment.length();
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.seek(length);
+            byte[] data = Parser.long2Byte(10);
+            CRC32 crc = new CRC32();
+            crc.update(Parser.int2Byte(data.length));
+            crc.update(data);
+            file.write(Parser.int2Byte(data.length));
+            file.write(Parser.int2Byte((int) crc.getValue()));
+            file.write(data);
+            file.write(new byte[]{0, 0, 0, 100, 1, 2});
+        }
+
+        logger = Logger.open(path);
+        assertEquals(length + 16, segment.length());
+        assertEquals(11, readAll(logger));
+        logger.close();
+
+        // 文件头校验和已确认的之后的日志没有落盘：截断在最后一条完整的日志处，而不是拒绝打开
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.setLength(length - 16 - 5);
+        }
+        logger = Logger.open(path);
+        assertEquals(length - 32, segment.length());
+        assertEquals(8, readAll(logger));
+        assertTrue(logger.log(Parser.long2Byte(8)) > 0);
+        logger.close();
+
+        logger = Logger.open(path);
+        assertEquals(9, readAll(logger));
+        logger.close();
+    }
+
+    /**
+     * 旧版本(多项式校验和、没有 Magic 的文件头)的日志段仍可读取，之后的日志写入新版本的段，
+     * 版本 1 的控制文件升级为当前版本
+     */
+    @Test
+    public void testReadVersion1Segment() throws Exception {
+        try (RandomAccessFile control = new RandomAccessFile(path + ".log", "rw")) {
+            control.write(Parser.long2Byte(0));
+        }
+        // 版本 1 的段: [XChecksum] [StartLSN] [Size] [Checksum] [Data] ...
+        int xCheck = 0;
+        ByteArrayOutputStream logs = new ByteArrayOutputStream();
+        for (int i = 0; i < 5; i++) {
+            byte[] data = Parser.long2Byte(i);
+            int checkSum = polynomial(0, data);
+            byte[] log = Bytes.concat(Parser.int2Byte(data.length), Parser.int2Byte(checkSum), data);
+            xCheck = polynomial(xCheck, log);
+            logs.write(log);
+        }
+        try (RandomAccessFile segment = new RandomAccessFile(path + ".log.00000001", "rw")) {
+            segment.write(Parser.int2Byte(xCheck));
+            segment.write(Parser.long2Byte(0));
+            segment.write(logs.toByteArray());
+        }
+
+        Logger logger = Logger.open(path);
+        assertEquals(16, new File(path + ".log").length());
+        for (int i = 0; i < 5; i++) {
+            assertEquals(i, Parser.parseLong(logger.next()));
+        }
+        logger.log(Parser.long2Byte(5));
+        logger.close();
+        assertEquals(2, segmentFiles().length);
+
+        logger = Logger.open(path);
+        for (int i = 0; i < 6; i++) {
+            assertEquals(i, Parser.parseLong(logger.next()));
+        }
+        logger.close();
+    }
+
+    private static int polynomial(int xCheck, byte[] bytes) {
+        for (byte b : bytes) {
+            xCheck = xCheck * 13331 + b;
+        }
+        return xCheck;
+    }
+
+    /**
+     * 读取器跨段顺序读出全部日志：跨越预读窗口边界的日志、比窗口更大的日志都能读出，
+     * 返回的位置与写入时的 LSN 一致，也可以从中间某条日志的 LSN 开始读取
+     */
+    @Test
+    public void testReader() throws Exception {
+        Logger logger = Logger.create(path, 4 << 20);
+        int count = 40;
+        long[] lsns = new long[count];
+        byte[][] records = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            int size = i % 10 == 3 ? 1_500_000 : i % 4 == 1 ? 600_000 : 100 + i;
+            records[i] = new byte[size];
+            Arrays.fill(records[i], (byte) i);
+            System.arraycopy(Parser.int2Byte(i), 0, records[i], 0, 4);
+            lsns[i] = logger.log(records[i]);
+        }
+        logger.close();
+
+        Logger reopened = Logger.open(path, 4 << 20);
+        System.out.println("segments: " + segmentFiles().length);
+        LogReader reader = reopened.reader(0);
+        for (int i = 0; i < count; i++) {
+            ByteBuffer data = reader.next();
+            assertEquals(lsns[i], reader.lsn());
+            byte[] raw = new byte[data.remaining()];
+            data.get(raw);
+            assertArrayEquals(records[i], raw);
+        }
+        assertNull(reader.next());
+
+        reader = reopened.reader(lsns[17]);
+        for (int i = 17; i < count; i++) {
+            assertEquals(records[i].length, reader.next().remaining());
+            assertEquals(lsns[i], reader.lsn());
+        }
+        assertNull(reader.next());
+        reopened.close();
+    }
+
+    /**
+     * 读取剩余的全部日志
+     * @param logger
+     * @return 日志条数
+     */
+    private static long readAll(Logger logger) {
+        long count = 0;
+        while (logger.next() != null) {
+            count++;
+        }
+        return count;
+    }
+
+    private File[] segmentFiles() {
+        File file = new File(path);
+        File[] files = file.getParentFile().listFiles((dir, name) -> name.startsWith(file.getName() + ".log."));
+        Arrays.sort(files);
+        return files;
+    }
+}
@@ -0,0 +1,79 @@
+package com.tjyy.mydb.dm.pageCache;
+
+import com.tjyy.mydb.TempFiles;
+import com.tjyy.mydb.backend.dm.page.Page;
+import com.tjyy.mydb.backend.dm.pageCache.PageCache;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * @author: Tjyy
+ * @date: 2024-03-08 10:30
+ * @description: 并发冷读基准测试
+ * 每轮重新打开页面缓存，各线程读取互不相交的页面区间，所有 getPage 都会未命中并读盘
+ * 运行方式: mvn test -Dtest=PageReadBenchmark
+ */
+public class PageReadBenchmark {
+    private static final int PAGES = 8192;
+    private static final long memory = (long) PageCache.PAGE_SIZE * (PAGES + 16);
+    private static final int[] THREADS = {1, 2, 4, 8, 16, 32};
+
+    private String path;
+
+    @Before
+    public void setUp() {
+        path = TempFiles.path("page_read_");
+        PageCache pageCache = PageCache.create(path, memory);
+        byte[] data = new byte[PageCache.PAGE_SIZE];
+        for (int i = 0; i < PAGES; i++) {
+            pageCache.newPage(data);
+        }
+        pageCache.close();
+    }
+
+    @After
+    public void tearDown() {
+        TempFiles.delete(path);
+    }
+
+    @Test
+    public void benchmarkColdReads() throws Exception {
+        System.out.println("threads\tpages/s");
+        for (int threads : THREADS) {
+            System.out.println(threads + "\t" + run(threads));
+        }
+    }
+
+    private long run(int threads) throws Exception {
+        PageCache pageCache = PageCache.open(path, memory);
+        int perThread = PAGES / threads;
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final int first = t * perThread + 1;
+            new Thread(() -> {
+                try {
+                    start.await();
+                    for (int pgno = first; pgno < first + perThread; pgno++) {
+                        Page page = pageCache.getPage(pgno);
+                        page.release();
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - begin;
+        pageCache.close();
+        return (long) perThread * threads * 1_000_000_000L / elapsed;
+    }
+}
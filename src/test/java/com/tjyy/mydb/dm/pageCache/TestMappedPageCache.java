@@ -0,0 +1,111 @@
+package com.tjyy.mydb.dm.pageCache;
+
+import com.tjyy.mydb.TempFiles;
+import com.tjyy.mydb.backend.dm.page.CommonPage;
+import com.tjyy.mydb.backend.dm.page.Page;
+import com.tjyy.mydb.backend.dm.pageCache.PageCache;
+import com.tjyy.mydb.backend.util.Parser;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author: Tjyy
+ * @date: 2024-03-09 16:40
+ * @description: test memory-mapped page cache
+ */
+public class TestMappedPageCache {
+    private static final long memory = 1 << 13 << 4;
+
+    private String path;
+
+    @Before
+    public void setUp() {
+        path = TempFiles.path("mapped_");
+    }
+
+    @After
+    public void tearDown() {
+        TempFiles.delete(path);
+    }
+
+    /**
+     * 映射页面上的修改在 flushPage 后可以被堆缓冲池读到，映射段随 newPage 增长
+     */
+    @Test
+    public void testWriteThroughMapping() throws Exception {
+        PageCache pageCache = PageCache.create(path, memory, PageCache.Backend.MMAP);
+        int pages = 1100;  // 超过一个映射段
+        for (int i = 0; i < pages; i++) {
+            pageCache.newPage(CommonPage.initCommonPage());
+            Page page = pageCache.getPage(i + 1);
+            assertTrue(page.getBuffer().isDirect());
+            CommonPage.insertData(page, Parser.int2Byte(i));
+            page.release();
+        }
+        Page last = pageCache.getPage(pages);
+        pageCache.flushPage(last);
+        last.release();
+        pageCache.close();
+
+        PageCache heap = PageCache.open(path, memory);
+        assertEquals(pages, heap.getPageNumber());
+        for (int pgno = 1; pgno <= pages; pgno += 99) {
+            Page page = heap.getPage(pgno);
+            assertEquals(8, CommonPage.getOffset(page));
+            assertEquals(pgno - 1, page.getBuffer().getInt(4));
+            page.release();
+        }
+        heap.close();
+    }
+
+    /**
+     * 截断之后重新映射，页面数量与文件长度一致
+     */
+    @Test
+    public void testTruncate() throws Exception {
+        PageCache pageCache = PageCache.create(path, memory, PageCache.Backend.MMAP);
+        for (int i = 0; i < 8; i++) {
+            pageCache.newPage(CommonPage.initCommonPage());
+        }
+        pageCache.getPage(8).release();
+        pageCache.truncateByPgno(5);
+        assertEquals(5, pageCache.getPageNumber());
+        assertEquals(5L * PageCache.PAGE_SIZE, new File(path + ".db").length());
+
+        Page page = pageCache.getPage(5);
+        assertEquals(4, CommonPage.getOffset(page));
+        page.release();
+        pageCache.close();
+    }
+
+    /**
+     * 截断后文件重新增长，不会读到缓存中被截掉的页面的旧内容
+     */
+    @Test
+    public void testTruncateInvalidatesCachedPages() throws Exception {
+        for (PageCache.Backend backend : PageCache.Backend.values()) {
+            PageCache pageCache = PageCache.create(path + backend, memory, backend);
+            for (int i = 0; i < 8; i++) {
+                pageCache.newPage(CommonPage.initCommonPage());
+            }
+            Page page = pageCache.getPage(7);
+            CommonPage.insertData(page, Parser.int2Byte(7));
+            page.release();
+            pageCache.truncateByPgno(5);
+
+            assertEquals(6, pageCache.newPage(CommonPage.initCommonPage()));
+            assertEquals(7, pageCache.newPage(CommonPage.initCommonPage()));
+            page = pageCache.getPage(7);
+            assertEquals(backend.name(), 4, CommonPage.getOffset(page));
+            page.release();
+            pageCache.close();
+            new File(path + backend + ".db").delete();
+        }
+    }
+}
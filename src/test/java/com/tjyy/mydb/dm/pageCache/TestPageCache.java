@@ -53,7 +53,7 @@ public class TestPageCache {
         int pgno = 3;
         Page page = pageCache.getPage(pgno);
         System.out.println("当前页面为第 " + page.getPageNumber() + "页");
-        System.out.println("当前页面数据长度为：" + page.getData().length);
+        System.out.println("当前页面数据长度为：" + page.getBuffer().capacity());
 
         int pageNumber = pageCache.getPageNumber();
         System.out.println("当前 数据库 的页面数量 " + pageNumber);
@@ -0,0 +1,121 @@
+package com.tjyy.mydb.dm.pageCache;
+
+import com.tjyy.mydb.TempFiles;
+import com.tjyy.mydb.backend.dm.page.Page;
+import com.tjyy.mydb.backend.dm.pageCache.PageCache;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author: Tjyy
+ * @date: 2024-03-06 15:10
+ * @description: test page cache eviction
+ */
+public class TestPageCacheEviction {
+    private static final int CACHE_PAGES = 10;
+    private static final long memory = (long) PageCache.PAGE_SIZE * CACHE_PAGES;
+
+    private String path;
+
+    @Before
+    public void setUp() {
+        path = TempFiles.path("eviction_");
+    }
+
+    @After
+    public void tearDown() {
+        TempFiles.delete(path);
+    }
+
+    /**
+     * 访问页面数远多于缓存容量时，页面被驱逐而不是抛出 CacheFullException，脏页在驱逐时写回
+     */
+    @Test
+    public void testEvictDirtyPages() throws Exception {
+        PageCache pageCache = PageCache.create(path, memory);
+        int pages = CACHE_PAGES * 5;
+        for (int i = 0; i < pages; i++) {
+            pageCache.newPage(new byte[PageCache.PAGE_SIZE]);
+        }
+
+        for (int pgno = 1; pgno <= pages; pgno++) {
+            Page page = pageCache.getPage(pgno);
+            page.getBuffer().putInt(0, pgno * 31);
+            page.setDirty(true);
+            page.release();
+        }
+
+        for (int pgno = 1; pgno <= pages; pgno++) {
+            Page page = pageCache.getPage(pgno);
+            assertEquals(pgno * 31, page.getBuffer().getInt(0));
+            page.release();
+        }
+        pageCache.close();
+    }
+
+    /**
+     * 堆外帧池模式下页面帧在驱逐后被复用，驱逐写回的数据可以被重新读到
+     */
+    @Test
+    public void testEvictWithDirectArena() throws Exception {
+        PageCache pageCache = PageCache.create(path, memory, PageCache.Backend.DIRECT);
+        int pages = CACHE_PAGES * 5;
+        for (int i = 0; i < pages; i++) {
+            pageCache.newPage(new byte[PageCache.PAGE_SIZE]);
+        }
+
+        for (int round = 0; round < 2; round++) {
+            for (int pgno = 1; pgno <= pages; pgno++) {
+                Page page = pageCache.getPage(pgno);
+                assertTrue(page.getBuffer().isDirect());
+                assertEquals(round == 0 ? 0 : pgno * 31, page.getBuffer().getInt(PageCache.PAGE_SIZE - 4));
+                page.getBuffer().putInt(PageCache.PAGE_SIZE - 4, pgno * 31);
+                page.setDirty(true);
+                page.release();
+            }
+        }
+        pageCache.close();
+    }
+
+    /**
+     * 所有页面都被引用时，新的请求阻塞直到有页面被释放
+     */
+    @Test
+    public void testBlockWhenAllPinned() throws Exception {
+        PageCache pageCache = PageCache.create(path, memory);
+        Page[] pinned = new Page[CACHE_PAGES];
+        for (int i = 0; i < CACHE_PAGES + 1; i++) {
+            pageCache.newPage(new byte[PageCache.PAGE_SIZE]);
+        }
+        for (int i = 0; i < CACHE_PAGES; i++) {
+            pinned[i] = pageCache.getPage(i + 1);
+        }
+
+        CountDownLatch loaded = new CountDownLatch(1);
+        new Thread(() -> {
+            try {
+                pageCache.getPage(CACHE_PAGES + 1).release();
+                loaded.countDown();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }).start();
+
+        assertFalse(loaded.await(200, TimeUnit.MILLISECONDS));
+        pinned[0].release();
+        assertTrue(loaded.await(5, TimeUnit.SECONDS));
+
+        for (int i = 1; i < CACHE_PAGES; i++) {
+            pinned[i].release();
+        }
+        pageCache.close();
+    }
+}
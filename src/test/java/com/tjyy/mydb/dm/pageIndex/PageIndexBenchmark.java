@@ -0,0 +1,77 @@
+package com.tjyy.mydb.dm.pageIndex;
+
+import com.tjyy.mydb.backend.dm.page.CommonPage;
+import com.tjyy.mydb.backend.dm.pageIndex.PageIndex;
+import com.tjyy.mydb.backend.dm.pageIndex.PageInfo;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * @author: Tjyy
+ * @date: 2024-03-19 15:00
+ * @description: PageIndex 并发基准测试
+ * 模拟插入时的 select + add：各线程选出一页，扣除随机大小的数据后放回，页满时换成新的空页
+ * 第一轮用于预热不计入结果
+ * 运行方式: mvn test -Dtest=PageIndexBenchmark
+ */
+public class PageIndexBenchmark {
+    private static final int PAGES = 10_000;
+    private static final int OPS_PER_THREAD = 500_000;
+    private static final int[] THREADS = {1, 4, 16, 64};
+
+    @Test
+    public void benchmarkSelectAdd() throws Exception {
+        for (int threads : THREADS) {
+            run(threads);
+        }
+        System.out.println("threads\tselect+add/s");
+        for (int threads : THREADS) {
+            System.out.println(threads + "\t" + run(threads));
+        }
+    }
+
+    private long run(int threads) throws Exception {
+        PageIndex pageIndex = new PageIndex();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int pgno = 1; pgno <= PAGES; pgno++) {
+            pageIndex.add(pgno, random.nextInt(CommonPage.MAX_PAGE_DATA_SIZE + 1));
+        }
+
+        int[] nextPgno = {PAGES};
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            new Thread(() -> {
+                ThreadLocalRandom r = ThreadLocalRandom.current();
+                try {
+                    start.await();
+                    for (int op = 0; op < OPS_PER_THREAD / threads; op++) {
+                        int size = 16 + r.nextInt(256);
+                        PageInfo pageInfo = pageIndex.select(size);
+                        if (pageInfo == null) {
+                            int pgno;
+                            synchronized (nextPgno) {
+                                pgno = ++nextPgno[0];
+                            }
+                            pageIndex.add(pgno, CommonPage.MAX_PAGE_DATA_SIZE);
+                            continue;
+                        }
+                        pageIndex.add(pageInfo.pgno, pageInfo.freeSpace - size);
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - begin;
+        return (long) (OPS_PER_THREAD / threads) * threads * 1_000_000_000L / elapsed;
+    }
+}
@@ -0,0 +1,144 @@
+package com.tjyy.mydb.dm.pageIndex;
+
+import com.tjyy.mydb.backend.dm.page.CommonPage;
+import com.tjyy.mydb.backend.dm.pageIndex.PageIndex;
+import com.tjyy.mydb.backend.dm.pageIndex.PageInfo;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author: Tjyy
+ * @date: 2024-03-19 15:30
+ * @description: test page index
+ */
+public class TestPageIndex {
+
+    /**
+     * select 选出的页面一定放得下数据，并且优先选择剩余空间最小的区间
+     */
+    @Test
+    public void testSelect() {
+        PageIndex pageIndex = new PageIndex();
+        pageIndex.add(1, 100);
+        pageIndex.add(2, 1000);
+        pageIndex.add(3, CommonPage.MAX_PAGE_DATA_SIZE);
+
+        assertEquals(2, pageIndex.select(500).pgno);
+        assertEquals(3, pageIndex.select(500).pgno);
+        assertNull(pageIndex.select(500));
+        assertEquals(1, pageIndex.select(10).pgno);
+        assertNull(pageIndex.select(1));
+
+        pageIndex.add(3, 600);
+        assertNull(pageIndex.select(601));
+        PageInfo pageInfo = pageIndex.select(500);
+        assertEquals(3, pageInfo.pgno);
+        assertEquals(600, pageInfo.freeSpace);
+    }
+
+    /**
+     * 接近整页大小的数据只能放在剩余空间足够的页面中，同一区间中空间不足的页面不会被选中
+     */
+    @Test
+    public void testSelectNearPageSize() {
+        PageIndex pageIndex = new PageIndex();
+        pageIndex.add(1, CommonPage.MAX_PAGE_DATA_SIZE - 20);
+        assertNull(pageIndex.select(CommonPage.MAX_PAGE_DATA_SIZE));
+        pageIndex.add(2, CommonPage.MAX_PAGE_DATA_SIZE);
+        assertEquals(2, pageIndex.select(CommonPage.MAX_PAGE_DATA_SIZE).pgno);
+        assertNull(pageIndex.select(CommonPage.MAX_PAGE_DATA_SIZE));
+        assertEquals(1, pageIndex.select(CommonPage.MAX_PAGE_DATA_SIZE - 20).pgno);
+        assertNull(pageIndex.select(1));
+    }
+
+    /**
+     * 再次 add 已在索引中的页面时替换原来的项，页面只会被选中一次
+     */
+    @Test
+    public void testAddReplaces() {
+        PageIndex pageIndex = new PageIndex();
+        pageIndex.add(1, 0);
+        pageIndex.add(1, CommonPage.MAX_PAGE_DATA_SIZE);
+        pageIndex.add(2, 100);
+        pageIndex.add(2, 1000);
+        assertEquals(2, pageIndex.pages().size());
+
+        PageInfo pageInfo = pageIndex.select(2000);
+        assertEquals(1, pageInfo.pgno);
+        assertEquals(CommonPage.MAX_PAGE_DATA_SIZE, pageInfo.freeSpace);
+        pageInfo = pageIndex.select(500);
+        assertEquals(2, pageInfo.pgno);
+        assertEquals(1000, pageInfo.freeSpace);
+        assertNull(pageIndex.select(0));
+
+        // 大量替换后失效的项被清理，选中的仍是最后一次放入的空间
+        for (int i = 0; i < 1000; i++) {
+            pageIndex.add(3, i % CommonPage.MAX_PAGE_DATA_SIZE);
+        }
+        assertEquals(1, pageIndex.pages().size());
+        pageInfo = pageIndex.select(0);
+        assertEquals(3, pageInfo.pgno);
+        assertEquals(999, pageInfo.freeSpace);
+        assertNull(pageIndex.select(0));
+    }
+
+    /**
+     * 多线程反复 select 和 add，页面不会丢失也不会被两个线程同时选中
+     */
+    @Test
+    public void testConcurrentSelectAdd() throws Exception {
+        PageIndex pageIndex = new PageIndex();
+        int pages = 64;
+        for (int pgno = 1; pgno <= pages; pgno++) {
+            pageIndex.add(pgno, CommonPage.MAX_PAGE_DATA_SIZE);
+        }
+
+        int threads = 16;
+        int ops = 20_000;
+        boolean[] held = new boolean[pages + 1];
+        AtomicInteger conflicts = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int i = 0; i < ops; i++) {
+                    PageInfo pageInfo = pageIndex.select(random.nextInt(64));
+                    if (pageInfo == null) {
+                        continue;
+                    }
+                    synchronized (held) {
+                        if (held[pageInfo.pgno]) {
+                            conflicts.incrementAndGet();
+                        }
+                        held[pageInfo.pgno] = true;
+                    }
+                    // 放回时至少剩 64 字节，结束后每一页都能被 select(0) 选中
+                    int freeSpace = 64 + random.nextInt(CommonPage.MAX_PAGE_DATA_SIZE - 63);
+                    synchronized (held) {
+                        held[pageInfo.pgno] = false;
+                    }
+                    pageIndex.add(pageInfo.pgno, freeSpace);
+                }
+                done.countDown();
+            }).start();
+        }
+        done.await();
+        assertEquals(0, conflicts.get());
+
+        Set<Integer> seen = new HashSet<>();
+        PageInfo pageInfo;
+        while ((pageInfo = pageIndex.select(0)) != null) {
+            assertTrue(seen.add(pageInfo.pgno));
+        }
+        assertEquals(pages, seen.size());
+    }
+}
@@ -0,0 +1,170 @@
+package com.tjyy.mydb.tm;
+
+import com.tjyy.mydb.TempFiles;
+import com.tjyy.mydb.backend.tm.TransactionManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author: Tjyy
+ * @date: 2024-03-18 14:20
+ * @description: test transaction status persistence
+ */
+public class TestTransactionStatus {
+    private static final int COMMITTED = 1;
+    private static final int ABORTED = 2;
+
+    private String path;
+
+    @Before
+    public void setUp() {
+        path = TempFiles.path("tm_");
+    }
+
+    @After
+    public void tearDown() {
+        TempFiles.delete(path);
+    }
+
+    /**
+     * 多线程并发开始、提交和回滚事务，重新打开后每个事务的状态都与关闭前一致
+     */
+    @Test
+    public void testConcurrentTransactions() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        int threads = 16;
+        int perThread = 300;
+        ConcurrentHashMap<Long, Integer> outcomes = new ConcurrentHashMap<>();
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            new Thread(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    long xid = tm.begin();
+                    if (i % 3 == 0) {
+                        tm.commit(xid);
+                        outcomes.put(xid, COMMITTED);
+                    } else if (i % 3 == 1) {
+                        tm.abort(xid);
+                        outcomes.put(xid, ABORTED);
+                    } else {
+                        outcomes.put(xid, 0);
+                    }
+                }
+                done.countDown();
+            }).start();
+        }
+        done.await();
+        tm.close();
+        assertEquals(threads * perThread, outcomes.size());
+
+        TransactionManager reopened = TransactionManager.open(path);
+        for (long xid = 1; xid <= threads * perThread; xid++) {
+            int outcome = outcomes.get(xid);
+            assertEquals(outcome == 0, reopened.isActive(xid));
+            assertEquals(outcome == COMMITTED, reopened.isCommitted(xid));
+            assertEquals(outcome == ABORTED, reopened.isAborted(xid));
+        }
+        assertEquals(threads * perThread + 1, reopened.begin());
+        reopened.close();
+    }
+
+    /**
+     * 宕机时状态比文件头先落盘：XidCounter 之后残留的状态在打开时被清除，之后分配的事务是活跃状态
+     */
+    @Test
+    public void testStaleStatusAfterCounter() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        for (int i = 0; i < 10; i++) {
+            tm.commit(tm.begin());
+        }
+        tm.close();
+
+        // [Magic 4] [Version 4] [XidCounter 8] [Status 2bit * 4 / byte]，XID 11 位于第 2 个字节的第 4、5 位
+        try (RandomAccessFile file = new RandomAccessFile(path + ".xid", "rw")) {
+            file.seek(16 + 2);
+            file.write(file.read() | COMMITTED << 4);
+        }
+        tm = TransactionManager.open(path);
+        assertTrue(tm.isCommitted(10));
+        long xid = tm.begin();
+        assertEquals(11, xid);
+        assertTrue(tm.isActive(xid));
+        tm.close();
+
+        try (RandomAccessFile file = new RandomAccessFile(path + ".xid", "rw")) {
+            file.seek(16 + 2);
+            assertEquals(COMMITTED << 2 | COMMITTED, file.read());
+        }
+        tm = TransactionManager.open(path);
+        assertTrue(tm.isActive(11));
+        tm.close();
+    }
+
+    /**
+     * 宕机后从预留的 XID 上限之后继续分配，已提交的状态不丢失，未使用的预留被跳过
+     */
+    @Test
+    public void testCrashSkipsReservedBlock() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        long committed = tm.begin();
+        tm.commit(committed);
+        long active = tm.begin();
+
+        // 不关闭 tm，复制文件模拟宕机
+        String crashed = path + "_crashed";
+        Files.copy(Paths.get(path + ".xid"), Paths.get(crashed + ".xid"));
+        try {
+            TransactionManager recovered = TransactionManager.open(crashed);
+            assertTrue(recovered.isCommitted(committed));
+            assertTrue(recovered.isActive(active));
+            // 第一次 begin 预留了 [2, 1 + 65536]
+            assertEquals(1 + 65536 + 1, recovered.begin());
+            recovered.close();
+        } finally {
+            new File(crashed + ".xid").delete();
+        }
+
+        assertEquals(3, tm.begin());
+        tm.close();
+        tm = TransactionManager.open(path);
+        assertEquals(4, tm.begin());
+        tm.close();
+    }
+
+    /**
+     * 创建时宕机留下的不完整 XID 文件(只有部分文件头，或者第一个段还没有扩展)在打开时被补全
+     */
+    @Test
+    public void testRepairShortFile() throws Exception {
+        for (int length : new int[]{0, 6, 16, 16 + 100}) {
+            TransactionManager tm = TransactionManager.create(path);
+            tm.close();
+            try (RandomAccessFile file = new RandomAccessFile(path + ".xid", "rw")) {
+                file.setLength(length);
+            }
+
+            tm = TransactionManager.open(path);
+            assertEquals(16 + (1 << 20), new File(path + ".xid").length());
+            long xid = tm.begin();
+            assertEquals(1, xid);
+            tm.commit(xid);
+            tm.close();
+
+            tm = TransactionManager.open(path);
+            assertTrue(tm.isCommitted(1));
+            tm.close();
+            new File(path + ".xid").delete();
+        }
+    }
+}
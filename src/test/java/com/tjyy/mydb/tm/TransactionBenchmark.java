@@ -0,0 +1,115 @@
+package com.tjyy.mydb.tm;
+
+import com.tjyy.mydb.TempFiles;
+import com.tjyy.mydb.backend.tm.TransactionManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author: Tjyy
+ * @date: 2024-03-18 10:00
+ * @description: 事务管理器基准测试
+ * 1. 不同并发数下每秒完成的 begin + commit 次数
+ * 2. 不同并发数下每秒完成的 begin 次数
+ * 3. 单线程查询事务状态的耗时
+ * 运行方式: mvn test -Dtest=TransactionBenchmark
+ */
+public class TransactionBenchmark {
+    private static final int[] THREADS = {1, 8, 64};
+    private static final long DURATION = 3000;  // 每轮持续时间，毫秒
+    private static final int CHECKS = 1_000_000;
+
+    private String path;
+
+    @Before
+    public void setUp() {
+        path = TempFiles.path("tm_bench_");
+    }
+
+    @After
+    public void tearDown() {
+        TempFiles.delete(path);
+    }
+
+    @Test
+    public void benchmarkBeginCommit() throws Exception {
+        System.out.println("threads\ttransactions/s");
+        for (int threads : THREADS) {
+            TransactionManager tm = TransactionManager.create(path);
+            System.out.println(threads + "\t" + run(tm, threads, true));
+            tm.close();
+            new File(path + ".xid").delete();
+        }
+    }
+
+    @Test
+    public void benchmarkBegin() throws Exception {
+        System.out.println("threads\tbegins/s");
+        for (int threads : THREADS) {
+            TransactionManager tm = TransactionManager.create(path);
+            System.out.println(threads + "\t" + run(tm, threads, false));
+            tm.close();
+            new File(path + ".xid").delete();
+        }
+    }
+
+    @Test
+    public void benchmarkStatusCheck() {
+        TransactionManager tm = TransactionManager.create(path);
+        int xids = 1000;
+        for (int i = 0; i < xids; i++) {
+            long xid = tm.begin();
+            if (i % 2 == 0) {
+                tm.commit(xid);
+            }
+        }
+
+        long begin = System.nanoTime();
+        long active = 0;
+        for (int i = 0; i < CHECKS; i++) {
+            if (tm.isActive(i % xids + 1)) {
+                active++;
+            }
+        }
+        long elapsed = System.nanoTime() - begin;
+        tm.close();
+        System.out.println("isActive ns/op: " + (double) elapsed / CHECKS + " (" + active + ")");
+    }
+
+    private long run(TransactionManager tm, int threads, boolean commit) throws Exception {
+        AtomicLong transactions = new AtomicLong();
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        long[] deadline = new long[1];
+        for (int t = 0; t < threads; t++) {
+            new Thread(() -> {
+                try {
+                    start.await();
+                    while (System.nanoTime() < deadline[0]) {
+                        long xid = tm.begin();
+                        if (commit) {
+                            tm.commit(xid);
+                        }
+                        transactions.incrementAndGet();
+                    }
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+
+        long begin = System.nanoTime();
+        deadline[0] = begin + DURATION * 1_000_000L;
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - begin;
+        return transactions.get() * 1_000_000_000L / elapsed;
+    }
+}